@@ -0,0 +1,141 @@
+package jopencc.util;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.util.Iterator;
+import java.util.Map;
+
+/**
+ * Compares the former Dict conversion (a map lookup and a StringBuffer
+ * replace per character, plus one indexOf pass per phrase when phrases
+ * are enabled) with ConversionTrie on a real text, in both directions.
+ *
+ * Runs on a desktop JVM, from the repository root:
+ *   javac -d /tmp/bench fbreader/app/src/main/java/jopencc/util/{ConversionTrie,FileUtil,Util}.java \
+ *     fbreader/app/src/benchmark/java/jopencc/util/ConversionBenchmark.java
+ *   java -cp /tmp/bench jopencc.util.ConversionBenchmark chapter.txt [rounds] [dictionary directory]
+ * where chapter.txt is a guji chapter in UTF-8; the dictionaries are read
+ * from assets/data/dictionary by default.
+ */
+public final class ConversionBenchmark {
+	private static final class Direction {
+		final String Name;
+		final Map<String,String> Characters;
+		final Map<String,String> Phrases;
+
+		Direction(String name, File characters, File phrases) throws IOException {
+			Name = name;
+			Characters = FileUtil.readDict(new FileInputStream(characters));
+			Phrases = FileUtil.readDict(new FileInputStream(phrases));
+			if (Characters.isEmpty() || Phrases.isEmpty()) {
+				throw new IOException("Cannot read dictionaries for " + name);
+			}
+		}
+	}
+
+	// the conversion Dict did before ConversionTrie, kept as is
+	private static void legacyMap(StringBuffer src, Map<String,String> dict, boolean isPhrase) {
+		if (isPhrase) {
+			if (src.length() < 10) return;
+			String key, value;
+			int idx, pos, len;
+			Iterator<String> it = dict.keySet().iterator();
+			while (it.hasNext()) {
+				key = it.next();
+				pos = 0;
+				while ((idx = src.indexOf(key, pos)) > -1) {
+					value = dict.get(key);
+					len = value.length();
+					src.replace(idx, idx + len, value);
+					pos = idx + len;
+				}
+			}
+		} else {
+			for (int i = 0; i < src.length(); i++) {
+				String value = dict.get("" + src.charAt(i));
+				if (value != null) {
+					src.replace(i, i + 1, value);
+				}
+			}
+		}
+	}
+
+	private static String legacyConvert(Direction direction, String text, boolean phrases) {
+		final StringBuffer src = new StringBuffer(text);
+		if (phrases) {
+			legacyMap(src, direction.Phrases, true);
+		}
+		legacyMap(src, direction.Characters, false);
+		return src.toString();
+	}
+
+	private static double millis(long nanos, int rounds) {
+		return nanos / 1e6 / rounds;
+	}
+
+	private static void report(String name, double millis) {
+		System.out.println(String.format("  %-28s%10.2f ms", name + ":", millis));
+	}
+
+	private static void run(Direction direction, String text, int rounds) {
+		long start = System.nanoTime();
+		// phrases are added last, so they win over single characters (as in Dict)
+		final ConversionTrie trie =
+			new ConversionTrie.Builder().add(direction.Characters).add(direction.Phrases).build();
+		final long buildTime = System.nanoTime() - start;
+		final char[] data = text.toCharArray();
+
+		// warm up the JIT
+		for (int i = 0; i < 3; ++i) {
+			legacyConvert(direction, text, false);
+			trie.convert(data, 0, data.length);
+		}
+		legacyConvert(direction, text, true);
+
+		long legacyCharTime = 0;
+		long legacyPhraseTime = 0;
+		long trieTime = 0;
+		for (int i = 0; i < rounds; ++i) {
+			start = System.nanoTime();
+			legacyConvert(direction, text, false);
+			legacyCharTime += System.nanoTime() - start;
+
+			start = System.nanoTime();
+			legacyConvert(direction, text, true);
+			legacyPhraseTime += System.nanoTime() - start;
+
+			start = System.nanoTime();
+			trie.convert(data, 0, data.length);
+			trieTime += System.nanoTime() - start;
+		}
+
+		System.out.println(direction.Name + ":");
+		report("old, characters only", millis(legacyCharTime, rounds));
+		report("old, phrases + characters", millis(legacyPhraseTime, rounds));
+		report("trie, phrases + characters", millis(trieTime, rounds));
+		report("trie build (once)", millis(buildTime, 1));
+	}
+
+	public static void main(String[] args) throws IOException {
+		if (args.length < 1) {
+			System.err.println("usage: ConversionBenchmark <chapter.txt> [rounds] [dictionary directory]");
+			System.exit(1);
+		}
+		final String text = FileUtil.readSrc(new File(args[0])).toString();
+		final int rounds = args.length > 1 ? Integer.parseInt(args[1]) : 10;
+		final File dictionaries = new File(args.length > 2 ? args[2] : "assets/data/dictionary");
+
+		System.out.println(text.length() + " chars, " + rounds + " rounds, time per round");
+		run(new Direction(
+			"to simplified",
+			new File(dictionaries, "TSCharacters.txt"),
+			new File(dictionaries, "TSPhrases.txt")
+		), text, rounds);
+		run(new Direction(
+			"to traditional",
+			new File(dictionaries, "STCharacters.txt"),
+			new File(dictionaries, "STPhrases.txt")
+		), text, rounds);
+	}
+}
@@ -0,0 +1,127 @@
+/*
+ * Copyright (C) 2007-2015 FBReader.ORG Limited <contact@fbreader.org>
+ *
+ * This program is free software; you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation; either version 2 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program; if not, write to the Free Software
+ * Foundation, Inc., 51 Franklin Street, Fifth Floor, Boston, MA
+ * 02110-1301, USA.
+ */
+
+package org.geometerplus.fbreader.book;
+
+import java.util.*;
+
+import org.geometerplus.zlibrary.core.util.RationalNumber;
+
+/**
+ * Compares XMLSerializer and BinarySerializer on the transfer of a book list
+ * between the library service and the reader (books are sent one XML string
+ * per book, or as one binary packet).
+ *
+ * XMLSerializer uses android.util.Xml, so the benchmark runs on a device:
+ *   adb push fbreader.apk /data/local/tmp/
+ *   adb shell CLASSPATH=/data/local/tmp/fbreader.apk app_process /system/bin \
+ *     org.geometerplus.fbreader.book.SerializerBenchmark [books] [rounds]
+ * with this class compiled into the apk (add src/benchmark/java to the
+ * source directories of a debug build).
+ */
+public final class SerializerBenchmark {
+	private static final AbstractSerializer.BookCreator<Book> CREATOR =
+		new AbstractSerializer.BookCreator<Book>() {
+			public Book createBook(long id, String url, String title, String encoding, String language) {
+				return new Book(id, url, title, encoding, language);
+			}
+		};
+
+	private static List<Book> createBooks(int count) {
+		final Random random = new Random(count);
+		final List<Book> books = new ArrayList<Book>(count);
+		for (int i = 0; i < count; ++i) {
+			final Book book = new Book(
+				i + 1, "/sdcard/Books/book" + i + ".txt", "Book title " + i, "utf-8", "zh"
+			);
+			book.addAuthorWithNoCheck(Author.create("Author " + random.nextInt(200), null));
+			if (random.nextBoolean()) {
+				book.addAuthorWithNoCheck(Author.create("Translator " + random.nextInt(50), null));
+			}
+			book.addTagWithNoCheck(Tag.getTag(null, "tag" + random.nextInt(30)));
+			book.addUidWithNoCheck(new UID("SHA-256", Long.toHexString(random.nextLong()) + Long.toHexString(random.nextLong())));
+			if (random.nextInt(3) == 0) {
+				book.setSeriesInfoWithNoCheck("Series " + random.nextInt(40), String.valueOf(random.nextInt(10)));
+			}
+			book.setProgressWithNoCheck(RationalNumber.create(random.nextInt(100), 100));
+			books.add(book);
+		}
+		return books;
+	}
+
+	private static long xmlRound(XMLSerializer serializer, List<Book> books) {
+		final List<String> packets = new ArrayList<String>(books.size());
+		long size = 0;
+		for (Book b : books) {
+			final String xml = serializer.serialize(b);
+			// strings are parcelled as UTF-16
+			size += xml.length() * 2;
+			packets.add(xml);
+		}
+		for (String xml : packets) {
+			if (serializer.deserializeBook(xml, CREATOR) == null) {
+				throw new RuntimeException("XML round trip failed");
+			}
+		}
+		return size;
+	}
+
+	private static long binaryRound(List<Book> books) {
+		final byte[] packet = BinarySerializer.serializeBookList(books);
+		if (BinarySerializer.deserializeBookList(packet, CREATOR).size() != books.size()) {
+			throw new RuntimeException("Binary round trip failed");
+		}
+		return packet.length;
+	}
+
+	public static void main(String[] args) {
+		final int count = args.length > 0 ? Integer.parseInt(args[0]) : 1000;
+		final int rounds = args.length > 1 ? Integer.parseInt(args[1]) : 20;
+		final List<Book> books = createBooks(count);
+		final XMLSerializer xml = new XMLSerializer();
+
+		// warm up the JIT and class loading
+		for (int i = 0; i < 3; ++i) {
+			xmlRound(xml, books);
+			binaryRound(books);
+		}
+
+		long xmlTime = 0;
+		long xmlSize = 0;
+		long binaryTime = 0;
+		long binarySize = 0;
+		for (int i = 0; i < rounds; ++i) {
+			long start = System.nanoTime();
+			xmlSize = xmlRound(xml, books);
+			xmlTime += System.nanoTime() - start;
+
+			start = System.nanoTime();
+			binarySize = binaryRound(books);
+			binaryTime += System.nanoTime() - start;
+		}
+
+		System.out.println(count + " books, " + rounds + " rounds (serialize + deserialize)");
+		System.out.println(String.format(
+			"XMLSerializer:    %8.2f ms/round, %9d bytes", xmlTime / 1e6 / rounds, xmlSize
+		));
+		System.out.println(String.format(
+			"BinarySerializer: %8.2f ms/round, %9d bytes", binaryTime / 1e6 / rounds, binarySize
+		));
+	}
+}
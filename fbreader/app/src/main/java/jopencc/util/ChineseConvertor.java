@@ -41,16 +41,7 @@ public class ChineseConvertor {
 		if (Util.isMissing(src))
 			return src == null? null: src.toString();
 		
-		try {
-			DICT_TO_ZHT.setSrc(src);
-			DICT_TO_ZHT.convert();
-			return DICT_TO_ZHT.getResult();
-			
-		} catch (Exception e){
-			return src == null? null: src.toString();
-		} finally {
-			DICT_TO_ZHT.clear();
-		}
+		return convertToZht(src.toString());
 	}
 	
 	/**
@@ -59,36 +50,97 @@ public class ChineseConvertor {
 	 * @return Text in Traditional Chinese
 	 */
 	public static String convertToZht(String src){
-		return Util.isMissing(src)? src: convertToZht(new StringBuffer(src));
+		return Util.isMissing(src)? src: convert(DICT_TO_ZHT, src);
+	}
+	
+	/**
+	 * Convert a range of the source to Traditional Chinese
+	 * @param src
+	 * @param offset
+	 * @param length
+	 * @return Text in Traditional Chinese, always a new array
+	 */
+	public static char[] convertToZht(char[] src, int offset, int length){
+		return convert(DICT_TO_ZHT, src, offset, length);
+	}
+	
+	/**
+	 * Convert a range of the source to Traditional Chinese in place,
+	 * keeping the text length unchanged
+	 * @param src
+	 * @param offset
+	 * @param length
+	 */
+	public static void convertToZhtInPlace(char[] src, int offset, int length){
+		convertInPlace(DICT_TO_ZHT, src, offset, length);
 	}
 	
 	/**
 	 * Convert the source to Simplified Chinese
 	 * @param src
-	 * @return Text in Traditional Chinese
+	 * @return Text in Simplified Chinese
 	 */
 	public static String convertToZhs(StringBuffer src){
 		if (Util.isMissing(src))
 			return src == null? null: src.toString();
 		
-		try {
-			DICT_TO_ZHS.setSrc(src);
-			DICT_TO_ZHS.convert();
-			return DICT_TO_ZHS.getResult();
-			
-		} catch (Exception e){
-			return src == null? null: src.toString();
-		} finally {
-			DICT_TO_ZHS.clear();
-		}
+		return convertToZhs(src.toString());
 	}
 	
 	/**
 	 * Convert the source to Simplified Chinese
 	 * @param src
-	 * @return Text in Traditional Chinese
+	 * @return Text in Simplified Chinese
 	 */
 	public static String convertToZhs(String src){
-		return Util.isMissing(src)? src: convertToZhs(new StringBuffer(src));
+		return Util.isMissing(src)? src: convert(DICT_TO_ZHS, src);
+	}
+	
+	/**
+	 * Convert a range of the source to Simplified Chinese
+	 * @param src
+	 * @param offset
+	 * @param length
+	 * @return Text in Simplified Chinese, always a new array
+	 */
+	public static char[] convertToZhs(char[] src, int offset, int length){
+		return convert(DICT_TO_ZHS, src, offset, length);
+	}
+	
+	/**
+	 * Convert a range of the source to Simplified Chinese in place,
+	 * keeping the text length unchanged
+	 * @param src
+	 * @param offset
+	 * @param length
+	 */
+	public static void convertToZhsInPlace(char[] src, int offset, int length){
+		convertInPlace(DICT_TO_ZHS, src, offset, length);
+	}
+	
+	private static String convert(Dict dict, String src){
+		try {
+			return dict.convert(src);
+		} catch (Exception e){
+			return src;
+		}
+	}
+	
+	private static char[] convert(Dict dict, char[] src, int offset, int length){
+		try {
+			return dict.convert(src, offset, length);
+		} catch (Exception e){
+			char[] copy = new char[length];
+			System.arraycopy(src, offset, copy, 0, length);
+			return copy;
+		}
+	}
+	
+	private static void convertInPlace(Dict dict, char[] src, int offset, int length){
+		try {
+			dict.convertInPlace(src, offset, length);
+		} catch (Exception e){
+			// leave the source as is
+		}
 	}
 }
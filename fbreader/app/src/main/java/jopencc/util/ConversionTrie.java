@@ -0,0 +1,290 @@
+package jopencc.util;
+
+import java.util.Arrays;
+import java.util.Map;
+import java.util.TreeMap;
+
+/**
+ * Immutable double-array trie over a conversion dictionary.
+ *
+ * Conversion does a greedy longest match at each position of the source,
+ * so phrases and single characters can live in the same trie; the whole
+ * text is handled in one pass over a char array, without allocating
+ * anything per character. Instances are safe to share between threads.
+ */
+public final class ConversionTrie {
+	private static final int ROOT = 0;
+
+	private final int[] myBase;
+	private final int[] myCheck;
+	// index into myValueOffsets for terminal states, -1 otherwise
+	private final int[] myValue;
+	private final int[] myValueOffsets;
+	private final char[] myValueChars;
+	private final int myMaxExpansion;
+
+	private ConversionTrie(Builder builder) {
+		myBase = builder.myBase;
+		myCheck = builder.myCheck;
+		myValue = builder.myValue;
+		myValueOffsets = builder.myValueOffsets;
+		myValueChars = builder.myValueChars;
+		myMaxExpansion = builder.myMaxExpansion;
+	}
+
+	/**
+	 * @param length source length
+	 * @return buffer size sufficient for converting a source of given length
+	 */
+	public int maxOutputLength(int length) {
+		return length * myMaxExpansion;
+	}
+
+	/**
+	 * Convert a range of chars into the output buffer
+	 * @param text
+	 * @param offset
+	 * @param length
+	 * @param out buffer of at least maxOutputLength(length) chars after outOffset
+	 * @param outOffset
+	 * @return number of chars written to out
+	 */
+	public int convert(char[] text, int offset, int length, char[] out, int outOffset) {
+		return convert(text, offset, length, out, outOffset, false);
+	}
+
+	/**
+	 * Convert a range of chars in place, using only the matches that do not
+	 * change text length, so text positions stay valid after conversion
+	 * @param text
+	 * @param offset
+	 * @param length
+	 */
+	public void convertInPlace(char[] text, int offset, int length) {
+		convert(text, offset, length, text, offset, true);
+	}
+
+	private int convert(char[] text, int offset, int length, char[] out, int outOffset, boolean keepLength) {
+		final int[] base = myBase;
+		final int[] check = myCheck;
+		final int[] value = myValue;
+		final int[] valueOffsets = myValueOffsets;
+		final int end = offset + length;
+		int o = outOffset;
+		int i = offset;
+		while (i < end) {
+			int state = ROOT;
+			int matchedValue = -1;
+			int matchedEnd = i;
+			for (int j = i; j < end; ++j) {
+				final int next = base[state] + text[j] + 1;
+				if (next < 0 || next >= check.length || check[next] != state) {
+					break;
+				}
+				state = next;
+				final int v = value[state];
+				if (v != -1 && (!keepLength || valueOffsets[v + 1] - valueOffsets[v] == j + 1 - i)) {
+					matchedValue = v;
+					matchedEnd = j + 1;
+				}
+			}
+			if (matchedValue == -1) {
+				out[o++] = text[i++];
+			} else {
+				final int start = valueOffsets[matchedValue];
+				final int len = valueOffsets[matchedValue + 1] - start;
+				System.arraycopy(myValueChars, start, out, o, len);
+				o += len;
+				i = matchedEnd;
+			}
+		}
+		return o - outOffset;
+	}
+
+	public char[] convert(char[] text, int offset, int length) {
+		final char[] out = new char[maxOutputLength(length)];
+		final int outLength = convert(text, offset, length, out, 0);
+		return outLength == out.length ? out : Arrays.copyOf(out, outLength);
+	}
+
+	public String convert(String text) {
+		if (text == null || text.length() == 0) {
+			return text;
+		}
+		final char[] data = text.toCharArray();
+		final char[] out = new char[maxOutputLength(data.length)];
+		return new String(out, 0, convert(data, 0, data.length, out, 0));
+	}
+
+	/**
+	 * Collects dictionary entries and compiles them into a trie.
+	 * An entry added later replaces an earlier one with the same key,
+	 * so phrase dictionaries should be added after the character ones.
+	 */
+	public static final class Builder {
+		private final TreeMap<String,String> myEntries = new TreeMap<String,String>();
+
+		private int[] myBase;
+		private int[] myCheck;
+		private int[] myValue;
+		private int[] myValueOffsets;
+		private char[] myValueChars;
+		private int myMaxExpansion;
+
+		private String[] myKeys;
+		private int myNextCheckPos;
+		private int mySize;
+
+		public Builder add(Map<String,String> dict) {
+			for (Map.Entry<String,String> e : dict.entrySet()) {
+				add(e.getKey(), e.getValue());
+			}
+			return this;
+		}
+
+		public Builder add(String key, String value) {
+			if (key != null && key.length() > 0 && value != null) {
+				myEntries.put(key, value);
+			}
+			return this;
+		}
+
+		public ConversionTrie build() {
+			final int count = myEntries.size();
+			myKeys = myEntries.keySet().toArray(new String[count]);
+
+			int valueLength = 0;
+			myMaxExpansion = 1;
+			for (Map.Entry<String,String> e : myEntries.entrySet()) {
+				final int keyLength = e.getKey().length();
+				final int len = e.getValue().length();
+				valueLength += len;
+				myMaxExpansion = Math.max(myMaxExpansion, (len + keyLength - 1) / keyLength);
+			}
+			myValueOffsets = new int[count + 1];
+			myValueChars = new char[valueLength];
+			int pos = 0;
+			int index = 0;
+			for (String v : myEntries.values()) {
+				myValueOffsets[index++] = pos;
+				v.getChars(0, v.length(), myValueChars, pos);
+				pos += v.length();
+			}
+			myValueOffsets[count] = pos;
+
+			resize(Math.max(1024, count * 4));
+			// root is occupied, but never a valid transition target
+			myCheck[ROOT] = -2;
+			myNextCheckPos = 1;
+			mySize = 1;
+			if (count > 0) {
+				insert(ROOT, 0, count, 0);
+			}
+
+			myBase = Arrays.copyOf(myBase, mySize);
+			myCheck = Arrays.copyOf(myCheck, mySize);
+			myValue = Arrays.copyOf(myValue, mySize);
+			myKeys = null;
+			return new ConversionTrie(this);
+		}
+
+		private void resize(int size) {
+			final int oldSize = myCheck == null ? 0 : myCheck.length;
+			myBase = myBase == null ? new int[size] : Arrays.copyOf(myBase, size);
+			myCheck = myCheck == null ? new int[size] : Arrays.copyOf(myCheck, size);
+			myValue = myValue == null ? new int[size] : Arrays.copyOf(myValue, size);
+			Arrays.fill(myCheck, oldSize, size, -1);
+			Arrays.fill(myValue, oldSize, size, -1);
+		}
+
+		/**
+		 * Places children of state for the sorted key range [from, to),
+		 * all of which share a prefix of given depth
+		 */
+		private void insert(int state, int from, int to, int depth) {
+			// a key ending exactly at this depth is sorted first in the range
+			if (myKeys[from].length() == depth) {
+				myValue[state] = from;
+				++from;
+				if (from == to) {
+					return;
+				}
+			}
+
+			int childCount = 0;
+			char last = 0;
+			for (int i = from; i < to; ++i) {
+				final char c = myKeys[i].charAt(depth);
+				if (childCount == 0 || c != last) {
+					++childCount;
+					last = c;
+				}
+			}
+			final char[] codes = new char[childCount];
+			final int[] starts = new int[childCount + 1];
+			childCount = 0;
+			for (int i = from; i < to; ++i) {
+				final char c = myKeys[i].charAt(depth);
+				if (childCount == 0 || c != codes[childCount - 1]) {
+					codes[childCount] = c;
+					starts[childCount] = i;
+					++childCount;
+				}
+			}
+			starts[childCount] = to;
+
+			final int base = findBase(codes);
+			myBase[state] = base;
+			for (char c : codes) {
+				myCheck[base + c + 1] = state;
+			}
+			for (int i = 0; i < childCount; ++i) {
+				insert(base + codes[i] + 1, starts[i], starts[i + 1], depth + 1);
+			}
+		}
+
+		private int findBase(char[] codes) {
+			final int first = codes[0] + 1;
+			// base may be negative, children are never placed before pos
+			int pos = myNextCheckPos - 1;
+			int occupied = 0;
+			boolean firstFree = true;
+			while (true) {
+				++pos;
+				if (pos >= myCheck.length) {
+					resize(myCheck.length * 2);
+				}
+				if (myCheck[pos] != -1) {
+					++occupied;
+					continue;
+				} else if (firstFree) {
+					myNextCheckPos = pos;
+					firstFree = false;
+				}
+
+				final int base = pos - first;
+				final int lastPos = base + codes[codes.length - 1] + 1;
+				if (lastPos >= myCheck.length) {
+					resize(Math.max(myCheck.length * 2, lastPos + 1));
+				}
+				boolean fits = true;
+				for (int i = 1; i < codes.length; ++i) {
+					if (myCheck[base + codes[i] + 1] != -1) {
+						fits = false;
+						break;
+					}
+				}
+				if (!fits) {
+					continue;
+				}
+
+				// skip over densely packed areas on the next search
+				if (occupied * 20 >= (pos - myNextCheckPos + 1) * 19) {
+					myNextCheckPos = pos;
+				}
+				mySize = Math.max(mySize, lastPos + 1);
+				return base;
+			}
+		}
+	}
+}
@@ -33,9 +33,6 @@ import static jopencc.util.Util.log;
 import android.content.Context;
 
 import java.io.IOException;
-import java.io.InputStream;
-import java.util.Iterator;
-import java.util.LinkedHashMap;
 import java.util.Map;
 
 public class Dict {
@@ -52,7 +49,6 @@ public class Dict {
 	public Dict(String config, Context context) {
 		super();
 		this.config = config;
-		init();
 		mContext = context;
 	}
 	
@@ -60,102 +56,107 @@ public class Dict {
 		super();
 		setSrc(src);
 		this.config = config;
-		init();
 	}
 	
 	public Dict(String src, String config) {
 		super();
 		setSrc(src);
 		this.config = config;
-		init();
 	}
 
-	private void init() {
-		dictPhrase = new LinkedHashMap<String, String>();
-		dictChar = new LinkedHashMap<String, String>();
-	}
-	
-	private boolean init;
-	private Map<String, String> dictPhrase, dictChar; // static dictionary map
+	private volatile ConversionTrie trie; // compiled phrase + character dictionary
 	private StringBuffer src;
 	private String config;
 	
 	/**
 	 * initialize dictionary
+	 * @return compiled dictionary, or null if it cannot be read
 	 */
-	private void initDict() {
-		if (init)
-			return;
-		
-
-		InputStream is = null;
-		String p0 = config.equals(ZHT_TO_ZHS)? ZHT_TO_ZHS_PHRASE:ZHS_TO_ZHT_PHRASE;
-		String p1 = config.equals(ZHT_TO_ZHS)? ZHT_TO_ZHS_CHARACTER:ZHS_TO_ZHT_CHARACTER;
-		try {
-            dictPhrase = FileUtil.readDict(mContext.getResources().getAssets().open(p0));
-            dictChar = FileUtil.readDict(mContext.getResources().getAssets().open(p1));
-        } catch (IOException e) {
-            // TODO Auto-generated catch block
-            e.printStackTrace();
-        }
-		
-		
-		if (isMissing(dictPhrase) || isMissing(dictChar)){
-			return;
+	private ConversionTrie initDict() {
+		ConversionTrie result = trie;
+		if (result != null)
+			return result;
+
+		synchronized (this) {
+			if (trie != null)
+				return trie;
+
+			String p0 = config.equals(ZHT_TO_ZHS)? ZHT_TO_ZHS_PHRASE:ZHS_TO_ZHT_PHRASE;
+			String p1 = config.equals(ZHT_TO_ZHS)? ZHT_TO_ZHS_CHARACTER:ZHS_TO_ZHT_CHARACTER;
+			Map<String, String> dictPhrase = null, dictChar = null;
+			try {
+				dictPhrase = FileUtil.readDict(mContext.getResources().getAssets().open(p0));
+				dictChar = FileUtil.readDict(mContext.getResources().getAssets().open(p1));
+			} catch (IOException e) {
+				log("initDict , IOException: ", e);
+			}
+
+			if (isMissing(dictPhrase) || isMissing(dictChar)){
+				return null;
+			}
+
+			// phrases are added last, so they win over single characters
+			trie = new ConversionTrie.Builder().add(dictChar).add(dictPhrase).build();
+			return trie;
 		}
-		
-		init = true;
 	}
 	
 	/**
 	 * Convert the source
 	 */
 	public void convert() {
-		// initialize the map once
-		initDict();
-		
-		// map the phrases
-//		log("map phrases...");
-//		if (!isMissing(dictPhrase))
-//			map(src, dictPhrase, true);
-		
-		
-		// map the characters
-//		log("map characters...");
-		if (!isMissing(dictChar))
-			map(src, dictChar, false);
+		if (isMissing(src))
+			return;
+		String result = convert(src.toString());
+		src.setLength(0);
+		src.append(result);
 	}
 
 	/**
-	 * Map the source with dictionary
-	 * @param src
-	 * @param dict
+	 * Convert the text, longest phrase match first; safe to call from any thread
+	 * @param text
+	 * @return converted text, or the text itself if the dictionary is unavailable
 	 */
-	private static void map(StringBuffer src, Map<String, String> dict, boolean isPhrase) {
-		if(isPhrase) {
-			if(src.length() < 10) return;
-			String key, value;
-			int idx, pos, len;
-			Iterator<String> it = dict.keySet().iterator();
-			while (it.hasNext()){
-				key = it.next();
-				pos = 0;
-				while ((idx = src.indexOf(key, pos)) > -1){
-					value = dict.get(key);
-					len = value.length();
-					src.replace(idx, idx + len, value);
-					pos = idx + len;
-				}
-			}
-			it = null;
-		} else {
-			for(int i= 0; i < src.length(); i++) {
-				String value = dict.get(""+ src.charAt(i));
-				if(value != null) {
-					src.replace(i, i+1, value);
-				}
-			}
+	public String convert(String text) {
+		ConversionTrie dict = initDict();
+		return dict == null? text: dict.convert(text);
+	}
+
+	/**
+	 * Convert a range of chars; safe to call from any thread
+	 * @param text
+	 * @param offset
+	 * @param length
+	 * @return converted chars, always a new array
+	 */
+	public char[] convert(char[] text, int offset, int length) {
+		ConversionTrie dict = initDict();
+		if (dict == null) {
+			char[] copy = new char[length];
+			System.arraycopy(text, offset, copy, 0, length);
+			return copy;
 		}
+		return dict.convert(text, offset, length);
+	}
+
+	/**
+	 * Convert a range of chars in place, keeping the text length unchanged;
+	 * safe to call from any thread
+	 * @param text
+	 * @param offset
+	 * @param length
+	 */
+	public void convertInPlace(char[] text, int offset, int length) {
+		ConversionTrie dict = initDict();
+		if (dict != null)
+			dict.convertInPlace(text, offset, length);
+	}
+
+	/**
+	 * @return compiled dictionary, or null if it cannot be read
+	 */
+	public ConversionTrie getTrie() {
+		return initDict();
 	}
 	
 	public void clear() {
@@ -6,6 +6,7 @@ package org.amse.ys.zip;
  */
 
 import java.io.IOException;
+import java.nio.ByteBuffer;
 
 public class LocalFileHeader {
 	static final int FILE_HEADER_SIGNATURE = 0x04034b50;
@@ -27,7 +28,11 @@ public class LocalFileHeader {
 	int ExtraLength;
 
 	public String FileName;
-	int DataOffset;
+	// -1 for a header read from the central directory,
+	// until the local header is read
+	int DataOffset = -1;
+	// -1 for a header read from the local header
+	int LocalHeaderOffset = -1;
 
 	LocalFileHeader() {
 	}
@@ -91,4 +96,51 @@ public class LocalFileHeader {
 		}
 		DataOffset = stream.offset();
 	}
+
+	/**
+	 * Reads a central directory record
+	 * @param buffer little-endian buffer containing the central directory
+	 * @param position offset of the record in the buffer
+	 * @param shift number of bytes before the archive in the file
+	 * @return offset of the next record, or -1 if the record is broken
+	 */
+	int readFrom(ByteBuffer buffer, int position, int shift) throws IOException {
+		if (position + 46 > buffer.limit()) {
+			return -1;
+		}
+		Signature = buffer.getInt(position);
+		if (Signature != FOLDER_HEADER_SIGNATURE) {
+			return -1;
+		}
+		Version = buffer.getInt(position + 4);
+		Flags = buffer.getShort(position + 8) & 0xFFFF;
+		CompressionMethod = buffer.getShort(position + 10) & 0xFFFF;
+		ModificationTime = buffer.getShort(position + 12) & 0xFFFF;
+		ModificationDate = buffer.getShort(position + 14) & 0xFFFF;
+		CRC32 = buffer.getInt(position + 16);
+		CompressedSize = buffer.getInt(position + 20);
+		UncompressedSize = buffer.getInt(position + 24);
+		if (CompressionMethod == 0 && CompressedSize != UncompressedSize) {
+			CompressedSize = UncompressedSize;
+		}
+		NameLength = buffer.getShort(position + 28) & 0xFFFF;
+		ExtraLength = buffer.getShort(position + 30) & 0xFFFF;
+		final int comment = buffer.getShort(position + 32) & 0xFFFF;
+		LocalHeaderOffset = buffer.getInt(position + 42) + shift;
+		if (LocalHeaderOffset < 0) {
+			return -1;
+		}
+
+		final int next = position + 46 + NameLength + ExtraLength + comment;
+		if (next > buffer.limit()) {
+			return -1;
+		}
+		final byte[] name = new byte[NameLength];
+		buffer.position(position + 46);
+		buffer.get(name);
+		// bit 11 is set for the names in UTF-8
+		FileName = (Flags & 0x800) != 0
+			? new String(name, "utf-8") : MyBufferedInputStream.decodeString(name);
+		return next;
+	}
 }
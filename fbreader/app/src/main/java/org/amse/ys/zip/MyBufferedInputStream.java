@@ -117,12 +117,16 @@ final class MyBufferedInputStream extends InputStream {
 	String readString(int stringLength) throws IOException {
 		final byte[] array = new byte[stringLength];
 		read(array);
+		return decodeString(array);
+	}
+
+	static String decodeString(byte[] array) throws IOException {
 		if (isUtf8String(array)) {
 			return new String(array, "utf-8");
 		}
 
-		final char[] chars = new char[stringLength];
-		for (int i = 0; i < stringLength; i++) {
+		final char[] chars = new char[array.length];
+		for (int i = 0; i < array.length; i++) {
 			chars[i] = (char)(array[i] & 0xFF);
 		}
 		return new String(chars);
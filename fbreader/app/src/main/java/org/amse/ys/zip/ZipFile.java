@@ -1,42 +1,49 @@
 package org.amse.ys.zip;
 
 import java.io.*;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.channels.FileChannel;
 import java.util.*;
 
 import org.geometerplus.zlibrary.core.util.InputStreamHolder;
 
 public final class ZipFile {
-	private final static Comparator<String> ourIgnoreCaseComparator = new Comparator<String>() {
-		@Override
-		public final int compare(String s0, String s1) {
-			return s0.compareToIgnoreCase(s1);
-		}
-	};
-
 	private final InputStreamHolder myStreamHolder;
+	// null if the archive is not a file, so it can be read only sequentially
+	private final File myFile;
+	// headers in archive order, by case-folded entry name
 	private final Map<String,LocalFileHeader> myFileHeaders =
-		new TreeMap<String,LocalFileHeader>(ourIgnoreCaseComparator);
+		new LinkedHashMap<String,LocalFileHeader>();
 
 	private boolean myAllFilesAreRead;
+	private boolean myCentralDirectoryIsTried;
 
 	public ZipFile(final String fileName) {
-		this(new InputStreamHolder() {
-			public InputStream getInputStream() throws IOException {
-				return new FileInputStream(fileName);
-			}
-		});
+		this(new File(fileName));
 	}
 
 	public ZipFile(final File file) {
-		this(new InputStreamHolder() {
+		myStreamHolder = new InputStreamHolder() {
 			public InputStream getInputStream() throws IOException {
 				return new FileInputStream(file);
 			}
-		});
+		};
+		myFile = file;
 	}
 
 	public ZipFile(InputStreamHolder streamHolder) {
 		myStreamHolder = streamHolder;
+		myFile = null;
+	}
+
+	// entry names are compared ignoring case, as String.compareToIgnoreCase() does
+	private static String key(String name) {
+		final char[] chars = name.toCharArray();
+		for (int i = 0; i < chars.length; ++i) {
+			chars[i] = Character.toLowerCase(Character.toUpperCase(chars[i]));
+		}
+		return new String(chars);
 	}
 
 	public Collection<LocalFileHeader> headers() {
@@ -55,7 +62,7 @@ public final class ZipFile {
 			return false;
 		}
 		if (header.FileName != null) {
-			myFileHeaders.put(header.FileName, header);
+			myFileHeaders.put(key(header.FileName), header);
 			if (header.FileName.equalsIgnoreCase(fileToFind)) {
 				return true;
 			}
@@ -69,7 +76,7 @@ public final class ZipFile {
 	}
 
 	private void readAllHeaders() throws IOException {
-		if (myAllFilesAreRead) {
+		if (readCentralDirectory() || myAllFilesAreRead) {
 			return;
 		}
 		myAllFilesAreRead = true;
@@ -87,6 +94,112 @@ public final class ZipFile {
 		}
 	}
 
+	/**
+	 * Reads all the headers from the central directory at the end of the archive,
+	 * once; the directory contains sizes of all the entries, including
+	 * the ones written with data descriptors
+	 * @return true if the headers are read
+	 */
+	private synchronized boolean readCentralDirectory() {
+		if (myCentralDirectoryIsTried) {
+			return myAllFilesAreRead;
+		}
+		myCentralDirectoryIsTried = true;
+		if (myFile == null) {
+			return false;
+		}
+
+		RandomAccessFile file = null;
+		try {
+			file = new RandomAccessFile(myFile, "r");
+			final FileChannel channel = file.getChannel();
+			final long length = channel.size();
+			if (length > Integer.MAX_VALUE) {
+				return false;
+			}
+
+			// end of central directory record is 22 bytes long, plus comment
+			final int tailLength = (int)Math.min(length, 22 + 0xFFFF);
+			final ByteBuffer tail = read(channel, length - tailLength, tailLength);
+			int end = -1;
+			for (int i = tailLength - 22; i >= 0; --i) {
+				if (tail.getInt(i) == LocalFileHeader.END_OF_CENTRAL_DIRECTORY_SIGNATURE) {
+					end = i;
+					break;
+				}
+			}
+			if (end == -1) {
+				return false;
+			}
+			final int count = tail.getShort(end + 10) & 0xFFFF;
+			final long size = tail.getInt(end + 12) & 0xFFFFFFFFL;
+			final long offset = tail.getInt(end + 16) & 0xFFFFFFFFL;
+			// offsets are counted from the archive start, that is not
+			// the file start if something is prepended to the archive
+			final long shift = length - tailLength + end - size - offset;
+			if (shift < 0) {
+				return false;
+			}
+
+			final ByteBuffer directory = read(channel, offset + shift, (int)size);
+			final Map<String,LocalFileHeader> headers =
+				new LinkedHashMap<String,LocalFileHeader>(count * 4 / 3 + 1);
+			int position = 0;
+			for (int i = 0; i < count; ++i) {
+				final LocalFileHeader header = new LocalFileHeader();
+				position = header.readFrom(directory, position, (int)shift);
+				if (position == -1) {
+					return false;
+				}
+				headers.put(key(header.FileName), header);
+			}
+
+			myFileHeaders.clear();
+			myFileHeaders.putAll(headers);
+			myAllFilesAreRead = true;
+			return true;
+		} catch (IOException e) {
+			return false;
+		} finally {
+			if (file != null) {
+				try {
+					file.close();
+				} catch (IOException e) {
+				}
+			}
+		}
+	}
+
+	private static ByteBuffer read(FileChannel channel, long position, int length) throws IOException {
+		final ByteBuffer buffer = ByteBuffer.allocate(length);
+		buffer.order(ByteOrder.LITTLE_ENDIAN);
+		while (buffer.hasRemaining()) {
+			if (channel.read(buffer, position + buffer.position()) <= 0) {
+				throw new ZipException("unexpected end of file at position " + (position + buffer.position()));
+			}
+		}
+		buffer.clear();
+		return buffer;
+	}
+
+	/**
+	 * Moves the stream to the entry data; for a header read from
+	 * the central directory, reads the local header first
+	 */
+	void seekToData(MyBufferedInputStream baseStream, LocalFileHeader header) throws IOException {
+		if (header.DataOffset == -1) {
+			baseStream.setPosition(header.LocalHeaderOffset);
+			final LocalFileHeader localHeader = new LocalFileHeader();
+			localHeader.readFrom(baseStream);
+			if (localHeader.Signature != LocalFileHeader.FILE_HEADER_SIGNATURE) {
+				throw new ZipException("Local header of " + header.FileName + " is not found");
+			}
+			header.DataOffset = localHeader.DataOffset;
+		} else {
+			baseStream.setPosition(header.DataOffset);
+		}
+	}
+
 	/**
 	 * Finds descriptor of the last header and installs sizes of files
 	 */
@@ -139,8 +252,10 @@ public final class ZipFile {
 	}
 
 	public LocalFileHeader getHeader(String entryName) throws IOException {
+		readCentralDirectory();
+		final String key = key(entryName);
 		if (!myFileHeaders.isEmpty()) {
-			LocalFileHeader header = myFileHeaders.get(entryName);
+			LocalFileHeader header = myFileHeaders.get(key);
 			if (header != null) {
 				return header;
 			}
@@ -154,7 +269,7 @@ public final class ZipFile {
 		try {
 			while (baseStream.available() > 0 && !readFileHeader(baseStream, entryName)) {
 			}
-			final LocalFileHeader header = myFileHeaders.get(entryName);
+			final LocalFileHeader header = myFileHeaders.get(key);
 			if (header != null) {
 				return header;
 			}
@@ -11,7 +11,7 @@ class ZipInputStream extends InputStream {
 	public ZipInputStream(ZipFile parent, LocalFileHeader header) throws IOException {
 		myParent = parent;
 		myBaseStream = parent.getBaseStream();
-		myBaseStream.setPosition(header.DataOffset);
+		parent.seekToData(myBaseStream, header);
 		myDecompressor = Decompressor.init(myBaseStream, header);
 	}
 
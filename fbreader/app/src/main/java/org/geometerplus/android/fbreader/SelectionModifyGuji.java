@@ -213,16 +213,15 @@ public class SelectionModifyGuji extends FBAndroidAction {
 			@Override
 			public void onClick(DialogInterface dialog, int which) {
 				String newText = edit.getText().toString();
-				Reader.Model.getTextModel().saveGuji(Reader.Model.Book, 
-						indexOfParagraph, 
-						newText);
+				fbview.clearSelection();
+				if (!Reader.saveGujiParagraph(indexOfParagraph, newText)) {
+					UIMessageUtil.showErrorMessage(BaseActivity, "errorWritingGuji", Reader.Model.Book.getPath());
+					return;
+				}
 				UIMessageUtil.showMessageText(
 						BaseActivity,
 						ZLResource.resource("selection").getResource("gujiModified").getValue().replace("%s", newText)
 					);
-				fbview.clearSelection();
-				Reader.reloadBook();
-				
 			}
 		}).show();
 
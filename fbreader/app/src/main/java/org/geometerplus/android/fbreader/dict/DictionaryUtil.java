@@ -36,6 +36,7 @@ import org.geometerplus.zlibrary.core.options.ZLEnumOption;
 import org.geometerplus.zlibrary.core.options.ZLStringOption;
 import org.geometerplus.zlibrary.core.util.XmlUtil;
 
+import org.geometerplus.fbreader.dictionary.DictionaryCollection;
 import org.geometerplus.fbreader.fbreader.DurationEnum;
 import org.geometerplus.android.fbreader.FBReaderMainActivity;
 import org.geometerplus.android.util.PackageUtil;
@@ -215,6 +216,10 @@ public abstract class DictionaryUtil {
 					}
 					return;
 				}
+				// offline dictionaries go first, so they are used by default
+				if (!DictionaryCollection.dictionaries().isEmpty()) {
+					ourInfos.put(new OfflineDictionary(), FLAG_SHOW_AS_DICTIONARY | FLAG_SHOW_AS_TRANSLATOR);
+				}
 				XmlUtil.parseQuietly(
 					ZLFile.createFileByPath("dictionaries/main.xml"),
 					new InfoReader()
@@ -0,0 +1,96 @@
+/*
+ * Copyright (C) 2010-2015 FBReader.ORG Limited <contact@fbreader.org>
+ *
+ * This program is free software; you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation; either version 2 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program; if not, write to the Free Software
+ * Foundation, Inc., 51 Franklin Street, Fifth Floor, Boston, MA
+ * 02110-1301, USA.
+ */
+
+package org.geometerplus.android.fbreader.dict;
+
+import com.github.johnpersano.supertoasts.SuperActivityToast;
+import com.github.johnpersano.supertoasts.SuperToast;
+
+import android.app.Activity;
+
+import org.geometerplus.zlibrary.core.options.ZLEnumOption;
+import org.geometerplus.zlibrary.core.resources.ZLResource;
+
+import org.geometerplus.fbreader.dictionary.DictionaryCollection;
+import org.geometerplus.fbreader.fbreader.DurationEnum;
+import org.geometerplus.android.fbreader.FBReaderMainActivity;
+import org.geometerplus.android.util.UIMessageUtil;
+
+/**
+ * Shows articles from the offline dictionaries (see DictionaryCollection)
+ * in a toast, without starting another application
+ */
+final class OfflineDictionary extends DictionaryUtil.PackageInfo {
+	static final String ID = "offline";
+	private static final int MAX_LENGTH_FOR_TOAST = 400;
+
+	OfflineDictionary() {
+		super(ID, ZLResource.resource("offlineDictionary").getResource("title").getValue());
+	}
+
+	@Override
+	void open(final String text, final Runnable outliner, final Activity fbreader, DictionaryUtil.PopupFrameMetric frameMetrics) {
+		// looking for the nearest word scans a part of the index, it is not done in UI thread
+		final Thread lookupThread = new Thread("OfflineDictionary") {
+			public void run() {
+				final DictionaryCollection.Article article = DictionaryCollection.lookupNearest(text);
+				fbreader.runOnUiThread(new Runnable() {
+					public void run() {
+						show(text, article, outliner, fbreader);
+					}
+				});
+			}
+		};
+		lookupThread.start();
+	}
+
+	private static void show(String text, DictionaryCollection.Article article, Runnable outliner, Activity fbreader) {
+		final ZLResource resource = ZLResource.resource("offlineDictionary");
+		final String message;
+		final ZLEnumOption<DurationEnum> duration;
+		if (article != null) {
+			message = article.Word + "\n" + trimArticle(article.Text);
+			duration = DictionaryUtil.TranslationToastDurationOption;
+		} else {
+			message = resource.getResource("noArticle").getValue().replace("%s", text);
+			duration = DictionaryUtil.ErrorToastDurationOption;
+		}
+
+		if (!(fbreader instanceof FBReaderMainActivity)) {
+			UIMessageUtil.showMessageText(fbreader, message);
+			return;
+		}
+		if (outliner != null) {
+			outliner.run();
+		}
+		final SuperActivityToast toast = new SuperActivityToast(fbreader, SuperToast.Type.STANDARD);
+		toast.setText(message);
+		toast.setDuration(duration.getValue().Value);
+		InternalUtil.showToast(toast, (FBReaderMainActivity)fbreader);
+	}
+
+	private static String trimArticle(String text) {
+		if (text.length() <= MAX_LENGTH_FOR_TOAST) {
+			return text;
+		}
+		text = text.substring(0, MAX_LENGTH_FOR_TOAST);
+		final int index = Math.max(text.lastIndexOf("\n"), text.lastIndexOf(" "));
+		return (index > MAX_LENGTH_FOR_TOAST / 2 ? text.substring(0, index) : text) + "…";
+	}
+}
@@ -134,8 +134,8 @@ public class BookCollectionShadow extends AbstractBookCollection<Book> implement
 	public List<Book> books(final BookQuery query) {
 		return listCall(new ListCallable<Book>() {
 			public List<Book> call() throws RemoteException {
-				return SerializerUtil.deserializeBookList(
-					myInterface.books(SerializerUtil.serialize(query)), BookCollectionShadow.this
+				return BinarySerializer.deserializeBookList(
+					myInterface.booksBinary(BinarySerializer.serialize(query)), BookCollectionShadow.this
 				);
 			}
 		});
@@ -155,8 +155,8 @@ public class BookCollectionShadow extends AbstractBookCollection<Book> implement
 	public List<Book> recentlyAddedBooks(final int count) {
 		return listCall(new ListCallable<Book>() {
 			public List<Book> call() throws RemoteException {
-				return SerializerUtil.deserializeBookList(
-					myInterface.recentlyAddedBooks(count), BookCollectionShadow.this
+				return BinarySerializer.deserializeBookList(
+					myInterface.recentlyAddedBooksBinary(count), BookCollectionShadow.this
 				);
 			}
 		});
@@ -165,8 +165,8 @@ public class BookCollectionShadow extends AbstractBookCollection<Book> implement
 	public List<Book> recentlyOpenedBooks(final int count) {
 		return listCall(new ListCallable<Book>() {
 			public List<Book> call() throws RemoteException {
-				return SerializerUtil.deserializeBookList(
-					myInterface.recentlyOpenedBooks(count), BookCollectionShadow.this
+				return BinarySerializer.deserializeBookList(
+					myInterface.recentlyOpenedBooksBinary(count), BookCollectionShadow.this
 				);
 			}
 		});
@@ -189,7 +189,7 @@ public class BookCollectionShadow extends AbstractBookCollection<Book> implement
 			return null;
 		}
 		try {
-			return SerializerUtil.deserializeBook(myInterface.getBookByFile(path), this);
+			return BinarySerializer.deserializeBook(myInterface.getBookByFileBinary(path), this);
 		} catch (RemoteException e) {
 			return null;
 		}
@@ -200,7 +200,7 @@ public class BookCollectionShadow extends AbstractBookCollection<Book> implement
 			return null;
 		}
 		try {
-			return SerializerUtil.deserializeBook(myInterface.getBookById(id), this);
+			return BinarySerializer.deserializeBook(myInterface.getBookByIdBinary(id), this);
 		} catch (RemoteException e) {
 			return null;
 		}
@@ -293,7 +293,7 @@ public class BookCollectionShadow extends AbstractBookCollection<Book> implement
 			return false;
 		}
 		try {
-			return myInterface.saveBook(SerializerUtil.serialize(book));
+			return myInterface.saveBookBinary(BinarySerializer.serialize(book));
 		} catch (RemoteException e) {
 			return false;
 		}
@@ -443,8 +443,8 @@ public class BookCollectionShadow extends AbstractBookCollection<Book> implement
 	public List<Bookmark> bookmarks(final BookmarkQuery query) {
 		return listCall(new ListCallable<Bookmark>() {
 			public List<Bookmark> call() throws RemoteException {
-				return SerializerUtil.deserializeBookmarkList(
-					myInterface.bookmarks(SerializerUtil.serialize(query))
+				return BinarySerializer.deserializeBookmarkList(
+					myInterface.bookmarksBinary(BinarySerializer.serialize(query))
 				);
 			}
 		});
@@ -453,8 +453,8 @@ public class BookCollectionShadow extends AbstractBookCollection<Book> implement
 	public synchronized void saveBookmark(Bookmark bookmark) {
 		if (myInterface != null) {
 			try {
-				bookmark.update(SerializerUtil.deserializeBookmark(
-					myInterface.saveBookmark(SerializerUtil.serialize(bookmark))
+				bookmark.update(BinarySerializer.deserializeBookmark(
+					myInterface.saveBookmarkBinary(BinarySerializer.serialize(bookmark))
 				));
 			} catch (RemoteException e) {
 			}
@@ -501,7 +501,7 @@ public class BookCollectionShadow extends AbstractBookCollection<Book> implement
 	public List<HighlightingStyle> highlightingStyles() {
 		return listCall(new ListCallable<HighlightingStyle>() {
 			public List<HighlightingStyle> call() throws RemoteException {
-				return SerializerUtil.deserializeStyleList(myInterface.highlightingStyles());
+				return BinarySerializer.deserializeStyleList(myInterface.highlightingStylesBinary());
 			}
 		});
 	}
@@ -618,6 +618,14 @@ public class BookCollectionShadow extends AbstractBookCollection<Book> implement
 		return new Book(id, url.substring("file://".length()), title, encoding, language);
 	}
 	
+	public List<FullTextHit> fullTextSearch(final String pattern, final int offset, final int limit) {
+		return listCall(new ListCallable<FullTextHit>() {
+			public List<FullTextHit> call() throws RemoteException {
+				return myInterface.fullTextSearch(pattern, offset, limit);
+			}
+		});
+	}
+
 	public List<Word> unknownWords(final long bookId) {
 		return listCall(new ListCallable<Word>() {
 			public List<Word> call() throws RemoteException {
@@ -714,11 +722,34 @@ public class BookCollectionShadow extends AbstractBookCollection<Book> implement
 		}
 	}
 	
+	// a binder transaction is limited in size, so a long list is sent in parts
+	private static final int WORDS_PER_CALL = 1000;
+
+	public synchronized void saveWords(List<Word> knownWords, List<Word> unknownWords) {
+		if (myInterface == null) {
+			return;
+		}
+		try {
+			final int size = Math.max(knownWords.size(), unknownWords.size());
+			for (int i = 0; i < size; i += WORDS_PER_CALL) {
+				myInterface.saveWords(part(knownWords, i), part(unknownWords, i));
+			}
+		} catch (RemoteException e) {
+		}
+	}
+
+	private static List<Word> part(List<Word> words, int start) {
+		if (start >= words.size()) {
+			return Collections.emptyList();
+		}
+		return words.subList(start, Math.min(start + WORDS_PER_CALL, words.size()));
+	}
+
 	public List<Book> recentlyOpenedBooks() {
 		return listCall(new ListCallable<Book>() {
 			public List<Book> call() throws RemoteException {
-				return SerializerUtil.deserializeBookList(
-					myInterface.recentBooks(), BookCollectionShadow.this
+				return BinarySerializer.deserializeBookList(
+					myInterface.recentBooksBinary(), BookCollectionShadow.this
 				);
 			}
 		});
@@ -401,6 +401,11 @@ public class LibraryService extends Service {
 			}
 		}
 
+		@Override
+		public List<FullTextHit> fullTextSearch(String pattern, int offset, int limit) {
+			return myCollection.fullTextSearch(pattern, offset, limit);
+		}
+
 		@Override
 		public List<Word> unknownWords(long bookId) throws RemoteException {
 			return myCollection.unknownWords(bookId);
@@ -450,6 +455,56 @@ public class LibraryService extends Service {
 		public void updateUnknownWord(Word word, String newText) throws RemoteException {
 			myCollection.updateUnknownWord(word, newText);
 		}
+
+		public byte[] booksBinary(byte[] query) {
+			return BinarySerializer.serializeBookList(
+				myCollection.books(BinarySerializer.deserializeBookQuery(query))
+			);
+		}
+
+		public byte[] recentBooksBinary() {
+			return BinarySerializer.serializeBookList(myCollection.recentlyOpenedBooks());
+		}
+
+		public byte[] recentlyOpenedBooksBinary(int count) {
+			return BinarySerializer.serializeBookList(myCollection.recentlyOpenedBooks(count));
+		}
+
+		public byte[] recentlyAddedBooksBinary(int count) {
+			return BinarySerializer.serializeBookList(myCollection.recentlyAddedBooks(count));
+		}
+
+		public byte[] getBookByFileBinary(String path) {
+			return BinarySerializer.serialize(myCollection.getBookByFile(path));
+		}
+
+		public byte[] getBookByIdBinary(long id) {
+			return BinarySerializer.serialize(myCollection.getBookById(id));
+		}
+
+		public boolean saveBookBinary(byte[] book) {
+			return myCollection.saveBook(BinarySerializer.deserializeBook(book, myCollection));
+		}
+
+		public byte[] bookmarksBinary(byte[] query) {
+			return BinarySerializer.serializeBookmarkList(myCollection.bookmarks(
+				BinarySerializer.deserializeBookmarkQuery(query, myCollection)
+			));
+		}
+
+		public byte[] saveBookmarkBinary(byte[] serialized) {
+			final Bookmark bookmark = BinarySerializer.deserializeBookmark(serialized);
+			myCollection.saveBookmark(bookmark);
+			return BinarySerializer.serialize(bookmark);
+		}
+
+		public byte[] highlightingStylesBinary() {
+			return BinarySerializer.serializeStyleList(myCollection.highlightingStyles());
+		}
+
+		public void saveWords(List<Word> knownWords, List<Word> unknownWords) {
+			myCollection.saveWords(knownWords, unknownWords);
+		}
 	}
 
 	private volatile LibraryImplementation myLibrary;
@@ -73,7 +73,7 @@ final class SQLiteBooksDatabase extends BooksDatabase {
 
 	private void migrate() {
 		final int version = myDatabase.getVersion();
-		final int currentVersion = 41;
+		final int currentVersion = 42;
 		if (version >= currentVersion) {
 			return;
 		}
@@ -163,6 +163,8 @@ final class SQLiteBooksDatabase extends BooksDatabase {
 				updateTables39();
 			case 40:
 				updateTables40();
+			case 41:
+				updateTables41();
 		}
 		myDatabase.setTransactionSuccessful();
 		myDatabase.setVersion(currentVersion);
@@ -1276,6 +1278,7 @@ final class SQLiteBooksDatabase extends BooksDatabase {
 		myDatabase.execSQL("DELETE FROM Bookmarks WHERE book_id=" + bookId);
 		myDatabase.execSQL("DELETE FROM VisitedHyperlinks WHERE book_id=" + bookId);
 		myDatabase.execSQL("DELETE FROM Books WHERE book_id=" + bookId);
+		deleteFullTextIndex(bookId);
 		myDatabase.setTransactionSuccessful();
 		myDatabase.endTransaction();
 		deleteAllUnknownWord(bookId);
@@ -1914,6 +1917,84 @@ final class SQLiteBooksDatabase extends BooksDatabase {
 		myDatabase.execSQL("ALTER TABLE Books ADD COLUMN book_cover BLOB");
 		
 	}
+
+	private void updateTables41() {
+		// docid is (book_id << 32) + paragraph index
+		myDatabase.execSQL("CREATE VIRTUAL TABLE FullTextIndex USING fts4(text)");
+		myDatabase.execSQL(
+			"CREATE TABLE IF NOT EXISTS FullTextIndexedBooks(" +
+				"book_id INTEGER PRIMARY KEY REFERENCES Books(book_id)," +
+				"hash TEXT(40) NOT NULL)");
+	}
+
+	@Override
+	protected String getFullTextIndexHash(long bookId) {
+		final Cursor cursor = myDatabase.rawQuery(
+			"SELECT hash FROM FullTextIndexedBooks WHERE book_id=?",
+			new String[] { String.valueOf(bookId) }
+		);
+		try {
+			return cursor.moveToNext() ? cursor.getString(0) : null;
+		} finally {
+			cursor.close();
+		}
+	}
+
+	@Override
+	protected void setFullTextIndexHash(long bookId, String hash) {
+		final SQLiteStatement statement = get(
+			"INSERT OR REPLACE INTO FullTextIndexedBooks (book_id,hash) VALUES (?,?)"
+		);
+		synchronized (statement) {
+			statement.bindLong(1, bookId);
+			statement.bindString(2, hash);
+			statement.execute();
+		}
+	}
+
+	@Override
+	protected void deleteFullTextIndex(long bookId) {
+		myDatabase.execSQL("DELETE FROM FullTextIndexedBooks WHERE book_id=" + bookId);
+		myDatabase.execSQL(
+			"DELETE FROM FullTextIndex WHERE docid BETWEEN " +
+			(bookId << 32) + " AND " + ((bookId << 32) + 0xFFFFFFFFL)
+		);
+	}
+
+	@Override
+	protected void addFullTextParagraph(long bookId, int paragraphIndex, String text) {
+		final SQLiteStatement statement = get(
+			"INSERT OR REPLACE INTO FullTextIndex (docid,text) VALUES (?,?)"
+		);
+		synchronized (statement) {
+			statement.bindLong(1, (bookId << 32) + paragraphIndex);
+			statement.bindString(2, text);
+			statement.execute();
+		}
+	}
+
+	@Override
+	protected List<FullTextHit> fullTextSearch(String query, int offset, int limit) {
+		final Cursor cursor = myDatabase.rawQuery(
+			"SELECT FullTextIndex.docid,snippet(FullTextIndex,'','','\u2026',-1,32),Ranks.hits " +
+			"FROM FullTextIndex INNER JOIN (" +
+				"SELECT docid >> 32 AS book_id,count(*) AS hits FROM FullTextIndex " +
+				"WHERE FullTextIndex MATCH ? GROUP BY book_id" +
+			") AS Ranks ON Ranks.book_id = FullTextIndex.docid >> 32 " +
+			"WHERE FullTextIndex MATCH ? " +
+			"ORDER BY Ranks.hits DESC,FullTextIndex.docid LIMIT ? OFFSET ?",
+			new String[] { query, query, String.valueOf(limit), String.valueOf(offset) }
+		);
+		final List<FullTextHit> hits = new ArrayList<FullTextHit>();
+		while (cursor.moveToNext()) {
+			final long docid = cursor.getLong(0);
+			hits.add(new FullTextHit(
+				docid >> 32, (int)(docid & 0xFFFFFFFFL), cursor.getString(1), (int)cursor.getLong(2)
+			));
+		}
+		cursor.close();
+		return hits;
+	}
 	
 	@Override
 	protected List<Long> loadRecentBookIds(int event) {
@@ -234,14 +234,15 @@ public class SyncService extends Service implements IBookCollection.Listener<Boo
 						final Map<Status,Integer> statusCounts = new HashMap<Status,Integer>();
 						try {
 							myHashesFromServer.clear();
-							for (BookQuery q = new BookQuery(new Filter.Empty(), 20);; q = q.next()) {
+							for (BookQuery q = new BookQuery(new Filter.Empty(), 20);;) {
 								final List<Book> books = myCollection.books(q);
-								if (books.isEmpty()) {
-									break;
-								}
 								for (Book b : books) {
 									addBook(b);
 								}
+								if (books.size() < q.Limit) {
+									break;
+								}
+								q = q.next(books);
 							}
 							Status status = null;
 							while (!myQueue.isEmpty() && status != Status.AuthenticationError) {
@@ -41,6 +41,9 @@ public abstract class Paths {
 	public static ZLStringListOption WallpaperPathOption =
 		pathOption("WallpapersDirectory", cardDirectory() + "/Wallpapers");
 
+	public static ZLStringListOption DictionaryPathOption =
+		pathOption("DictionariesDirectory", cardDirectory() + "/Dictionaries");
+
 	private static ZLStringOption ourTempDirectoryOption =
 		new ZLStringOption("Files", "TemporaryDirectory", "");
 
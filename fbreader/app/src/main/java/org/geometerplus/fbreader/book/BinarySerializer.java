@@ -0,0 +1,695 @@
+/*
+ * Copyright (C) 2007-2015 FBReader.ORG Limited <contact@fbreader.org>
+ *
+ * This program is free software; you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation; either version 2 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program; if not, write to the Free Software
+ * Foundation, Inc., 51 Franklin Street, Fifth Floor, Boston, MA
+ * 02110-1301, USA.
+ */
+
+package org.geometerplus.fbreader.book;
+
+import java.nio.charset.Charset;
+import java.util.*;
+
+import org.geometerplus.zlibrary.core.util.RationalNumber;
+import org.geometerplus.zlibrary.core.util.ZLColor;
+
+import org.geometerplus.zlibrary.text.view.ZLTextPosition;
+
+/**
+ * Compact binary codec for the library service calls; XML
+ * (see SerializerUtil) stays for the plugin API and for backups.
+ *
+ * A packet is
+ *   int magic, byte version, byte packet type, int records number, records.
+ * Every record is preceded by its length in bytes, so fields appended
+ * to a record by a later version are skipped by an earlier reader;
+ * existing fields are never removed or reordered, a change of that kind
+ * requires a new version number. All the numbers are big endian,
+ * a string is its UTF-8 length (-1 for null) followed by UTF-8 bytes.
+ *
+ * Deserialization methods return null (or an empty list) for malformed
+ * or foreign data.
+ */
+public abstract class BinarySerializer {
+	private static final int MAGIC = 0x46424253; // "FBBS"
+	private static final byte VERSION = 1;
+
+	private static final byte BOOK_QUERY = 1;
+	private static final byte BOOKMARK_QUERY = 2;
+	private static final byte BOOKS = 3;
+	private static final byte BOOKMARKS = 4;
+	private static final byte STYLES = 5;
+
+	private static final byte FILTER_EMPTY = 0;
+	private static final byte FILTER_NOT = 1;
+	private static final byte FILTER_AND = 2;
+	private static final byte FILTER_OR = 3;
+	private static final byte FILTER_AUTHOR = 4;
+	private static final byte FILTER_TAG = 5;
+	private static final byte FILTER_LABEL = 6;
+	private static final byte FILTER_SERIES = 7;
+	private static final byte FILTER_PATTERN = 8;
+	private static final byte FILTER_TITLE_PREFIX = 9;
+	private static final byte FILTER_HAS_BOOKMARK = 10;
+	private static final byte FILTER_HAS_PHYSICAL_FILE = 11;
+
+	private static final Charset UTF8 = Charset.forName("UTF-8");
+
+	private BinarySerializer() {
+	}
+
+	private static final class FormatException extends Exception {
+		FormatException(String message) {
+			super(message);
+		}
+	}
+
+	private static final class Output {
+		private byte[] myData = new byte[1024];
+		private int myLength;
+
+		Output(byte type, int count) {
+			writeInt(MAGIC);
+			writeByte(VERSION);
+			writeByte(type);
+			writeInt(count);
+		}
+
+		private void ensureCapacity(int length) {
+			if (myLength + length > myData.length) {
+				myData = Arrays.copyOf(myData, Math.max(myData.length * 2, myLength + length));
+			}
+		}
+
+		void writeByte(int value) {
+			ensureCapacity(1);
+			myData[myLength++] = (byte)value;
+		}
+
+		void writeBoolean(boolean value) {
+			writeByte(value ? 1 : 0);
+		}
+
+		void writeInt(int value) {
+			ensureCapacity(4);
+			myData[myLength++] = (byte)(value >> 24);
+			myData[myLength++] = (byte)(value >> 16);
+			myData[myLength++] = (byte)(value >> 8);
+			myData[myLength++] = (byte)value;
+		}
+
+		void writeLong(long value) {
+			writeInt((int)(value >> 32));
+			writeInt((int)value);
+		}
+
+		void writeString(String value) {
+			if (value == null) {
+				writeInt(-1);
+				return;
+			}
+			final byte[] bytes = value.getBytes(UTF8);
+			writeInt(bytes.length);
+			ensureCapacity(bytes.length);
+			System.arraycopy(bytes, 0, myData, myLength, bytes.length);
+			myLength += bytes.length;
+		}
+
+		/**
+		 * @return position of the record length, to be passed to endRecord()
+		 */
+		int beginRecord() {
+			writeInt(0);
+			return myLength - 4;
+		}
+
+		void endRecord(int position) {
+			final int length = myLength - position - 4;
+			myData[position] = (byte)(length >> 24);
+			myData[position + 1] = (byte)(length >> 16);
+			myData[position + 2] = (byte)(length >> 8);
+			myData[position + 3] = (byte)length;
+		}
+
+		byte[] toByteArray() {
+			return Arrays.copyOf(myData, myLength);
+		}
+	}
+
+	private static final class Input {
+		private final byte[] myData;
+		private int myPosition;
+		private int myLimit;
+		final int Count;
+
+		Input(byte[] data, byte type) throws FormatException {
+			if (data == null) {
+				throw new FormatException("No data");
+			}
+			myData = data;
+			myLimit = data.length;
+			if (readInt() != MAGIC) {
+				throw new FormatException("Not a binary packet");
+			}
+			final byte version = readByte();
+			if (version < 1 || version > VERSION) {
+				throw new FormatException("Unsupported version " + version);
+			}
+			if (readByte() != type) {
+				throw new FormatException("Unexpected packet type");
+			}
+			Count = readInt();
+			if (Count < 0) {
+				throw new FormatException("Invalid records number");
+			}
+		}
+
+		private void require(int length) throws FormatException {
+			if (length < 0 || myPosition + length > myLimit) {
+				throw new FormatException("Unexpected end of data");
+			}
+		}
+
+		byte readByte() throws FormatException {
+			require(1);
+			return myData[myPosition++];
+		}
+
+		boolean readBoolean() throws FormatException {
+			return readByte() != 0;
+		}
+
+		int readInt() throws FormatException {
+			require(4);
+			final byte[] data = myData;
+			final int p = myPosition;
+			myPosition += 4;
+			return
+				(data[p] & 0xFF) << 24 |
+				(data[p + 1] & 0xFF) << 16 |
+				(data[p + 2] & 0xFF) << 8 |
+				(data[p + 3] & 0xFF);
+		}
+
+		long readLong() throws FormatException {
+			final long high = readInt();
+			return high << 32 | (readInt() & 0xFFFFFFFFL);
+		}
+
+		String readString() throws FormatException {
+			final int length = readInt();
+			if (length == -1) {
+				return null;
+			}
+			require(length);
+			final String value = new String(myData, myPosition, length, UTF8);
+			myPosition += length;
+			return value;
+		}
+
+		/**
+		 * @return previous limit, to be passed to endRecord()
+		 */
+		int beginRecord() throws FormatException {
+			final int length = readInt();
+			require(length);
+			final int limit = myLimit;
+			myLimit = myPosition + length;
+			return limit;
+		}
+
+		void endRecord(int limit) {
+			// skips the fields added by newer versions
+			myPosition = myLimit;
+			myLimit = limit;
+		}
+	}
+
+	public static byte[] serialize(BookQuery query) {
+		final Output output = new Output(BOOK_QUERY, 1);
+		final int record = output.beginRecord();
+		output.writeInt(query.Limit);
+		output.writeLong(query.After);
+		writeFilter(output, query.Filter);
+		output.endRecord(record);
+		return output.toByteArray();
+	}
+
+	public static BookQuery deserializeBookQuery(byte[] data) {
+		try {
+			final Input input = new Input(data, BOOK_QUERY);
+			if (input.Count != 1) {
+				return null;
+			}
+			final int record = input.beginRecord();
+			final int limit = input.readInt();
+			final long after = input.readLong();
+			final Filter filter = readFilter(input);
+			input.endRecord(record);
+			return new BookQuery(filter, limit, after);
+		} catch (FormatException e) {
+			return null;
+		}
+	}
+
+	public static byte[] serialize(BookmarkQuery query) {
+		final Output output = new Output(BOOKMARK_QUERY, 1);
+		final int record = output.beginRecord();
+		output.writeBoolean(query.Visible);
+		output.writeInt(query.Limit);
+		output.writeInt(query.Page);
+		output.writeBoolean(query.Book != null);
+		if (query.Book != null) {
+			writeBook(output, query.Book);
+		}
+		output.endRecord(record);
+		return output.toByteArray();
+	}
+
+	public static BookmarkQuery deserializeBookmarkQuery(byte[] data, AbstractSerializer.BookCreator<? extends AbstractBook> creator) {
+		try {
+			final Input input = new Input(data, BOOKMARK_QUERY);
+			if (input.Count != 1) {
+				return null;
+			}
+			final int record = input.beginRecord();
+			final boolean visible = input.readBoolean();
+			final int limit = input.readInt();
+			final int page = input.readInt();
+			final AbstractBook book = input.readBoolean() ? readBook(input, creator) : null;
+			input.endRecord(record);
+			return new BookmarkQuery(book, visible, limit, page);
+		} catch (FormatException e) {
+			return null;
+		}
+	}
+
+	/**
+	 * @return packet with a list of zero or one book
+	 */
+	public static byte[] serialize(AbstractBook book) {
+		return serializeBookList(
+			book != null ? Collections.singletonList(book) : Collections.<AbstractBook>emptyList()
+		);
+	}
+
+	public static <B extends AbstractBook> B deserializeBook(byte[] data, AbstractSerializer.BookCreator<B> creator) {
+		final List<B> books = deserializeBookList(data, creator);
+		return books.size() == 1 ? books.get(0) : null;
+	}
+
+	public static byte[] serializeBookList(List<? extends AbstractBook> books) {
+		final Output output = new Output(BOOKS, books.size());
+		for (AbstractBook b : books) {
+			final int record = output.beginRecord();
+			writeBook(output, b);
+			output.endRecord(record);
+		}
+		return output.toByteArray();
+	}
+
+	public static <B extends AbstractBook> List<B> deserializeBookList(byte[] data, AbstractSerializer.BookCreator<B> creator) {
+		try {
+			final Input input = new Input(data, BOOKS);
+			final List<B> books = new ArrayList<B>(input.Count);
+			for (int i = 0; i < input.Count; ++i) {
+				final int record = input.beginRecord();
+				books.add(readBook(input, creator));
+				input.endRecord(record);
+			}
+			return books;
+		} catch (FormatException e) {
+			return Collections.emptyList();
+		}
+	}
+
+	/**
+	 * @return packet with a list of zero or one bookmark
+	 */
+	public static byte[] serialize(Bookmark bookmark) {
+		return serializeBookmarkList(
+			bookmark != null ? Collections.singletonList(bookmark) : Collections.<Bookmark>emptyList()
+		);
+	}
+
+	public static Bookmark deserializeBookmark(byte[] data) {
+		final List<Bookmark> bookmarks = deserializeBookmarkList(data);
+		return bookmarks.size() == 1 ? bookmarks.get(0) : null;
+	}
+
+	public static byte[] serializeBookmarkList(List<Bookmark> bookmarks) {
+		final Output output = new Output(BOOKMARKS, bookmarks.size());
+		for (Bookmark b : bookmarks) {
+			final int record = output.beginRecord();
+			writeBookmark(output, b);
+			output.endRecord(record);
+		}
+		return output.toByteArray();
+	}
+
+	public static List<Bookmark> deserializeBookmarkList(byte[] data) {
+		try {
+			final Input input = new Input(data, BOOKMARKS);
+			final List<Bookmark> bookmarks = new ArrayList<Bookmark>(input.Count);
+			for (int i = 0; i < input.Count; ++i) {
+				final int record = input.beginRecord();
+				bookmarks.add(readBookmark(input));
+				input.endRecord(record);
+			}
+			return bookmarks;
+		} catch (FormatException e) {
+			return Collections.emptyList();
+		}
+	}
+
+	public static byte[] serializeStyleList(List<HighlightingStyle> styles) {
+		final Output output = new Output(STYLES, styles.size());
+		for (HighlightingStyle s : styles) {
+			final int record = output.beginRecord();
+			output.writeInt(s.Id);
+			output.writeLong(s.LastUpdateTimestamp);
+			output.writeString(s.getNameOrNull());
+			writeColor(output, s.getBackgroundColor());
+			writeColor(output, s.getForegroundColor());
+			output.endRecord(record);
+		}
+		return output.toByteArray();
+	}
+
+	public static List<HighlightingStyle> deserializeStyleList(byte[] data) {
+		try {
+			final Input input = new Input(data, STYLES);
+			final List<HighlightingStyle> styles = new ArrayList<HighlightingStyle>(input.Count);
+			for (int i = 0; i < input.Count; ++i) {
+				final int record = input.beginRecord();
+				final int id = input.readInt();
+				final long timestamp = input.readLong();
+				final String name = input.readString();
+				final ZLColor bgColor = readColor(input);
+				final ZLColor fgColor = readColor(input);
+				styles.add(new HighlightingStyle(id, timestamp, name, bgColor, fgColor));
+				input.endRecord(record);
+			}
+			return styles;
+		} catch (FormatException e) {
+			return Collections.emptyList();
+		}
+	}
+
+	private static void writeColor(Output output, ZLColor color) {
+		output.writeBoolean(color != null);
+		if (color != null) {
+			output.writeInt(color.intValue());
+		}
+	}
+
+	private static ZLColor readColor(Input input) throws FormatException {
+		return input.readBoolean() ? new ZLColor(input.readInt()) : null;
+	}
+
+	private static void writeTag(Output output, Tag tag) {
+		int depth = 0;
+		for (Tag t = tag; t != null; t = t.Parent) {
+			++depth;
+		}
+		final String[] names = new String[depth];
+		for (Tag t = tag; t != null; t = t.Parent) {
+			names[--depth] = t.Name;
+		}
+		output.writeInt(names.length);
+		for (String n : names) {
+			output.writeString(n);
+		}
+	}
+
+	private static Tag readTag(Input input) throws FormatException {
+		final int depth = input.readInt();
+		if (depth <= 0) {
+			throw new FormatException("Invalid tag");
+		}
+		final String[] names = new String[depth];
+		for (int i = 0; i < depth; ++i) {
+			names[i] = input.readString();
+		}
+		return Tag.getTag(names);
+	}
+
+	private static void writeFilter(Output output, Filter filter) {
+		if (filter instanceof Filter.Empty) {
+			output.writeByte(FILTER_EMPTY);
+		} else if (filter instanceof Filter.Not) {
+			output.writeByte(FILTER_NOT);
+			writeFilter(output, ((Filter.Not)filter).Base);
+		} else if (filter instanceof Filter.And) {
+			output.writeByte(FILTER_AND);
+			writeFilter(output, ((Filter.And)filter).First);
+			writeFilter(output, ((Filter.And)filter).Second);
+		} else if (filter instanceof Filter.Or) {
+			output.writeByte(FILTER_OR);
+			writeFilter(output, ((Filter.Or)filter).First);
+			writeFilter(output, ((Filter.Or)filter).Second);
+		} else if (filter instanceof Filter.ByAuthor) {
+			final Author author = ((Filter.ByAuthor)filter).Author;
+			output.writeByte(FILTER_AUTHOR);
+			output.writeString(author.DisplayName);
+			output.writeString(author.SortKey);
+		} else if (filter instanceof Filter.ByTag) {
+			output.writeByte(FILTER_TAG);
+			writeTag(output, ((Filter.ByTag)filter).Tag);
+		} else if (filter instanceof Filter.ByLabel) {
+			output.writeByte(FILTER_LABEL);
+			output.writeString(((Filter.ByLabel)filter).Label);
+		} else if (filter instanceof Filter.BySeries) {
+			output.writeByte(FILTER_SERIES);
+			output.writeString(((Filter.BySeries)filter).Series.getTitle());
+		} else if (filter instanceof Filter.ByPattern) {
+			output.writeByte(FILTER_PATTERN);
+			output.writeString(((Filter.ByPattern)filter).Pattern);
+		} else if (filter instanceof Filter.ByTitlePrefix) {
+			output.writeByte(FILTER_TITLE_PREFIX);
+			output.writeString(((Filter.ByTitlePrefix)filter).Prefix);
+		} else if (filter instanceof Filter.HasBookmark) {
+			output.writeByte(FILTER_HAS_BOOKMARK);
+		} else if (filter instanceof Filter.HasPhysicalFile) {
+			output.writeByte(FILTER_HAS_PHYSICAL_FILE);
+		} else {
+			throw new RuntimeException("Unsupported filter type: " + filter.getClass());
+		}
+	}
+
+	private static Filter readFilter(Input input) throws FormatException {
+		final byte type = input.readByte();
+		switch (type) {
+			case FILTER_EMPTY:
+				return new Filter.Empty();
+			case FILTER_NOT:
+				return new Filter.Not(readFilter(input));
+			case FILTER_AND:
+			{
+				final Filter first = readFilter(input);
+				return new Filter.And(first, readFilter(input));
+			}
+			case FILTER_OR:
+			{
+				final Filter first = readFilter(input);
+				return new Filter.Or(first, readFilter(input));
+			}
+			case FILTER_AUTHOR:
+			{
+				final String name = input.readString();
+				return new Filter.ByAuthor(new Author(name, input.readString()));
+			}
+			case FILTER_TAG:
+				return new Filter.ByTag(readTag(input));
+			case FILTER_LABEL:
+				return new Filter.ByLabel(input.readString());
+			case FILTER_SERIES:
+				return new Filter.BySeries(new Series(input.readString()));
+			case FILTER_PATTERN:
+				return new Filter.ByPattern(input.readString());
+			case FILTER_TITLE_PREFIX:
+				return new Filter.ByTitlePrefix(input.readString());
+			case FILTER_HAS_BOOKMARK:
+				return new Filter.HasBookmark();
+			case FILTER_HAS_PHYSICAL_FILE:
+				return new Filter.HasPhysicalFile();
+			default:
+				throw new FormatException("Unsupported filter type " + type);
+		}
+	}
+
+	private static void writeBook(Output output, AbstractBook book) {
+		output.writeLong(book.getId());
+		output.writeString("file://" + book.getPath());
+		output.writeString(book.getTitle());
+		output.writeString(book.getEncodingNoDetection());
+		output.writeString(book.getLanguage());
+
+		final List<Author> authors = book.authors();
+		output.writeInt(authors.size());
+		for (Author a : authors) {
+			output.writeString(a.DisplayName);
+			output.writeString(a.SortKey);
+		}
+
+		final List<Tag> tags = book.tags();
+		output.writeInt(tags.size());
+		for (Tag t : tags) {
+			writeTag(output, t);
+		}
+
+		final List<Label> labels = book.labels();
+		output.writeInt(labels.size());
+		for (Label l : labels) {
+			output.writeString(l.Uid);
+			output.writeString(l.Name);
+		}
+
+		final List<UID> uids = book.uids();
+		output.writeInt(uids.size());
+		for (UID uid : uids) {
+			output.writeString(uid.Type);
+			output.writeString(uid.Id);
+		}
+
+		final SeriesInfo seriesInfo = book.getSeriesInfo();
+		if (seriesInfo != null) {
+			output.writeString(seriesInfo.Series.getTitle());
+			output.writeString(seriesInfo.Index != null ? seriesInfo.Index.toPlainString() : null);
+		} else {
+			output.writeString(null);
+			output.writeString(null);
+		}
+
+		output.writeBoolean(book.HasBookmark);
+
+		final RationalNumber progress = book.getProgress();
+		output.writeBoolean(progress != null);
+		if (progress != null) {
+			output.writeLong(progress.Numerator);
+			output.writeLong(progress.Denominator);
+		}
+	}
+
+	private static <B extends AbstractBook> B readBook(Input input, AbstractSerializer.BookCreator<B> creator) throws FormatException {
+		final long id = input.readLong();
+		final String url = input.readString();
+		final String title = input.readString();
+		final String encoding = input.readString();
+		final String language = input.readString();
+		final B book = creator.createBook(id, url, title, encoding, language);
+
+		for (int count = input.readInt(); count > 0; --count) {
+			final String name = input.readString();
+			book.addAuthorWithNoCheck(new Author(name, input.readString()));
+		}
+		for (int count = input.readInt(); count > 0; --count) {
+			book.addTagWithNoCheck(readTag(input));
+		}
+		for (int count = input.readInt(); count > 0; --count) {
+			final String uid = input.readString();
+			final String name = input.readString();
+			book.addLabelWithNoCheck(uid != null ? new Label(uid, name) : new Label(name));
+		}
+		for (int count = input.readInt(); count > 0; --count) {
+			final String type = input.readString();
+			book.addUidWithNoCheck(new UID(type, input.readString()));
+		}
+
+		final String seriesTitle = input.readString();
+		final String seriesIndex = input.readString();
+		book.setSeriesInfoWithNoCheck(seriesTitle, seriesIndex);
+
+		book.HasBookmark = input.readBoolean();
+
+		if (input.readBoolean()) {
+			final long numerator = input.readLong();
+			book.setProgressWithNoCheck(RationalNumber.create(numerator, input.readLong()));
+		}
+		return book;
+	}
+
+	private static void writeBookmark(Output output, Bookmark bookmark) {
+		output.writeLong(bookmark.getId());
+		output.writeString(bookmark.Uid);
+		output.writeString(bookmark.getVersionUid());
+		output.writeLong(bookmark.BookId);
+		output.writeString(bookmark.BookTitle);
+		output.writeString(bookmark.getText());
+		output.writeString(bookmark.getOriginalText());
+		output.writeLong(bookmark.CreationTimestamp);
+		writeTimestamp(output, bookmark.getTimestamp(Bookmark.DateType.Modification));
+		writeTimestamp(output, bookmark.getTimestamp(Bookmark.DateType.Access));
+		output.writeString(bookmark.ModelId);
+		output.writeInt(bookmark.getParagraphIndex());
+		output.writeInt(bookmark.getElementIndex());
+		output.writeInt(bookmark.getCharIndex());
+		final ZLTextPosition end = bookmark.getEnd();
+		if (end != null) {
+			output.writeInt(end.getParagraphIndex());
+			output.writeInt(end.getElementIndex());
+			output.writeInt(end.getCharIndex());
+		} else {
+			output.writeInt(bookmark.getLength());
+			output.writeInt(-1);
+			output.writeInt(-1);
+		}
+		output.writeBoolean(bookmark.IsVisible);
+		output.writeInt(bookmark.getStyleId());
+	}
+
+	private static Bookmark readBookmark(Input input) throws FormatException {
+		final long id = input.readLong();
+		final String uid = input.readString();
+		final String versionUid = input.readString();
+		final long bookId = input.readLong();
+		final String bookTitle = input.readString();
+		final String text = input.readString();
+		final String originalText = input.readString();
+		final long creationTimestamp = input.readLong();
+		final Long modificationTimestamp = readTimestamp(input);
+		final Long accessTimestamp = readTimestamp(input);
+		final String modelId = input.readString();
+		final int startParagraph = input.readInt();
+		final int startElement = input.readInt();
+		final int startChar = input.readInt();
+		final int endParagraph = input.readInt();
+		final int endElement = input.readInt();
+		final int endChar = input.readInt();
+		final boolean isVisible = input.readBoolean();
+		final int styleId = input.readInt();
+		return new Bookmark(
+			id, uid, versionUid,
+			bookId, bookTitle, text, originalText,
+			creationTimestamp, modificationTimestamp, accessTimestamp,
+			modelId,
+			startParagraph, startElement, startChar,
+			endParagraph, endElement, endChar,
+			isVisible,
+			styleId
+		);
+	}
+
+	private static void writeTimestamp(Output output, Long timestamp) {
+		output.writeBoolean(timestamp != null);
+		if (timestamp != null) {
+			output.writeLong(timestamp);
+		}
+	}
+
+	private static Long readTimestamp(Input input) throws FormatException {
+		return input.readBoolean() ? input.readLong() : null;
+	}
+}
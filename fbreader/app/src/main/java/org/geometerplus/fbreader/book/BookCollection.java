@@ -31,7 +31,8 @@ import org.geometerplus.zlibrary.text.view.ZLTextPosition;
 import org.geometerplus.fbreader.formats.*;
 
 public class BookCollection extends AbstractBookCollection<DbBook> {
-	private static final String ZERO_HASH = String.format("%040d", 0);
+	// hash of a book that has no physical file
+	public static final String ZERO_HASH = String.format("%040d", 0);
 
 	private final SystemInfo mySystemInfo;
 	public final PluginCollection PluginCollection;
@@ -46,9 +47,12 @@ public class BookCollection extends AbstractBookCollection<DbBook> {
 	private final List<String> myFilesToRescan =
 		Collections.synchronizedList(new LinkedList<String>());
 	private final DuplicateResolver myDuplicateResolver = new DuplicateResolver();
+	private final BookIndex myIndex = new BookIndex();
 
 	private volatile Status myStatus = Status.NotStarted;
 
+	private final FullTextIndexer myFullTextIndexer;
+
 	private final Map<Integer,HighlightingStyle> myStyles =
 		Collections.synchronizedMap(new TreeMap<Integer,HighlightingStyle>());
 
@@ -57,6 +61,7 @@ public class BookCollection extends AbstractBookCollection<DbBook> {
 		PluginCollection = org.geometerplus.fbreader.formats.PluginCollection.Instance(systemInfo);
 		myDatabase = db;
 		BookDirectories = Collections.unmodifiableList(new ArrayList<String>(bookDirectories));
+		myFullTextIndexer = new FullTextIndexer(this, db, systemInfo);
 
 		final String formats = db.getOptionValue("formats");
 		if (formats != null) {
@@ -223,11 +228,14 @@ public class BookCollection extends AbstractBookCollection<DbBook> {
 					myBooksByFile.put(book.File, book);
 					myDuplicateResolver.addFile(book.File);
 					myBooksById.put(book.getId(), book);
+					myIndex.add(book);
 					fireBookEvent(BookEvent.Added, book);
 				}
 				return true;
 			} else if (force) {
 				existing.updateFrom(book);
+				// the book might be changed in place, not only by updateFrom()
+				myIndex.add(existing);
 				switch (existing.save(myDatabase, false)) {
 					case Everything:
 						fireBookEvent(BookEvent.Updated, existing);
@@ -250,6 +258,7 @@ public class BookCollection extends AbstractBookCollection<DbBook> {
 			myBooksByFile.remove(book.File);
 			myDuplicateResolver.removeFile(book.File);
 			myBooksById.remove(book.getId());
+			myIndex.remove(book.getId());
 
 			if (deleteFromDisk) {
 				book.File.getPhysicalFile().delete();
@@ -287,46 +296,15 @@ public class BookCollection extends AbstractBookCollection<DbBook> {
 			return Collections.emptyList();
 		}
 
-		final List<DbBook> allBooks;
 		synchronized (myBooksByFile) {
-			//allBooks = new ArrayList<DbBook>(new LinkedHashSet<DbBook>(myBooksByFile.values()));
-			allBooks = new ArrayList<DbBook>(myBooksByFile.values());
-		}
-		final int start = query.Page * query.Limit;
-		if (start >= allBooks.size()) {
-			return Collections.emptyList();
-		}
-		final int end = start + query.Limit;
-		if (query.Filter instanceof Filter.Empty) {
-			return allBooks.subList(start, Math.min(end, allBooks.size()));
-		} else {
-			int count = 0;
-			final List<DbBook> filtered = new ArrayList<DbBook>(query.Limit);
-			for (DbBook b : allBooks) {
-				if (query.Filter.matches(b)) {
-					if (count >= start) {
-						filtered.add(b);
-					}
-					if (++count == end) {
-						break;
-					}
-				}
-			}
-			return filtered;
+			return myIndex.books(query.Filter, query.After, query.Limit);
 		}
 	}
 
 	public boolean hasBooks(Filter filter) {
-		final List<DbBook> allBooks;
 		synchronized (myBooksByFile) {
-			allBooks = new ArrayList<DbBook>(myBooksByFile.values());
-		}
-		for (DbBook b : allBooks) {
-			if (filter.matches(b)) {
-				return true;
-			}
+			return myIndex.hasBooks(filter);
 		}
-		return false;
 	}
 
 	public List<String> titles(BookQuery query) {
@@ -362,37 +340,15 @@ public class BookCollection extends AbstractBookCollection<DbBook> {
 	}
 
 	public List<Author> authors() {
-		final Set<Author> authors = new TreeSet<Author>();
 		synchronized (myBooksByFile) {
-			for (DbBook book : myBooksByFile.values()) {
-				final List<Author> bookAuthors = book.authors();
-				if (bookAuthors.isEmpty()) {
-					authors.add(Author.NULL);
-				} else {
-					authors.addAll(bookAuthors);
-				}
-			}
+			return myIndex.authors();
 		}
-		return new ArrayList<Author>(authors);
 	}
 
 	public List<Tag> tags() {
-		final Set<Tag> tags = new HashSet<Tag>();
 		synchronized (myBooksByFile) {
-			for (DbBook book : myBooksByFile.values()) {
-				final List<Tag> bookTags = book.tags();
-				if (bookTags.isEmpty()) {
-					tags.add(Tag.NULL);
-				} else {
-					for (Tag t : bookTags) {
-						for (; t != null; t = t.Parent) {
-							tags.add(t);
-						}
-					}
-				}
-			}
+			return myIndex.tags();
 		}
-		return new ArrayList<Tag>(tags);
 	}
 
 	public List<String> labels() {
@@ -401,38 +357,19 @@ public class BookCollection extends AbstractBookCollection<DbBook> {
 
 	public boolean hasSeries() {
 		synchronized (myBooksByFile) {
-			for (DbBook book : myBooksByFile.values()) {
-				if (book.getSeriesInfo() != null) {
-					return true;
-				}
-			}
+			return myIndex.hasSeries();
 		}
-		return false;
 	}
 
 	public List<String> series() {
-		final Set<String> series = new TreeSet<String>();
 		synchronized (myBooksByFile) {
-			for (DbBook book : myBooksByFile.values()) {
-				final SeriesInfo info = book.getSeriesInfo();
-				if (info != null) {
-					series.add(info.Series.getTitle());
-				}
-			}
+			return myIndex.series();
 		}
-		return new ArrayList<String>(series);
 	}
 
 	public List<String> firstTitleLetters() {
 		synchronized (myBooksByFile) {
-			final TreeSet<String> letters = new TreeSet<String>();
-			for (DbBook book : myBooksByFile.values()) {
-				final String l = book.firstTitleLetter();
-				if (l != null) {
-					letters.add(l);
-				}
-			}
-			return new ArrayList<String>(letters);
+			return myIndex.firstTitleLetters();
 		}
 	}
 
@@ -474,9 +411,13 @@ public class BookCollection extends AbstractBookCollection<DbBook> {
 					synchronized (myFilesToRescan) {
 						processFilesQueue();
 					}
-					for (DbBook book : new ArrayList<DbBook>(myBooksByFile.values())) {
+					final List<DbBook> books = new ArrayList<DbBook>(myBooksByFile.values());
+					for (DbBook book : books) {
 						getHash(book, false);
 					}
+					for (DbBook book : books) {
+						myFullTextIndexer.schedule(book);
+					}
 				}
 			}
 		};
@@ -518,6 +459,7 @@ public class BookCollection extends AbstractBookCollection<DbBook> {
 				if (book != null) {
 					saveBook(book);
 					getHash(book, false);
+					myFullTextIndexer.schedule(book);
 				}
 			}
 
@@ -527,6 +469,7 @@ public class BookCollection extends AbstractBookCollection<DbBook> {
 					myDuplicateResolver.removeFile(f);
 					if (book != null) {
 						myBooksById.remove(book.getId());
+						myIndex.remove(book.getId());
 						fireBookEvent(BookEvent.Removed, book);
 					}
 				}
@@ -880,6 +823,17 @@ public class BookCollection extends AbstractBookCollection<DbBook> {
 		}
 	}
 
+	public List<FullTextHit> fullTextSearch(String pattern, int offset, int limit) {
+		final List<FullTextHit> hits = new ArrayList<FullTextHit>();
+		for (FullTextHit h : myFullTextIndexer.search(pattern, offset, limit)) {
+			// the index may keep removed books until they are reindexed
+			if (myBooksById.containsKey(h.BookId)) {
+				hits.add(h);
+			}
+		}
+		return hits;
+	}
+
 	public DbBook createBook(long id, String url, String title, String encoding, String language) {
 		return new DbBook(id, ZLFile.createFileByUrl(url), title, encoding, language);
 	}
@@ -934,4 +888,18 @@ public class BookCollection extends AbstractBookCollection<DbBook> {
 		myDatabase.insertUnknownWord(word.getBookId(), word.getText(), word.getFrequency(), 
 				word.getParagraphIndex(), word.getElementIndex(), word.getCharIndex());
 	}
+
+	@Override
+	public void saveWords(final List<Word> knownWords, final List<Word> unknownWords) {
+		myDatabase.executeAsTransaction(new Runnable() {
+			public void run() {
+				for (Word w : knownWords) {
+					saveToKnownWords(w);
+				}
+				for (Word w : unknownWords) {
+					saveToUnknownWords(w);
+				}
+			}
+		});
+	}
 }
@@ -0,0 +1,220 @@
+/*
+ * Copyright (C) 2007-2015 FBReader.ORG Limited <contact@fbreader.org>
+ *
+ * This program is free software; you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation; either version 2 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program; if not, write to the Free Software
+ * Foundation, Inc., 51 Franklin Street, Fifth Floor, Boston, MA
+ * 02110-1301, USA.
+ */
+
+package org.geometerplus.fbreader.book;
+
+import java.util.*;
+
+/**
+ * Secondary indexes of the book collection: books by author, tag, series,
+ * label and first title letter.
+ *
+ * Every index keeps its books ordered by id, so a query is continued
+ * from the id of the last book returned before. The keys a book is indexed
+ * under are remembered, so the book can be re-indexed after it has been
+ * changed in place. The index is not synchronized, BookCollection
+ * accesses it under its own lock.
+ */
+final class BookIndex {
+	private static final SortedMap<Long,DbBook> NO_BOOKS =
+		Collections.unmodifiableSortedMap(new TreeMap<Long,DbBook>());
+
+	private static final class Keys {
+		final List<Author> Authors;
+		final List<Tag> Tags;
+		final List<String> Labels;
+		final String Series;
+		final String TitleLetter;
+
+		Keys(DbBook book) {
+			final List<Author> authors = book.authors();
+			Authors = authors.isEmpty()
+				? Collections.singletonList(Author.NULL)
+				: new ArrayList<Author>(authors);
+			final List<Tag> tags = book.tags();
+			Tags = tags.isEmpty()
+				? Collections.singletonList(Tag.NULL)
+				: new ArrayList<Tag>(tags);
+			final List<Label> labels = book.labels();
+			Labels = new ArrayList<String>(labels.size());
+			for (Label l : labels) {
+				Labels.add(l.Name);
+			}
+			final SeriesInfo info = book.getSeriesInfo();
+			Series = info != null ? info.Series.getTitle() : null;
+			TitleLetter = book.firstTitleLetter();
+		}
+	}
+
+	private final TreeMap<Long,DbBook> myBooks = new TreeMap<Long,DbBook>();
+	private final Map<Long,Keys> myKeys = new HashMap<Long,Keys>();
+	private final TreeMap<Author,TreeMap<Long,DbBook>> myByAuthor =
+		new TreeMap<Author,TreeMap<Long,DbBook>>();
+	private final Map<Tag,TreeMap<Long,DbBook>> myByTag =
+		new HashMap<Tag,TreeMap<Long,DbBook>>();
+	private final Map<String,TreeMap<Long,DbBook>> myByLabel =
+		new HashMap<String,TreeMap<Long,DbBook>>();
+	private final TreeMap<String,TreeMap<Long,DbBook>> myBySeries =
+		new TreeMap<String,TreeMap<Long,DbBook>>();
+	private final TreeMap<String,TreeMap<Long,DbBook>> myByTitleLetter =
+		new TreeMap<String,TreeMap<Long,DbBook>>();
+
+	void add(DbBook book) {
+		final Long id = book.getId();
+		remove(id);
+		final Keys keys = new Keys(book);
+		myKeys.put(id, keys);
+		myBooks.put(id, book);
+		for (Author a : keys.Authors) {
+			put(myByAuthor, a, id, book);
+		}
+		for (Tag t : keys.Tags) {
+			put(myByTag, t, id, book);
+		}
+		for (String l : keys.Labels) {
+			put(myByLabel, l, id, book);
+		}
+		if (keys.Series != null) {
+			put(myBySeries, keys.Series, id, book);
+		}
+		if (keys.TitleLetter != null) {
+			put(myByTitleLetter, keys.TitleLetter, id, book);
+		}
+	}
+
+	void remove(long bookId) {
+		final Long id = bookId;
+		final Keys keys = myKeys.remove(id);
+		if (keys == null) {
+			return;
+		}
+		myBooks.remove(id);
+		for (Author a : keys.Authors) {
+			remove(myByAuthor, a, id);
+		}
+		for (Tag t : keys.Tags) {
+			remove(myByTag, t, id);
+		}
+		for (String l : keys.Labels) {
+			remove(myByLabel, l, id);
+		}
+		if (keys.Series != null) {
+			remove(myBySeries, keys.Series, id);
+		}
+		if (keys.TitleLetter != null) {
+			remove(myByTitleLetter, keys.TitleLetter, id);
+		}
+	}
+
+	private static <K> void put(Map<K,TreeMap<Long,DbBook>> index, K key, Long id, DbBook book) {
+		TreeMap<Long,DbBook> books = index.get(key);
+		if (books == null) {
+			books = new TreeMap<Long,DbBook>();
+			index.put(key, books);
+		}
+		books.put(id, book);
+	}
+
+	private static <K> void remove(Map<K,TreeMap<Long,DbBook>> index, K key, Long id) {
+		final TreeMap<Long,DbBook> books = index.get(key);
+		if (books != null) {
+			books.remove(id);
+			if (books.isEmpty()) {
+				index.remove(key);
+			}
+		}
+	}
+
+	/**
+	 * @return books that may match the filter (a superset of matching ones)
+	 */
+	private SortedMap<Long,DbBook> candidates(Filter filter) {
+		final SortedMap<Long,DbBook> books;
+		if (filter instanceof Filter.ByAuthor) {
+			books = myByAuthor.get(((Filter.ByAuthor)filter).Author);
+		} else if (filter instanceof Filter.ByTag) {
+			books = myByTag.get(((Filter.ByTag)filter).Tag);
+		} else if (filter instanceof Filter.ByLabel) {
+			books = myByLabel.get(((Filter.ByLabel)filter).Label);
+		} else if (filter instanceof Filter.BySeries) {
+			books = myBySeries.get(((Filter.BySeries)filter).Series.getTitle());
+		} else if (filter instanceof Filter.ByTitlePrefix) {
+			books = myByTitleLetter.get(((Filter.ByTitlePrefix)filter).Prefix);
+		} else if (filter instanceof Filter.And) {
+			final SortedMap<Long,DbBook> first = candidates(((Filter.And)filter).First);
+			final SortedMap<Long,DbBook> second = candidates(((Filter.And)filter).Second);
+			return first.size() <= second.size() ? first : second;
+		} else {
+			return myBooks;
+		}
+		return books != null ? books : NO_BOOKS;
+	}
+
+	/**
+	 * @param after id of the last book of the previous page, -1 for the first page
+	 */
+	List<DbBook> books(Filter filter, long after, int limit) {
+		final SortedMap<Long,DbBook> candidates = candidates(filter).tailMap(after + 1);
+		final List<DbBook> books = new ArrayList<DbBook>();
+		for (DbBook b : candidates.values()) {
+			if (books.size() == limit) {
+				break;
+			}
+			if (filter.matches(b)) {
+				books.add(b);
+			}
+		}
+		return books;
+	}
+
+	boolean hasBooks(Filter filter) {
+		for (DbBook b : candidates(filter).values()) {
+			if (filter.matches(b)) {
+				return true;
+			}
+		}
+		return false;
+	}
+
+	List<Author> authors() {
+		return new ArrayList<Author>(myByAuthor.keySet());
+	}
+
+	List<Tag> tags() {
+		final Set<Tag> tags = new HashSet<Tag>();
+		for (Tag t : myByTag.keySet()) {
+			for (; t != null; t = t.Parent) {
+				tags.add(t);
+			}
+		}
+		return new ArrayList<Tag>(tags);
+	}
+
+	boolean hasSeries() {
+		return !myBySeries.isEmpty();
+	}
+
+	List<String> series() {
+		return new ArrayList<String>(myBySeries.keySet());
+	}
+
+	List<String> firstTitleLetters() {
+		return new ArrayList<String>(myByTitleLetter.keySet());
+	}
+}
@@ -19,22 +19,32 @@
 
 package org.geometerplus.fbreader.book;
 
+import java.util.List;
+
 public final class BookQuery {
 	public final Filter Filter;
 	public final int Limit;
-	public final int Page;
+	// opaque continuation cursor: id of the last book of the previous page
+	final long After;
 
 	public BookQuery(Filter filter, int limit) {
-		this(filter, limit, 0);
+		this(filter, limit, -1);
 	}
 
-	BookQuery(Filter filter, int limit, int page) {
+	BookQuery(Filter filter, int limit, long after) {
 		Filter = filter;
 		Limit = limit;
-		Page = page;
+		After = after;
 	}
 
-	public BookQuery next() {
-		return new BookQuery(Filter, Limit, Page + 1);
+	/**
+	 * @param page books returned for this query
+	 * @return query for the books following the page
+	 */
+	public BookQuery next(List<? extends AbstractBook> page) {
+		if (page.isEmpty()) {
+			return this;
+		}
+		return new BookQuery(Filter, Limit, page.get(page.size() - 1).getId());
 	}
 }
@@ -103,6 +103,13 @@ public abstract class BooksDatabase {
 	protected abstract List<Word> loadAllKnownWords(String language);
 	protected abstract void deleteAllUnknownWord(long book_id);
 	public abstract void deleteAllKnownWord(String language);
+
+	// hash of the book file the full-text index was built for, or null
+	protected abstract String getFullTextIndexHash(long bookId);
+	protected abstract void setFullTextIndexHash(long bookId, String hash);
+	protected abstract void deleteFullTextIndex(long bookId);
+	protected abstract void addFullTextParagraph(long bookId, int paragraphIndex, String text);
+	protected abstract List<FullTextHit> fullTextSearch(String query, int offset, int limit);
 	
 	protected FileInfo createFileInfo(long id, String name, FileInfo parent) {
 		return new FileInfo(name, parent, id);
@@ -0,0 +1,66 @@
+/*
+ * Copyright (C) 2007-2015 FBReader.ORG Limited <contact@fbreader.org>
+ *
+ * This program is free software; you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation; either version 2 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program; if not, write to the Free Software
+ * Foundation, Inc., 51 Franklin Street, Fifth Floor, Boston, MA
+ * 02110-1301, USA.
+ */
+
+package org.geometerplus.fbreader.book;
+
+import android.os.Parcel;
+import android.os.Parcelable;
+
+/**
+ * Paragraph of a library book that matches a full-text query
+ */
+public final class FullTextHit implements Parcelable {
+	public final long BookId;
+	public final int ParagraphIndex;
+	public final String Snippet;
+	// number of matching paragraphs in the book, hits are ordered by it
+	public final int BookHitsCount;
+
+	public FullTextHit(long bookId, int paragraphIndex, String snippet, int bookHitsCount) {
+		BookId = bookId;
+		ParagraphIndex = paragraphIndex;
+		Snippet = snippet;
+		BookHitsCount = bookHitsCount;
+	}
+
+	@Override
+	public int describeContents() {
+		return 0;
+	}
+
+	@Override
+	public void writeToParcel(Parcel dest, int flags) {
+		dest.writeLong(BookId);
+		dest.writeInt(ParagraphIndex);
+		dest.writeString(Snippet);
+		dest.writeInt(BookHitsCount);
+	}
+
+	public static final Parcelable.Creator<FullTextHit> CREATOR = new Parcelable.Creator<FullTextHit>() {
+		@Override
+		public FullTextHit createFromParcel(Parcel source) {
+			return new FullTextHit(source.readLong(), source.readInt(), source.readString(), source.readInt());
+		}
+
+		@Override
+		public FullTextHit[] newArray(int size) {
+			return new FullTextHit[size];
+		}
+	};
+}
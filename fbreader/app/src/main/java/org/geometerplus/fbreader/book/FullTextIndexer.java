@@ -0,0 +1,237 @@
+/*
+ * Copyright (C) 2007-2015 FBReader.ORG Limited <contact@fbreader.org>
+ *
+ * This program is free software; you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation; either version 2 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program; if not, write to the Free Software
+ * Foundation, Inc., 51 Franklin Street, Fifth Floor, Boston, MA
+ * 02110-1301, USA.
+ */
+
+package org.geometerplus.fbreader.book;
+
+import java.io.File;
+import java.util.*;
+
+import org.geometerplus.zlibrary.core.util.SystemInfo;
+import org.geometerplus.zlibrary.text.model.ZLTextModel;
+import org.geometerplus.zlibrary.text.model.ZLTextParagraph;
+
+import org.geometerplus.fbreader.bookmodel.BookModel;
+import org.geometerplus.fbreader.formats.*;
+
+/**
+ * Keeps the library full-text index up to date.
+ *
+ * Books are read by native plugins one by one in a background thread,
+ * the text of every paragraph goes to the database full-text table.
+ * A book is reindexed only if its hash differs from the indexed one.
+ *
+ * The database tokenizer splits text by spaces and punctuation only,
+ * so every ideograph is stored as a separate token; a query is then
+ * a phrase of such tokens, that finds the text regardless of the
+ * punctuation inside.
+ */
+final class FullTextIndexer {
+	private static final int PARAGRAPHS_PER_TRANSACTION = 1000;
+	// collection (with its indexer) is recreated when library is reset,
+	// the old thread may still be running
+	private static final Object ourIndexingLock = new Object();
+
+	private final BookCollection myCollection;
+	private final BooksDatabase myDatabase;
+	private final SystemInfo mySystemInfo;
+
+	private final LinkedList<DbBook> myQueue = new LinkedList<DbBook>();
+	private Thread myThread;
+
+	FullTextIndexer(BookCollection collection, BooksDatabase database, SystemInfo systemInfo) {
+		myCollection = collection;
+		myDatabase = database;
+		mySystemInfo = systemInfo;
+	}
+
+	void schedule(DbBook book) {
+		if (book == null) {
+			return;
+		}
+		synchronized (myQueue) {
+			if (!myQueue.contains(book)) {
+				myQueue.add(book);
+			}
+			if (myThread == null) {
+				myThread = new Thread("Library.fullText") {
+					public void run() {
+						processQueue();
+					}
+				};
+				myThread.setPriority(Thread.MIN_PRIORITY);
+				myThread.start();
+			}
+		}
+	}
+
+	private void processQueue() {
+		while (true) {
+			final DbBook book;
+			synchronized (myQueue) {
+				if (myQueue.isEmpty()) {
+					myThread = null;
+					return;
+				}
+				book = myQueue.removeFirst();
+			}
+			try {
+				synchronized (ourIndexingLock) {
+					index(book);
+				}
+			} catch (RuntimeException e) {
+				// the book is skipped, it is indexed again when scheduled next time
+			}
+		}
+	}
+
+	private void index(DbBook book) {
+		final String hash = myCollection.getHash(book, false);
+		if (hash == null || hash.equals(myDatabase.getFullTextIndexHash(book.getId()))) {
+			return;
+		}
+		try {
+			index(book, hash);
+		} catch (BookReadingException e) {
+			// the book is marked as indexed with no text,
+			// so it is not read again until the file changes
+			myDatabase.deleteFullTextIndex(book.getId());
+			myDatabase.setFullTextIndexHash(book.getId(), hash);
+		}
+	}
+
+	private void index(DbBook book, String hash) throws BookReadingException {
+		final FormatPlugin plugin = BookUtil.getPlugin(myCollection.PluginCollection, book);
+		if (!(plugin instanceof NativeFormatPlugin)) {
+			return;
+		}
+
+		final File directory = new File(mySystemInfo.tempDirectory(), "fulltext");
+		try {
+			final BookModel model = BookModel.createTemporaryModel(
+				new Book(book.getId(), book.getPath(), book.getTitle(), book.getEncodingNoDetection(), book.getLanguage()),
+				(NativeFormatPlugin)plugin,
+				directory.getPath()
+			);
+			final ZLTextModel textModel = model.getTextModel();
+			final int count = textModel.getParagraphsNumber();
+			final long bookId = book.getId();
+			myDatabase.deleteFullTextIndex(bookId);
+			for (int start = 0; start < count; start += PARAGRAPHS_PER_TRANSACTION) {
+				final int from = start;
+				final int to = Math.min(start + PARAGRAPHS_PER_TRANSACTION, count);
+				myDatabase.executeAsTransaction(new Runnable() {
+					public void run() {
+						final StringBuilder buffer = new StringBuilder();
+						for (int i = from; i < to; ++i) {
+							buffer.setLength(0);
+							final ZLTextParagraph.EntryIterator it = textModel.getParagraph(i).iterator();
+							while (it.next()) {
+								if (it.getType() == ZLTextParagraph.Entry.TEXT) {
+									appendIndexText(buffer, it.getTextData(), it.getTextOffset(), it.getTextLength());
+									buffer.append(' ');
+								}
+							}
+							final String text = buffer.toString().trim();
+							if (text.length() > 0) {
+								myDatabase.addFullTextParagraph(bookId, i, text);
+							}
+						}
+					}
+				});
+			}
+			myDatabase.setFullTextIndexHash(bookId, hash);
+		} finally {
+			final File[] files = directory.listFiles();
+			if (files != null) {
+				for (File f : files) {
+					f.delete();
+				}
+			}
+		}
+	}
+
+	List<FullTextHit> search(String pattern, int offset, int limit) {
+		final StringBuilder buffer = new StringBuilder();
+		final char[] data = pattern.toCharArray();
+		appendIndexText(buffer, data, 0, data.length);
+		final String query = buffer.toString().trim();
+		if (query.length() == 0) {
+			return Collections.emptyList();
+		}
+		final List<FullTextHit> hits = new ArrayList<FullTextHit>();
+		for (FullTextHit h : myDatabase.fullTextSearch("\"" + query + "\"", offset, limit)) {
+			hits.add(new FullTextHit(h.BookId, h.ParagraphIndex, displayText(h.Snippet), h.BookHitsCount));
+		}
+		return hits;
+	}
+
+	private static boolean isIdeograph(int ch) {
+		return
+			(ch >= 0x3040 && ch <= 0x30ff) || // kana
+			(ch >= 0x3400 && ch <= 0x4dbf) ||
+			(ch >= 0x4e00 && ch <= 0x9fff) ||
+			(ch >= 0xf900 && ch <= 0xfaff) ||
+			(ch >= 0x20000 && ch <= 0x2ffff);
+	}
+
+	// ideographs become separate tokens, other non-letters become separators
+	private static void appendIndexText(StringBuilder buffer, char[] data, int offset, int length) {
+		final int end = offset + length;
+		boolean space = buffer.length() == 0 || buffer.charAt(buffer.length() - 1) == ' ';
+		for (int i = offset; i < end; ) {
+			final int ch = Character.codePointAt(data, i, end);
+			final int size = Character.charCount(ch);
+			if (isIdeograph(ch)) {
+				if (!space) {
+					buffer.append(' ');
+				}
+				buffer.append(data, i, size).append(' ');
+				space = true;
+			} else if (Character.isLetterOrDigit(ch)) {
+				buffer.append(data, i, size);
+				space = false;
+			} else if (!space) {
+				buffer.append(' ');
+				space = true;
+			}
+			i += size;
+		}
+	}
+
+	// removes spaces around ideographs added by appendIndexText
+	private static String displayText(String text) {
+		if (text == null) {
+			return null;
+		}
+		final StringBuilder buffer = new StringBuilder(text.length());
+		final int length = text.length();
+		for (int i = 0; i < length; ++i) {
+			final char ch = text.charAt(i);
+			if (ch == ' ') {
+				final int prev = buffer.length() > 0 ? Character.codePointBefore(buffer, buffer.length()) : 0;
+				final int next = i + 1 < length ? Character.codePointAt(text, i + 1) : 0;
+				if (prev == 0 || next == 0 || isIdeograph(prev) || isIdeograph(next)) {
+					continue;
+				}
+			}
+			buffer.append(ch);
+		}
+		return buffer.toString();
+	}
+}
@@ -111,6 +111,10 @@ public interface IBookCollection<B extends AbstractBook> extends AbstractSeriali
 	boolean setActiveFormats(List<String> formatIds);
 
 	void rescan(String path);
+
+	// paragraphs of library books containing the pattern,
+	// books with more matching paragraphs go first
+	List<FullTextHit> fullTextSearch(String pattern, int offset, int limit);
 	
 	List<Word> unknownWords(long bookId);
 	List<Word> allKnownWords(String language);
@@ -118,6 +122,8 @@ public interface IBookCollection<B extends AbstractBook> extends AbstractSeriali
 	void deleteAllUnknownWord(long bookId);
 	void saveToKnownWords(Word word);
 	void saveToUnknownWords(Word word);
+	// saves all the words at once, in one database transaction
+	void saveWords(List<Word> knownWords, List<Word> unknownWords);
 	void deleteKnownWord(Word word);
 	void deleteUnknownWord(Word word);
 	void updateKnownWord(Word word, String newText);
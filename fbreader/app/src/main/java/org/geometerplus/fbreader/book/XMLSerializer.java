@@ -43,7 +43,7 @@ class XMLSerializer extends AbstractSerializer {
 		final StringBuilder buffer = builder();
 		appendTag(buffer, "query", false,
 			"limit", String.valueOf(query.Limit),
-			"page", String.valueOf(query.Page)
+			"after", String.valueOf(query.After)
 		);
 		serialize(buffer, query.Filter);
 		closeTag(buffer, "query");
@@ -759,7 +759,7 @@ class XMLSerializer extends AbstractSerializer {
 		private LinkedList<Filter> myFilterStack = new LinkedList<Filter>();
 		private Filter myFilter;
 		private int myLimit = -1;
-		private int myPage = -1;
+		private long myAfter = -1;
 		private BookQuery myQuery;
 
 		public BookQuery getQuery() {
@@ -773,8 +773,8 @@ class XMLSerializer extends AbstractSerializer {
 
 		@Override
 		public void endDocument() {
-			if (myFilter != null && myLimit > 0 && myPage >= 0) {
-				myQuery = new BookQuery(myFilter, myLimit, myPage);
+			if (myFilter != null && myLimit > 0) {
+				myQuery = new BookQuery(myFilter, myLimit, myAfter);
 			}
 		}
 
@@ -789,7 +789,7 @@ class XMLSerializer extends AbstractSerializer {
 			if (myStateStack.isEmpty()) {
 				if ("query".equals(localName)) {
 					myLimit = parseInt(attributes.getValue("limit"));
-					myPage = parseInt(attributes.getValue("page"));
+					myAfter = parseLong(attributes.getValue("after"));
 					myStateStack.add(State.READ_QUERY);
 				} else {
 					throw new SAXException("Unexpected tag " + localName);
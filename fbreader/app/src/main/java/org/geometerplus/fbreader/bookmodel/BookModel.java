@@ -26,11 +26,32 @@ import org.geometerplus.zlibrary.core.image.ZLImage;
 import org.geometerplus.zlibrary.text.model.*;
 
 import org.geometerplus.fbreader.book.Book;
+import org.geometerplus.fbreader.book.BookCollection;
 import org.geometerplus.fbreader.book.BookUtil;
 import org.geometerplus.fbreader.formats.*;
 
 public final class BookModel {
 	public static BookModel createModel(Book book, FormatPlugin plugin) throws BookReadingException {
+		return createModel(book, plugin, null);
+	}
+
+	/**
+	 * @param hash content hash of the book file, or null; with known hash
+	 * the model read by native plugin is cached and restored on the next call.
+	 * Books with no physical file all share the zero hash, they are not cached
+	 */
+	public static BookModel createModel(Book book, FormatPlugin plugin, String hash) throws BookReadingException {
+		if (hash != null && !BookCollection.ZERO_HASH.equals(hash) && plugin instanceof NativeFormatPlugin) {
+			final NativeFormatPlugin nativePlugin = (NativeFormatPlugin)plugin;
+			final BookModelCache cache = nativePlugin.modelCache(hash);
+			BookModel model = cache.load(book);
+			if (model == null) {
+				model = new BookModel(book);
+				nativePlugin.readModel(model, cache);
+			}
+			model.getTextModel().enableSearchIndex(cache.directory());
+			return model;
+		}
 		if (plugin instanceof BuiltinFormatPlugin) {
 			final BookModel model = new BookModel(book);
 			((BuiltinFormatPlugin)plugin).readModel(model);
@@ -42,6 +63,17 @@ public final class BookModel {
 		);
 	}
 
+	/**
+	 * Reads the model with no caching, storing text blocks in given directory;
+	 * for background processing that must not touch the files of the model
+	 * shown in the reader
+	 */
+	public static BookModel createTemporaryModel(Book book, NativeFormatPlugin plugin, String directory) throws BookReadingException {
+		final BookModel model = new BookModel(book);
+		plugin.readModel(model, directory);
+		return model;
+	}
+
 	public final Book Book;
 	public final TOCTree TOCTree = new TOCTree();
 	public final FontManager FontManager = new FontManager();
@@ -51,6 +83,9 @@ public final class BookModel {
 	protected ZLTextModel myBookTextModel;
 	protected final HashMap<String,ZLTextModel> myFootnotes = new HashMap<String,ZLTextModel>();
 
+	// not null only while native code builds this model, see BookModelCache
+	BookModelCache.Journal myJournal;
+
 	public static final class Label {
 		public final String ModelId;
 		public final int ParagraphIndex;
@@ -89,6 +124,9 @@ public final class BookModel {
 	}
 
 	public void registerFontFamilyList(String[] families) {
+		if (myJournal != null) {
+			myJournal.registerFontFamilyList(families);
+		}
 		FontManager.index(Arrays.asList(families));
 	}
 
@@ -97,6 +135,9 @@ public final class BookModel {
 	}
 
 	public void registerFontEntry(String family, FileInfo normal, FileInfo bold, FileInfo italic, FileInfo boldItalic) {
+		if (myJournal != null) {
+			myJournal.registerFontEntry(family, normal, bold, italic, boldItalic);
+		}
 		registerFontEntry(family, new FontEntry(family, normal, bold, italic, boldItalic));
 	}
 
@@ -106,19 +147,34 @@ public final class BookModel {
 		int[] paragraphLenghts, int[] textSizes, byte[] paragraphKinds,
 		String directoryName, String fileExtension, int blocksNumber
 	) {
-		return new ZLTextPlainModel(
+		final ZLTextModel model = new ZLTextPlainModel(
 			id, language, paragraphsNumber,
 			entryIndices, entryOffsets,
 			paragraphLenghts, textSizes, paragraphKinds,
 			directoryName, fileExtension, blocksNumber, myImageMap, FontManager
 		);
+		if (myJournal != null) {
+			myJournal.createTextModel(
+				model, id, language, paragraphsNumber,
+				entryIndices, entryOffsets,
+				paragraphLenghts, textSizes, paragraphKinds,
+				directoryName, fileExtension, blocksNumber
+			);
+		}
+		return model;
 	}
 
 	public void setBookTextModel(ZLTextModel model) {
+		if (myJournal != null) {
+			myJournal.setBookTextModel(model);
+		}
 		myBookTextModel = model;
 	}
 
 	public void setFootnoteModel(ZLTextModel model) {
+		if (myJournal != null) {
+			myJournal.setFootnoteModel(model);
+		}
 		myFootnotes.put(model.getId(), model);
 	}
 
@@ -127,26 +183,62 @@ public final class BookModel {
 	}
 
 	public ZLTextModel getFootnoteModel(String id) {
+		waitForFootnotes();
 		return myFootnotes.get(id);
 	}
 
+	private final Object myFootnotesLock = new Object();
+	private boolean myFootnotesReady = true;
+
+	// footnotes of a cached model are restored in background, see BookModelCache
+	void setFootnotesReady(boolean ready) {
+		synchronized (myFootnotesLock) {
+			myFootnotesReady = ready;
+			myFootnotesLock.notifyAll();
+		}
+	}
+
+	private void waitForFootnotes() {
+		synchronized (myFootnotesLock) {
+			while (!myFootnotesReady) {
+				try {
+					myFootnotesLock.wait();
+				} catch (InterruptedException e) {
+					return;
+				}
+			}
+		}
+	}
+
 	public void addImage(String id, ZLImage image) {
+		if (myJournal != null) {
+			myJournal.addImage(id, image);
+		}
 		myImageMap.put(id, image);
 	}
 
 	public void initInternalHyperlinks(String directoryName, String fileExtension, int blocksNumber) {
+		if (myJournal != null) {
+			myJournal.initInternalHyperlinks(directoryName, fileExtension, blocksNumber);
+		}
 		myInternalHyperlinks = new CachedCharStorage(directoryName, fileExtension, blocksNumber);
 	}
 
 	private TOCTree myCurrentTree = TOCTree;
 
 	public void addTOCItem(String text, int reference) {
+		if (myJournal != null) {
+			myJournal.addTOCItem(text, reference);
+		}
 		myCurrentTree = new TOCTree(myCurrentTree);
 		myCurrentTree.setText(text);
 		myCurrentTree.setReference(myBookTextModel, reference);
 	}
 
 	public void leaveTOCItem() {
+		if (myJournal != null) {
+			myJournal.leaveTOCItem();
+		}
 		myCurrentTree = myCurrentTree.Parent;
 		if (myCurrentTree == null) {
 			myCurrentTree = TOCTree;
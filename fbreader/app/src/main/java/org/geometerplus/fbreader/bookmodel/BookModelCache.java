@@ -0,0 +1,689 @@
+/*
+ * Copyright (C) 2007-2015 FBReader.ORG Limited <contact@fbreader.org>
+ *
+ * This program is free software; you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation; either version 2 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program; if not, write to the Free Software
+ * Foundation, Inc., 51 Franklin Street, Fifth Floor, Boston, MA
+ * 02110-1301, USA.
+ */
+
+package org.geometerplus.fbreader.bookmodel;
+
+import java.io.*;
+import java.nio.ByteBuffer;
+import java.util.*;
+
+import org.geometerplus.zlibrary.core.drm.FileEncryptionInfo;
+import org.geometerplus.zlibrary.core.fonts.FileInfo;
+import org.geometerplus.zlibrary.core.image.ZLFileImage;
+import org.geometerplus.zlibrary.core.image.ZLImage;
+import org.geometerplus.zlibrary.text.model.ZLTextModel;
+
+import org.geometerplus.fbreader.book.Book;
+
+/**
+ * Keeps the result of native model reading between sessions.
+ *
+ * Native code writes text blocks into a directory and then builds the java
+ * model by a sequence of BookModel calls. For each book (identified by
+ * content hash) we give native code its own directory and record these
+ * calls into a journal file next to the blocks; on the next opening
+ * the journal is replayed instead of parsing the book again.
+ * Any change of the book file changes the hash, so the stale entry is
+ * never used and is removed later as the least recently opened one.
+ * The only exception is a guji paragraph edited in place: the text model
+ * logs such edits in the entry itself, and the entry is rebound to the new
+ * hash of the book file (see rebind()).
+ *
+ * Footnote models are not needed to show the stored position, so they are
+ * kept in a separate journal that is replayed in background after load()
+ * returns; everything else (text model, TOC, textSizes) is restored before.
+ * This shortens reopening only: native readers call back into java after
+ * the whole book is parsed, so the first opening of a book (or of a changed
+ * file) still waits for the full parse and no paragraphs are streamed.
+ */
+public final class BookModelCache {
+	private static final int MAGIC = 0x464d4331; // "FMC1"
+	// increase after any change of the journal format or of native model output
+	private static final int FORMAT_VERSION = 2;
+	private static final int MAX_ENTRIES = 8;
+
+	private static final String JOURNAL = "model.journal";
+	private static final String JOURNAL_TMP = "model.journal.tmp";
+	private static final String FOOTNOTES_JOURNAL = "footnotes.journal";
+	private static final String FOOTNOTES_JOURNAL_TMP = "footnotes.journal.tmp";
+	// the hash of the book the entry is for, differs from the directory name after rebind()
+	private static final String HASH = "hash";
+	// a file in the root directory that names the entry for the hash
+	private static final String ALIAS_SUFFIX = ".alias";
+
+	private static final byte OP_END = 0;
+	private static final byte OP_FONT_FAMILY_LIST = 1;
+	private static final byte OP_FONT_ENTRY = 2;
+	private static final byte OP_BOOK_TEXT_MODEL = 4;
+	private static final byte OP_FOOTNOTE_MODEL = 5;
+	private static final byte OP_IMAGE = 6;
+	private static final byte OP_HYPERLINKS = 7;
+	private static final byte OP_TOC_ITEM = 8;
+	private static final byte OP_LEAVE_TOC_ITEM = 9;
+
+	private final File myRoot;
+	private final String myHash;
+	private final File myDirectory;
+
+	/**
+	 * @param rootDirectory directory for all cached models
+	 * @param hash content hash of the book file
+	 * @param fileType file type of the plugin that reads the book
+	 */
+	public BookModelCache(String rootDirectory, String hash, String fileType) {
+		myRoot = new File(rootDirectory);
+		myHash = hash;
+		final File directory = new File(myRoot, hash + "." + fileType + "." + FORMAT_VERSION);
+		final String alias = directory.exists()
+			? null : readName(new File(myRoot, directory.getName() + ALIAS_SUFFIX));
+		myDirectory = alias != null && new File(myRoot, alias).isDirectory()
+			? new File(myRoot, alias) : directory;
+	}
+
+	/**
+	 * Makes the entry serve the book with given hash instead of the one
+	 * it was read from; for the entry with the model updated in place
+	 * to match the edited book file
+	 * @param directory directory of the entry, as returned by directory()
+	 */
+	public static void rebind(String directory, String hash) {
+		final File entry = new File(directory);
+		final String name = entry.getName();
+		final int dot = name.indexOf('.');
+		if (dot == -1) {
+			return;
+		}
+		try {
+			writeName(new File(entry, HASH), hash);
+			final String aliasName = hash + name.substring(dot);
+			if (!aliasName.equals(name)) {
+				writeName(new File(entry.getParentFile(), aliasName + ALIAS_SUFFIX), name);
+			}
+		} catch (IOException e) {
+			// the edited book is read again on the next opening
+			new File(entry, JOURNAL).delete();
+		}
+	}
+
+	private static String readName(File file) {
+		if (!file.exists()) {
+			return null;
+		}
+		DataInputStream stream = null;
+		try {
+			stream = new DataInputStream(new FileInputStream(file));
+			return stream.readUTF();
+		} catch (IOException e) {
+			return null;
+		} finally {
+			if (stream != null) {
+				try {
+					stream.close();
+				} catch (IOException e) {
+				}
+			}
+		}
+	}
+
+	private static void writeName(File file, String name) throws IOException {
+		final File tmp = new File(file.getPath() + ".tmp");
+		final DataOutputStream stream = new DataOutputStream(new FileOutputStream(tmp));
+		try {
+			stream.writeUTF(name);
+		} finally {
+			stream.close();
+		}
+		if (!tmp.renameTo(file)) {
+			tmp.delete();
+			throw new IOException("Cannot write " + file);
+		}
+	}
+
+	/**
+	 * @return directory for native model files of this book
+	 */
+	public String directory() {
+		return myDirectory.getPath();
+	}
+
+	/**
+	 * @return model restored from the journal, or null if there is no usable one
+	 */
+	public BookModel load(Book book) {
+		final File journal = new File(myDirectory, JOURNAL);
+		final File footnotesJournal = new File(myDirectory, FOOTNOTES_JOURNAL);
+		if (!journal.exists() || !footnotesJournal.exists()) {
+			return null;
+		}
+		final String hash = readName(new File(myDirectory, HASH));
+		if (hash != null && !hash.equals(myHash)) {
+			// the entry has been rebound to an edited version of the book
+			return null;
+		}
+		final BookModel model = new BookModel(book);
+		if (!replay(model, journal) || model.getTextModel() == null) {
+			return null;
+		}
+		journal.setLastModified(System.currentTimeMillis());
+
+		model.setFootnotesReady(false);
+		final Thread thread = new Thread(new Runnable() {
+			public void run() {
+				try {
+					replay(model, footnotesJournal);
+				} finally {
+					model.setFootnotesReady(true);
+				}
+			}
+		});
+		thread.setPriority(Thread.MIN_PRIORITY);
+		thread.start();
+		return model;
+	}
+
+	/**
+	 * Prepares the directory and starts recording BookModel calls made by native code
+	 */
+	public void startRecording(BookModel model) {
+		// the files left in the directory (edits logged by the text model,
+		// search index, page maps) belong to the previous reading
+		removeFiles(myDirectory);
+		myDirectory.mkdirs();
+		try {
+			writeName(new File(myDirectory, HASH), myHash);
+			model.myJournal = new Journal(
+				new File(myDirectory, JOURNAL_TMP),
+				new File(myDirectory, FOOTNOTES_JOURNAL_TMP)
+			);
+		} catch (IOException e) {
+			model.myJournal = null;
+		}
+	}
+
+	/**
+	 * Finishes recording; the journal is published only if native reading succeeded
+	 * and every call could be recorded
+	 */
+	public void stopRecording(BookModel model, boolean success) {
+		final Journal journal = model.myJournal;
+		model.myJournal = null;
+		if (journal == null) {
+			return;
+		}
+		final File tmp = new File(myDirectory, JOURNAL_TMP);
+		final File footnotesTmp = new File(myDirectory, FOOTNOTES_JOURNAL_TMP);
+		// the main journal is renamed last, its presence means both are complete
+		if (journal.close(success)
+			&& footnotesTmp.renameTo(new File(myDirectory, FOOTNOTES_JOURNAL))
+			&& tmp.renameTo(new File(myDirectory, JOURNAL))) {
+			removeOldEntries();
+		} else {
+			tmp.delete();
+			footnotesTmp.delete();
+		}
+	}
+
+	private void removeOldEntries() {
+		final File[] files = myRoot.listFiles();
+		if (files == null) {
+			return;
+		}
+		final ArrayList<File> directories = new ArrayList<File>(files.length);
+		for (File f : files) {
+			if (f.isDirectory()) {
+				directories.add(f);
+			} else if (f.getName().endsWith(ALIAS_SUFFIX)) {
+				final String name = readName(f);
+				if (name == null || !new File(myRoot, name).isDirectory()) {
+					f.delete();
+				}
+			}
+		}
+		if (directories.size() <= MAX_ENTRIES) {
+			return;
+		}
+		final File[] entries = directories.toArray(new File[directories.size()]);
+		final HashMap<File,Long> times = new HashMap<File,Long>();
+		for (File e : entries) {
+			times.put(e, new File(e, JOURNAL).lastModified());
+		}
+		Arrays.sort(entries, new Comparator<File>() {
+			public int compare(File f0, File f1) {
+				final long t0 = times.get(f0);
+				final long t1 = times.get(f1);
+				return t0 > t1 ? -1 : (t0 < t1 ? 1 : 0);
+			}
+		});
+		for (int i = MAX_ENTRIES; i < entries.length; ++i) {
+			if (!entries[i].equals(myDirectory)) {
+				removeDirectory(entries[i]);
+			}
+		}
+	}
+
+	private static void removeDirectory(File directory) {
+		removeFiles(directory);
+		directory.delete();
+	}
+
+	private static void removeFiles(File directory) {
+		final File[] children = directory.listFiles();
+		if (children != null) {
+			for (File c : children) {
+				c.delete();
+			}
+		}
+	}
+
+	private boolean replay(BookModel model, File journal) {
+		DataInputStream stream = null;
+		try {
+			stream = new DataInputStream(new BufferedInputStream(new FileInputStream(journal), 65536));
+			if (replay(model, stream)) {
+				return true;
+			}
+		} catch (Exception e) {
+			// broken journal, it is removed below
+		} finally {
+			if (stream != null) {
+				try {
+					stream.close();
+				} catch (IOException e) {
+				}
+			}
+		}
+		journal.delete();
+		return false;
+	}
+
+	private boolean replay(BookModel model, DataInputStream stream) throws IOException {
+		if (stream.readInt() != MAGIC || stream.readInt() != FORMAT_VERSION) {
+			return false;
+		}
+		while (true) {
+			final byte op = stream.readByte();
+			switch (op) {
+				case OP_END:
+					return true;
+				case OP_FONT_FAMILY_LIST:
+				{
+					final String[] families = new String[stream.readInt()];
+					for (int i = 0; i < families.length; ++i) {
+						families[i] = readString(stream);
+					}
+					model.registerFontFamilyList(families);
+					break;
+				}
+				case OP_FONT_ENTRY:
+				{
+					final String family = readString(stream);
+					model.registerFontEntry(
+						family,
+						readFileInfo(stream),
+						readFileInfo(stream),
+						readFileInfo(stream),
+						readFileInfo(stream)
+					);
+					break;
+				}
+				case OP_BOOK_TEXT_MODEL:
+				case OP_FOOTNOTE_MODEL:
+				{
+					final boolean isFootnote = op == OP_FOOTNOTE_MODEL;
+					final String id = readString(stream);
+					final String language = readString(stream);
+					final int paragraphsNumber = stream.readInt();
+					final int[] entryIndices = readInts(stream);
+					final int[] entryOffsets = readInts(stream);
+					final int[] paragraphLengths = readInts(stream);
+					final int[] textSizes = readInts(stream);
+					final byte[] paragraphKinds = readBytes(stream);
+					final String directoryName = readString(stream);
+					final String fileExtension = readString(stream);
+					final int blocksNumber = stream.readInt();
+					if (!blocksExist(directoryName, fileExtension, blocksNumber)) {
+						return false;
+					}
+					final ZLTextModel textModel = model.createTextModel(
+						id, language, paragraphsNumber,
+						entryIndices, entryOffsets,
+						paragraphLengths, textSizes, paragraphKinds,
+						directoryName, fileExtension, blocksNumber
+					);
+					if (isFootnote) {
+						model.setFootnoteModel(textModel);
+					} else {
+						model.setBookTextModel(textModel);
+					}
+					break;
+				}
+				case OP_IMAGE:
+				{
+					final String id = readString(stream);
+					final ZLFileImage image = ZLFileImage.byUrlPath(readString(stream));
+					if (image == null) {
+						return false;
+					}
+					model.addImage(id, image);
+					break;
+				}
+				case OP_HYPERLINKS:
+				{
+					final String directoryName = readString(stream);
+					final String fileExtension = readString(stream);
+					final int blocksNumber = stream.readInt();
+					if (!blocksExist(directoryName, fileExtension, blocksNumber)) {
+						return false;
+					}
+					model.initInternalHyperlinks(directoryName, fileExtension, blocksNumber);
+					break;
+				}
+				case OP_TOC_ITEM:
+				{
+					final String text = readString(stream);
+					model.addTOCItem(text, stream.readInt());
+					break;
+				}
+				case OP_LEAVE_TOC_ITEM:
+					model.leaveTOCItem();
+					break;
+				default:
+					return false;
+			}
+		}
+	}
+
+	private static boolean blocksExist(String directoryName, String fileExtension, int blocksNumber) {
+		for (int i = 0; i < blocksNumber; ++i) {
+			if (!new File(directoryName + "/" + i + "." + fileExtension).exists()) {
+				return false;
+			}
+		}
+		return true;
+	}
+
+	private static String readString(DataInputStream stream) throws IOException {
+		final int length = stream.readInt();
+		if (length == -1) {
+			return null;
+		}
+		final char[] data = new char[length];
+		for (int i = 0; i < length; ++i) {
+			data[i] = stream.readChar();
+		}
+		return new String(data);
+	}
+
+	private static int[] readInts(DataInputStream stream) throws IOException {
+		final int[] data = new int[stream.readInt()];
+		final byte[] bytes = new byte[data.length * 4];
+		stream.readFully(bytes);
+		ByteBuffer.wrap(bytes).asIntBuffer().get(data);
+		return data;
+	}
+
+	private static byte[] readBytes(DataInputStream stream) throws IOException {
+		final byte[] data = new byte[stream.readInt()];
+		stream.readFully(data);
+		return data;
+	}
+
+	private static FileInfo readFileInfo(DataInputStream stream) throws IOException {
+		if (!stream.readBoolean()) {
+			return null;
+		}
+		final String path = readString(stream);
+		FileEncryptionInfo encryptionInfo = null;
+		if (stream.readBoolean()) {
+			encryptionInfo = new FileEncryptionInfo(
+				readString(stream),
+				readString(stream),
+				readString(stream),
+				readString(stream)
+			);
+		}
+		return new FileInfo(path, encryptionInfo);
+	}
+
+	/**
+	 * Writer side; BookModel passes calls here while recording.
+	 * After the first write error (or a call that cannot be recorded)
+	 * the journal is marked as failed and will not be published.
+	 */
+	static final class Journal {
+		private final DataOutputStream myMainStream;
+		private final DataOutputStream myFootnotesStream;
+		// text model records are written to a stream only when we know
+		// whether the model is the book text or a footnote
+		private final ByteArrayOutputStream myPendingModel = new ByteArrayOutputStream();
+		private ZLTextModel myPendingModelRef;
+		private DataOutputStream myStream;
+		private boolean myFailed;
+
+		private Journal(File mainFile, File footnotesFile) throws IOException {
+			myMainStream = openStream(mainFile);
+			try {
+				myFootnotesStream = openStream(footnotesFile);
+			} catch (IOException e) {
+				myMainStream.close();
+				throw e;
+			}
+			myStream = myMainStream;
+		}
+
+		private static DataOutputStream openStream(File file) throws IOException {
+			final DataOutputStream stream =
+				new DataOutputStream(new BufferedOutputStream(new FileOutputStream(file), 65536));
+			stream.writeInt(MAGIC);
+			stream.writeInt(FORMAT_VERSION);
+			return stream;
+		}
+
+		private boolean close(boolean success) {
+			for (DataOutputStream stream : new DataOutputStream[] { myMainStream, myFootnotesStream }) {
+				try {
+					if (success && !myFailed) {
+						stream.writeByte(OP_END);
+					}
+					stream.close();
+				} catch (IOException e) {
+					myFailed = true;
+				}
+			}
+			return success && !myFailed;
+		}
+
+		void registerFontFamilyList(String[] families) {
+			if (myFailed) {
+				return;
+			}
+			try {
+				myStream.writeByte(OP_FONT_FAMILY_LIST);
+				myStream.writeInt(families.length);
+				for (String f : families) {
+					writeString(f);
+				}
+			} catch (IOException e) {
+				myFailed = true;
+			}
+		}
+
+		void registerFontEntry(String family, FileInfo normal, FileInfo bold, FileInfo italic, FileInfo boldItalic) {
+			if (myFailed) {
+				return;
+			}
+			try {
+				myStream.writeByte(OP_FONT_ENTRY);
+				writeString(family);
+				writeFileInfo(normal);
+				writeFileInfo(bold);
+				writeFileInfo(italic);
+				writeFileInfo(boldItalic);
+			} catch (IOException e) {
+				myFailed = true;
+			}
+		}
+
+		void createTextModel(
+			ZLTextModel model, String id, String language, int paragraphsNumber,
+			int[] entryIndices, int[] entryOffsets,
+			int[] paragraphLengths, int[] textSizes, byte[] paragraphKinds,
+			String directoryName, String fileExtension, int blocksNumber
+		) {
+			if (myFailed) {
+				return;
+			}
+			myPendingModel.reset();
+			myPendingModelRef = model;
+			myStream = new DataOutputStream(myPendingModel);
+			try {
+				writeString(id);
+				writeString(language);
+				myStream.writeInt(paragraphsNumber);
+				writeInts(entryIndices);
+				writeInts(entryOffsets);
+				writeInts(paragraphLengths);
+				writeInts(textSizes);
+				myStream.writeInt(paragraphKinds.length);
+				myStream.write(paragraphKinds);
+				writeString(directoryName);
+				writeString(fileExtension);
+				myStream.writeInt(blocksNumber);
+			} catch (IOException e) {
+				myFailed = true;
+			}
+			myStream = myMainStream;
+		}
+
+		void setBookTextModel(ZLTextModel model) {
+			writeModel(myMainStream, OP_BOOK_TEXT_MODEL, model);
+		}
+
+		void setFootnoteModel(ZLTextModel model) {
+			writeModel(myFootnotesStream, OP_FOOTNOTE_MODEL, model);
+		}
+
+		private void writeModel(DataOutputStream stream, byte op, ZLTextModel model) {
+			if (myFailed) {
+				return;
+			}
+			if (model != myPendingModelRef) {
+				myFailed = true;
+				return;
+			}
+			myPendingModelRef = null;
+			try {
+				stream.writeByte(op);
+				myPendingModel.writeTo(stream);
+			} catch (IOException e) {
+				myFailed = true;
+			}
+			myPendingModel.reset();
+		}
+
+		void addImage(String id, ZLImage image) {
+			if (myFailed) {
+				return;
+			}
+			// encryption info is not a part of image URI, such images are not restorable
+			if (!(image instanceof ZLFileImage) || ((ZLFileImage)image).isEncrypted()) {
+				myFailed = true;
+				return;
+			}
+			final String uri = ((ZLFileImage)image).getURI();
+			try {
+				myStream.writeByte(OP_IMAGE);
+				writeString(id);
+				writeString(uri.substring(ZLFileImage.SCHEME.length() + 3));
+			} catch (IOException e) {
+				myFailed = true;
+			}
+		}
+
+		void initInternalHyperlinks(String directoryName, String fileExtension, int blocksNumber) {
+			if (myFailed) {
+				return;
+			}
+			try {
+				myStream.writeByte(OP_HYPERLINKS);
+				writeString(directoryName);
+				writeString(fileExtension);
+				myStream.writeInt(blocksNumber);
+			} catch (IOException e) {
+				myFailed = true;
+			}
+		}
+
+		void addTOCItem(String text, int reference) {
+			if (myFailed) {
+				return;
+			}
+			try {
+				myStream.writeByte(OP_TOC_ITEM);
+				writeString(text);
+				myStream.writeInt(reference);
+			} catch (IOException e) {
+				myFailed = true;
+			}
+		}
+
+		void leaveTOCItem() {
+			if (myFailed) {
+				return;
+			}
+			try {
+				myStream.writeByte(OP_LEAVE_TOC_ITEM);
+			} catch (IOException e) {
+				myFailed = true;
+			}
+		}
+
+		private void writeString(String s) throws IOException {
+			if (s == null) {
+				myStream.writeInt(-1);
+			} else {
+				myStream.writeInt(s.length());
+				myStream.writeChars(s);
+			}
+		}
+
+		private void writeInts(int[] data) throws IOException {
+			final byte[] bytes = new byte[data.length * 4];
+			ByteBuffer.wrap(bytes).asIntBuffer().put(data);
+			myStream.writeInt(data.length);
+			myStream.write(bytes);
+		}
+
+		private void writeFileInfo(FileInfo info) throws IOException {
+			myStream.writeBoolean(info != null);
+			if (info == null) {
+				return;
+			}
+			writeString(info.Path);
+			final FileEncryptionInfo encryptionInfo = info.EncryptionInfo;
+			myStream.writeBoolean(encryptionInfo != null);
+			if (encryptionInfo != null) {
+				writeString(encryptionInfo.Uri);
+				writeString(encryptionInfo.Method);
+				writeString(encryptionInfo.Algorithm);
+				writeString(encryptionInfo.ContentId);
+			}
+		}
+	}
+}
@@ -0,0 +1,133 @@
+/*
+ * Copyright (C) 2007-2015 FBReader.ORG Limited <contact@fbreader.org>
+ *
+ * This program is free software; you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation; either version 2 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program; if not, write to the Free Software
+ * Foundation, Inc., 51 Franklin Street, Fifth Floor, Boston, MA
+ * 02110-1301, USA.
+ */
+
+package org.geometerplus.fbreader.dictionary;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.*;
+
+import org.geometerplus.fbreader.Paths;
+
+/**
+ * Offline dictionaries found in the dictionary directories
+ * (Paths.DictionaryPathOption), in the directories themselves
+ * or in their immediate subdirectories.
+ */
+public abstract class DictionaryCollection {
+	public static final class Article {
+		public final String Word;
+		public final String Text;
+		public final String DictionaryName;
+
+		Article(String word, String text, String dictionaryName) {
+			Word = word;
+			Text = text;
+			DictionaryName = dictionaryName;
+		}
+	}
+
+	private static volatile List<StarDictionary> ourDictionaries;
+
+	public static List<StarDictionary> dictionaries() {
+		if (ourDictionaries == null) {
+			synchronized (DictionaryCollection.class) {
+				if (ourDictionaries == null) {
+					final List<StarDictionary> dictionaries = new ArrayList<StarDictionary>();
+					for (String path : Paths.DictionaryPathOption.getValue()) {
+						collect(new File(path), dictionaries, true);
+					}
+					ourDictionaries = Collections.unmodifiableList(dictionaries);
+				}
+			}
+		}
+		return ourDictionaries;
+	}
+
+	/**
+	 * Forgets the opened dictionaries, they are looked for again on the next request
+	 */
+	public static void reset() {
+		ourDictionaries = null;
+	}
+
+	private static void collect(File directory, List<StarDictionary> dictionaries, boolean recursive) {
+		final File[] files = directory.listFiles();
+		if (files == null) {
+			return;
+		}
+		Arrays.sort(files);
+		for (File f : files) {
+			if (f.isDirectory()) {
+				if (recursive) {
+					collect(f, dictionaries, false);
+				}
+			} else if (f.getName().endsWith(".ifo")) {
+				try {
+					dictionaries.add(StarDictionary.open(f));
+				} catch (IOException e) {
+					// not a valid dictionary, ignore
+				}
+			}
+		}
+	}
+
+	/**
+	 * @return article for the word from the first dictionary that has one,
+	 * or null if there is no such article
+	 */
+	public static Article lookup(String word) {
+		for (StarDictionary d : dictionaries()) {
+			try {
+				final int entry = d.find(word);
+				if (entry != -1) {
+					return new Article(d.word(entry), d.article(entry), d.Name);
+				}
+			} catch (IOException e) {
+				// broken dictionary file, try the next dictionary
+			}
+		}
+		return null;
+	}
+
+	/**
+	 * @return article for the word, or for the nearest word
+	 * if there is no article for the word itself
+	 */
+	public static Article lookupNearest(String word) {
+		final Article article = lookup(word);
+		if (article != null) {
+			return article;
+		}
+		// a short word is too close to too many other words
+		final int maxDistance = word.length() > 4 ? 2 : 1;
+		for (StarDictionary d : dictionaries()) {
+			try {
+				final List<Integer> entries = d.fuzzy(word, maxDistance, 1);
+				if (!entries.isEmpty()) {
+					final int entry = entries.get(0);
+					return new Article(d.word(entry), d.article(entry), d.Name);
+				}
+			} catch (IOException e) {
+				// broken dictionary file, try the next dictionary
+			}
+		}
+		return null;
+	}
+}
@@ -0,0 +1,635 @@
+/*
+ * Copyright (C) 2007-2015 FBReader.ORG Limited <contact@fbreader.org>
+ *
+ * This program is free software; you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation; either version 2 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program; if not, write to the Free Software
+ * Foundation, Inc., 51 Franklin Street, Fifth Floor, Boston, MA
+ * 02110-1301, USA.
+ */
+
+package org.geometerplus.fbreader.dictionary;
+
+import java.io.*;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.*;
+import java.util.zip.DataFormatException;
+import java.util.zip.Inflater;
+
+import android.support.v4.util.LruCache;
+
+/**
+ * Read-only StarDict dictionary (.ifo, .idx and .dict or .dict.dz files).
+ *
+ * The index file is memory-mapped; the only structure built on opening is
+ * the array of entry offsets, so an entry is found by binary search over
+ * the mapped bytes. Entries are sorted the StarDict way: ASCII case
+ * insensitive comparison first, byte comparison for equal ones.
+ *
+ * Articles are read on demand. Dictzip chunks of a compressed .dict.dz
+ * file are inflated when an article needs them and kept in a small LRU
+ * cache, so neighbouring articles do not inflate the same chunk again.
+ */
+public final class StarDictionary {
+	private static final String IFO_MAGIC = "StarDict's dict ifo file";
+	private static final int CHUNK_CACHE_SIZE = 16;
+	// the most words compared with the word in fuzzy(), the ones nearest to it in the index
+	private static final int MAX_FUZZY_CANDIDATES = 2000;
+
+	public final String Name;
+	private final ByteBuffer myIndex;
+	private final int[] myEntries;
+	private final int myOffsetSize;
+	private final String mySameTypeSequence;
+	private final Articles myArticles;
+
+	private StarDictionary(String name, ByteBuffer index, int[] entries, int offsetSize, String sameTypeSequence, Articles articles) {
+		Name = name;
+		myIndex = index;
+		myEntries = entries;
+		myOffsetSize = offsetSize;
+		mySameTypeSequence = sameTypeSequence;
+		myArticles = articles;
+	}
+
+	/**
+	 * @param ifoFile the .ifo file; the other files are looked for
+	 * near it, with the same base name
+	 */
+	public static StarDictionary open(File ifoFile) throws IOException {
+		final Map<String,String> info = readInfo(ifoFile);
+		final String path = ifoFile.getPath();
+		final String base = path.substring(0, path.length() - ".ifo".length());
+
+		final int count = parseInt(info.get("wordcount"));
+		final String bits = info.get("idxoffsetbits");
+		final int offsetSize = "64".equals(bits) ? 8 : 4;
+		final ByteBuffer index = map(new File(base + ".idx"));
+		final String indexSize = info.get("idxfilesize");
+		if (indexSize != null && parseInt(indexSize) != index.limit()) {
+			throw new IOException("Index size mismatch: " + ifoFile);
+		}
+
+		final int[] entries = new int[count];
+		final int limit = index.limit();
+		int position = 0;
+		for (int i = 0; i < count; ++i) {
+			entries[i] = position;
+			while (position < limit && index.get(position) != 0) {
+				++position;
+			}
+			position += 1 + offsetSize + 4;
+			if (position > limit) {
+				throw new IOException("Invalid index: " + ifoFile);
+			}
+		}
+
+		final Articles articles;
+		final File dict = new File(base + ".dict");
+		if (dict.exists()) {
+			articles = new PlainArticles(map(dict));
+		} else {
+			articles = new DictZipArticles(map(new File(base + ".dict.dz")));
+		}
+
+		final String name = info.get("bookname");
+		return new StarDictionary(
+			name != null ? name : ifoFile.getName(),
+			index, entries, offsetSize, info.get("sametypesequence"), articles
+		);
+	}
+
+	private static Map<String,String> readInfo(File ifoFile) throws IOException {
+		final BufferedReader reader = new BufferedReader(
+			new InputStreamReader(new FileInputStream(ifoFile), "UTF-8")
+		);
+		try {
+			String line = reader.readLine();
+			if (line != null && line.length() > 0 && line.charAt(0) == '\uFEFF') {
+				line = line.substring(1);
+			}
+			if (line == null || !IFO_MAGIC.equals(line.trim())) {
+				throw new IOException("Not a StarDict info file: " + ifoFile);
+			}
+			final Map<String,String> info = new HashMap<String,String>();
+			while ((line = reader.readLine()) != null) {
+				final int index = line.indexOf('=');
+				if (index > 0) {
+					info.put(line.substring(0, index).trim(), line.substring(index + 1).trim());
+				}
+			}
+			return info;
+		} finally {
+			reader.close();
+		}
+	}
+
+	private static int parseInt(String value) throws IOException {
+		try {
+			return Integer.parseInt(value);
+		} catch (NumberFormatException e) {
+			throw new IOException("Invalid number in info file: " + value);
+		}
+	}
+
+	private static ByteBuffer map(File file) throws IOException {
+		final RandomAccessFile raf = new RandomAccessFile(file, "r");
+		try {
+			final FileChannel channel = raf.getChannel();
+			if (channel.size() > Integer.MAX_VALUE) {
+				throw new IOException("File is too large: " + file);
+			}
+			return channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size());
+		} finally {
+			raf.close();
+		}
+	}
+
+	public int size() {
+		return myEntries.length;
+	}
+
+	public String word(int entry) {
+		final int start = myEntries[entry];
+		int end = start;
+		while (myIndex.get(end) != 0) {
+			++end;
+		}
+		final byte[] bytes = new byte[end - start];
+		for (int i = 0; i < bytes.length; ++i) {
+			bytes[i] = myIndex.get(start + i);
+		}
+		return decode(bytes, 0, bytes.length);
+	}
+
+	/**
+	 * @return article text, or null if there is no such word; an exact match
+	 * is preferred to one that differs in case of ASCII letters
+	 */
+	public String lookup(String word) throws IOException {
+		final int entry = find(word);
+		return entry != -1 ? article(entry) : null;
+	}
+
+	/**
+	 * @return index of the entry for the word, or -1 if there is no such word
+	 */
+	public int find(String word) {
+		final byte[] key = encode(word);
+		int found = -1;
+		for (int i = lowerBound(key); i < myEntries.length && compare(i, key, true) == 0; ++i) {
+			if (compare(i, key, false) == 0) {
+				return i;
+			}
+			if (found == -1) {
+				found = i;
+			}
+		}
+		return found;
+	}
+
+	/**
+	 * @return words starting with the prefix (ASCII letters case ignored),
+	 * in index order
+	 */
+	public List<String> prefix(String prefix, int limit) {
+		final byte[] key = encode(prefix);
+		final List<String> words = new ArrayList<String>();
+		for (int i = lowerBound(key); i < myEntries.length && words.size() < limit; ++i) {
+			if (!startsWith(i, key)) {
+				break;
+			}
+			words.add(word(i));
+		}
+		return words;
+	}
+
+	/**
+	 * Looks for words within given edit distance from the word,
+	 * the first letter of the word is supposed to be correct; only
+	 * MAX_FUZZY_CANDIDATES words nearest to the word in the index
+	 * (sharing the longest prefix with it) are compared
+	 *
+	 * @return entry indices, nearest words first
+	 */
+	public List<Integer> fuzzy(String word, int maxDistance, int limit) {
+		final List<Integer> found = new ArrayList<Integer>();
+		final String folded = word.toLowerCase();
+		if (folded.length() == 0) {
+			return found;
+		}
+		final List<List<Integer>> byDistance = new ArrayList<List<Integer>>(maxDistance + 1);
+		for (int d = 0; d <= maxDistance; ++d) {
+			byDistance.add(new ArrayList<Integer>());
+		}
+		final byte[] first = encode(folded.substring(0, Character.charCount(folded.codePointAt(0))));
+		final int start = lowerBound(first);
+		final int end = prefixEnd(first, start);
+		final int middle = Math.min(Math.max(lowerBound(encode(word)), start), end);
+		int before = middle - 1;
+		int after = middle;
+		for (int count = 0; count < MAX_FUZZY_CANDIDATES && (before >= start || after < end); ++count) {
+			final int i = after < end && (before < start || count % 2 == 0) ? after++ : before--;
+			final String candidate = word(i).toLowerCase();
+			if (Math.abs(candidate.length() - folded.length()) > maxDistance) {
+				continue;
+			}
+			final int distance = distance(folded, candidate, maxDistance);
+			if (distance <= maxDistance) {
+				byDistance.get(distance).add(i);
+			}
+		}
+		for (List<Integer> entries : byDistance) {
+			for (Integer i : entries) {
+				if (found.size() == limit) {
+					return found;
+				}
+				found.add(i);
+			}
+		}
+		return found;
+	}
+
+	/**
+	 * @return Levenshtein distance, or maxDistance + 1 if it is greater than maxDistance
+	 */
+	private static int distance(String s, String t, int maxDistance) {
+		int[] previous = new int[t.length() + 1];
+		int[] current = new int[t.length() + 1];
+		for (int j = 0; j <= t.length(); ++j) {
+			previous[j] = j;
+		}
+		for (int i = 1; i <= s.length(); ++i) {
+			current[0] = i;
+			int rowMin = i;
+			final char ch = s.charAt(i - 1);
+			for (int j = 1; j <= t.length(); ++j) {
+				final int cost = ch == t.charAt(j - 1) ? 0 : 1;
+				current[j] = Math.min(Math.min(current[j - 1], previous[j]) + 1, previous[j - 1] + cost);
+				rowMin = Math.min(rowMin, current[j]);
+			}
+			if (rowMin > maxDistance) {
+				return maxDistance + 1;
+			}
+			final int[] swap = previous;
+			previous = current;
+			current = swap;
+		}
+		return Math.min(previous[t.length()], maxDistance + 1);
+	}
+
+	public String article(int entry) throws IOException {
+		int position = myEntries[entry];
+		while (myIndex.get(position) != 0) {
+			++position;
+		}
+		++position;
+		final long offset = myOffsetSize == 8
+			? myIndex.getLong(position) : myIndex.getInt(position) & 0xFFFFFFFFL;
+		final int size = myIndex.getInt(position + myOffsetSize);
+		return format(myArticles.read(offset, size));
+	}
+
+	private int lowerBound(byte[] key) {
+		int low = 0;
+		int high = myEntries.length;
+		while (low < high) {
+			final int middle = (low + high) >>> 1;
+			if (compare(middle, key, true) < 0) {
+				low = middle + 1;
+			} else {
+				high = middle;
+			}
+		}
+		return low;
+	}
+
+	/**
+	 * @return index of the first entry after start that does not start with the key
+	 */
+	private int prefixEnd(byte[] key, int start) {
+		int low = start;
+		int high = myEntries.length;
+		while (low < high) {
+			final int middle = (low + high) >>> 1;
+			if (startsWith(middle, key)) {
+				low = middle + 1;
+			} else {
+				high = middle;
+			}
+		}
+		return low;
+	}
+
+	private int compare(int entry, byte[] key, boolean ignoreCase) {
+		final int start = myEntries[entry];
+		for (int i = 0; ; ++i) {
+			int a = myIndex.get(start + i) & 0xFF;
+			int b = i < key.length ? key[i] & 0xFF : 0;
+			if (ignoreCase) {
+				a = toLower(a);
+				b = toLower(b);
+			}
+			if (a != b) {
+				return a - b;
+			}
+			if (a == 0) {
+				return 0;
+			}
+		}
+	}
+
+	private boolean startsWith(int entry, byte[] key) {
+		final int start = myEntries[entry];
+		for (int i = 0; i < key.length; ++i) {
+			if (toLower(myIndex.get(start + i) & 0xFF) != toLower(key[i] & 0xFF)) {
+				return false;
+			}
+		}
+		return true;
+	}
+
+	private static int toLower(int b) {
+		return b >= 'A' && b <= 'Z' ? b + ('a' - 'A') : b;
+	}
+
+	private static byte[] encode(String text) {
+		try {
+			return text.getBytes("UTF-8");
+		} catch (UnsupportedEncodingException e) {
+			throw new RuntimeException(e);
+		}
+	}
+
+	private static String decode(byte[] bytes, int offset, int length) {
+		try {
+			return new String(bytes, offset, length, "UTF-8");
+		} catch (UnsupportedEncodingException e) {
+			throw new RuntimeException(e);
+		}
+	}
+
+	/**
+	 * Joins text fields of the article. Lower case field types are
+	 * zero-terminated, upper case ones (binary data) are preceded by their
+	 * size; with sametypesequence, types are not stored and the last field
+	 * takes the rest of the data.
+	 */
+	private String format(byte[] data) {
+		final StringBuilder builder = new StringBuilder();
+		int position = 0;
+		for (int field = 0; position < data.length; ++field) {
+			final char type;
+			final boolean last;
+			if (mySameTypeSequence != null) {
+				if (field >= mySameTypeSequence.length()) {
+					break;
+				}
+				type = mySameTypeSequence.charAt(field);
+				last = field == mySameTypeSequence.length() - 1;
+			} else {
+				type = (char)data[position++];
+				last = false;
+			}
+			final int start;
+			final int end;
+			if (Character.isUpperCase(type)) {
+				if (last) {
+					start = position;
+					end = data.length;
+				} else {
+					if (position + 4 > data.length) {
+						break;
+					}
+					final int size = ByteBuffer.wrap(data, position, 4).getInt();
+					start = position + 4;
+					end = Math.min(data.length, start + size);
+				}
+				position = end;
+				continue;
+			}
+			start = position;
+			if (last) {
+				end = data.length;
+			} else {
+				int zero = start;
+				while (zero < data.length && data[zero] != 0) {
+					++zero;
+				}
+				end = zero;
+			}
+			position = end + 1;
+			appendField(builder, type, decode(data, start, end - start));
+		}
+		return builder.toString().trim();
+	}
+
+	private static void appendField(StringBuilder builder, char type, String text) {
+		switch (type) {
+			case 'm':
+			case 'l':
+			case 'y':
+			case 'k':
+				break;
+			case 't':
+				text = "[" + text + "]";
+				break;
+			case 'g':
+			case 'h':
+			case 'x':
+			case 'w':
+				text = stripMarkup(text);
+				break;
+			default:
+				return;
+		}
+		if (builder.length() > 0) {
+			builder.append('\n');
+		}
+		builder.append(text.trim());
+	}
+
+	private static String stripMarkup(String text) {
+		return text
+			.replaceAll("(?i)<br\\s*/?>", "\n")
+			.replaceAll("<[^>]*>", "")
+			.replace("&lt;", "<")
+			.replace("&gt;", ">")
+			.replace("&quot;", "\"")
+			.replace("&nbsp;", " ")
+			.replace("&amp;", "&");
+	}
+
+	private interface Articles {
+		byte[] read(long offset, int size) throws IOException;
+	}
+
+	private static final class PlainArticles implements Articles {
+		private final ByteBuffer myData;
+
+		PlainArticles(ByteBuffer data) {
+			myData = data;
+		}
+
+		public byte[] read(long offset, int size) throws IOException {
+			if (offset < 0 || size < 0 || offset + size > myData.limit()) {
+				throw new IOException("Article is out of the dictionary bounds");
+			}
+			final ByteBuffer data = myData.duplicate();
+			data.position((int)offset);
+			final byte[] article = new byte[size];
+			data.get(article);
+			return article;
+		}
+	}
+
+	/**
+	 * Dictzip is gzip with a random access table in the extra field:
+	 * the data is deflated in chunks of fixed uncompressed length,
+	 * and every chunk is flushed, so it can be inflated independently.
+	 */
+	private static final class DictZipArticles implements Articles {
+		private final ByteBuffer myData;
+		private final int myChunkLength;
+		private final int[] myChunkOffsets;
+		private final LruCache<Integer,byte[]> myCache;
+
+		DictZipArticles(ByteBuffer data) throws IOException {
+			myData = data;
+			if (data.limit() < 12 ||
+				(data.get(0) & 0xFF) != 0x1F || (data.get(1) & 0xFF) != 0x8B || data.get(2) != 8) {
+				throw new IOException("Not a dictzip file");
+			}
+			final int flags = data.get(3) & 0xFF;
+			if ((flags & 0x04) == 0) {
+				throw new IOException("Not a dictzip file: no extra field");
+			}
+			final int extraLength = uint16(data, 10);
+			int position = 12;
+			final int extraEnd = position + extraLength;
+			int chunkLength = 0;
+			int[] chunkSizes = null;
+			while (position + 4 <= extraEnd) {
+				final int length = uint16(data, position + 2);
+				if (data.get(position) == 'R' && data.get(position + 1) == 'A' && length >= 6) {
+					chunkLength = uint16(data, position + 6);
+					final int count = uint16(data, position + 8);
+					chunkSizes = new int[count];
+					for (int i = 0; i < count; ++i) {
+						chunkSizes[i] = uint16(data, position + 10 + 2 * i);
+					}
+				}
+				position += 4 + length;
+			}
+			if (chunkSizes == null || chunkLength == 0) {
+				throw new IOException("Not a dictzip file: no chunk table");
+			}
+			position = extraEnd;
+			if ((flags & 0x08) != 0) {
+				position = skipZeroTerminated(data, position);
+			}
+			if ((flags & 0x10) != 0) {
+				position = skipZeroTerminated(data, position);
+			}
+			if ((flags & 0x02) != 0) {
+				position += 2;
+			}
+
+			myChunkLength = chunkLength;
+			myChunkOffsets = new int[chunkSizes.length + 1];
+			myChunkOffsets[0] = position;
+			for (int i = 0; i < chunkSizes.length; ++i) {
+				myChunkOffsets[i + 1] = myChunkOffsets[i] + chunkSizes[i];
+			}
+			if (myChunkOffsets[chunkSizes.length] > data.limit()) {
+				throw new IOException("Truncated dictzip file");
+			}
+			myCache = new LruCache<Integer,byte[]>(CHUNK_CACHE_SIZE * chunkLength) {
+				@Override
+				protected int sizeOf(Integer index, byte[] chunk) {
+					return Math.max(chunk.length, 1);
+				}
+			};
+		}
+
+		private static int uint16(ByteBuffer data, int position) {
+			return (data.get(position) & 0xFF) | (data.get(position + 1) & 0xFF) << 8;
+		}
+
+		private static int skipZeroTerminated(ByteBuffer data, int position) {
+			while (position < data.limit() && data.get(position) != 0) {
+				++position;
+			}
+			return position + 1;
+		}
+
+		public byte[] read(long offset, int size) throws IOException {
+			if (offset < 0 || size < 0) {
+				throw new IOException("Article is out of the dictionary bounds");
+			}
+			final byte[] article = new byte[size];
+			int chunk = (int)(offset / myChunkLength);
+			int inChunk = (int)(offset % myChunkLength);
+			for (int done = 0; done < size; inChunk = 0) {
+				final byte[] data = chunk(chunk++);
+				final int length = Math.min(size - done, data.length - inChunk);
+				if (length <= 0) {
+					throw new IOException("Article is out of the dictionary bounds");
+				}
+				System.arraycopy(data, inChunk, article, done, length);
+				done += length;
+			}
+			return article;
+		}
+
+		private byte[] chunk(int index) throws IOException {
+			if (index >= myChunkOffsets.length - 1) {
+				throw new IOException("Article is out of the dictionary bounds");
+			}
+			byte[] chunk = myCache.get(index);
+			if (chunk != null) {
+				return chunk;
+			}
+
+			final int start = myChunkOffsets[index];
+			// one extra zero byte, the inflater may need it to finish a raw stream
+			final byte[] compressed = new byte[myChunkOffsets[index + 1] - start + 1];
+			final ByteBuffer data = myData.duplicate();
+			data.position(start);
+			data.get(compressed, 0, compressed.length - 1);
+
+			final Inflater inflater = new Inflater(true);
+			try {
+				inflater.setInput(compressed);
+				chunk = new byte[myChunkLength];
+				int length = 0;
+				while (length < chunk.length && !inflater.finished()) {
+					final int count = inflater.inflate(chunk, length, chunk.length - length);
+					if (count == 0 && (inflater.needsInput() || inflater.needsDictionary())) {
+						break;
+					}
+					length += count;
+				}
+				if (length < chunk.length) {
+					chunk = Arrays.copyOf(chunk, length);
+				}
+			} catch (DataFormatException e) {
+				throw new IOException("Broken dictzip chunk " + index);
+			} finally {
+				inflater.end();
+			}
+			myCache.put(index, chunk);
+			return chunk;
+		}
+	}
+}
@@ -20,6 +20,9 @@
 package org.geometerplus.fbreader.fbreader;
 
 import java.util.*;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadFactory;
 
 import org.fbreader.util.ComparisonUtil;
 
@@ -81,10 +84,25 @@ public final class FBReaderApp extends ZLApplication {
 
 	private final SyncData mySyncData = new SyncData();
 
+	private static class MinPriorityThreadFactory implements ThreadFactory {
+		private final ThreadFactory myDefaultThreadFactory = Executors.defaultThreadFactory();
+
+		public Thread newThread(Runnable r) {
+			final Thread th = myDefaultThreadFactory.newThread(r);
+			th.setPriority(Thread.MIN_PRIORITY);
+			return th;
+		}
+	}
+
+	// word lists are built in background, one book at a time
+	private static final ExecutorService ourVocabularyExecutor =
+		Executors.newSingleThreadExecutor(new MinPriorityThreadFactory());
+
 	public FBReaderApp(SystemInfo systemInfo, final IBookCollection<Book> collection) {
 		super(systemInfo);
 
 		Collection = collection;
+		ZLTextHyphenator.setCacheDirectory(systemInfo.tempDirectory() + "/hyphenation");
 
 		collection.addListener(new IBookCollection.Listener<Book>() {
 			public void onBookEvent(BookEvent event, Book book) {
@@ -273,6 +291,45 @@ public final class FBReaderApp extends ZLApplication {
 		FootnoteView.clearCaches();
 	}
 
+	/**
+	 * Writes the edited guji paragraph into the book file; the paragraph is
+	 * replaced in the shown model if possible, else the book is read again
+	 * @return false if the book file could not be written
+	 */
+	public boolean saveGujiParagraph(int index, String text) {
+		final BookModel model = Model;
+		if (model == null) {
+			return false;
+		}
+		final ZLTextModel textModel = model.getTextModel();
+		switch (textModel.saveGuji(model.Book, index, text)) {
+			case notSaved:
+				return false;
+			case updated:
+				BookTextView.clearCaches();
+				getViewWidget().repaint();
+				rebindModelCache(model.Book, textModel.getCacheDirectory());
+				return true;
+			default:
+				reloadBook();
+				return true;
+		}
+	}
+
+	// the cached model has the edit too, so it is kept for the new hash of the book file
+	private void rebindModelCache(final Book book, final String directory) {
+		final Thread thread = new Thread(new Runnable() {
+			public void run() {
+				final String hash = Collection.getHash(book, true);
+				if (hash != null) {
+					BookModelCache.rebind(directory, hash);
+				}
+			}
+		});
+		thread.setPriority(Thread.MIN_PRIORITY);
+		thread.start();
+	}
+
 	public Bookmark addSelectionBookmark() {
 		final FBView fbView = getTextView();
 		final TextSnippet snippet = fbView.getSelectedSnippet();
@@ -371,7 +428,7 @@ public final class FBReaderApp extends ZLApplication {
 		}
 
 		try {
-			Model = BookModel.createModel(book, plugin);
+			Model = BookModel.createModel(book, plugin, Collection.getHash(book, false));
 			Collection.saveBook(book);
 			if("djvu".equalsIgnoreCase(book.getExtention())) {
 				DJVUDocument = new DjvuContext().openDocument(book.getPath());
@@ -384,18 +441,15 @@ public final class FBReaderApp extends ZLApplication {
 			final String path = book.getPath();
 			final Book bookId = book;
 			if(bookId.isShouldLearnWord()) {
-				Thread t = new Thread(new Runnable() {
-
+				final ZLTextModel textModel = Model.getTextModel();
+				ourVocabularyExecutor.execute(new Runnable() {
 					public void run() {
 						List<Word> unknownList = Collection.unknownWords(bookId.getId());
 						if(unknownList == null || unknownList.size() == 0) {
-							Model.getTextModel().makeDictionary(Collection, book);
+							textModel.makeDictionary(Collection, book);
 						}
 					}
 				});
-				t.setPriority(Thread.MAX_PRIORITY);
-				t.start();
-				
 			}
 			
 			if (bookmark == null) {
@@ -32,6 +32,7 @@ import org.geometerplus.zlibrary.text.model.CachedCharStorageException;
 import org.geometerplus.fbreader.book.AbstractBook;
 import org.geometerplus.fbreader.book.BookUtil;
 import org.geometerplus.fbreader.bookmodel.BookModel;
+import org.geometerplus.fbreader.bookmodel.BookModelCache;
 import org.geometerplus.fbreader.formats.fb2.FB2NativePlugin;
 import org.geometerplus.fbreader.formats.oeb.OEBNativePlugin;
 
@@ -105,8 +106,26 @@ public class NativeFormatPlugin extends BuiltinFormatPlugin {
 
 	@Override
 	synchronized public void readModel(BookModel model) throws BookReadingException {
+		readModel(model, SystemInfo.tempDirectory());
+	}
+
+	public BookModelCache modelCache(String hash) {
+		return new BookModelCache(SystemInfo.tempDirectory() + "/models", hash, supportedFileType());
+	}
+
+	synchronized public void readModel(BookModel model, BookModelCache cache) throws BookReadingException {
+		boolean success = false;
+		cache.startRecording(model);
+		try {
+			readModel(model, cache.directory());
+			success = true;
+		} finally {
+			cache.stopRecording(model, success);
+		}
+	}
+
+	synchronized public void readModel(BookModel model, String tempDirectory) throws BookReadingException {
 		final int code;
-		final String tempDirectory = SystemInfo.tempDirectory();
 		synchronized (ourNativeLock) {
 			code = readModelNative(model, tempDirectory);
 		}
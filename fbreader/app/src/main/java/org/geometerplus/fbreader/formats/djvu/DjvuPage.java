@@ -51,14 +51,24 @@ public class DjvuPage
     public Bitmap renderBitmap(int width, int height, RectF pageSliceBounds)
     {
         final int[] buffer = new int[width * height];
-        boolean result = renderPage(pageHandle, width, height, pageSliceBounds.left, pageSliceBounds.top, pageSliceBounds.width(), pageSliceBounds.height(), buffer);
-        if(result) {
+        if(render(width, height, pageSliceBounds, buffer)) {
         	return Bitmap.createBitmap(buffer, width, height, Bitmap.Config.RGB_565);
         } else {
         	return null;
         }
     }
 
+    /**
+     * Renders the page into given buffer, so the buffer can be reused
+     * for the pages that follow
+     *
+     * @param buffer array of at least width * height pixels
+     */
+    public boolean render(int width, int height, RectF pageSliceBounds, int[] buffer)
+    {
+        return renderPage(pageHandle, width, height, pageSliceBounds.left, pageSliceBounds.top, pageSliceBounds.width(), pageSliceBounds.height(), buffer);
+    }
+
     @Override
     protected void finalize() throws Throwable
     {
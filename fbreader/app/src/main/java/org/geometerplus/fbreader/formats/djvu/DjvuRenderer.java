@@ -0,0 +1,254 @@
+package org.geometerplus.fbreader.formats.djvu;
+
+import java.util.HashSet;
+import java.util.concurrent.*;
+
+import android.graphics.Bitmap;
+import android.graphics.Color;
+import android.graphics.RectF;
+import android.support.v4.util.LruCache;
+
+/**
+ * Renders pages of a DjVu document on a background thread.
+ *
+ * Rendered pages are kept in a memory-bounded LRU cache keyed by page
+ * number and size, and the pages around the current one are rendered in
+ * advance. All the rendering is done on the worker thread: a page that
+ * is not rendered yet is given as a low resolution preview if there is
+ * one, or as a blank placeholder; the listener is notified when the
+ * preview and the page are ready. A blocking request is queued to the
+ * worker too, and the caller waits for it. Native rendering is serialized,
+ * so one pixel buffer is reused for all the pages.
+ */
+public final class DjvuRenderer {
+	public interface Listener {
+		void onPageRendered(int pageIndex);
+	}
+
+	private static final int PREFETCH_DISTANCE = 2;
+	private static final int PREVIEW_SCALE = 4;
+
+	public final DjvuDocument Document;
+	private final Listener myListener;
+
+	private final LruCache<String,Bitmap> myCache;
+	private final ExecutorService myExecutor = Executors.newSingleThreadExecutor(new ThreadFactory() {
+		public Thread newThread(Runnable r) {
+			final Thread thread = new Thread(r, "DjvuRenderer");
+			thread.setPriority(Thread.MIN_PRIORITY);
+			thread.setDaemon(true);
+			myWorkerThread = thread;
+			return thread;
+		}
+	});
+	private volatile Thread myWorkerThread;
+	private final HashSet<String> myQueued = new HashSet<String>();
+	private final HashSet<String> myPreviewRequested = new HashSet<String>();
+	private volatile int myCurrentPage;
+
+	private final Object myRenderLock = new Object();
+	private final RectF myBounds = new RectF(0, 0, 1, 1);
+	private int[] myBuffer;
+
+	public DjvuRenderer(DjvuDocument document, Listener listener) {
+		Document = document;
+		myListener = listener;
+		final long maxMemory = Runtime.getRuntime().maxMemory();
+		myCache = new LruCache<String,Bitmap>((int)Math.min(maxMemory / 8, Integer.MAX_VALUE)) {
+			@Override
+			protected int sizeOf(String key, Bitmap bitmap) {
+				return bitmap.getRowBytes() * bitmap.getHeight();
+			}
+		};
+	}
+
+	private static String key(int pageIndex, int width, int height) {
+		return pageIndex + ":" + width + "x" + height;
+	}
+
+	private static String previewKey(String key) {
+		return "preview:" + key;
+	}
+
+	/**
+	 * @param block if true, the calling thread waits for the page
+	 * when it is not ready; otherwise the page is rendered in background,
+	 * and its preview or a placeholder is returned
+	 * @return rendered page, its preview, a placeholder, or null if the page
+	 * cannot be rendered; the bitmap belongs to the cache, it must not be recycled
+	 */
+	public Bitmap getPage(int pageIndex, int width, int height, boolean block) {
+		if (width <= 0 || height <= 0 || pageIndex < 0 || pageIndex >= Document.getPageCount()) {
+			return null;
+		}
+		final String key = key(pageIndex, width, height);
+		final Bitmap page = myCache.get(key);
+		if (page != null) {
+			return page;
+		}
+		if (block) {
+			return renderAndWait(pageIndex, width, height);
+		}
+		schedule(pageIndex, width, height, true);
+		final Bitmap preview = myCache.get(previewKey(key));
+		return preview != null ? preview : placeholder(width, height);
+	}
+
+	private Bitmap placeholder(int width, int height) {
+		final String key = "placeholder:" + width + "x" + height;
+		Bitmap placeholder = myCache.get(key);
+		if (placeholder == null) {
+			placeholder = Bitmap.createBitmap(width, height, Bitmap.Config.RGB_565);
+			placeholder.eraseColor(Color.WHITE);
+			myCache.put(key, placeholder);
+		}
+		return placeholder;
+	}
+
+	/**
+	 * Makes the page current: pages around it are rendered in advance,
+	 * and the queued pages far from it are skipped
+	 */
+	public void setCurrentPage(int pageIndex, int width, int height) {
+		myCurrentPage = pageIndex;
+		final int count = Document.getPageCount();
+		for (int distance = 0; distance <= PREFETCH_DISTANCE; ++distance) {
+			if (pageIndex + distance < count) {
+				schedule(pageIndex + distance, width, height, false);
+			}
+			if (distance > 0 && pageIndex - distance >= 0) {
+				schedule(pageIndex - distance, width, height, false);
+			}
+		}
+	}
+
+	// a page is queued once; if getPage() asks for it before it is rendered,
+	// its preview is rendered first
+	private void schedule(final int pageIndex, final int width, final int height, boolean withPreview) {
+		if (width <= 0 || height <= 0) {
+			return;
+		}
+		final String key = key(pageIndex, width, height);
+		if (myCache.get(key) != null) {
+			return;
+		}
+		synchronized (myQueued) {
+			if (withPreview) {
+				myPreviewRequested.add(key);
+			}
+			if (!myQueued.add(key)) {
+				return;
+			}
+		}
+		myExecutor.execute(new Runnable() {
+			public void run() {
+				try {
+					if (Math.abs(pageIndex - myCurrentPage) > PREFETCH_DISTANCE) {
+						return;
+					}
+					if (myCache.get(key) != null) {
+						return;
+					}
+					final boolean preview;
+					synchronized (myQueued) {
+						preview = myPreviewRequested.remove(key);
+					}
+					if (preview && renderPreview(pageIndex, width, height) != null) {
+						myListener.onPageRendered(pageIndex);
+					}
+					if (render(pageIndex, width, height) != null) {
+						myListener.onPageRendered(pageIndex);
+					}
+				} finally {
+					synchronized (myQueued) {
+						myQueued.remove(key);
+						myPreviewRequested.remove(key);
+					}
+				}
+			}
+		});
+	}
+
+	private Bitmap renderAndWait(final int pageIndex, final int width, final int height) {
+		if (Thread.currentThread() == myWorkerThread) {
+			return render(pageIndex, width, height);
+		}
+		final Future<Bitmap> future;
+		try {
+			future = myExecutor.submit(new Callable<Bitmap>() {
+				public Bitmap call() {
+					// the page may be rendered by a task queued before this one
+					final Bitmap page = myCache.get(key(pageIndex, width, height));
+					return page != null ? page : render(pageIndex, width, height);
+				}
+			});
+		} catch (RejectedExecutionException e) {
+			// the renderer is shut down
+			return null;
+		}
+		try {
+			return future.get();
+		} catch (InterruptedException e) {
+			future.cancel(false);
+			Thread.currentThread().interrupt();
+			return null;
+		} catch (ExecutionException e) {
+			return null;
+		}
+	}
+
+	private Bitmap render(int pageIndex, int width, int height) {
+		final Bitmap page = renderPixels(pageIndex, width, height);
+		if (page != null) {
+			final String key = key(pageIndex, width, height);
+			myCache.put(key, page);
+			myCache.remove(previewKey(key));
+		}
+		return page;
+	}
+
+	private Bitmap renderPreview(int pageIndex, int width, int height) {
+		final String key = previewKey(key(pageIndex, width, height));
+		if (myCache.get(key) != null) {
+			return null;
+		}
+		final Bitmap preview = renderPixels(pageIndex, width / PREVIEW_SCALE, height / PREVIEW_SCALE);
+		if (preview == null) {
+			return null;
+		}
+		final Bitmap scaled = Bitmap.createScaledBitmap(preview, width, height, true);
+		if (scaled != preview) {
+			preview.recycle();
+		}
+		myCache.put(key, scaled);
+		return scaled;
+	}
+
+	private Bitmap renderPixels(int pageIndex, int width, int height) {
+		if (width <= 0 || height <= 0) {
+			return null;
+		}
+		synchronized (myRenderLock) {
+			if (myBuffer == null || myBuffer.length < width * height) {
+				myBuffer = null;
+				myBuffer = new int[width * height];
+			}
+			final DjvuPage page = Document.getPage(pageIndex);
+			try {
+				// the decoder sometimes fails on the first attempt
+				if (!page.render(width, height, myBounds, myBuffer) &&
+					!page.render(width, height, myBounds, myBuffer)) {
+					return null;
+				}
+			} finally {
+				page.recycle();
+			}
+			return Bitmap.createBitmap(myBuffer, 0, width, width, height, Bitmap.Config.RGB_565);
+		}
+	}
+
+	public void shutdown() {
+		myExecutor.shutdownNow();
+		myCache.evictAll();
+	}
+}
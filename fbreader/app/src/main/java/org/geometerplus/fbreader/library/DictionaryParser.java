@@ -4,6 +4,7 @@ import org.geometerplus.fbreader.Paths;
 import org.geometerplus.fbreader.book.Book;
 import org.geometerplus.fbreader.book.IBookCollection;
 import org.geometerplus.fbreader.book.Word;
+import org.geometerplus.fbreader.dictionary.DictionaryCollection;
 import org.geometerplus.zlibrary.text.model.ZLTextModel;
 import org.geometerplus.zlibrary.text.model.ZLTextParagraph;
 import org.geometerplus.zlibrary.text.model.ZLTextPlainModel.EntryIteratorImpl;
@@ -19,9 +20,14 @@ import java.io.IOException;
 import java.io.InputStreamReader;
 import java.net.HttpURLConnection;
 import java.net.URL;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashSet;
 import java.util.LinkedHashMap;
 import java.util.List;
 
+import android.support.v4.util.LruCache;
+
 public class DictionaryParser {
 	public static class FileWord {
 		public String word;
@@ -49,6 +55,11 @@ public class DictionaryParser {
 		public String getDescription() throws IOException {
 			if (this.description != null)
 				return this.description;
+			final DictionaryCollection.Article article = DictionaryCollection.lookup(word);
+			if (article != null) {
+				this.description = article.Text;
+				return this.description;
+			}
 			URL getUrl = new URL(DICT_URL + word);
 			HttpURLConnection connection = (HttpURLConnection) getUrl
 					.openConnection();
@@ -115,11 +126,22 @@ public class DictionaryParser {
 		return map;
 	}
 
-	public static java.util.HashMap<String, String> wordCache = new java.util.HashMap<String, String>();
+	private static final int LEMMA_CACHE_SIZE = 20000;
+	// no lemma is cached as an empty string, LruCache does not keep nulls
+	private static final LruCache<String,String> ourLemmaCache =
+		new LruCache<String,String>(LEMMA_CACHE_SIZE);
+	private static volatile String ourLemmaLanguage;
+
 	public static String getRealWord(String word, String language) {
-		
-		String realWord = wordCache.get(word);
-		if(realWord != null) return realWord;
+		if (language != null && !language.equals(ourLemmaLanguage)) {
+			ourLemmaCache.evictAll();
+			ourLemmaLanguage = language;
+		}
+		final String cached = ourLemmaCache.get(word);
+		if (cached != null) {
+			return cached.length() > 0 ? cached : null;
+		}
+		String realWord = null;
 		String[] results = Hunspell.Instance(language).analyze(word);
 		if(results != null) {
 			for(String result:results) {
@@ -135,32 +157,89 @@ public class DictionaryParser {
 				}
 			}
 		}
-		wordCache.put(word, realWord);
+		ourLemmaCache.put(word, realWord != null ? realWord : "");
 		return realWord;
 	}
+
 	public static void statisticsString(String text,
 			LinkedHashMap<String, FileWord> map, int paragraphIndex, String language) {
-		String[] array = text.split(seperate);
-		for (String word : array) {
-			word = word.trim();
-			if (word.trim().length() > 0 && !word.startsWith("-")
-					&& !word.startsWith("'")) {
-				word = word.toLowerCase();
-				word = getRealWord(word, language);
-				//word = checkEndWithSuffix(word);
-				if (map.containsKey(word)) {
-					FileWord temp = map.get(word);
-					temp.frequency++;
-				} else {
-					FileWord temp = new FileWord(word);
-					temp.paragraphIndex = paragraphIndex;
-					map.put(word, temp);
-				}
+		final char[] data = text.toCharArray();
+		statisticsText(data, 0, data.length, map, paragraphIndex, language);
+	}
+
+	/**
+	 * Splits the text into words (at the same separators as the seperate
+	 * regex), and counts lemmas of the words in the map
+	 */
+	public static void statisticsText(char[] text, int offset, int length,
+			LinkedHashMap<String, FileWord> map, int paragraphIndex, String language) {
+		final int end = offset + length;
+		int start = offset;
+		for (int i = offset; i <= end; ++i) {
+			if (i < end && !isSeparator(text[i])) {
+				continue;
+			}
+			// trim, as String.trim() does
+			int wordStart = start;
+			int wordEnd = i;
+			while (wordStart < wordEnd && text[wordStart] <= ' ') {
+				++wordStart;
+			}
+			while (wordEnd > wordStart && text[wordEnd - 1] <= ' ') {
+				--wordEnd;
+			}
+			start = i + 1;
+			if (wordStart == wordEnd || text[wordStart] == '-' || text[wordStart] == '\'') {
+				continue;
+			}
+			final String word = getRealWord(
+				new String(text, wordStart, wordEnd - wordStart).toLowerCase(), language
+			);
+			if (word == null) {
+				continue;
+			}
+			final FileWord temp = map.get(word);
+			if (temp != null) {
+				temp.frequency++;
+			} else {
+				final FileWord added = new FileWord(word);
+				added.paragraphIndex = paragraphIndex;
+				map.put(word, added);
 			}
 		}
+	}
 
+	private static boolean isSeparator(char ch) {
+		if (ch >= '0' && ch <= '9') {
+			return true;
+		}
+		switch (ch) {
+			case '~': case '/': case '&': case '%': case '$': case '@': case '#':
+			case '^': case '*': case '|': case '_': case '\n': case '\t': case '"':
+			case ',': case ';': case '=': case ':': case '(': case ')': case '.':
+			case '{': case '}': case '?': case '!': case ' ':
+			case '\u2018': case '\u2019': case '\u201C': case '\u201D': // quotes
+			case '\u300A': case '\u300B': // CJK angle brackets
+			case '\u2014': // em dash
+			case '\u00AB': case '\u00BB': // guillemets
+			case '\u3000': // ideographic space
+				return true;
+			default:
+				return false;
+		}
 	}
-	
+
+	/**
+	 * @return lower-cased texts of the words
+	 */
+	public static HashSet<String> wordTexts(List<Word> words) {
+		final HashSet<String> texts = new HashSet<String>(words.size() * 2);
+		for (Word w : words) {
+			texts.add(w.getText().toLowerCase());
+		}
+		return texts;
+	}
+
 	private static String BAK_FILE_PATH = "/word.bak";
 	
 	public static void createBak(List<Word> AllKnownWords) {
@@ -187,22 +266,20 @@ public class DictionaryParser {
 		try {
 			BufferedReader input = new BufferedReader(new FileReader(Paths.BookPathOption.getValue()+BAK_FILE_PATH));
 			String line = null;
+			final HashSet<String> knownTexts = new HashSet<String>();
+			for (Word wo : AllKnownWords) {
+				knownTexts.add(wo.getText());
+			}
+			final List<Word> imported = new ArrayList<Word>();
 	        while (( line = input.readLine()) != null){
 	          String [] temp = line.split(";");
 	          Word word = new Word(-1, temp[1], temp[0],Integer.parseInt(temp[2]),0,0,0);
-	        	  
-        	  boolean isKnown = false;
-        	  for (Word wo : AllKnownWords) {
-					if (word.getText().equals(wo.getText())) {
-						isKnown = true;
-						break;
-					}
-				}
-				if(!isKnown) {
-					collection.saveToKnownWords(word);
+				if(knownTexts.add(word.getText())) {
+					imported.add(word);
 					AllKnownWords.add(word);
 				}
 	        }
+			collection.saveWords(imported, Collections.<Word>emptyList());
 		} catch (IOException e) {
 			// TODO Auto-generated catch block
 			e.printStackTrace();
@@ -235,6 +312,12 @@ public class DictionaryParser {
 					index++;
 				}
 				List<Word> knownWords = collection.allKnownWords(book.getLanguage());
+				final HashSet<String> knownTexts = new HashSet<String>();
+				for (Word wo : knownWords) {
+					knownTexts.add(wo.getText());
+				}
+				final List<Word> newKnownWords = new ArrayList<Word>();
+				final List<Word> newUnknownWords = new ArrayList<Word>();
 				// new File(fileName+".csv").delete();
 				for (String word : map.keySet()) {
 					FileWord temp = map.get(word);
@@ -244,23 +327,15 @@ public class DictionaryParser {
 							.toLowerCase(), word, temp.frequency, 0, 0, 0);
 					if (knownWords.size() == 0) {
 						if (temp.frequency >= 15) {
-							collection.saveToKnownWords(w);
+							newKnownWords.add(w);
 						} else {
-							collection.saveToUnknownWords(w);
-						}
-					} else {
-						boolean isKnown = false;
-						for (Word wo : knownWords) {
-							if (word.equals(wo.getText())) {
-								isKnown = true;
-								break;
-							}
-						}
-						if (!isKnown) {
-							collection.saveToUnknownWords(w);
+							newUnknownWords.add(w);
 						}
+					} else if (!knownTexts.contains(word)) {
+						newUnknownWords.add(w);
 					}
 				}
+				collection.saveWords(newKnownWords, newUnknownWords);
 
 				// output = buffer.toString();
 			} catch (IOException ioException) {
@@ -55,14 +55,15 @@ abstract class FilteredTree extends LibraryTree {
 	}
 
 	protected final void createBookSubtrees() {
-		for (BookQuery query = new BookQuery(myFilter, 20); ; query = query.next()) {
+		for (BookQuery query = new BookQuery(myFilter, 20); ; ) {
 			final List<Book> books = Collection.books(query);
-			if (books.isEmpty()) {
-				break;
-			}
 			for (Book b : books) {
 				createSubtree(b);
 			}
+			if (books.size() < query.Limit) {
+				break;
+			}
+			query = query.next(books);
 		}
 	}
 
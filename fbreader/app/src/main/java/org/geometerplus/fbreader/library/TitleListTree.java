@@ -52,14 +52,15 @@ public class TitleListTree extends FirstLevelTree {
 				createTitleSubtree(l);
 			}
 		} else {
-			for (BookQuery query = new BookQuery(new Filter.Empty(), 20); ; query = query.next()) {
+			for (BookQuery query = new BookQuery(new Filter.Empty(), 20); ; ) {
 				final List<Book> books = Collection.books(query);
-				if (books.isEmpty()) {
-					break;
-				}
 				for (Book b : books) {
 					createBookWithAuthorsSubtree(b);
 				}
+				if (books.size() < query.Limit) {
+					break;
+				}
+				query = query.next(books);
 			}
 		}
 	}
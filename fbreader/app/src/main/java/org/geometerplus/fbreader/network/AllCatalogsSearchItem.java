@@ -38,7 +38,7 @@ public class AllCatalogsSearchItem extends SearchItem {
 	}
 
 	@Override
-	public void runSearch(ZLNetworkContext nc, NetworkItemsLoader loader, String pattern) throws ZLNetworkException {
+	public void runSearch(ZLNetworkContext nc, final NetworkItemsLoader loader, String pattern) throws ZLNetworkException {
 		final LinkedList<ZLNetworkRequest> requestList = new LinkedList<ZLNetworkRequest>();
 		final LinkedList<NetworkOperationData> dataList = new LinkedList<NetworkOperationData>();
 
@@ -63,8 +63,13 @@ public class AllCatalogsSearchItem extends SearchItem {
 			}
 		}
 
+		final ZLNetworkContext.Canceller canceller = new ZLNetworkContext.Canceller() {
+			public boolean isCancelled() {
+				return loader.confirmInterruption();
+			}
+		};
 		while (!requestList.isEmpty()) {
-			nc.perform(requestList);
+			nc.perform(requestList, canceller);
 
 			requestList.clear();
 
@@ -244,6 +244,11 @@ public class NetworkLibrary {
 
 	private NetworkLibrary(SystemInfo systemInfo) {
 		SystemInfo = systemInfo;
+		ZLNetworkManager.Instance().setCacheDirectory(httpCacheDirectory());
+	}
+
+	private String httpCacheDirectory() {
+		return SystemInfo.networkCacheDirectory() + "/http";
 	}
 
 	public void clearExpiredCache(int hours) {
@@ -252,6 +257,8 @@ public class NetworkLibrary {
 		final File root = new File(SystemInfo.networkCacheDirectory());
 		toVisit.add(root);
 		processedDirs.add(root);
+		// HTTP cache has its own size limit, and stale entries are still of use
+		processedDirs.add(new File(httpCacheDirectory()));
 
 		while (!toVisit.isEmpty()) {
 			final File[] children = toVisit.remove().listFiles();
@@ -87,7 +87,6 @@ public class NetworkCatalogTree extends NetworkTree {
 			myChildrenItems.add((NetworkCatalogItem)item);
 		}
 		myUnconfirmedTrees.add(NetworkTreeFactory.createNetworkTree(this, item));
-		Library.fireModelChangedEvent(NetworkLibrary.ChangeListener.Code.SomeCode);
 	}
 
 	@Override
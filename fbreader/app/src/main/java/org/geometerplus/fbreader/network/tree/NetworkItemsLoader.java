@@ -19,11 +19,14 @@
 
 package org.geometerplus.fbreader.network.tree;
 
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.geometerplus.zlibrary.core.image.ZLImage;
 import org.geometerplus.zlibrary.core.network.ZLNetworkContext;
 import org.geometerplus.zlibrary.core.network.ZLNetworkException;
 
-import org.geometerplus.fbreader.network.NetworkLibrary;
-import org.geometerplus.fbreader.network.NetworkItem;
+import org.geometerplus.fbreader.network.*;
 
 public abstract class NetworkItemsLoader implements Runnable {
 	private volatile Runnable myPostRunnable;
@@ -120,8 +123,83 @@ public abstract class NetworkItemsLoader implements Runnable {
 		}
 	}
 
+	// every change event makes the activity rebuild the whole list,
+	// so items are published in batches while the feed is being read
+	private static final int PUBLISH_BATCH_SIZE = 20;
+	private static final long PUBLISH_INTERVAL = 100; // milliseconds
+	// covers of the first items are downloaded without waiting for the list
+	private static final int COVERS_TO_PREFETCH = 12;
+
+	private static ThreadFactory threadFactory(final String name) {
+		return new ThreadFactory() {
+			public Thread newThread(Runnable r) {
+				final Thread thread = new Thread(r, name);
+				thread.setPriority(Thread.MIN_PRIORITY);
+				thread.setDaemon(true);
+				return thread;
+			}
+		};
+	}
+	private static final ExecutorService ourCoverPool =
+		Executors.newFixedThreadPool(2, threadFactory("NetworkCoverPrefetch"));
+	private static final ScheduledExecutorService ourPublisher =
+		Executors.newSingleThreadScheduledExecutor(threadFactory("NetworkItemsPublisher"));
+
+	private final Object myPublishLock = new Object();
+	private int myUnpublishedCount;
+	private long myPublishTime;
+	private boolean myPublishScheduled;
+	// items may come from several loading threads
+	private final AtomicInteger myPrefetchedCount = new AtomicInteger();
+
 	public void onNewItem(final NetworkItem item) {
 		Tree.addItem(item);
+		prefetchCover(item);
+
+		synchronized (myPublishLock) {
+			++myUnpublishedCount;
+			final long delay = myPublishTime + PUBLISH_INTERVAL - System.currentTimeMillis();
+			if (myUnpublishedCount >= PUBLISH_BATCH_SIZE || delay <= 0) {
+				publishItems();
+			} else if (!myPublishScheduled) {
+				// items must not wait for the next entry if the stream stalls
+				myPublishScheduled = true;
+				ourPublisher.schedule(new Runnable() {
+					public void run() {
+						synchronized (myPublishLock) {
+							myPublishScheduled = false;
+							if (myUnpublishedCount > 0) {
+								publishItems();
+							}
+						}
+					}
+				}, delay, TimeUnit.MILLISECONDS);
+			}
+		}
+	}
+
+	private void publishItems() {
+		myUnpublishedCount = 0;
+		myPublishTime = System.currentTimeMillis();
+		Tree.Library.fireModelChangedEvent(NetworkLibrary.ChangeListener.Code.SomeCode);
+	}
+
+	private void prefetchCover(NetworkItem item) {
+		if (myPrefetchedCount.get() >= COVERS_TO_PREFETCH) {
+			return;
+		}
+		final ZLImage cover = NetworkTree.createCoverForItem(Tree.Library, item, true);
+		if (cover instanceof NetworkImage) {
+			if (myPrefetchedCount.incrementAndGet() > COVERS_TO_PREFETCH) {
+				return;
+			}
+			final NetworkImage image = (NetworkImage)cover;
+			ourCoverPool.execute(new Runnable() {
+				public void run() {
+					image.synchronize();
+				}
+			});
+		}
 	}
 
 	public synchronized void setPostRunnable(Runnable action) {
@@ -47,7 +47,9 @@ final class ZLZipEntryFile extends ZLArchiveEntryFile {
 		synchronized (ourZipFileMap) {
 			ZipFile zf = file.isCached() ? ourZipFileMap.get(file) : null;
 			if (zf == null) {
-				zf = new ZipFile(file);
+				// a physical file is read by its central directory, with random access
+				zf = file instanceof ZLPhysicalFile
+					? new ZipFile(((ZLPhysicalFile)file).javaFile()) : new ZipFile(file);
 				if (file.isCached()) {
 					ourZipFileMap.put(file, zf);
 				}
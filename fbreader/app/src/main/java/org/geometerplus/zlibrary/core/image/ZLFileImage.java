@@ -77,6 +77,10 @@ public class ZLFileImage implements ZLStreamImage {
 		this(file, ENCODING_NONE, 0, (int)file.size());
 	}
 
+	public boolean isEncrypted() {
+		return myEncryptionInfo != null;
+	}
+
 	public String getURI() {
 		String result = SCHEME + "://" + myFile.getPath() + "\000" + myEncoding + "\000" + myOffsets.length;
 		for (int offset : myOffsets) {
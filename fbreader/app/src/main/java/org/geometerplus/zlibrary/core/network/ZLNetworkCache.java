@@ -0,0 +1,489 @@
+/*
+ * Copyright (C) 2010-2015 FBReader.ORG Limited <contact@fbreader.org>
+ *
+ * This program is free software; you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation; either version 2 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program; if not, write to the Free Software
+ * Foundation, Inc., 51 Franklin Street, Fifth Floor, Boston, MA
+ * 02110-1301, USA.
+ */
+
+package org.geometerplus.zlibrary.core.network;
+
+import java.io.*;
+import java.security.MessageDigest;
+import java.util.*;
+
+import org.apache.http.Header;
+import org.apache.http.HeaderElement;
+import org.apache.http.HttpResponse;
+import org.apache.http.impl.cookie.DateParseException;
+import org.apache.http.impl.cookie.DateUtils;
+
+/**
+ * On-disk cache of GET responses.
+ *
+ * An entry is stored with its validators (ETag, Last-Modified) and
+ * freshness lifetime from Cache-Control/Expires; a fresh entry is used
+ * with no request at all, a stale one is revalidated by a conditional
+ * request, and is used as is if the host cannot be reached. The cache
+ * is limited in size, the least recently used entries are removed first.
+ *
+ * Entries are keyed by url only, so responses that may differ for the
+ * same url are never stored: private ones, ones that vary by request
+ * headers, and (see ZLNetworkManager) responses to requests that carry
+ * credentials or cookies.
+ */
+final class ZLNetworkCache {
+	private static final int VERSION = 1;
+	private static final long MAX_SIZE = 16 * 1024 * 1024;
+	private static final int MAX_ENTRY_SIZE = 2 * 1024 * 1024;
+
+	static final class Entry {
+		final String Url;
+		private final File myBody;
+		private final File myMeta;
+		String ETag;
+		String LastModified;
+		// entry can be used without revalidation until this time
+		long Expires;
+		long Length;
+
+		private Entry(String url, File body, File meta) {
+			Url = url;
+			myBody = body;
+			myMeta = meta;
+		}
+
+		boolean isFresh() {
+			return System.currentTimeMillis() < Expires;
+		}
+
+		InputStream getInputStream() throws IOException {
+			return new BufferedInputStream(new FileInputStream(myBody), 8192);
+		}
+	}
+
+	private final File myDirectory;
+	// sizes of entries by key, least recently used first
+	private LinkedHashMap<String,Long> myIndex;
+	private long myTotalSize;
+
+	ZLNetworkCache(String directory) {
+		myDirectory = new File(directory);
+	}
+
+	private static String key(String url) {
+		try {
+			final MessageDigest hash = MessageDigest.getInstance("SHA-1");
+			final byte[] digest = hash.digest(url.getBytes("utf-8"));
+			final StringBuilder builder = new StringBuilder(digest.length * 2);
+			for (byte b : digest) {
+				builder.append(Character.forDigit((b >> 4) & 0xF, 16));
+				builder.append(Character.forDigit(b & 0xF, 16));
+			}
+			return builder.toString();
+		} catch (Exception e) {
+			return Integer.toHexString(url.hashCode());
+		}
+	}
+
+	private File bodyFile(String key) {
+		return new File(myDirectory, key + ".body");
+	}
+
+	private File metaFile(String key) {
+		return new File(myDirectory, key + ".meta");
+	}
+
+	private void loadIndex() {
+		if (myIndex != null) {
+			return;
+		}
+		myIndex = new LinkedHashMap<String,Long>(64, 0.75f, true);
+		myTotalSize = 0;
+		final File[] files = myDirectory.listFiles();
+		if (files == null) {
+			return;
+		}
+		final List<File> metas = new ArrayList<File>();
+		for (File f : files) {
+			if (f.getName().endsWith(".meta")) {
+				metas.add(f);
+			} else if (f.getName().endsWith(".tmp")) {
+				f.delete();
+			}
+		}
+		// meta file is touched on every access
+		Collections.sort(metas, new Comparator<File>() {
+			public int compare(File f0, File f1) {
+				final long diff = f0.lastModified() - f1.lastModified();
+				return diff < 0 ? -1 : (diff > 0 ? 1 : 0);
+			}
+		});
+		for (File meta : metas) {
+			final String name = meta.getName();
+			final String key = name.substring(0, name.length() - ".meta".length());
+			final long size = bodyFile(key).length();
+			myIndex.put(key, size);
+			myTotalSize += size;
+		}
+	}
+
+	/**
+	 * @return cached entry for the url, fresh or not, or null
+	 */
+	synchronized Entry get(String url) {
+		loadIndex();
+		final String key = key(url);
+		if (myIndex.get(key) == null) {
+			return null;
+		}
+
+		final Entry entry = new Entry(url, bodyFile(key), metaFile(key));
+		DataInputStream stream = null;
+		try {
+			stream = new DataInputStream(new BufferedInputStream(new FileInputStream(entry.myMeta)));
+			if (stream.readInt() != VERSION || !url.equals(stream.readUTF())) {
+				return null;
+			}
+			entry.ETag = readString(stream);
+			entry.LastModified = readString(stream);
+			entry.Expires = stream.readLong();
+			entry.Length = stream.readLong();
+		} catch (IOException e) {
+			remove(key);
+			return null;
+		} finally {
+			close(stream);
+		}
+		if (entry.myBody.length() != entry.Length) {
+			remove(key);
+			return null;
+		}
+		entry.myMeta.setLastModified(System.currentTimeMillis());
+		return entry;
+	}
+
+	/**
+	 * Stores new validators and freshness from a 304 response
+	 */
+	synchronized void update(Entry entry, HttpResponse response) {
+		if (!isStorable(response)) {
+			loadIndex();
+			remove(key(entry.Url));
+			return;
+		}
+		final Header etag = response.getFirstHeader("ETag");
+		if (etag != null) {
+			entry.ETag = etag.getValue();
+		}
+		final Header lastModified = response.getFirstHeader("Last-Modified");
+		if (lastModified != null) {
+			entry.LastModified = lastModified.getValue();
+		}
+		entry.Expires = expires(response);
+		writeMeta(entry, entry.myMeta);
+	}
+
+	/**
+	 * @return stream that passes the response content through, and stores it
+	 * in the cache when the content is read to the end; or the same stream
+	 * if the response is not cacheable
+	 */
+	InputStream store(String url, HttpResponse response, InputStream stream) {
+		if (response.getStatusLine().getStatusCode() != 200 || !isStorable(response)) {
+			return stream;
+		}
+		final Header etag = response.getFirstHeader("ETag");
+		final Header lastModified = response.getFirstHeader("Last-Modified");
+		final long expires = expires(response);
+		if (etag == null && lastModified == null && expires <= System.currentTimeMillis()) {
+			// could never be used
+			return stream;
+		}
+
+		final String key = key(url);
+		final Entry entry = new Entry(url, bodyFile(key), metaFile(key));
+		entry.ETag = etag != null ? etag.getValue() : null;
+		entry.LastModified = lastModified != null ? lastModified.getValue() : null;
+		entry.Expires = expires;
+		try {
+			myDirectory.mkdirs();
+			return new CachingInputStream(stream, entry, key);
+		} catch (IOException e) {
+			return stream;
+		}
+	}
+
+	/**
+	 * Stores the content if the request handler has read it to the end,
+	 * else drops the entry; the rest of the content is never read here
+	 * @return false if the stream is a caching one that is not read to the end,
+	 * the connection is not worth reusing then
+	 */
+	static boolean finish(InputStream stream) {
+		return !(stream instanceof CachingInputStream) || ((CachingInputStream)stream).finish();
+	}
+
+	private synchronized void commit(Entry entry, String key, File tmp, long length) {
+		loadIndex();
+		remove(key);
+		entry.Length = length;
+		if (!tmp.renameTo(entry.myBody) || !writeMeta(entry, entry.myMeta)) {
+			tmp.delete();
+			entry.myBody.delete();
+			return;
+		}
+		myIndex.put(key, length);
+		myTotalSize += length;
+
+		final Iterator<Map.Entry<String,Long>> it = myIndex.entrySet().iterator();
+		while (myTotalSize > MAX_SIZE && it.hasNext()) {
+			final Map.Entry<String,Long> oldest = it.next();
+			if (oldest.getKey().equals(key)) {
+				continue;
+			}
+			myTotalSize -= oldest.getValue();
+			bodyFile(oldest.getKey()).delete();
+			metaFile(oldest.getKey()).delete();
+			it.remove();
+		}
+	}
+
+	private void remove(String key) {
+		final Long size = myIndex.remove(key);
+		if (size != null) {
+			myTotalSize -= size;
+		}
+		metaFile(key).delete();
+		bodyFile(key).delete();
+	}
+
+	private static boolean writeMeta(Entry entry, File meta) {
+		final File tmp = new File(meta.getPath() + ".tmp");
+		DataOutputStream stream = null;
+		try {
+			stream = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(tmp)));
+			stream.writeInt(VERSION);
+			stream.writeUTF(entry.Url);
+			writeString(stream, entry.ETag);
+			writeString(stream, entry.LastModified);
+			stream.writeLong(entry.Expires);
+			stream.writeLong(entry.Length);
+			stream.close();
+			stream = null;
+			if (tmp.renameTo(meta)) {
+				return true;
+			}
+		} catch (IOException e) {
+		} finally {
+			close(stream);
+		}
+		tmp.delete();
+		return false;
+	}
+
+	private static String readString(DataInputStream stream) throws IOException {
+		return stream.readBoolean() ? stream.readUTF() : null;
+	}
+
+	private static void writeString(DataOutputStream stream, String value) throws IOException {
+		stream.writeBoolean(value != null);
+		if (value != null) {
+			stream.writeUTF(value);
+		}
+	}
+
+	private static void close(Closeable stream) {
+		if (stream != null) {
+			try {
+				stream.close();
+			} catch (IOException e) {
+			}
+		}
+	}
+
+	private static boolean isStorable(HttpResponse response) {
+		return
+			!hasDirective(response, "no-store") &&
+			!hasDirective(response, "private") &&
+			!varies(response);
+	}
+
+	/**
+	 * @return true if the response depends on request headers; Accept-Encoding
+	 * does not count, the content is stored after gzip decoding
+	 */
+	private static boolean varies(HttpResponse response) {
+		for (Header h : response.getHeaders("Vary")) {
+			for (HeaderElement e : h.getElements()) {
+				if (!"Accept-Encoding".equalsIgnoreCase(e.getName())) {
+					return true;
+				}
+			}
+		}
+		return false;
+	}
+
+	private static boolean hasDirective(HttpResponse response, String name) {
+		for (Header h : response.getHeaders("Cache-Control")) {
+			for (HeaderElement e : h.getElements()) {
+				if (name.equalsIgnoreCase(e.getName())) {
+					return true;
+				}
+			}
+		}
+		return false;
+	}
+
+	/**
+	 * @return time until which the response can be used without revalidation;
+	 * responses with no explicit lifetime are revalidated every time
+	 */
+	private static long expires(HttpResponse response) {
+		final long now = System.currentTimeMillis();
+		for (Header h : response.getHeaders("Cache-Control")) {
+			for (HeaderElement e : h.getElements()) {
+				final String name = e.getName();
+				if ("no-cache".equalsIgnoreCase(name) || "must-revalidate".equalsIgnoreCase(name)) {
+					return 0;
+				}
+				if ("max-age".equalsIgnoreCase(name) && e.getValue() != null) {
+					try {
+						return now + Long.parseLong(e.getValue().trim()) * 1000;
+					} catch (NumberFormatException ex) {
+						return 0;
+					}
+				}
+			}
+		}
+
+		final Header expires = response.getFirstHeader("Expires");
+		if (expires != null) {
+			try {
+				final long expiresTime = DateUtils.parseDate(expires.getValue()).getTime();
+				final Header date = response.getFirstHeader("Date");
+				final long dateTime = date != null ? DateUtils.parseDate(date.getValue()).getTime() : now;
+				return now + expiresTime - dateTime;
+			} catch (DateParseException e) {
+				return 0;
+			}
+		}
+		return 0;
+	}
+
+	private final class CachingInputStream extends FilterInputStream {
+		private final Entry myEntry;
+		private final String myKey;
+		private final File myTmpFile;
+		private OutputStream myOutput;
+		private long myLength;
+		private boolean myIsComplete;
+
+		CachingInputStream(InputStream stream, Entry entry, String key) throws IOException {
+			super(stream);
+			myEntry = entry;
+			myKey = key;
+			myTmpFile = File.createTempFile(key, ".tmp", myDirectory);
+			myOutput = new BufferedOutputStream(new FileOutputStream(myTmpFile), 8192);
+		}
+
+		@Override
+		public int read() throws IOException {
+			final int b = super.read();
+			if (b == -1) {
+				myIsComplete = true;
+			} else if (myOutput != null) {
+				write(new byte[] { (byte)b }, 0, 1);
+			}
+			return b;
+		}
+
+		@Override
+		public int read(byte[] buffer, int offset, int length) throws IOException {
+			final int count = super.read(buffer, offset, length);
+			if (count == -1) {
+				myIsComplete = true;
+			} else if (count > 0) {
+				write(buffer, offset, count);
+			}
+			return count;
+		}
+
+		@Override
+		public long skip(long n) throws IOException {
+			// skipped bytes are still to be stored
+			final byte[] buffer = new byte[(int)Math.min(Math.max(n, 0), 8192)];
+			final int count = read(buffer, 0, buffer.length);
+			return Math.max(count, 0);
+		}
+
+		@Override
+		public boolean markSupported() {
+			return false;
+		}
+
+		private void write(byte[] buffer, int offset, int count) {
+			if (myOutput == null) {
+				return;
+			}
+			myLength += count;
+			try {
+				if (myLength > MAX_ENTRY_SIZE) {
+					throw new IOException("Too large to be cached");
+				}
+				myOutput.write(buffer, offset, count);
+			} catch (IOException e) {
+				abort();
+			}
+		}
+
+		boolean finish() {
+			if (!myIsComplete) {
+				// a handler that reads exactly the content length never sees the end
+				try {
+					read(new byte[1], 0, 1);
+				} catch (IOException e) {
+				}
+			}
+			if (!myIsComplete) {
+				abort();
+				return false;
+			}
+			if (myOutput != null) {
+				try {
+					myOutput.close();
+					myOutput = null;
+					commit(myEntry, myKey, myTmpFile, myLength);
+				} catch (IOException e) {
+					abort();
+				}
+			}
+			return true;
+		}
+
+		private void abort() {
+			ZLNetworkCache.close(myOutput);
+			myOutput = null;
+			myTmpFile.delete();
+		}
+
+		@Override
+		public void close() throws IOException {
+			if (myOutput != null) {
+				abort();
+			}
+			super.close();
+		}
+	}
+}
@@ -20,15 +20,49 @@
 package org.geometerplus.zlibrary.core.network;
 
 import java.io.*;
+import java.net.URI;
 
-import java.util.HashSet;
-import java.util.List;
+import java.util.*;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.AtomicBoolean;
 
 import org.apache.http.cookie.Cookie;
 
 import org.geometerplus.zlibrary.core.options.ZLStringOption;
 
 public abstract class ZLNetworkContext implements ZLNetworkManager.BearerAuthenticator {
+	public interface Canceller {
+		boolean isCancelled();
+	}
+
+	private static final int MAX_CONCURRENT_REQUESTS = 8;
+	private static final int MAX_CONCURRENT_REQUESTS_PER_HOST = 2;
+
+	private static final class RequestThread extends Thread {
+		RequestThread(Runnable runnable) {
+			super(runnable, "ZLNetworkRequest");
+		}
+	}
+
+	private static ThreadPoolExecutor ourExecutor;
+
+	private static synchronized ExecutorService executor() {
+		if (ourExecutor == null) {
+			ourExecutor = new ThreadPoolExecutor(
+				MAX_CONCURRENT_REQUESTS, MAX_CONCURRENT_REQUESTS,
+				30, TimeUnit.SECONDS,
+				new LinkedBlockingQueue<Runnable>(),
+				new ThreadFactory() {
+					public Thread newThread(Runnable runnable) {
+						return new RequestThread(runnable);
+					}
+				}
+			);
+			ourExecutor.allowCoreThreadTimeOut(true);
+		}
+		return ourExecutor;
+	}
+
 	private final ZLNetworkManager myManager = ZLNetworkManager.Instance();
 
 	protected ZLNetworkContext() {
@@ -84,6 +118,20 @@ public abstract class ZLNetworkContext implements ZLNetworkManager.BearerAuthent
 	}
 
 	public final void perform(List<? extends ZLNetworkRequest> requests) throws ZLNetworkException {
+		perform(requests, null);
+	}
+
+	/**
+	 * Performs requests concurrently, at most MAX_CONCURRENT_REQUESTS_PER_HOST
+	 * of them to the same host at once (counting the requests of all the batches
+	 * performed at the moment, not the ones performed one by one); if some
+	 * of the requests fail, the others are performed anyway, and then
+	 * an exception with all the error messages is thrown.
+	 * @param canceller if not null, is checked while the requests run;
+	 * requests that are not started yet are skipped after cancellation,
+	 * the running ones are completed before the method returns
+	 */
+	public final void perform(List<? extends ZLNetworkRequest> requests, Canceller canceller) throws ZLNetworkException {
 		if (requests.size() == 0) {
 			return;
 		}
@@ -91,25 +139,170 @@ public abstract class ZLNetworkContext implements ZLNetworkManager.BearerAuthent
 			perform(requests.get(0));
 			return;
 		}
-		HashSet<String> errors = new HashSet<String>();
-		// TODO: implement concurrent execution !!!
-		for (ZLNetworkRequest r : requests) {
-			try {
-				perform(r);
-			} catch (ZLNetworkException e) {
-				e.printStackTrace();
-				errors.add(e.getMessage());
+
+		final Batch batch = new Batch(canceller, requests.size());
+		// a batch started by a request handler is performed sequentially,
+		// waiting for the pool from a pool thread could never end
+		if (Thread.currentThread() instanceof RequestThread) {
+			for (ZLNetworkRequest r : requests) {
+				new Task(this, r, batch).run();
+			}
+		} else {
+			synchronized (ourHostQueues) {
+				for (ZLNetworkRequest r : requests) {
+					final String host = hostName(r.getURL());
+					HostQueue queue = ourHostQueues.get(host);
+					if (queue == null) {
+						queue = new HostQueue(host);
+						ourHostQueues.put(host, queue);
+					}
+					queue.Tasks.add(new Task(this, r, batch));
+				}
+				for (HostQueue queue : ourHostQueues.values()) {
+					while (queue.Workers < MAX_CONCURRENT_REQUESTS_PER_HOST &&
+							queue.Workers < queue.Tasks.size()) {
+						++queue.Workers;
+						executor().execute(queue);
+					}
+				}
+			}
+		}
+		batch.await();
+	}
+
+	/**
+	 * Requests of the running batches to the same host, shared by all the batches,
+	 * so the per host limit holds for the process, not for one batch
+	 */
+	private static final HashMap<String,HostQueue> ourHostQueues = new HashMap<String,HostQueue>();
+
+	private static final class HostQueue implements Runnable {
+		final String Host;
+		// both are guarded by ourHostQueues
+		final Queue<Task> Tasks = new LinkedList<Task>();
+		int Workers;
+
+		HostQueue(String host) {
+			Host = host;
+		}
+
+		public void run() {
+			while (true) {
+				final Task task;
+				synchronized (ourHostQueues) {
+					task = Tasks.poll();
+					if (task == null) {
+						if (--Workers == 0) {
+							ourHostQueues.remove(Host);
+						}
+						return;
+					}
+				}
+				task.run();
+			}
+		}
+	}
+
+	private static final class Task implements Runnable {
+		private final ZLNetworkContext myContext;
+		private final ZLNetworkRequest myRequest;
+		private final Batch myBatch;
+
+		Task(ZLNetworkContext context, ZLNetworkRequest request, Batch batch) {
+			myContext = context;
+			myRequest = request;
+			myBatch = batch;
+		}
+
+		public void run() {
+			ZLNetworkException error = null;
+			RuntimeException failure = null;
+			if (!myBatch.Cancelled.get()) {
+				try {
+					myContext.perform(myRequest);
+				} catch (ZLNetworkException e) {
+					error = e;
+				} catch (RuntimeException e) {
+					failure = e;
+				}
+			}
+			myBatch.onTaskFinished(error, failure);
+		}
+	}
+
+	private static final class Batch {
+		private final Canceller myCanceller;
+		final AtomicBoolean Cancelled = new AtomicBoolean(false);
+
+		// all the fields below are guarded by this
+		private int myPendingCount;
+		private final HashSet<String> myErrors = new HashSet<String>();
+		private RuntimeException myFailure;
+
+		Batch(Canceller canceller, int count) {
+			myCanceller = canceller;
+			myPendingCount = count;
+		}
+
+		synchronized void onTaskFinished(ZLNetworkException error, RuntimeException failure) {
+			if (error != null) {
+				myErrors.add(error.getMessage());
+			}
+			if (failure != null && myFailure == null) {
+				myFailure = failure;
+			}
+			checkCancelled();
+			if (--myPendingCount == 0) {
+				notifyAll();
 			}
 		}
-		if (errors.size() > 0) {
-			StringBuilder message = new StringBuilder();
-			for (String e : errors) {
-				if (message.length() != 0) {
-					message.append(", ");
+
+		private void checkCancelled() {
+			if (myCanceller != null && myCanceller.isCancelled()) {
+				Cancelled.set(true);
+			}
+		}
+
+		synchronized void await() throws ZLNetworkException {
+			boolean interrupted = false;
+			while (myPendingCount > 0) {
+				try {
+					wait(200);
+				} catch (InterruptedException e) {
+					interrupted = true;
+				}
+				if (interrupted) {
+					Cancelled.set(true);
+				} else {
+					checkCancelled();
+				}
+			}
+			if (interrupted) {
+				Thread.currentThread().interrupt();
+			}
+			if (myFailure != null) {
+				throw myFailure;
+			}
+
+			if (myErrors.size() > 0) {
+				StringBuilder message = new StringBuilder();
+				for (String e : myErrors) {
+					if (message.length() != 0) {
+						message.append(", ");
+					}
+					message.append(e);
 				}
-				message.append(e);
+				throw new ZLNetworkException(message.toString());
 			}
-			throw new ZLNetworkException(message.toString());
+		}
+	}
+
+	private static String hostName(String url) {
+		try {
+			final String host = new URI(url).getHost();
+			return host != null ? host : "";
+		} catch (Exception e) {
+			return "";
 		}
 	}
 
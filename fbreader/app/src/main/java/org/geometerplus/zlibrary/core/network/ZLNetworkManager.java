@@ -23,6 +23,7 @@ import java.io.*;
 import java.net.*;
 import java.nio.charset.Charset;
 import java.util.*;
+import java.util.concurrent.TimeUnit;
 import java.util.zip.GZIPInputStream;
 
 import org.apache.http.*;
@@ -31,16 +32,29 @@ import org.apache.http.client.AuthenticationHandler;
 import org.apache.http.client.entity.UrlEncodedFormEntity;
 import org.apache.http.client.methods.*;
 import org.apache.http.client.protocol.ClientContext;
+import org.apache.http.conn.ClientConnectionManager;
+import org.apache.http.conn.params.ConnManagerParams;
+import org.apache.http.conn.params.ConnPerRouteBean;
+import org.apache.http.conn.scheme.PlainSocketFactory;
+import org.apache.http.conn.scheme.Scheme;
+import org.apache.http.conn.scheme.SchemeRegistry;
+import org.apache.http.conn.ssl.SSLSocketFactory;
 import org.apache.http.cookie.Cookie;
+import org.apache.http.cookie.CookieOrigin;
+import org.apache.http.cookie.CookieSpec;
+import org.apache.http.entity.HttpEntityWrapper;
 import org.apache.http.entity.StringEntity;
 import org.apache.http.entity.mime.HttpMultipartMode;
 import org.apache.http.entity.mime.MultipartEntity;
 import org.apache.http.entity.mime.content.FileBody;
 import org.apache.http.impl.client.*;
+import org.apache.http.impl.cookie.BrowserCompatSpec;
+import org.apache.http.impl.conn.tsccm.ThreadSafeClientConnManager;
 import org.apache.http.message.BasicNameValuePair;
 import org.apache.http.params.*;
 import org.apache.http.protocol.HttpContext;
 import org.apache.http.protocol.BasicHttpContext;
+import org.apache.http.protocol.ExecutionContext;
 
 import org.fbreader.util.ComparisonUtil;
 
@@ -299,6 +313,15 @@ public class ZLNetworkManager {
 		httpConnection.setAllowUserInteraction(true);
 	}*/
 
+	private volatile ZLNetworkCache myCache;
+
+	/**
+	 * Enables caching of GET responses in given directory
+	 */
+	public void setCacheDirectory(String directory) {
+		myCache = directory != null ? new ZLNetworkCache(directory) : null;
+	}
+
 	public void setCredentialsCreator(CredentialsCreator creator) {
 		myCredentialsCreator = creator;
 	}
@@ -307,58 +330,161 @@ public class ZLNetworkManager {
 		return myCredentialsCreator;
 	}
 
+	private static final int MAX_CONNECTIONS = 20;
+	private static final int MAX_CONNECTIONS_PER_ROUTE = 4;
+	private static final int IDLE_CONNECTION_TIMEOUT = 30;
+
+	private DefaultHttpClient myHttpClient;
+
+	/**
+	 * One client for all the requests, so connections are kept alive and reused;
+	 * timeouts, credentials provider and cookie store are set per request
+	 */
+	private synchronized DefaultHttpClient httpClient() {
+		if (myHttpClient != null) {
+			return myHttpClient;
+		}
+
+		final HttpParams params = new BasicHttpParams();
+		HttpProtocolParams.setVersion(params, HttpVersion.HTTP_1_1);
+		HttpProtocolParams.setContentCharset(params, "utf-8");
+		ConnManagerParams.setMaxTotalConnections(params, MAX_CONNECTIONS);
+		ConnManagerParams.setMaxConnectionsPerRoute(params, new ConnPerRouteBean(MAX_CONNECTIONS_PER_ROUTE));
+		final SchemeRegistry registry = new SchemeRegistry();
+		registry.register(new Scheme("http", PlainSocketFactory.getSocketFactory(), 80));
+		registry.register(new Scheme("https", SSLSocketFactory.getSocketFactory(), 443));
+		final ClientConnectionManager connectionManager =
+			new ThreadSafeClientConnManager(params, registry);
+
+		final DefaultHttpClient client = new DefaultHttpClient(connectionManager, params) {
+			protected AuthenticationHandler createTargetAuthenticationHandler() {
+				final AuthenticationHandler base = super.createTargetAuthenticationHandler();
+				return new AuthenticationHandler() {
+					public Map<String,Header> getChallenges(HttpResponse response, HttpContext context) throws MalformedChallengeException {
+						return base.getChallenges(response, context);
+					}
+
+					public boolean isAuthenticationRequested(HttpResponse response, HttpContext context) {
+						return base.isAuthenticationRequested(response, context);
+					}
+
+					public AuthScheme selectScheme(Map<String,Header> challenges, HttpResponse response, HttpContext context) throws AuthenticationException {
+						try {
+							return base.selectScheme(challenges, response, context);
+						} catch (AuthenticationException e) {
+							final Header bearerHeader = challenges.get("bearer");
+							if (bearerHeader != null) {
+								String realm = null;
+								for (HeaderElement elt : bearerHeader.getElements()) {
+									final String name = elt.getName();
+									if (name == null) {
+										continue;
+									}
+									if ("realm".equals(name) || name.endsWith(" realm")) {
+										realm = elt.getValue();
+										break;
+									}
+								}
+								throw new BearerAuthenticationException(realm, response.getEntity());
+							}
+							throw e;
+						}
+					}
+				};
+			}
+		};
+		client.addRequestInterceptor(new HttpRequestInterceptor() {
+			public void process(HttpRequest request, HttpContext context) {
+				if (!request.containsHeader("Accept-Encoding")) {
+					request.addHeader("Accept-Encoding", "gzip");
+				}
+			}
+		});
+		client.addResponseInterceptor(new HttpResponseInterceptor() {
+			public void process(HttpResponse response, HttpContext context) {
+				final HttpEntity entity = response.getEntity();
+				if (entity == null) {
+					return;
+				}
+				final Header encoding = entity.getContentEncoding();
+				if (encoding != null && "gzip".equalsIgnoreCase(encoding.getValue())) {
+					response.setEntity(new GzipEntity(entity));
+				}
+			}
+		});
+
+		final Thread monitor = new Thread("ZLNetworkManager.IdleConnections") {
+			public void run() {
+				while (true) {
+					try {
+						Thread.sleep(IDLE_CONNECTION_TIMEOUT * 1000);
+					} catch (InterruptedException e) {
+						return;
+					}
+					connectionManager.closeExpiredConnections();
+					connectionManager.closeIdleConnections(IDLE_CONNECTION_TIMEOUT, TimeUnit.SECONDS);
+				}
+			}
+		};
+		monitor.setDaemon(true);
+		monitor.setPriority(Thread.MIN_PRIORITY);
+		monitor.start();
+
+		myHttpClient = client;
+		return client;
+	}
+
+	private static final class GzipEntity extends HttpEntityWrapper {
+		GzipEntity(HttpEntity entity) {
+			super(entity);
+		}
+
+		@Override
+		public InputStream getContent() throws IOException {
+			return new GZIPInputStream(wrappedEntity.getContent());
+		}
+
+		@Override
+		public Header getContentEncoding() {
+			return null;
+		}
+
+		@Override
+		public long getContentLength() {
+			return -1;
+		}
+	}
+
 	void perform(ZLNetworkRequest request, BearerAuthenticator authenticator, int socketTimeout, int connectionTimeout) throws ZLNetworkException {
 		boolean success = false;
-		DefaultHttpClient httpClient = null;
+		boolean isAborted = false;
+		final DefaultHttpClient httpClient = httpClient();
+		HttpRequestBase httpRequest = null;
 		HttpEntity entity = null;
 		try {
 			final HttpContext httpContext = new BasicHttpContext();
 			httpContext.setAttribute(ClientContext.COOKIE_STORE, CookieStore);
 
 			request.doBefore();
-			final HttpParams params = new BasicHttpParams();
-			HttpConnectionParams.setSoTimeout(params, socketTimeout);
-			HttpConnectionParams.setConnectionTimeout(params, connectionTimeout);
-			httpClient = new DefaultHttpClient(params) {
-				protected AuthenticationHandler createTargetAuthenticationHandler() {
-					final AuthenticationHandler base = super.createTargetAuthenticationHandler();
-					return new AuthenticationHandler() {
-						public Map<String,Header> getChallenges(HttpResponse response, HttpContext context) throws MalformedChallengeException {
-							return base.getChallenges(response, context);
-						}
 
-						public boolean isAuthenticationRequested(HttpResponse response, HttpContext context) {
-							return base.isAuthenticationRequested(response, context);
-						}
+			final ZLNetworkCache cache = isCacheable(request) ? myCache : null;
+			final ZLNetworkCache.Entry cacheEntry = cache != null ? cache.get(request.URL) : null;
+			if (cacheEntry != null && cacheEntry.isFresh()) {
+				handleCachedEntry(request, cacheEntry);
+				success = true;
+				return;
+			}
 
-						public AuthScheme selectScheme(Map<String,Header> challenges, HttpResponse response, HttpContext context) throws AuthenticationException {
-							try {
-								return base.selectScheme(challenges, response, context);
-							} catch (AuthenticationException e) {
-								final Header bearerHeader = challenges.get("bearer");
-								if (bearerHeader != null) {
-									String realm = null;
-									for (HeaderElement elt : bearerHeader.getElements()) {
-										final String name = elt.getName();
-										if (name == null) {
-											continue;
-										}
-										if ("realm".equals(name) || name.endsWith(" realm")) {
-											realm = elt.getValue();
-											break;
-										}
-									}
-									throw new BearerAuthenticationException(realm, response.getEntity());
-								}
-								throw e;
-							}
-						}
-					};
-				}
-			};
-			final HttpRequestBase httpRequest;
 			if (request instanceof ZLNetworkRequest.Get) {
 				httpRequest = new HttpGet(request.URL);
+				if (cacheEntry != null) {
+					if (cacheEntry.ETag != null) {
+						httpRequest.setHeader("If-None-Match", cacheEntry.ETag);
+					}
+					if (cacheEntry.LastModified != null) {
+						httpRequest.setHeader("If-Modified-Since", cacheEntry.LastModified);
+					}
+				}
 			} else if (request instanceof ZLNetworkRequest.PostWithBody) {
 				httpRequest = new HttpPost(request.URL);
 				((HttpPost)httpRequest).setEntity(new StringEntity(((ZLNetworkRequest.PostWithBody)request).Body, "utf-8"));
@@ -396,41 +522,73 @@ public class ZLNetworkManager {
 			if (!request.isQuiet()) {
 				httpRequest.setHeader("X-Accept-Auto-Login", "True");
 			}
-			httpRequest.setHeader("Accept-Encoding", "gzip");
 			httpRequest.setHeader("Accept-Language", ZLResource.getLanguage());
 			for (Map.Entry<String,String> header : request.Headers.entrySet()) {
 				httpRequest.setHeader(header.getKey(), header.getValue());
 			}
-			httpClient.setCredentialsProvider(new MyCredentialsProvider(httpRequest, request.isQuiet()));
-			final HttpResponse response = execute(httpClient, httpRequest, httpContext, authenticator);
+			final HttpParams requestParams = httpRequest.getParams();
+			HttpConnectionParams.setSoTimeout(requestParams, socketTimeout);
+			HttpConnectionParams.setConnectionTimeout(requestParams, connectionTimeout);
+			httpContext.setAttribute(
+				ClientContext.CREDS_PROVIDER,
+				new MyCredentialsProvider(httpRequest, request.isQuiet())
+			);
+			final HttpResponse response;
+			try {
+				response = execute(httpClient, httpRequest, httpContext, authenticator);
+			} catch (IOException e) {
+				if (cacheEntry == null) {
+					throw e;
+				}
+				// the host cannot be reached, stale content is better than nothing
+				handleCachedEntry(request, cacheEntry);
+				success = true;
+				return;
+			}
 			entity = response.getEntity();
-			if (response.getStatusLine().getStatusCode() == HttpURLConnection.HTTP_UNAUTHORIZED) {
+			InputStream stream = null;
+			final int responseCode = response.getStatusLine().getStatusCode();
+			if (responseCode == HttpURLConnection.HTTP_NOT_MODIFIED && cacheEntry != null) {
+				cache.update(cacheEntry, response);
+				handleCachedEntry(request, cacheEntry);
+				success = true;
+				return;
+			}
+			boolean credentialsRemoved = false;
+			if (responseCode == HttpURLConnection.HTTP_UNAUTHORIZED) {
 				final AuthState state = (AuthState)httpContext.getAttribute(ClientContext.TARGET_AUTH_STATE);
 				if (state != null) {
 					final AuthScopeKey key = new AuthScopeKey(state.getAuthScope());
-					if (myCredentialsCreator.removeCredentials(key)) {
-						entity = null;
-					}
+					credentialsRemoved = myCredentialsCreator.removeCredentials(key);
 				}
 			}
-			final int responseCode = response.getStatusLine().getStatusCode();
 
-			InputStream stream = null;
-			if (entity != null &&
+			if (entity != null && !credentialsRemoved &&
 				(responseCode == HttpURLConnection.HTTP_OK ||
 				 responseCode == HttpURLConnection.HTTP_PARTIAL)) {
 				stream = entity.getContent();
 			}
 
 			if (stream != null) {
+				if (cache != null && !sentCredentials(httpContext)) {
+					stream = cache.store(request.URL, response, stream);
+				}
+				boolean isRead = false;
 				try {
-					final Header encoding = entity.getContentEncoding();
-					if (encoding != null && "gzip".equalsIgnoreCase(encoding.getValue())) {
-						stream = new GZIPInputStream(stream);
-					}
 					request.handleStream(stream, (int)entity.getContentLength());
+					isRead = ZLNetworkCache.finish(stream);
 				} finally {
-					stream.close();
+					if (!isRead) {
+						// closing would read the rest of the content, the connection is dropped instead
+						isAborted = true;
+						httpRequest.abort();
+						try {
+							stream.close();
+						} catch (IOException e) {
+						}
+					} else {
+						stream.close();
+					}
 				}
 				success = true;
 			} else {
@@ -443,7 +601,6 @@ public class ZLNetworkManager {
 		} catch (ZLNetworkException e) {
 			throw e;
 		} catch (IOException e) {
-			e.printStackTrace();
 			final String code;
 			if (e instanceof UnknownHostException) {
 				code = ZLNetworkException.ERROR_RESOLVE_HOST;
@@ -452,19 +609,68 @@ public class ZLNetworkManager {
 			}
 			throw ZLNetworkException.forCode(code, ZLNetworkUtil.hostFromUrl(request.URL), e);
 		} catch (Exception e) {
-			e.printStackTrace();
 			throw new ZLNetworkException(e.getMessage(), e);
 		} finally {
 			request.doAfter(success);
-			if (httpClient != null) {
-				httpClient.getConnectionManager().shutdown();
+			// the connection goes back to the pool when the content is consumed;
+			// after a failure the rest of the content is not read, the connection is closed
+			if (success && !isAborted) {
+				if (entity != null) {
+					try {
+						entity.consumeContent();
+					} catch (IOException e) {
+					}
+				}
+			} else if (httpRequest != null) {
+				httpRequest.abort();
 			}
-			if (entity != null) {
-				try {
-					entity.consumeContent();
-				} catch (IOException e) {
+		}
+	}
+
+	// the cache is keyed by url, a response that depends on the user is never cached
+	private boolean isCacheable(ZLNetworkRequest request) {
+		if (!(request instanceof ZLNetworkRequest.Get) ||
+			request.Headers.containsKey("Range") ||
+			request.Headers.containsKey("Authorization") ||
+			request.Headers.containsKey("Cookie")) {
+			return false;
+		}
+		try {
+			final URL url = new URL(request.URL);
+			final int port = url.getPort();
+			final CookieOrigin origin = new CookieOrigin(
+				url.getHost(),
+				port != -1 ? port : url.getDefaultPort(),
+				url.getPath().length() > 0 ? url.getPath() : "/",
+				"https".equalsIgnoreCase(url.getProtocol())
+			);
+			final CookieSpec spec = new BrowserCompatSpec();
+			for (Cookie c : CookieStore.getCookies()) {
+				if (spec.match(c, origin)) {
+					return false;
 				}
 			}
+			return true;
+		} catch (MalformedURLException e) {
+			return false;
+		}
+	}
+
+	// true if credentials were sent with the request, by the request itself or by authentication
+	private static boolean sentCredentials(HttpContext context) {
+		final HttpRequest sent = (HttpRequest)context.getAttribute(ExecutionContext.HTTP_REQUEST);
+		return
+			sent == null ||
+			sent.containsHeader("Authorization") ||
+			sent.containsHeader("Cookie");
+	}
+
+	private void handleCachedEntry(ZLNetworkRequest request, ZLNetworkCache.Entry entry) throws IOException, ZLNetworkException {
+		final InputStream stream = entry.getInputStream();
+		try {
+			request.handleStream(stream, (int)entry.Length);
+		} finally {
+			stream.close();
 		}
 	}
 
@@ -186,6 +186,11 @@ final class DummyPaintContext extends ZLPaintContext {
 		return null;
 	}
 
+	@Override
+	protected ZLPaintContext createMeasuringContext() {
+		return new DummyPaintContext();
+	}
+
 	@Override
 	public void setTextSize(float textSize) {
 		
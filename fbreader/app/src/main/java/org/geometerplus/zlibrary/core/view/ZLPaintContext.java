@@ -64,6 +64,20 @@ abstract public class ZLPaintContext {
 	abstract public ZLColor getBackgroundColor();
 	abstract public Canvas getCanvas();
 
+	/**
+	 * @return context of the same size and text settings that draws nowhere;
+	 * it measures text the same way this context does, and can be used
+	 * in a thread other than the one this context paints in
+	 */
+	public final ZLPaintContext measuringContext() {
+		final ZLPaintContext context = createMeasuringContext();
+		context.mIsGuji = mIsGuji;
+		context.myIsShowGujiPunctuation = myIsShowGujiPunctuation;
+		return context;
+	}
+
+	abstract protected ZLPaintContext createMeasuringContext();
+
 	private boolean myResetFont = true;
 	private List<FontEntry> myFontEntries;
 	private int myFontSize;
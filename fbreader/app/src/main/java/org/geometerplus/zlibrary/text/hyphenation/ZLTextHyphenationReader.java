@@ -26,13 +26,13 @@ import org.geometerplus.zlibrary.core.util.ZLArrayUtils;
 final class ZLTextHyphenationReader extends ZLXMLReaderAdapter {
 	private static final String PATTERN = "pattern";
 
-	private final ZLTextTeXHyphenator myHyphenator;
+	private final ZLTextHyphenationTrie.Builder myBuilder;
 	private boolean myReadPattern;
 	private char[] myBuffer = new char[10];
 	private int myBufferLength;
 
-	ZLTextHyphenationReader(ZLTextTeXHyphenator hyphenator) {
-		myHyphenator = hyphenator;
+	ZLTextHyphenationReader(ZLTextHyphenationTrie.Builder builder) {
+		myBuilder = builder;
 	}
 
 	@Override
@@ -49,7 +49,7 @@ final class ZLTextHyphenationReader extends ZLXMLReaderAdapter {
 			myReadPattern = false;
 			final int len = myBufferLength;
 			if (len != 0) {
-				myHyphenator.addPattern(new ZLTextTeXHyphenationPattern(myBuffer, 0, len, true));
+				myBuilder.addPattern(new ZLTextTeXHyphenationPattern(myBuffer, 0, len, true));
 			}
 			myBufferLength = 0;
 		}
@@ -0,0 +1,290 @@
+/*
+ * Copyright (C) 2007-2015 FBReader.ORG Limited <contact@fbreader.org>
+ *
+ * This program is free software; you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation; either version 2 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program; if not, write to the Free Software
+ * Foundation, Inc., 51 Franklin Street, Fifth Floor, Boston, MA
+ * 02110-1301, USA.
+ */
+
+package org.geometerplus.zlibrary.text.hyphenation;
+
+import java.io.*;
+import java.nio.*;
+import java.nio.channels.FileChannel;
+import java.util.*;
+
+/**
+ * TeX hyphenation patterns compiled into a packed trie.
+ *
+ * Nodes are numbered in breadth-first order; edges of a node are stored
+ * contiguously and sorted by symbol, so a child is found by binary search.
+ * A node that ends a pattern refers to the pattern values. All the data
+ * lives in one byte buffer, that is either built from the patterns or
+ * mapped from a file written by an earlier build.
+ *
+ * File layout (big endian):
+ *   int magic, int version, long source stamp,
+ *   int nodes, int edges, int values,
+ *   int[nodes + 1] first edge of a node,
+ *   int[nodes] values offset of a node (-1 if none),
+ *   int[edges] edge target, char[edges] edge symbol,
+ *   byte[values] pattern values, each sequence preceded by its length
+ */
+final class ZLTextHyphenationTrie {
+	private static final int MAGIC = 0x5a4c4854; // "ZLHT"
+	private static final int VERSION = 1;
+	private static final int HEADER_SIZE = 4 + 4 + 8 + 4 + 4 + 4;
+
+	private final IntBuffer myFirstEdges;
+	private final IntBuffer myValueOffsets;
+	private final IntBuffer myTargets;
+	private final CharBuffer mySymbols;
+	private final ByteBuffer myValues;
+	private final int myNodesNumber;
+
+	private ZLTextHyphenationTrie(ByteBuffer data) throws IOException {
+		data.order(ByteOrder.BIG_ENDIAN);
+		if (data.limit() < HEADER_SIZE || data.getInt(0) != MAGIC || data.getInt(4) != VERSION) {
+			throw new IOException("Invalid hyphenation trie");
+		}
+		final int nodes = data.getInt(16);
+		final int edges = data.getInt(20);
+		final int values = data.getInt(24);
+		if (nodes < 1 || edges < 0 || values < 0 ||
+			data.limit() != HEADER_SIZE + 4L * (2 * nodes + 1) + 6L * edges + values) {
+			throw new IOException("Invalid hyphenation trie");
+		}
+
+		int position = HEADER_SIZE;
+		myFirstEdges = slice(data, position, 4 * (nodes + 1)).asIntBuffer();
+		position += 4 * (nodes + 1);
+		myValueOffsets = slice(data, position, 4 * nodes).asIntBuffer();
+		position += 4 * nodes;
+		myTargets = slice(data, position, 4 * edges).asIntBuffer();
+		position += 4 * edges;
+		mySymbols = slice(data, position, 2 * edges).asCharBuffer();
+		position += 2 * edges;
+		myValues = slice(data, position, values);
+		myNodesNumber = nodes;
+	}
+
+	private static ByteBuffer slice(ByteBuffer data, int position, int length) {
+		final ByteBuffer copy = data.duplicate();
+		copy.position(position);
+		copy.limit(position + length);
+		return copy.slice().order(ByteOrder.BIG_ENDIAN);
+	}
+
+	boolean isEmpty() {
+		return myNodesNumber == 1;
+	}
+
+	/**
+	 * Applies all the patterns matching the text at any offset
+	 *
+	 * @param values array of length >= length + 1, maximal pattern
+	 * values for the positions between characters are stored here
+	 */
+	void apply(char[] text, int length, byte[] values) {
+		final IntBuffer firstEdges = myFirstEdges;
+		final IntBuffer targets = myTargets;
+		final CharBuffer symbols = mySymbols;
+		for (int offset = 0; offset < length - 1; ++offset) {
+			int node = 0;
+			for (int i = offset; i < length; ++i) {
+				final char ch = text[i];
+				int low = firstEdges.get(node);
+				int high = firstEdges.get(node + 1) - 1;
+				node = -1;
+				while (low <= high) {
+					final int middle = (low + high) >>> 1;
+					final char symbol = symbols.get(middle);
+					if (symbol < ch) {
+						low = middle + 1;
+					} else if (symbol > ch) {
+						high = middle - 1;
+					} else {
+						node = targets.get(middle);
+						break;
+					}
+				}
+				if (node == -1) {
+					break;
+				}
+				final int valueOffset = myValueOffsets.get(node);
+				if (valueOffset != -1) {
+					final int count = myValues.get(valueOffset);
+					for (int k = 0, j = offset; k < count; ++k, ++j) {
+						final byte value = myValues.get(valueOffset + 1 + k);
+						if (values[j] < value) {
+							values[j] = value;
+						}
+					}
+				}
+			}
+		}
+	}
+
+	/**
+	 * @return trie mapped from the file, or null if there is no valid one
+	 * for given source stamp
+	 */
+	static ZLTextHyphenationTrie map(File file, long stamp) {
+		if (!file.exists()) {
+			return null;
+		}
+		RandomAccessFile raf = null;
+		try {
+			raf = new RandomAccessFile(file, "r");
+			final FileChannel channel = raf.getChannel();
+			final ByteBuffer data = channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size());
+			if (data.limit() < HEADER_SIZE || data.getLong(8) != stamp) {
+				return null;
+			}
+			return new ZLTextHyphenationTrie(data);
+		} catch (IOException e) {
+			return null;
+		} finally {
+			if (raf != null) {
+				try {
+					raf.close();
+				} catch (IOException e) {
+				}
+			}
+		}
+	}
+
+	static final class Builder {
+		private static final class Node {
+			final TreeMap<Character,Node> Children = new TreeMap<Character,Node>();
+			byte[] Values;
+			int Index;
+		}
+
+		private final Node myRoot = new Node();
+		private int myNodesNumber = 1;
+		private int myEdgesNumber;
+		private int myValuesLength;
+
+		void addPattern(ZLTextTeXHyphenationPattern pattern) {
+			final char[] symbols = pattern.symbols();
+			final byte[] values = pattern.values();
+			Node node = myRoot;
+			for (char ch : symbols) {
+				Node child = node.Children.get(ch);
+				if (child == null) {
+					child = new Node();
+					node.Children.put(ch, child);
+					++myNodesNumber;
+					++myEdgesNumber;
+				}
+				node = child;
+			}
+			if (node.Values == null) {
+				myValuesLength += values.length + 1;
+			} else {
+				myValuesLength += values.length - node.Values.length;
+			}
+			node.Values = values;
+		}
+
+		private byte[] toByteArray(long stamp) {
+			final ByteBuffer data = ByteBuffer.allocate(
+				HEADER_SIZE + 4 * (2 * myNodesNumber + 1) + 6 * myEdgesNumber + myValuesLength
+			);
+			data.putInt(MAGIC).putInt(VERSION).putLong(stamp);
+			data.putInt(myNodesNumber).putInt(myEdgesNumber).putInt(myValuesLength);
+
+			final ArrayList<Node> nodes = new ArrayList<Node>(myNodesNumber);
+			nodes.add(myRoot);
+			for (int i = 0; i < nodes.size(); ++i) {
+				for (Node child : nodes.get(i).Children.values()) {
+					child.Index = nodes.size();
+					nodes.add(child);
+				}
+			}
+
+			int edge = 0;
+			for (Node node : nodes) {
+				data.putInt(edge);
+				edge += node.Children.size();
+			}
+			data.putInt(edge);
+			int valueOffset = 0;
+			for (Node node : nodes) {
+				if (node.Values != null) {
+					data.putInt(valueOffset);
+					valueOffset += node.Values.length + 1;
+				} else {
+					data.putInt(-1);
+				}
+			}
+			for (Node node : nodes) {
+				for (Node child : node.Children.values()) {
+					data.putInt(child.Index);
+				}
+			}
+			for (Node node : nodes) {
+				for (char ch : node.Children.keySet()) {
+					data.putChar(ch);
+				}
+			}
+			for (Node node : nodes) {
+				if (node.Values != null) {
+					data.put((byte)node.Values.length);
+					data.put(node.Values);
+				}
+			}
+			return data.array();
+		}
+
+		/**
+		 * Builds the trie and writes it to the file (if file is not null);
+		 * the file is replaced atomically, so a broken write leaves no trie
+		 */
+		ZLTextHyphenationTrie build(File file, long stamp) {
+			final byte[] data = toByteArray(stamp);
+			if (file != null) {
+				final File tmp = new File(file.getPath() + ".tmp");
+				OutputStream stream = null;
+				try {
+					file.getParentFile().mkdirs();
+					stream = new FileOutputStream(tmp);
+					stream.write(data);
+					stream.close();
+					stream = null;
+					if (!tmp.renameTo(file)) {
+						tmp.delete();
+					}
+				} catch (IOException e) {
+					tmp.delete();
+				} finally {
+					if (stream != null) {
+						try {
+							stream.close();
+						} catch (IOException e) {
+						}
+						tmp.delete();
+					}
+				}
+			}
+			try {
+				return new ZLTextHyphenationTrie(ByteBuffer.wrap(data));
+			} catch (IOException e) {
+				// cannot happen: the data has just been built
+				throw new RuntimeException(e);
+			}
+		}
+	}
+}
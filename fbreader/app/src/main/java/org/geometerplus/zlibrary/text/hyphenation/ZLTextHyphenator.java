@@ -19,7 +19,7 @@
 
 package org.geometerplus.zlibrary.text.hyphenation;
 
-import java.util.List;
+import java.util.*;
 
 import org.geometerplus.zlibrary.text.view.ZLTextWord;
 
@@ -40,14 +40,61 @@ public abstract class ZLTextHyphenator {
 		}
 	}
 
+	private static volatile String ourCacheDirectory;
+
+	/**
+	 * @param directory directory for compiled hyphenation patterns
+	 */
+	public static void setCacheDirectory(String directory) {
+		ourCacheDirectory = directory;
+	}
+
+	protected static String cacheDirectory() {
+		return ourCacheDirectory;
+	}
+
 	protected ZLTextHyphenator() {
 	}
 
+	// layout asks for the same words many times (each line is measured
+	// several times, and the same pages are laid out again), so the infos
+	// of recently hyphenated words are kept; the cache is valid
+	// for the loaded language only
+	private static final int INFO_CACHE_SIZE = 1024;
+	private final LinkedHashMap<String,ZLTextHyphenationInfo> myInfoCache =
+		new LinkedHashMap<String,ZLTextHyphenationInfo>(INFO_CACHE_SIZE, .75f, true) {
+			@Override
+			protected boolean removeEldestEntry(Map.Entry<String,ZLTextHyphenationInfo> eldest) {
+				return size() > INFO_CACHE_SIZE;
+			}
+		};
+
+	protected final void clearInfoCache() {
+		synchronized (myInfoCache) {
+			myInfoCache.clear();
+		}
+	}
+
 	public abstract List<String> languageCodes();
 	public abstract void load(final String languageCode);
 	public abstract void unload();
 
 	public ZLTextHyphenationInfo getInfo(final ZLTextWord word) {
+		final String key = new String(word.Data, word.Offset, word.Length);
+		synchronized (myInfoCache) {
+			final ZLTextHyphenationInfo info = myInfoCache.get(key);
+			if (info != null) {
+				return info;
+			}
+		}
+		final ZLTextHyphenationInfo info = computeInfo(word);
+		synchronized (myInfoCache) {
+			myInfoCache.put(key, info);
+		}
+		return info;
+	}
+
+	private ZLTextHyphenationInfo computeInfo(final ZLTextWord word) {
 		final int len = word.Length;
 		final boolean[] isLetter = new boolean[len];
 		final char[] pattern = new char[len + 2];
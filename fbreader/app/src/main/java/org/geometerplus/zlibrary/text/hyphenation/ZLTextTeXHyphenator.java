@@ -19,6 +19,7 @@
 
 package org.geometerplus.zlibrary.text.hyphenation;
 
+import java.io.File;
 import java.util.*;
 
 import org.geometerplus.zlibrary.core.language.Language;
@@ -27,18 +28,9 @@ import org.geometerplus.zlibrary.core.filesystem.ZLFile;
 import org.geometerplus.zlibrary.core.filesystem.ZLResourceFile;
 
 final class ZLTextTeXHyphenator extends ZLTextHyphenator {
-	private final HashMap<ZLTextTeXHyphenationPattern,ZLTextTeXHyphenationPattern> myPatternTable =
-		new HashMap<ZLTextTeXHyphenationPattern,ZLTextTeXHyphenationPattern>();
-	private int myMaxPatternLength;
+	private volatile ZLTextHyphenationTrie myTrie;
 	private String myLanguage;
 
-	void addPattern(ZLTextTeXHyphenationPattern pattern) {
-		myPatternTable.put(pattern, pattern);
-		if (myMaxPatternLength < pattern.length()) {
-			myMaxPatternLength = pattern.length();
-		}
-	}
-
 	private List<String> myLanguageCodes;
 	public List<String> languageCodes() {
 		if (myLanguageCodes == null) {
@@ -69,42 +61,51 @@ final class ZLTextTeXHyphenator extends ZLTextHyphenator {
 		unload();
 
 		if (language != null) {
-			new ZLTextHyphenationReader(this).readQuietly(ZLResourceFile.createResourceFile(
-				"hyphenationPatterns/" + language + ".pattern"
-			));
+			myTrie = loadTrie(language);
 		}
 	}
 
+	// patterns are parsed only once: the compiled trie is stored next
+	// to other caches and mapped on subsequent loads
+	private static ZLTextHyphenationTrie loadTrie(String language) {
+		final ZLFile patterns = ZLResourceFile.createResourceFile(
+			"hyphenationPatterns/" + language + ".pattern"
+		);
+		if (!patterns.exists()) {
+			return null;
+		}
+		final long stamp = patterns.size();
+		final String directory = cacheDirectory();
+		final File file = directory != null ? new File(directory, language + ".trie") : null;
+		if (file != null) {
+			final ZLTextHyphenationTrie trie = ZLTextHyphenationTrie.map(file, stamp);
+			if (trie != null) {
+				return trie;
+			}
+		}
+		final ZLTextHyphenationTrie.Builder builder = new ZLTextHyphenationTrie.Builder();
+		if (!new ZLTextHyphenationReader(builder).readQuietly(patterns)) {
+			return null;
+		}
+		return builder.build(file, stamp);
+	}
+
 	public void unload() {
-		myPatternTable.clear();
-		myMaxPatternLength = 0;
+		myTrie = null;
+		clearInfoCache();
 	}
 
 	public void hyphenate(char[] stringToHyphenate, boolean[] mask, int length) {
-		if (myPatternTable.isEmpty()) {
+		final ZLTextHyphenationTrie trie = myTrie;
+		if (trie == null || trie.isEmpty()) {
 			for (int i = 0; i < length - 1; i++) {
 				mask[i] = false;
 			}
 			return;
 		}
 
-		byte[] values = new byte[length + 1];
-
-		final HashMap<ZLTextTeXHyphenationPattern,ZLTextTeXHyphenationPattern> table = myPatternTable;
-		ZLTextTeXHyphenationPattern pattern =
-			new ZLTextTeXHyphenationPattern(stringToHyphenate, 0, length, false);
-		for (int offset = 0; offset < length - 1; offset++) {
-			int len = Math.min(length - offset, myMaxPatternLength) + 1;
-			pattern.update(stringToHyphenate, offset, len - 1);
-			while (--len > 0) {
-				pattern.reset(len);
-				ZLTextTeXHyphenationPattern toApply =
-					(ZLTextTeXHyphenationPattern)table.get(pattern);
-				if (toApply != null) {
-					toApply.apply(values, offset);
-				}
-			}
-		}
+		final byte[] values = new byte[length + 1];
+		trie.apply(stringToHyphenate, length, values);
 
 		for (int i = 0; i < length - 1; i++) {
 			mask[i] = (values[i + 1] % 2) == 1;
@@ -19,22 +19,56 @@
 
 package org.geometerplus.zlibrary.text.model;
 
-import java.lang.ref.WeakReference;
 import java.io.*;
-import java.util.ArrayList;
-import java.util.Collections;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.channels.FileChannel;
+
+import android.support.v4.util.LruCache;
 
 public final class CachedCharStorage {
-	protected final ArrayList<WeakReference<char[]>> myArray =
-		new ArrayList<WeakReference<char[]>>();
+	public interface BlockConverter {
+		// converts a copy of the block in place, the block layout must not change
+		void convert(char[] block);
+	}
+
+	// blocks are 64K chars in native models, so 16 blocks take 2M
+	public static final int DEFAULT_CACHE_SIZE = 16;
+
+	// grows when blocks are appended to the storage
+	private volatile int myBlocksNumber;
+	private final LruCache<Integer,char[]> myCache;
+	private final LruCache<Integer,char[]> myConvertedCache;
+	private volatile BlockConverter myConverter;
 
 	private final String myDirectoryName;
 	private final String myFileExtension;
 
 	public CachedCharStorage(String directoryName, String fileExtension, int blocksNumber) {
+		this(directoryName, fileExtension, blocksNumber, DEFAULT_CACHE_SIZE);
+	}
+
+	/**
+	 * @param cacheSize number of recently used blocks kept in memory
+	 */
+	public CachedCharStorage(String directoryName, String fileExtension, int blocksNumber, int cacheSize) {
 		myDirectoryName = directoryName + '/';
 		myFileExtension = '.' + fileExtension;
-		myArray.addAll(Collections.nCopies(blocksNumber, new WeakReference<char[]>(null)));
+		myBlocksNumber = blocksNumber;
+		myCache = new LruCache<Integer,char[]>(Math.max(cacheSize, 1));
+		myConvertedCache = new LruCache<Integer,char[]>(Math.max(cacheSize, 1));
+	}
+
+	public synchronized void setConverter(BlockConverter converter) {
+		if (converter == myConverter) {
+			return;
+		}
+		myConverter = converter;
+		myConvertedCache.evictAll();
+	}
+
+	public BlockConverter getConverter() {
+		return myConverter;
 	}
 
 	private String fileName(int index) {
@@ -42,7 +76,7 @@ public final class CachedCharStorage {
 	}
 
 	public int size() {
-		return myArray.size();
+		return myBlocksNumber;
 	}
 
 	private String exceptionMessage(int index, String extra) {
@@ -68,34 +102,115 @@ public final class CachedCharStorage {
 		return buffer.toString();
 	}
 
+	/**
+	 * @return block as converted by the current converter, if any;
+	 * converted copies are built once and cached along with the originals
+	 */
 	public char[] block(int index) {
-		if (index < 0 || index >= myArray.size()) {
+		final BlockConverter converter = myConverter;
+		if (converter == null) {
+			return originalBlock(index);
+		}
+		if (index < 0 || index >= myBlocksNumber) {
+			return null;
+		}
+		char[] block = myConvertedCache.get(index);
+		if (block != null) {
+			return block;
+		}
+		final char[] original = originalBlock(index);
+		if (original == null) {
+			return null;
+		}
+		block = original.clone();
+		converter.convert(block);
+		synchronized (this) {
+			if (converter == myConverter) {
+				myConvertedCache.put(index, block);
+			}
+		}
+		return block;
+	}
+
+	public char[] originalBlock(int index) {
+		if (index < 0 || index >= myBlocksNumber) {
 			return null;
 		}
-		char[] block = myArray.get(index).get();
+		char[] block = myCache.get(index);
 		if (block == null) {
-			try {
-				File file = new File(fileName(index));
-				int size = (int)file.length();
-				if (size < 0) {
-					throw new CachedCharStorageException(exceptionMessage(index, "size = " + size));
-				}
-				block = new char[size / 2];
-				InputStreamReader reader =
-					new InputStreamReader(
-						new FileInputStream(file),
-						"UTF-16LE"
-					);
-				final int rd = reader.read(block);
-				if (rd != block.length) {
-					throw new CachedCharStorageException(exceptionMessage(index, "; " + rd + " != " + block.length));
+			block = readBlock(index);
+			myCache.put(index, block);
+		}
+		return block;
+	}
+
+	/**
+	 * Writes a new block next to the existing ones
+	 * @return index of the block
+	 */
+	public synchronized int appendBlock(char[] block) throws IOException {
+		final int index = myBlocksNumber;
+		final File file = new File(fileName(index));
+		final File tmp = new File(file.getPath() + ".tmp");
+		final ByteBuffer buffer = ByteBuffer.allocate(block.length * 2).order(ByteOrder.LITTLE_ENDIAN);
+		buffer.asCharBuffer().put(block);
+		final FileOutputStream stream = new FileOutputStream(tmp);
+		try {
+			final FileChannel channel = stream.getChannel();
+			while (buffer.hasRemaining()) {
+				channel.write(buffer);
+			}
+			stream.getFD().sync();
+		} finally {
+			stream.close();
+		}
+		if (!tmp.renameTo(file)) {
+			tmp.delete();
+			throw new IOException("Cannot write " + file);
+		}
+		myCache.put(index, block);
+		myBlocksNumber = index + 1;
+		return index;
+	}
+
+	/**
+	 * Makes the blocks written by appendBlock() earlier visible, up to given number
+	 * @return false if some of the blocks do not exist
+	 */
+	public synchronized boolean attachBlocks(int blocksNumber) {
+		for (int i = myBlocksNumber; i < blocksNumber; ++i) {
+			if (!new File(fileName(i)).exists()) {
+				return false;
+			}
+		}
+		myBlocksNumber = Math.max(myBlocksNumber, blocksNumber);
+		return true;
+	}
+
+	// decodes the whole UTF-16LE file at once through a read-only mapping
+	private char[] readBlock(int index) {
+		final File file = new File(fileName(index));
+		FileInputStream stream = null;
+		try {
+			stream = new FileInputStream(file);
+			final FileChannel channel = stream.getChannel();
+			final long size = channel.size();
+			if (size < 0 || size > Integer.MAX_VALUE) {
+				throw new CachedCharStorageException(exceptionMessage(index, "size = " + size));
+			}
+			final char[] block = new char[(int)size / 2];
+			channel.map(FileChannel.MapMode.READ_ONLY, 0, size)
+				.order(ByteOrder.LITTLE_ENDIAN).asCharBuffer().get(block);
+			return block;
+		} catch (IOException e) {
+			throw new CachedCharStorageException(exceptionMessage(index, null), e);
+		} finally {
+			if (stream != null) {
+				try {
+					stream.close();
+				} catch (IOException e) {
 				}
-				reader.close();
-			} catch (IOException e) {
-				throw new CachedCharStorageException(exceptionMessage(index, null), e);
 			}
-			myArray.set(index, new WeakReference<char[]>(block));
 		}
-		return block;
 	}
 }
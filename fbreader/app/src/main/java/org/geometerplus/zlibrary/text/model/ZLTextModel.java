@@ -22,13 +22,29 @@ package org.geometerplus.zlibrary.text.model;
 
 import java.util.List;
 
+import org.fbreader.util.Boolean3;
+
 import org.geometerplus.fbreader.book.Book;
 import org.geometerplus.fbreader.book.IBookCollection;
 
 public interface ZLTextModel {
+	enum GujiSaveResult {
+		// the book file is left intact
+		notSaved,
+		// the book file is saved, and the paragraph is replaced in the model
+		updated,
+		// the book file is saved, the book is to be read again
+		saved
+	}
+
 	String getId();
 	String getLanguage();
 
+	// TRUE for traditional, FALSE for simplified, UNDEFINED for source text;
+	// text is converted once per storage block, keeping text positions unchanged
+	Boolean3 getLanguageType();
+	void setLanguageType(Boolean3 languageType);
+
 	int getParagraphsNumber();
 	ZLTextParagraph getParagraph(int index);
 
@@ -46,5 +62,13 @@ public interface ZLTextModel {
 
 	void makeDictionary(IBookCollection<Book> Collection, Book book);
 	int search(final String text, int startIndex, int endIndex, boolean ignoreCase);
-	void saveGuji(Book book, int indexToModify, String newString);
+	// builds in background a paragraph index that makes search() scan only
+	// the paragraphs containing all n-grams of the pattern; the index is kept
+	// in given directory, that must belong to this model only
+	void enableSearchIndex(String directory);
+	// the directory passed to enableSearchIndex, other persistent caches
+	// of the model (and the paragraphs edited in place) are stored there too;
+	// null if there is no such directory
+	String getCacheDirectory();
+	GujiSaveResult saveGuji(Book book, int indexToModify, String newString);
 }
@@ -19,16 +19,27 @@
 
 package org.geometerplus.zlibrary.text.model;
 
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
 import java.io.BufferedWriter;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
 import java.io.FileOutputStream;
 import java.io.IOException;
 import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
 import java.util.*;
 import java.util.regex.Matcher;
 import java.util.regex.Pattern;
 
 import jopencc.util.ChineseConvertor;
 
+import org.fbreader.util.Boolean3;
+
 import org.geometerplus.fbreader.book.Book;
 import org.geometerplus.fbreader.book.IBookCollection;
 import org.geometerplus.fbreader.book.Word;
@@ -47,10 +58,22 @@ public final class ZLTextPlainModel implements ZLTextModel, ZLTextStyleEntry.Fea
 	private final String myId;
 	private final String myLanguage;
 
-	private int[] myStartEntryIndices;
-	private int[] myStartEntryOffsets;
-	private int[] myParagraphLengths;
-	private int[] myTextSizes;
+	// where the entries of each paragraph start and how many there are;
+	// replaced as a whole when a paragraph is edited in place
+	private static final class EntryTable {
+		final int[] StartIndices;
+		final int[] StartOffsets;
+		final int[] Lengths;
+
+		EntryTable(int[] startIndices, int[] startOffsets, int[] lengths) {
+			StartIndices = startIndices;
+			StartOffsets = startOffsets;
+			Lengths = lengths;
+		}
+	}
+
+	private volatile EntryTable myEntryTable;
+	private volatile int[] myTextSizes;
 	private byte[] myParagraphKinds;
 
 	private int myParagraphsNumber;
@@ -62,7 +85,16 @@ public final class ZLTextPlainModel implements ZLTextModel, ZLTextStyleEntry.Fea
 
 	private final FontManager myFontManager;
 
+	private Boolean3 myLanguageType = Boolean3.UNDEFINED;
+
+	private String mySearchIndexDirectory;
+	private volatile ZLTextSearchIndex mySearchIndex;
+	private volatile int mySearchIndexGeneration;
+
 	public final class EntryIteratorImpl implements ZLTextParagraph.EntryIterator {
+		// reads source text even if the model shows converted one
+		private final boolean myOriginal;
+
 		private int myCounter;
 		private int myLength;
 		private byte myType;
@@ -98,14 +130,24 @@ public final class ZLTextPlainModel implements ZLTextModel, ZLTextStyleEntry.Fea
 		private short myFixedHSpaceLength;
 
 		public EntryIteratorImpl(int index) {
+			this(index, false);
+		}
+
+		EntryIteratorImpl(int index, boolean original) {
+			myOriginal = original;
 			reset(index);
 		}
 
+		private char[] block(int index) {
+			return myOriginal ? myStorage.originalBlock(index) : myStorage.block(index);
+		}
+
 		public void reset(int index) {
+			final EntryTable table = myEntryTable;
 			myCounter = 0;
-			myLength = myParagraphLengths[index];
-			myDataIndex = myStartEntryIndices[index];
-			myDataOffset = myStartEntryOffsets[index];
+			myLength = table.Lengths[index];
+			myDataIndex = table.StartIndices[index];
+			myDataOffset = table.StartOffsets[index];
 		}
 
 		public byte getType() {
@@ -161,12 +203,12 @@ public final class ZLTextPlainModel implements ZLTextModel, ZLTextStyleEntry.Fea
 			}
 
 			int dataOffset = myDataOffset;
-			char[] data = myStorage.block(myDataIndex);
+			char[] data = block(myDataIndex);
 			if (data == null) {
 				return false;
 			}
 			if (dataOffset >= data.length) {
-				data = myStorage.block(++myDataIndex);
+				data = block(++myDataIndex);
 				if (data == null) {
 					return false;
 				}
@@ -175,7 +217,7 @@ public final class ZLTextPlainModel implements ZLTextModel, ZLTextStyleEntry.Fea
 			short first = (short)data[dataOffset];
 			byte type = (byte)first;
 			if (type == 0) {
-				data = myStorage.block(++myDataIndex);
+				data = block(++myDataIndex);
 				if (data == null) {
 					return false;
 				}
@@ -346,9 +388,7 @@ public final class ZLTextPlainModel implements ZLTextModel, ZLTextStyleEntry.Fea
 		myId = id;
 		myLanguage = language;
 		myParagraphsNumber = paragraphsNumber;
-		myStartEntryIndices = entryIndices;
-		myStartEntryOffsets = entryOffsets;
-		myParagraphLengths = paragraphLengths;
+		myEntryTable = new EntryTable(entryIndices, entryOffsets, paragraphLengths);
 		myTextSizes = textSizes;
 		myParagraphKinds = paragraphKinds;
 		myStorage = new CachedCharStorage(directoryName, fileExtension, blocksNumber);
@@ -404,72 +444,53 @@ public final class ZLTextPlainModel implements ZLTextModel, ZLTextStyleEntry.Fea
 		return mark;
 	}
 	public void makeDictionary(IBookCollection<Book> collection, Book book) {
-		int	startIndex = 0;
-		int	endIndex = myParagraphsNumber;
-		int index = startIndex;
-		
-//		List<Word> unknownWords = Library.Instance().unknownWords(book.getId());
-//    	if(unknownWords.size() >0) {
-//    		return;
-//    	}
-    	
-		final EntryIteratorImpl it = new EntryIteratorImpl(index);
-		LinkedHashMap<String, FileWord> map = new LinkedHashMap<String, FileWord>();
-		while (true) {
-			int offset = 0;
-			while (it.next()) {
-				//it.next();
-				if (it.getType() == ZLTextParagraph.Entry.TEXT) {
-					char[] textData = it.getTextData();
-					int textOffset = it.getTextOffset();
-					int textLength = it.getTextLength();
-					char[] textDataDst = new char[textLength + 1];
-					
-					System.arraycopy(textData, textOffset, textDataDst, 0, textLength);
-					
-					DictionaryParser.statisticsString(new String(textDataDst), map, index, book.getLanguage());
-					
-					offset += textLength;
+		final String language = book.getLanguage();
+		final LinkedHashMap<String, FileWord> map = new LinkedHashMap<String, FileWord>();
+		if (myParagraphsNumber > 0) {
+			final EntryIteratorImpl it = new EntryIteratorImpl(0, true);
+			for (int index = 0; index < myParagraphsNumber; ++index) {
+				it.reset(index);
+				while (it.next()) {
+					if (it.getType() == ZLTextParagraph.Entry.TEXT) {
+						DictionaryParser.statisticsText(
+							it.getTextData(), it.getTextOffset(), it.getTextLength(),
+							map, index, language
+						);
+					}
 				}
 			}
-			if (++index >= endIndex) {
-				break;
-			}
-			it.reset(index);
 		}
-		
-		List<Word> knownWords = collection.allKnownWords(book.getLanguage());
-        //new File(fileName+".csv").delete();
-        for(String word:map.keySet()) {
-			if(TextUtils.isEmpty(word)) {
-				continue;
+
+		final List<Word> knownWords = collection.allKnownWords(language);
+		final List<Word> newKnownWords = new ArrayList<Word>();
+		final List<Word> newUnknownWords = new ArrayList<Word>();
+		if (knownWords.isEmpty()) {
+			for (FileWord temp : map.values()) {
+				final Word w = new Word(book.getId(), language.toLowerCase(), temp.word, temp.frequency, temp.paragraphIndex, 0, 0);
+				if (temp.frequency >= 15) {
+					newKnownWords.add(w);
+				} else {
+					newUnknownWords.add(w);
+				}
 			}
-        	FileWord temp = map.get(word);
-        	//AppendToFile.appendMethodB(fileName+".csv", temp.toString());
-        	Word w = new Word(book.getId(), book.getLanguage().toLowerCase(), word, temp.frequency, temp.paragraphIndex, 0, 0);
-        	if(knownWords.size() == 0) {
-            	if(temp.frequency >= 15) {
-            		collection.saveToKnownWords(w);
-            	} else {
-            		collection.saveToUnknownWords(w);
-            	}
-        	} else {
-        		boolean isKnown = false;
-        		if(!book.getLanguage().equalsIgnoreCase(Hunspell.Language)) return;
-        		if(Hunspell.Instance(book.getLanguage()).spell(word) != 0) {
-	        		for(Word wo:knownWords) {
-	        			word = DictionaryParser.getRealWord(word, book.getLanguage());
-	        			if(word.equals(wo.getText().toLowerCase())) {
-	        				isKnown = true;
-	        				break;
-	        			}
-	        		}
-        		}
-        		if(!isKnown) {
-        			collection.saveToUnknownWords(w);
-        		}
-        	}
-        }
+		} else {
+			if (!language.equalsIgnoreCase(Hunspell.Language)) {
+				return;
+			}
+			final HashSet<String> knownTexts = DictionaryParser.wordTexts(knownWords);
+			final Hunspell hunspell = Hunspell.Instance(language);
+			for (FileWord temp : map.values()) {
+				boolean isKnown = false;
+				if (hunspell.spell(temp.word) != 0) {
+					final String realWord = DictionaryParser.getRealWord(temp.word, language);
+					isKnown = realWord != null && knownTexts.contains(realWord);
+				}
+				if (!isKnown) {
+					newUnknownWords.add(new Word(book.getId(), language.toLowerCase(), temp.word, temp.frequency, temp.paragraphIndex, 0, 0));
+				}
+			}
+		}
+		collection.saveWords(newKnownWords, newUnknownWords);
 	}
 
 	public static String[] splitGujiYuan(String strYuan) {
@@ -727,103 +748,291 @@ public final class ZLTextPlainModel implements ZLTextModel, ZLTextStyleEntry.Fea
 	    return result;
 	}
 	
-	public final void saveGuji(Book book, int indexToModify, String newString) {
-		int	startIndex = 0;
-		int	endIndex = myParagraphsNumber;
-		int index = startIndex;
-		
+	// opening tags of the guji markup for the kinds with no special handling;
+	// such a kind is closed with a single '}'
+	private static final String[] GUJI_TAGS = new String[256];
+	static {
+		GUJI_TAGS[FBTextKind.GUJI_TRANSLATION] = "|{";
+		GUJI_TAGS[FBTextKind.GUJI_ANNOTATION] = "\\anno{";
+		GUJI_TAGS[FBTextKind.GUJI_COMMENT] = "\\com{";
+		GUJI_TAGS[FBTextKind.GUJI_SUBSCRIPT] = "\\sub{";
+		GUJI_TAGS[FBTextKind.GUJI_SUBTITLE] = "\\subt{";
+		GUJI_TAGS[FBTextKind.GUJI_CR] = "\\cr{";
+		GUJI_TAGS[FBTextKind.GUJI_PARAGRAPHMARK] = "\\pm{";
+		GUJI_TAGS[FBTextKind.GUJI_AUTHOR] = "\\author{";
+		GUJI_TAGS[FBTextKind.GUJI_TITLEANNOTATION] = "\\tanno{";
+		GUJI_TAGS[FBTextKind.GUJI_SECTIONTITLE1] = "\\sec1{";
+		GUJI_TAGS[FBTextKind.GUJI_SECTIONTITLE2] = "\\sec2{";
+		GUJI_TAGS[FBTextKind.GUJI_SECTIONTITLE3] = "\\sec3{";
+		GUJI_TAGS[FBTextKind.GUJI_SECTIONTITLE4] = "\\sec4{";
+		GUJI_TAGS[FBTextKind.GUJI_SUPERSCRIPT] = "\\sup{";
+		GUJI_TAGS[FBTextKind.H1] = "\\h1{";
+		GUJI_TAGS[FBTextKind.H2] = "\\h2{";
+		GUJI_TAGS[FBTextKind.H3] = "\\h3{";
+		GUJI_TAGS[FBTextKind.H4] = "\\h4{";
+	}
+
+	private static boolean endsWith(StringBuilder builder, String suffix) {
+		final int start = builder.length() - suffix.length();
+		return start >= 0 && builder.indexOf(suffix, start) == start;
+	}
+
+	private static final String GUJI_EDITS_FILE = "guji.edits";
+	private static final int GUJI_EDITS_MAGIC = 0x47454454;
+	private static final int GUJI_EDITS_VERSION = 1;
+
+	/**
+	 * Writes the book text back to the book file, with the paragraph
+	 * replaced by new string. An edit that changes the paragraph only is
+	 * spliced into the source byte range of the paragraph, other edits
+	 * (and books with unknown ranges) rewrite the whole text from the model.
+	 * The text is written to a temporary file, that replaces the book file
+	 * only when it is completely written and synced, so a failure in the
+	 * middle of saving leaves the book intact.
+	 * A spliced line that makes a paragraph of its own is also put into
+	 * this model, and logged in the cache directory for the next opening.
+	 */
+	public final GujiSaveResult saveGuji(Book book, int indexToModify, String newString) {
+		final File file = new File(book.getPath());
+		final File tmp = new File(file.getPath() + ".tmp");
+		final String directory = getCacheDirectory();
+		final File rangesFile = directory != null ? new File(directory, GujiRanges.FILE) : null;
+		GujiRanges ranges = null;
+		long[] range = null;
+		String line = null;
+		FileOutputStream stream = null;
 		try {
-			FileOutputStream file = new FileOutputStream(book.getPath(), false);
-			BufferedWriter out = new BufferedWriter(new OutputStreamWriter(file,"utf-8"));
-//			out.write("\\title{");
-//			out.write(book.getTitle());
-//			out.write("}\n");
-			final EntryIteratorImpl it = new EntryIteratorImpl(index);
-			boolean isChapterEnd = false;
-			boolean isTitleEnd = false;
-			ArrayList<String> extraLines = new ArrayList<String>();
-			String lastString = "";
-			String lastYiString = "";
-			String replacePre = "";
-			String replacePost = "";
-			while (true) {
-				int offset = 0;
-				if(indexToModify == index) {
-					if(isTitleEnd) {
-						isTitleEnd = false;
-						out.write("}\n");
+			if (rangesFile != null && isLocalGujiEdit(newString)) {
+				ranges = GujiRanges.read(rangesFile, file.length());
+				range = ranges != null ? ranges.find(indexToModify) : null;
+			}
+			stream = new FileOutputStream(tmp);
+			if (range != null) {
+				line = editedGuji(newString);
+				if (!line.endsWith("\n")) {
+					line += "\n";
+				}
+				final byte[] bytes = line.getBytes("utf-8");
+				spliceGuji(file, stream.getChannel(), range[0], range[1], bytes);
+				ranges.replace(indexToModify, bytes.length);
+			} else {
+				final BufferedWriter out = new BufferedWriter(new OutputStreamWriter(stream, "utf-8"), 64 * 1024);
+				writeGuji(out, indexToModify, newString);
+				out.flush();
+			}
+			stream.getFD().sync();
+			stream.close();
+			stream = null;
+			if (!tmp.renameTo(file)) {
+				throw new IOException("Cannot replace " + file);
+			}
+		} catch (IOException e) {
+			// the book file and its ranges are left intact
+			return GujiSaveResult.notSaved;
+		} finally {
+			if (stream != null) {
+				try {
+					stream.close();
+				} catch (IOException e) {
+				}
+			}
+			tmp.delete();
+		}
+
+		if (range != null && updateGujiParagraph(directory, indexToModify, line)) {
+			try {
+				ranges.write(rangesFile);
+				return GujiSaveResult.updated;
+			} catch (IOException e) {
+			}
+		}
+		if (rangesFile != null) {
+			// the ranges are written again when the saved book is read
+			rangesFile.delete();
+		}
+		return GujiSaveResult.saved;
+	}
+
+	/**
+	 * Source byte ranges of the paragraphs that are lines of their own,
+	 * as written by the native guji reader (GujiBookReader::writeSourceRanges)
+	 */
+	private static final class GujiRanges {
+		static final String FILE = "guji.ranges";
+		private static final int MAGIC = 0x47524E47;
+		private static final int VERSION = 2;
+
+		private long mySourceLength;
+		// paragraph index, start and end of its line; sorted by paragraph index
+		private final int[] myData;
+
+		private GujiRanges(long sourceLength, int[] data) {
+			mySourceLength = sourceLength;
+			myData = data;
+		}
+
+		/**
+		 * @return the ranges, or null if they are unknown or stale
+		 */
+		static GujiRanges read(File file, long sourceLength) {
+			if (!file.exists()) {
+				return null;
+			}
+			DataInputStream in = null;
+			try {
+				in = new DataInputStream(new BufferedInputStream(new FileInputStream(file), 65536));
+				if (in.readInt() != MAGIC || in.readInt() != VERSION) {
+					return null;
+				}
+				if (in.readLong() != sourceLength) {
+					return null;
+				}
+				final int count = in.readInt();
+				if (count < 0 || count > (file.length() - 20) / 12) {
+					return null;
+				}
+				final int[] data = new int[3 * count];
+				for (int i = 0; i < data.length; ++i) {
+					data[i] = in.readInt();
+				}
+				return new GujiRanges(sourceLength, data);
+			} catch (IOException e) {
+				return null;
+			} finally {
+				if (in != null) {
+					try {
+						in.close();
+					} catch (IOException e) {
 					}
-					if(isChapterEnd) {
-						isChapterEnd = false;
-						out.write("}\n");
+				}
+			}
+		}
+
+		private int position(int paragraphIndex) {
+			for (int i = 0; i < myData.length; i += 3) {
+				if (myData[i] == paragraphIndex) {
+					final int start = myData[i + 1];
+					final int end = myData[i + 2];
+					return 0 <= start && start <= end && end <= mySourceLength ? i : -1;
+				} else if (myData[i] > paragraphIndex) {
+					break;
+				}
+			}
+			return -1;
+		}
+
+		/**
+		 * @return source byte range {start, end} of the paragraph, or null
+		 * if the paragraph is not a line of its own
+		 */
+		long[] find(int paragraphIndex) {
+			final int i = position(paragraphIndex);
+			return i != -1 ? new long[] { myData[i + 1], myData[i + 2] } : null;
+		}
+
+		// the line of the paragraph is replaced by the given number of bytes
+		void replace(int paragraphIndex, int length) {
+			final int i = position(paragraphIndex);
+			if (i == -1) {
+				return;
+			}
+			final int delta = myData[i + 1] + length - myData[i + 2];
+			myData[i + 2] += delta;
+			for (int j = i + 3; j < myData.length; j += 3) {
+				myData[j + 1] += delta;
+				myData[j + 2] += delta;
+			}
+			mySourceLength += delta;
+		}
+
+		void write(File file) throws IOException {
+			final File tmp = new File(file.getPath() + ".tmp");
+			final FileOutputStream stream = new FileOutputStream(tmp);
+			try {
+				final DataOutputStream out = new DataOutputStream(new BufferedOutputStream(stream, 65536));
+				out.writeInt(MAGIC);
+				out.writeInt(VERSION);
+				out.writeLong(mySourceLength);
+				out.writeInt(myData.length / 3);
+				for (int value : myData) {
+					out.writeInt(value);
+				}
+				out.flush();
+			} finally {
+				stream.close();
+			}
+			if (!tmp.renameTo(file)) {
+				tmp.delete();
+				throw new IOException("Cannot write " + file);
+			}
+		}
+	}
+
+	private static void spliceGuji(File file, FileChannel target, long start, long end, byte[] text) throws IOException {
+		final FileInputStream in = new FileInputStream(file);
+		try {
+			final FileChannel source = in.getChannel();
+			transfer(source, 0, start, target);
+			final ByteBuffer buffer = ByteBuffer.wrap(text);
+			while (buffer.hasRemaining()) {
+				target.write(buffer);
+			}
+			transfer(source, end, source.size() - end, target);
+		} finally {
+			in.close();
+		}
+	}
+
+	private static void transfer(FileChannel source, long position, long count, FileChannel target) throws IOException {
+		while (count > 0) {
+			final long transferred = source.transferTo(position, count, target);
+			if (transferred <= 0) {
+				throw new IOException("Unexpected end of file");
+			}
+			position += transferred;
+			count -= transferred;
+		}
+	}
+
+	// the new text of the edited paragraph, for the edits that change that paragraph only
+	private String editedGuji(String newString) {
+		if(newString.indexOf("|a") > -1) {
+			String[] lines = newString.split("\\|a");//将一行截断，并把截断的放入新的一行
+			newString = lines[0];
+			newString = recompositeGuji(newString);
+			if(lines.length > 1)
+				for(int i = 1; i < lines.length; i++) {
+					newString +=  lines[i];
+				}
+			if(!newString.endsWith("\n")) {
+				newString +="\n";
+			}
+			return newString;
+		} else if(newString.startsWith("|f")) {//简体转换成繁体
+			newString = newString.substring(2);
+			StringBuilder str = new StringBuilder();
+			for(int i =0; i< newString.length(); i++) {
+				if(newString.charAt(i) == '|' && (i+1) < newString.length() && newString.charAt(i+1) == '{') {
+					int pos = newString.indexOf("}", i + 1);
+					if(pos > -1) {
+						str.append(ChineseConvertor.convertToZht(newString.substring(i, pos + 1)));
+						i = pos;
+					} else {
+						str.append(newString.charAt(i));
 					}
-					extraLines.clear();
-					if(newString.indexOf("|a") > -1) {
-						String[] lines = newString.split("\\|a");//将一行截断，并把截断的放入新的一行
-						newString = lines[0];
-						newString = recompositeGuji(newString);
-						if(lines.length > 1)
-							for(int i = 1; i < lines.length; i++) {
-								newString +=  lines[i];
-							}
-						if(!newString.endsWith("\n")) {
-							newString +="\n";
-						}
-						out.write(newString);
-					} else if(newString.startsWith("|c")) {//保留译文，将原文放后段
-						newString = newString.substring(2);
-						String yuan = extractGujiFromString(newString);
-						String yi = extractTranslationFromString(newString);
-						if(yi.length()>0) {
-							out.write(yi+"\n");
-						}
-						lastString = yuan;
-					} else if(newString.startsWith("|t")) {//保留原文，将译文放后段
-						newString = newString.substring(2);
-						String yuan = extractGujiFromString(newString);
-						String yi = extractTranslationFromString(newString);
-						if(yuan.trim().length()>0) {
-							out.write(yuan.trim()+"\n");
-						}
-						lastYiString = yi;
-					} else if(newString.startsWith("|r")) {
-						newString = newString.substring(2);
-						int pos = newString.indexOf(";;;");
-						replacePre = newString.substring(0, pos);
-						newString = newString.substring(pos + 3);
-						pos = newString.indexOf(";;;");
-						replacePost = newString.substring(0, pos);
-						newString = newString.substring(pos + 3);
-						newString = newString.replaceAll(replacePre, replacePost);
-						if(!newString.endsWith("\n")) {
-							newString +="\n";
-						}
-						out.write(newString);
-					} else if(newString.startsWith("|f")) {//简体转换成繁体
-						newString = newString.substring(2);
-						StringBuilder str = new StringBuilder();
-						for(int i =0; i< newString.length(); i++) {
-							if(newString.charAt(i) == '|' && (i+1) < newString.length() && newString.charAt(i+1) == '{') {
-								int pos = newString.indexOf("}", i + 1);
-								if(pos > -1) {
-									str.append(ChineseConvertor.convertToZht(newString.substring(i, pos + 1)));
-									i = pos;
-								} else {
-									str.append(newString.charAt(i));
-								}
-							} else if(newString.charAt(i) == '\\' && (i+5) < newString.length() 
-									&& newString.substring(i, i+6).equals("\\anno{")){
-								int pos = newString.indexOf("}", i + 1);
-								if(pos > -1) {
-									str.append(ChineseConvertor.convertToZht(newString.substring(i, pos + 1)));
-									i=pos;
-								} else {
-									str.append(newString.charAt(i));
-								}
-							} else {
-								str.append(newString.charAt(i));
-							}
-						}
+				} else if(newString.charAt(i) == '\\' && (i+5) < newString.length() 
+						&& newString.substring(i, i+6).equals("\\anno{")){
+					int pos = newString.indexOf("}", i + 1);
+					if(pos > -1) {
+						str.append(ChineseConvertor.convertToZht(newString.substring(i, pos + 1)));
+						i=pos;
+					} else {
+						str.append(newString.charAt(i));
+					}
+				} else {
+					str.append(newString.charAt(i));
+				}
+			}
 //						Pattern p = Pattern.compile("\\\\sub\\{[^}]*\\}");
 //					    Matcher m = p.matcher(newString);
 //					    int startSubIndex = 0;
@@ -842,293 +1051,664 @@ public final class ZLTextPlainModel implements ZLTextModel, ZLTextStyleEntry.Fea
 //					    	str.append(newString.substring(endSubIndex));
 //					    	newString = str.toString();
 //					    }
-						newString = str.toString();
-						if(!newString.endsWith("\n")) {
-							newString +="\n";
-						}
-						out.write(newString);
-					} else {
-						String[] lines = newString.split("\\|n");//从所在处断行，并将所断文本放入下一行并重新composite
-						newString = lines[0];
-						newString = recompositeGuji(newString);
-						
-						if(lines.length > 1)
-						for(int i = 1; i < lines.length; i++) {
-							if(lines[i].endsWith("\n")) lines[i] = lines[i].substring(0, lines[i].length()-1);
-							extraLines.add(lines[i]);
-						}
-						out.write(newString);
+			newString = str.toString();
+			if(!newString.endsWith("\n")) {
+				newString +="\n";
+			}
+			return newString;
+		} else {
+			return recompositeGuji(newString);
+		}
+	}
+
+	private static boolean isLocalGujiEdit(String newString) {
+		if(newString.indexOf("|a") > -1) {
+			return true;
+		}
+		// translations are moved to, and replacements and line breaks are applied to, the next paragraphs
+		return !newString.startsWith("|c") && !newString.startsWith("|t") &&
+			!newString.startsWith("|r") && newString.indexOf("|n") == -1;
+	}
+
+	/**
+	 * Builds the entries of a paragraph from its source line, as the native
+	 * guji reader does for a line that starts with no open kinds
+	 * @param counts receives the number of entries and the text length
+	 * @return the entries, or null if the line does not make a paragraph
+	 * of its own: for several lines, titles and sections, unbalanced kinds
+	 */
+	private static char[] gujiParagraphEntries(String line, int[] counts) {
+		if (line.indexOf('\n') != line.length() - 1 || line.indexOf('\r') != -1 ||
+			line.startsWith("\\title{") || line.startsWith("\\section{") ||
+			line.startsWith("\\endSection") || line.indexOf("\\cent{") != -1) {
+			return null;
+		}
+		final StringBuilder entries = new StringBuilder(line.length() + 16);
+		final StringBuilder text = new StringBuilder();
+		final byte[] kinds = new byte[line.length()];
+		int depth = 0;
+		boolean isEmpty = true;
+		for (int i = 0; i < line.length(); ) {
+			char c = line.charAt(i);
+			if (c >= '\uD800' && c <= '\uDFFF') {
+				// the native reader has no surrogate pairs
+				return null;
+			}
+			if (c == '}') {
+				if (depth == 0) {
+					return null;
+				}
+				flushGujiText(entries, text, counts);
+				addGujiControl(entries, kinds[--depth], false, counts);
+				++i;
+				continue;
+			}
+			if (c == '|' || c == '\\') {
+				final int kind = gujiTagKind(line, i);
+				if (kind != -1) {
+					flushGujiText(entries, text, counts);
+					addGujiControl(entries, (byte)kind, true, counts);
+					kinds[depth++] = (byte)kind;
+					i += GUJI_TAGS[kind].length();
+					continue;
+				}
+			}
+			switch (c) {
+				case ' ':
+				case '\t':
+				case '\n':
+					break;
+				case '\u000B':
+				case '\f':
+					c = ' ';
+					break;
+				default:
+					isEmpty = false;
+					break;
+			}
+			text.append(c);
+			++i;
+		}
+		if (depth != 0) {
+			return null;
+		}
+		if (isEmpty) {
+			// a blank line makes an empty paragraph
+			counts[0] = 0;
+			counts[1] = 0;
+			return new char[0];
+		}
+		flushGujiText(entries, text, counts);
+		final char[] data = new char[entries.length()];
+		entries.getChars(0, data.length, data, 0);
+		return data;
+	}
+
+	private static int gujiTagKind(String line, int offset) {
+		for (int kind = 0; kind < GUJI_TAGS.length; ++kind) {
+			if (GUJI_TAGS[kind] != null && line.startsWith(GUJI_TAGS[kind], offset)) {
+				return kind;
+			}
+		}
+		return -1;
+	}
+
+	// entries are laid out as ZLTextModel::addText and addControl (native) write them
+	private static void flushGujiText(StringBuilder entries, StringBuilder text, int[] counts) {
+		final int length = text.length();
+		if (length == 0) {
+			return;
+		}
+		entries.append((char)ZLTextParagraph.Entry.TEXT);
+		entries.append((char)(length & 0xFFFF));
+		entries.append((char)(length >>> 16));
+		entries.append(text);
+		text.setLength(0);
+		++counts[0];
+		counts[1] += length;
+	}
+
+	private static void addGujiControl(StringBuilder entries, byte kind, boolean isStart, int[] counts) {
+		entries.append((char)ZLTextParagraph.Entry.CONTROL);
+		entries.append((char)((kind & 0xFF) | (isStart ? 0x0100 : 0)));
+		++counts[0];
+	}
+
+	/**
+	 * Replaces the paragraph by the entries of its new source line;
+	 * the entries are stored in a block of their own, and the edit is logged
+	 * in the cache directory to be applied again when the cached model is read
+	 * @return false if the book is to be read again instead
+	 */
+	private boolean updateGujiParagraph(String directory, int index, String line) {
+		final int[] counts = new int[2];
+		final char[] entries = gujiParagraphEntries(line, counts);
+		if (entries == null) {
+			return false;
+		}
+		final File log = new File(directory, GUJI_EDITS_FILE);
+		final int blockIndex;
+		try {
+			blockIndex = myStorage.appendBlock(entries);
+			final ByteBuffer record = ByteBuffer.allocate(24);
+			if (!log.exists()) {
+				record.putInt(GUJI_EDITS_MAGIC).putInt(GUJI_EDITS_VERSION);
+			}
+			record.putInt(index).putInt(blockIndex).putInt(counts[0]).putInt(counts[1]);
+			final FileOutputStream stream = new FileOutputStream(log, true);
+			try {
+				stream.write(record.array(), 0, record.position());
+				stream.getFD().sync();
+			} finally {
+				stream.close();
+			}
+		} catch (IOException e) {
+			return false;
+		}
+		replaceParagraph(index, blockIndex, counts[0], counts[1]);
+		resetSearchIndex(directory);
+		return true;
+	}
+
+	private synchronized void replaceParagraph(int index, int blockIndex, int entriesNumber, int textLength) {
+		final EntryTable table = myEntryTable;
+		final int[] startIndices = table.StartIndices.clone();
+		final int[] startOffsets = table.StartOffsets.clone();
+		final int[] lengths = table.Lengths.clone();
+		startIndices[index] = blockIndex;
+		startOffsets[index] = 0;
+		lengths[index] = entriesNumber;
+		myEntryTable = new EntryTable(startIndices, startOffsets, lengths);
+
+		final int[] textSizes = myTextSizes.clone();
+		final int delta = textLength - textSizes[index] + (index > 0 ? textSizes[index - 1] : 0);
+		for (int i = index; i < textSizes.length; ++i) {
+			textSizes[i] += delta;
+		}
+		myTextSizes = textSizes;
+	}
+
+	// applies the edits logged by updateGujiParagraph() to the model read from the cache
+	private void applyGujiEdits(String directory) {
+		final File log = new File(directory, GUJI_EDITS_FILE);
+		if (!log.exists()) {
+			return;
+		}
+		DataInputStream in = null;
+		try {
+			in = new DataInputStream(new BufferedInputStream(new FileInputStream(log)));
+			if (in.readInt() != GUJI_EDITS_MAGIC || in.readInt() != GUJI_EDITS_VERSION) {
+				return;
+			}
+			while (true) {
+				final int index = in.readInt();
+				final int blockIndex = in.readInt();
+				final int entriesNumber = in.readInt();
+				final int textLength = in.readInt();
+				if (index < 0 || index >= myParagraphsNumber || !myStorage.attachBlocks(blockIndex + 1)) {
+					return;
+				}
+				replaceParagraph(index, blockIndex, entriesNumber, textLength);
+			}
+		} catch (IOException e) {
+			// end of the log
+		} finally {
+			if (in != null) {
+				try {
+					in.close();
+				} catch (IOException e) {
+				}
+			}
+		}
+	}
+
+	private void writeGuji(Writer out, int indexToModify, String newString) throws IOException {
+		final int endIndex = myParagraphsNumber;
+		int index = 0;
+
+		final EntryIteratorImpl it = new EntryIteratorImpl(index, true);
+		final StringBuilder text = new StringBuilder();
+		boolean isChapterEnd = false;
+		boolean isTitleEnd = false;
+		ArrayList<String> extraLines = new ArrayList<String>();
+		String lastString = "";
+		String lastYiString = "";
+		String replacePre = "";
+		String replacePost = "";
+		while (true) {
+			if(indexToModify == index) {
+				if(isTitleEnd) {
+					isTitleEnd = false;
+					out.write("}\n");
+				}
+				if(isChapterEnd) {
+					isChapterEnd = false;
+					out.write("}\n");
+				}
+				extraLines.clear();
+				if(newString.indexOf("|a") > -1) {
+					out.write(editedGuji(newString));
+				} else if(newString.startsWith("|c")) {//保留译文，将原文放后段
+					newString = newString.substring(2);
+					String yuan = extractGujiFromString(newString);
+					String yi = extractTranslationFromString(newString);
+					if(yi.length()>0) {
+						out.write(yi+"\n");
 					}
-				} else { //else for if(indexToModify == index) {
-					String extraLine = "";
-					if(extraLines.size() > 0) {
-						extraLine = extraLines.get(0);
-						extraLines.remove(0);
+					lastString = yuan;
+				} else if(newString.startsWith("|t")) {//保留原文，将译文放后段
+					newString = newString.substring(2);
+					String yuan = extractGujiFromString(newString);
+					String yi = extractTranslationFromString(newString);
+					if(yuan.trim().length()>0) {
+						out.write(yuan.trim()+"\n");
 					}
+					lastYiString = yi;
+				} else if(newString.startsWith("|r")) {
+					newString = newString.substring(2);
+					int pos = newString.indexOf(";;;");
+					replacePre = newString.substring(0, pos);
+					newString = newString.substring(pos + 3);
+					pos = newString.indexOf(";;;");
+					replacePost = newString.substring(0, pos);
+					newString = newString.substring(pos + 3);
+					newString = newString.replaceAll(replacePre, replacePost);
+					if(!newString.endsWith("\n")) {
+						newString +="\n";
+					}
+					out.write(newString);
+				} else if(newString.startsWith("|f")) {//简体转换成繁体
+					out.write(editedGuji(newString));
+				} else {
+					String[] lines = newString.split("\\|n");//从所在处断行，并将所断文本放入下一行并重新composite
+					newString = lines[0];
+					newString = recompositeGuji(newString);
 					
-					String result="";
-					if(myParagraphKinds[index] == ZLTextParagraph.Kind.END_OF_SECTION_PARAGRAPH) {
-						if(!TextUtils.isEmpty(lastString)) {
-							out.write(lastString+"\n");
-							lastString = "";
-						}
-						if(!TextUtils.isEmpty(lastYiString)) {
-							out.write("|{"+lastYiString+"}\n");
-							lastYiString = "";
-						}
-						result += "\\endSection\n";
-					} else {
-						while (it.next()) {
-							if (it.getType() == ZLTextParagraph.Entry.TEXT) {
-								{
-									char[] textData = it.getTextData();
-									int textOffset = it.getTextOffset();
-									int textLength = it.getTextLength();
-									char[] textDataDst = new char[textLength];
-									
-									System.arraycopy(textData, textOffset, textDataDst, 0, textLength);
-									result+=new String(textDataDst);
-									offset += textLength;
-								}
-							} else if (it.getType() == ZLTextParagraph.Entry.CONTROL) {
-								if(it.myControlIsStart) {
-									switch(it.myControlKind) {
-									case FBTextKind.TITLE:
-										result+="\\title{";
-										isTitleEnd = true;
-										break;
-									case FBTextKind.CONTENTS_TABLE_ENTRY:
-										if(!TextUtils.isEmpty(lastString)) {
-											out.write(lastString+"\n");
-											lastString = "";
-										}
-										if(!TextUtils.isEmpty(lastYiString)) {
-											out.write("|{"+lastYiString+"}\n");
-											lastYiString = "";
-										}
-										result += "\\endSection\n";
-										break;
-									case FBTextKind.GUJI_TRANSLATION:
-										result+="|{";
-										break;
-									case FBTextKind.GUJI_ANNOTATION:
-										result+="\\anno{";
-										break;
-									case FBTextKind.GUJI_COMMENT:
-										result+="\\com{";
-										break;
-									case FBTextKind.GUJI_SUBSCRIPT:
-										result+="\\sub{";
-										break;
-									case FBTextKind.GUJI_SUBTITLE:
-										result+="\\subt{";
-										break;
-									case FBTextKind.GUJI_CR:
-										result+="\\cr{";
-										break;
-									case FBTextKind.GUJI_PARAGRAPHMARK:
-										result+="\\pm{";
-										break;
-									case FBTextKind.GUJI_AUTHOR:
-										result+="\\author{";
-										break;
-									case FBTextKind.GUJI_TITLEANNOTATION:
-										result+="\\tanno{";
-										break;
-									case FBTextKind.GUJI_SECTIONTITLE1:
-										result+="\\sec1{";
-										break;
-									case FBTextKind.GUJI_SECTIONTITLE2:
-										result+="\\sec2{";
-										break;
-									case FBTextKind.GUJI_SECTIONTITLE3:
-										result+="\\sec3{";
-										break;
-									case FBTextKind.GUJI_SECTIONTITLE4:
-										result+="\\sec4{";
-										break;
-									case FBTextKind.GUJI_SUPERSCRIPT:
-										result+="\\sup{";
-										break;
-									case FBTextKind.H1:
-										result+="\\h1{";
-										break;
-									case FBTextKind.H3:
-										result+="\\h3{";
-										break;
-									case FBTextKind.H2:
-										result+="\\h2{";
-										break;
-									case FBTextKind.H4:
-										result+="\\h4{";
-										break;
-									case FBTextKind.GUJI_SECTIONTITLE:
-										if(!TextUtils.isEmpty(lastString)) {
-											out.write(lastString+"\n");
-											lastString = "";
-										}
-										if(!TextUtils.isEmpty(lastYiString)) {
-											out.write("|{"+lastYiString+"}\n");
-											lastYiString = "";
-										}
-										result+="\\section{";
+					if(lines.length > 1)
+					for(int i = 1; i < lines.length; i++) {
+						if(lines[i].endsWith("\n")) lines[i] = lines[i].substring(0, lines[i].length()-1);
+						extraLines.add(lines[i]);
+					}
+					out.write(newString);
+				}
+			} else { //else for if(indexToModify == index) {
+				String extraLine = "";
+				if(extraLines.size() > 0) {
+					extraLine = extraLines.get(0);
+					extraLines.remove(0);
+				}
+
+				text.setLength(0);
+				if(myParagraphKinds[index] == ZLTextParagraph.Kind.END_OF_SECTION_PARAGRAPH) {
+					if(!TextUtils.isEmpty(lastString)) {
+						out.write(lastString+"\n");
+						lastString = "";
+					}
+					if(!TextUtils.isEmpty(lastYiString)) {
+						out.write("|{"+lastYiString+"}\n");
+						lastYiString = "";
+					}
+					text.append("\\endSection\n");
+				} else {
+					while (it.next()) {
+						if (it.getType() == ZLTextParagraph.Entry.TEXT) {
+							text.append(it.getTextData(), it.getTextOffset(), it.getTextLength());
+						} else if (it.getType() == ZLTextParagraph.Entry.CONTROL) {
+							final byte kind = it.myControlKind;
+							if(it.myControlIsStart) {
+								switch(kind) {
+								case FBTextKind.TITLE:
+									text.append("\\title{");
+									isTitleEnd = true;
+									break;
+								case FBTextKind.CONTENTS_TABLE_ENTRY:
+								case FBTextKind.GUJI_SECTIONTITLE:
+									if(!TextUtils.isEmpty(lastString)) {
+										out.write(lastString+"\n");
+										lastString = "";
+									}
+									if(!TextUtils.isEmpty(lastYiString)) {
+										out.write("|{"+lastYiString+"}\n");
+										lastYiString = "";
+									}
+									if(kind == FBTextKind.CONTENTS_TABLE_ENTRY) {
+										text.append("\\endSection\n");
+									} else {
+										text.append("\\section{");
 										isChapterEnd = true;
-										break;
 									}
-								} else {
-									switch(it.myControlKind) {
-									case FBTextKind.GUJI_TRANSLATION:
-										result+="}";
-										break;
-									case FBTextKind.GUJI_ANNOTATION:
-										result+="}";
-										break;
-									case FBTextKind.GUJI_COMMENT:
-										result+="}";
-										break;
-									case FBTextKind.GUJI_SUBSCRIPT:
-										result+="}";
-										break;
-									case FBTextKind.GUJI_SUBTITLE:
-										result+="}";
-										break;
-									case FBTextKind.GUJI_CR:
-										result+="}";
-										break;
-									case FBTextKind.GUJI_PARAGRAPHMARK:
-										result+="}";
-										break;
-									case FBTextKind.GUJI_AUTHOR:
-										result+="}";
-										break;
-									case FBTextKind.GUJI_TITLEANNOTATION:
-										result+="}";
-										break;
-									case FBTextKind.GUJI_SECTIONTITLE1:
-										result+="}";
-										break;
-									case FBTextKind.GUJI_SECTIONTITLE2:
-										result+="}";
-										break;
-									case FBTextKind.GUJI_SECTIONTITLE3:
-										result+="}";
-										break;
-									case FBTextKind.GUJI_SECTIONTITLE4:
-										result+="}";
-										break;
-									case FBTextKind.GUJI_SUPERSCRIPT:
-										result+="}";
-										break;
-									case FBTextKind.H3:
-										result+="}";
-										break;
-									case FBTextKind.H2:
-										result+="}";
-										break;
-									case FBTextKind.H1:
-										result+="}";
-										break;
-									case FBTextKind.H4:
-										result+="}";
-										break;
-									case FBTextKind.GUJI_SECTIONTITLE:
-										result+="}\n";
-										break;
-									case FBTextKind.TITLE:
-										result+="}\n";
-										break;
+									break;
+								default:
+									if(GUJI_TAGS[kind & 0xFF] != null) {
+										text.append(GUJI_TAGS[kind & 0xFF]);
 									}
-									
+									break;
+								}
+							} else {
+								if(kind == FBTextKind.GUJI_SECTIONTITLE || kind == FBTextKind.TITLE) {
+									text.append("}\n");
+								} else if(GUJI_TAGS[kind & 0xFF] != null) {
+									text.append('}');
 								}
 							}
-						}//end while(it.hasnext())
-					}
-					if(isTitleEnd) {
-						isTitleEnd = false;
-						if(!result.endsWith("}\n")) {
-							result+="}\n";
 						}
 					}
-					if(isChapterEnd) {
-						isChapterEnd = false;
-						if(!result.endsWith("}\n")) {
-							result+="}\n";
+				}
+				if(isTitleEnd) {
+					isTitleEnd = false;
+					if(!endsWith(text, "}\n")) {
+						text.append("}\n");
+					}
+				}
+				if(isChapterEnd) {
+					isChapterEnd = false;
+					if(!endsWith(text, "}\n")) {
+						text.append("}\n");
+					}
+				}
+				String result = text.toString();
+				if(!TextUtils.isEmpty(replacePre)) {
+					result = result.replaceAll(replacePre, replacePost);
+					if(!result.endsWith("\n")) {
+						result +="\n";
+					}
+				} else if(!TextUtils.isEmpty(lastYiString)) {
+					String yuan = extractGujiFromString(result);
+					String yi = extractTranslationFromString(result);
+					result = combineGujiYuanAndTranslation(yuan.trim(), lastYiString) +"\n";
+					lastYiString = yi.trim();
+				} else if(!TextUtils.isEmpty(lastString)) {
+					String yuan = extractGujiFromString(result);
+					String yi = extractTranslationFromString(result);
+					result = combineGujiYuanAndTranslation(lastString, yi) +"\n";
+					lastString = yuan.trim();
+				} else if(extraLine.length() > 0) {
+					result = extraLine+result;
+					String yuan = extractGujiFromString(result);
+					String yi = extractTranslationFromString(result);
+					result = combineGujiYuanAndTranslation(yuan, yi) + "\n";
+				}
+
+				out.write(result);
+			}//end if
+			if (++index >= endIndex) {
+				break;
+			}
+			it.reset(index);
+		}
+	}
+
+	public final Boolean3 getLanguageType() {
+		return myLanguageType;
+	}
+
+	public final void setLanguageType(Boolean3 languageType) {
+		if (languageType == null) {
+			languageType = Boolean3.UNDEFINED;
+		}
+		if (languageType == myLanguageType) {
+			return;
+		}
+		myLanguageType = languageType;
+		myStorage.setConverter(converter(languageType));
+		updateSearchIndex();
+	}
+
+	private static ChineseBlockConverter converter(Boolean3 languageType) {
+		switch (languageType) {
+			case TRUE:
+				return TO_TRADITIONAL;
+			case FALSE:
+				return TO_SIMPLIFIED;
+			default:
+				return null;
+		}
+	}
+
+	public final void enableSearchIndex(String directory) {
+		synchronized (this) {
+			mySearchIndexDirectory = directory;
+		}
+		applyGujiEdits(directory);
+		updateSearchIndex();
+	}
+
+	private static String searchIndexName(Boolean3 languageType) {
+		return "search-" + languageType.name() + ".index";
+	}
+
+	// drops the stored indices after a change of the text, and builds the index again
+	private void resetSearchIndex(String directory) {
+		synchronized (this) {
+			mySearchIndex = null;
+			++mySearchIndexGeneration;
+		}
+		for (Boolean3 languageType : Boolean3.values()) {
+			new File(directory, searchIndexName(languageType)).delete();
+		}
+		updateSearchIndex();
+	}
+
+	public final synchronized String getCacheDirectory() {
+		return mySearchIndexDirectory;
+	}
+
+	// loads or builds in background the search index for current language type
+	private void updateSearchIndex() {
+		final String directory;
+		final Boolean3 languageType;
+		final int generation;
+		synchronized (this) {
+			directory = mySearchIndexDirectory;
+			languageType = myLanguageType;
+			final ZLTextSearchIndex index = mySearchIndex;
+			if (directory == null || (index != null && index.LanguageType == languageType)) {
+				return;
+			}
+			generation = ++mySearchIndexGeneration;
+		}
+		final Thread thread = new Thread(new Runnable() {
+			public void run() {
+				final File file = new File(directory, searchIndexName(languageType));
+				ZLTextSearchIndex index = ZLTextSearchIndex.read(file, languageType, myParagraphsNumber);
+				if (index == null) {
+					index = buildSearchIndex(languageType, generation);
+					if (index == null || generation != mySearchIndexGeneration) {
+						return;
+					}
+					index.write(file);
+				}
+				synchronized (ZLTextPlainModel.this) {
+					if (generation == mySearchIndexGeneration) {
+						mySearchIndex = index;
+					}
+				}
+			}
+		});
+		thread.setPriority(Thread.MIN_PRIORITY);
+		thread.start();
+	}
+
+	private ZLTextSearchIndex buildSearchIndex(Boolean3 languageType, int generation) {
+		if (myParagraphsNumber == 0) {
+			return null;
+		}
+		final ChineseBlockConverter converter = converter(languageType);
+		final ZLTextSearchIndex.Builder builder =
+			new ZLTextSearchIndex.Builder(languageType, myParagraphsNumber);
+		char[] buffer = new char[1024];
+		final EntryIteratorImpl it = new EntryIteratorImpl(0, true);
+		for (int index = 0; index < myParagraphsNumber; ++index) {
+			if (index % 1024 == 0 && generation != mySearchIndexGeneration) {
+				return null;
+			}
+			it.reset(index);
+			builder.startParagraph(index);
+			while (it.next()) {
+				if (it.getType() != ZLTextParagraph.Entry.TEXT) {
+					continue;
+				}
+				final int length = it.getTextLength();
+				if (converter == null) {
+					builder.addText(it.getTextData(), it.getTextOffset(), length);
+				} else {
+					if (buffer.length < length) {
+						buffer = new char[length];
+					}
+					System.arraycopy(it.getTextData(), it.getTextOffset(), buffer, 0, length);
+					converter.convertText(buffer, 0, length);
+					builder.addText(buffer, 0, length);
+				}
+			}
+		}
+		return builder.build();
+	}
+
+	private static final ChineseBlockConverter TO_TRADITIONAL = new ChineseBlockConverter(true);
+	private static final ChineseBlockConverter TO_SIMPLIFIED = new ChineseBlockConverter(false);
+
+	// converts the text entries of a block; the other entries are left untouched
+	private static final class ChineseBlockConverter implements CachedCharStorage.BlockConverter {
+		private final boolean myToTraditional;
+
+		ChineseBlockConverter(boolean toTraditional) {
+			myToTraditional = toTraditional;
+		}
+
+		void convertText(char[] data, int offset, int length) {
+			if (myToTraditional) {
+				ChineseConvertor.convertToZhtInPlace(data, offset, length);
+			} else {
+				ChineseConvertor.convertToZhsInPlace(data, offset, length);
+			}
+		}
+
+		public void convert(char[] data) {
+			int offset = 0;
+			while (offset < data.length) {
+				final short first = (short)data[offset++];
+				switch ((byte)first) {
+					case 0:
+						// end of block
+						return;
+					case ZLTextParagraph.Entry.TEXT:
+					{
+						int textLength = (int)data[offset++];
+						textLength += (((int)data[offset++]) << 16);
+						textLength = Math.min(textLength, data.length - offset);
+						convertText(data, offset, textLength);
+						offset += textLength;
+						break;
+					}
+					case ZLTextParagraph.Entry.CONTROL:
+					case ZLTextParagraph.Entry.FIXED_HSPACE:
+						++offset;
+						break;
+					case ZLTextParagraph.Entry.HYPERLINK_CONTROL:
+						++offset;
+						offset += (short)data[offset] + 1;
+						break;
+					case ZLTextParagraph.Entry.IMAGE:
+						++offset;
+						offset += (short)data[offset] + 2;
+						break;
+					case ZLTextParagraph.Entry.STYLE_CSS:
+					case ZLTextParagraph.Entry.STYLE_OTHER:
+					{
+						final short mask = (short)data[offset++];
+						for (int i = 0; i < NUMBER_OF_LENGTHS; ++i) {
+							if (ZLTextStyleEntry.isFeatureSupported(mask, i)) {
+								offset += 2;
+							}
+						}
+						if (ZLTextStyleEntry.isFeatureSupported(mask, ALIGNMENT_TYPE) ||
+							ZLTextStyleEntry.isFeatureSupported(mask, NON_LENGTH_VERTICAL_ALIGN)) {
+							++offset;
+						}
+						if (ZLTextStyleEntry.isFeatureSupported(mask, FONT_FAMILY)) {
+							++offset;
 						}
+						if (ZLTextStyleEntry.isFeatureSupported(mask, FONT_STYLE_MODIFIER)) {
+							++offset;
+						}
+						break;
 					}
-					if(!TextUtils.isEmpty(replacePre)) {
-						result = result.replaceAll(replacePre, replacePost);
-						if(!result.endsWith("\n")) {
-							result +="\n";
+					case ZLTextParagraph.Entry.STYLE_CLOSE:
+					case ZLTextParagraph.Entry.RESET_BIDI:
+					case ZLTextParagraph.Entry.AUDIO:
+						break;
+					case ZLTextParagraph.Entry.VIDEO:
+					{
+						final short mapSize = (short)data[offset++];
+						for (short i = 0; i < 2 * mapSize; ++i) {
+							offset += (short)data[offset] + 1;
 						}
-					} else if(!TextUtils.isEmpty(lastYiString)) {
-						String yuan = extractGujiFromString(result);
-						String yi = extractTranslationFromString(result);
-						result = combineGujiYuanAndTranslation(yuan.trim(), lastYiString) +"\n";
-						lastYiString = yi.trim();
-					} else if(!TextUtils.isEmpty(lastString)) {
-						String yuan = extractGujiFromString(result);
-						String yi = extractTranslationFromString(result);
-						result = combineGujiYuanAndTranslation(lastString, yi) +"\n";
-						lastString = yuan.trim();
-					} else {
-						result=extraLine+result;
-						if(extraLine.length() > 0) {
-							String yuan = extractGujiFromString(result);
-							String yi = extractTranslationFromString(result);
-							result = combineGujiYuanAndTranslation(yuan, yi) + "\n";
+						break;
+					}
+					case ZLTextParagraph.Entry.EXTENSION:
+					{
+						offset += (short)data[offset] + 1;
+						final short dataSize = (short)((first >> 8) & 0xFF);
+						for (short i = 0; i < 2 * dataSize; ++i) {
+							offset += (short)data[offset] + 1;
 						}
+						break;
 					}
-					extraLine="";
-					
-					out.write(result);
-					
-				}//end if
-				if (++index >= endIndex) {
-					break;
+					default:
+						// unknown layout, leave the rest of the block as is
+						return;
 				}
-				it.reset(index);
 			}
-			out.flush();
-			out.close();
-			
-		} catch (IOException e) {
-			// TODO Auto-generated catch block
-			e.printStackTrace();
 		}
-		
 	}
-	
+
 	public final int search(final String text, int startIndex, int endIndex, boolean ignoreCase) {
 		int count = 0;
 		ZLSearchPattern pattern = new ZLSearchPattern(text, ignoreCase);
-		myMarks = new ArrayList<ZLTextMark>();
+		final ArrayList<ZLTextMark> marks = new ArrayList<ZLTextMark>();
+		myMarks = marks;
 		if (startIndex > myParagraphsNumber) {
 			startIndex = myParagraphsNumber;
 		}
 		if (endIndex > myParagraphsNumber) {
 			endIndex = myParagraphsNumber;
 		}
-		int index = startIndex;
-		final EntryIteratorImpl it = new EntryIteratorImpl(index);
-		while (true) {
-			int offset = 0;
-			while (it.next()) {
-				if (it.getType() == ZLTextParagraph.Entry.TEXT) {
-					char[] textData = it.getTextData();
-					int textOffset = it.getTextOffset();
-					int textLength = it.getTextLength();
-					for (ZLSearchUtil.Result res = ZLSearchUtil.find(textData, textOffset, textLength, pattern); res != null;
-						res = ZLSearchUtil.find(textData, textOffset, textLength, pattern, res.Start + 1)) {
-						myMarks.add(new ZLTextMark(index, offset + res.Start, res.Length));
-						++count;
-					}
-					offset += textLength;
-				}
+		if (startIndex >= endIndex || pattern.getLength() == 0) {
+			return 0;
+		}
+		final EntryIteratorImpl it = new EntryIteratorImpl(startIndex);
+
+		final ZLTextSearchIndex index = mySearchIndex;
+		final int[] candidates = index != null && index.LanguageType == myLanguageType
+			? index.candidates(text, startIndex, endIndex) : null;
+		if (candidates != null) {
+			for (int i : candidates) {
+				count += search(it, i, pattern, marks);
 			}
-			if (++index >= endIndex) {
-				break;
+		} else {
+			for (int i = startIndex; i < endIndex; ++i) {
+				count += search(it, i, pattern, marks);
+			}
+		}
+		return count;
+	}
+
+	private int search(EntryIteratorImpl it, int index, ZLSearchPattern pattern, List<ZLTextMark> marks) {
+		int count = 0;
+		int offset = 0;
+		it.reset(index);
+		while (it.next()) {
+			if (it.getType() == ZLTextParagraph.Entry.TEXT) {
+				char[] textData = it.getTextData();
+				int textOffset = it.getTextOffset();
+				int textLength = it.getTextLength();
+				for (ZLSearchUtil.Result res = ZLSearchUtil.find(textData, textOffset, textLength, pattern); res != null;
+					res = ZLSearchUtil.find(textData, textOffset, textLength, pattern, res.Start + 1)) {
+					marks.add(new ZLTextMark(index, offset + res.Start, res.Length));
+					++count;
+				}
+				offset += textLength;
 			}
-			it.reset(index);
 		}
 		return count;
 	}
@@ -1153,10 +1733,11 @@ public final class ZLTextPlainModel implements ZLTextModel, ZLTextStyleEntry.Fea
 	}
 
 	public final int getTextLength(int index) {
-		if (myTextSizes.length == 0) {
+		final int[] textSizes = myTextSizes;
+		if (textSizes.length == 0) {
 			return 0;
 		}
-		return myTextSizes[Math.max(Math.min(index, myParagraphsNumber - 1), 0)];
+		return textSizes[Math.max(Math.min(index, myParagraphsNumber - 1), 0)];
 	}
 
 	private static int binarySearch(int[] array, int length, int value) {
@@ -0,0 +1,344 @@
+/*
+ * Copyright (C) 2007-2015 FBReader.ORG Limited <contact@fbreader.org>
+ *
+ * This program is free software; you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation; either version 2 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program; if not, write to the Free Software
+ * Foundation, Inc., 51 Franklin Street, Fifth Floor, Boston, MA
+ * 02110-1301, USA.
+ */
+
+package org.geometerplus.zlibrary.text.model;
+
+import java.io.*;
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+
+import org.fbreader.util.Boolean3;
+
+/**
+ * Inverted index from character n-grams to paragraphs.
+ *
+ * Every paragraph is indexed by its single characters and by the pairs
+ * of adjacent characters inside one text entry; case is folded, zero width
+ * spaces are skipped, as ZLSearchUtil does. A paragraph that contains a
+ * pattern contains all its n-grams, so the index gives a (small) superset
+ * of the paragraphs to be scanned. Bigrams are used for all scripts:
+ * search matches substrings, not words, so word tokens could miss results.
+ *
+ * The index is built for one language type of the model, since search
+ * goes over the converted text.
+ */
+final class ZLTextSearchIndex {
+	private static final int MAGIC = 0x5a4c5349; // "ZLSI"
+	private static final int VERSION = 1;
+
+	final Boolean3 LanguageType;
+	private final int myParagraphsNumber;
+	// sorted n-gram keys; postings of myKeys[i] are
+	// myPostings[myOffsets[i] .. myOffsets[i + 1]), sorted by paragraph
+	private final int[] myKeys;
+	private final int[] myOffsets;
+	private final int[] myPostings;
+
+	private ZLTextSearchIndex(Boolean3 languageType, int paragraphsNumber, int[] keys, int[] offsets, int[] postings) {
+		LanguageType = languageType;
+		myParagraphsNumber = paragraphsNumber;
+		myKeys = keys;
+		myOffsets = offsets;
+		myPostings = postings;
+	}
+
+	private static char fold(char ch) {
+		return Character.toLowerCase(Character.toUpperCase(ch));
+	}
+
+	// char 0 never occurs in text, so unigram keys do not collide with bigram ones
+	private static int key(char first, char second) {
+		return (first << 16) | second;
+	}
+
+	/**
+	 * @return sorted indices of the paragraphs from [startIndex, endIndex)
+	 * that may contain the pattern, or null if the index cannot help
+	 */
+	int[] candidates(String pattern, int startIndex, int endIndex) {
+		final char[] data = new char[pattern.length()];
+		int length = 0;
+		for (int i = 0; i < pattern.length(); ++i) {
+			final char ch = pattern.charAt(i);
+			if (ch != '\u200b') {
+				data[length++] = fold(ch);
+			}
+		}
+		if (length == 0) {
+			return null;
+		}
+
+		final int[] keys;
+		if (length == 1) {
+			keys = new int[] { key((char)0, data[0]) };
+		} else {
+			keys = new int[length - 1];
+			for (int i = 0; i < length - 1; ++i) {
+				keys[i] = key(data[i], data[i + 1]);
+			}
+		}
+
+		// intersect posting lists, starting with the shortest one
+		final int[] lists = new int[keys.length];
+		int count = 0;
+		for (int k : keys) {
+			final int i = Arrays.binarySearch(myKeys, k);
+			if (i < 0) {
+				return new int[0];
+			}
+			lists[count++] = i;
+		}
+		int shortest = 0;
+		for (int i = 1; i < count; ++i) {
+			if (postingsSize(lists[i]) < postingsSize(lists[shortest])) {
+				shortest = i;
+			}
+		}
+
+		int[] result = range(lists[shortest], startIndex, endIndex);
+		for (int i = 0; i < count && result.length > 0; ++i) {
+			if (i != shortest) {
+				result = intersect(result, lists[i]);
+			}
+		}
+		return result;
+	}
+
+	private int postingsSize(int keyIndex) {
+		return myOffsets[keyIndex + 1] - myOffsets[keyIndex];
+	}
+
+	private int[] range(int keyIndex, int startIndex, int endIndex) {
+		final int from = myOffsets[keyIndex];
+		final int to = myOffsets[keyIndex + 1];
+		int start = Arrays.binarySearch(myPostings, from, to, startIndex);
+		if (start < 0) {
+			start = -start - 1;
+		}
+		int end = Arrays.binarySearch(myPostings, from, to, endIndex);
+		if (end < 0) {
+			end = -end - 1;
+		}
+		return Arrays.copyOfRange(myPostings, start, end);
+	}
+
+	private int[] intersect(int[] paragraphs, int keyIndex) {
+		final int[] result = new int[paragraphs.length];
+		int count = 0;
+		int pos = myOffsets[keyIndex];
+		final int end = myOffsets[keyIndex + 1];
+		for (int p : paragraphs) {
+			final int i = Arrays.binarySearch(myPostings, pos, end, p);
+			if (i >= 0) {
+				result[count++] = p;
+				pos = i + 1;
+			} else {
+				pos = -i - 1;
+			}
+			if (pos >= end) {
+				break;
+			}
+		}
+		return count == result.length ? result : Arrays.copyOf(result, count);
+	}
+
+	/**
+	 * @return index read from the file, or null if there is no valid one
+	 * for given language type and paragraphs number
+	 */
+	static ZLTextSearchIndex read(File file, Boolean3 languageType, int paragraphsNumber) {
+		if (!file.exists()) {
+			return null;
+		}
+		DataInputStream stream = null;
+		try {
+			stream = new DataInputStream(new BufferedInputStream(new FileInputStream(file), 65536));
+			if (stream.readInt() != MAGIC ||
+				stream.readInt() != VERSION ||
+				stream.readInt() != languageType.ordinal() ||
+				stream.readInt() != paragraphsNumber) {
+				return null;
+			}
+			final int[] keys = readInts(stream);
+			final int[] offsets = readInts(stream);
+			final int[] postings = readInts(stream);
+			if (offsets.length != keys.length + 1 || offsets[keys.length] != postings.length) {
+				return null;
+			}
+			return new ZLTextSearchIndex(languageType, paragraphsNumber, keys, offsets, postings);
+		} catch (IOException e) {
+			return null;
+		} finally {
+			if (stream != null) {
+				try {
+					stream.close();
+				} catch (IOException e) {
+				}
+			}
+		}
+	}
+
+	void write(File file) {
+		final File tmp = new File(file.getPath() + ".tmp");
+		DataOutputStream stream = null;
+		try {
+			stream = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(tmp), 65536));
+			stream.writeInt(MAGIC);
+			stream.writeInt(VERSION);
+			stream.writeInt(LanguageType.ordinal());
+			stream.writeInt(myParagraphsNumber);
+			writeInts(stream, myKeys);
+			writeInts(stream, myOffsets);
+			writeInts(stream, myPostings);
+			stream.close();
+			stream = null;
+			if (!tmp.renameTo(file)) {
+				tmp.delete();
+			}
+		} catch (IOException e) {
+			tmp.delete();
+		} finally {
+			if (stream != null) {
+				try {
+					stream.close();
+				} catch (IOException e) {
+				}
+				tmp.delete();
+			}
+		}
+	}
+
+	private static int[] readInts(DataInputStream stream) throws IOException {
+		final int[] data = new int[stream.readInt()];
+		final byte[] bytes = new byte[data.length * 4];
+		stream.readFully(bytes);
+		ByteBuffer.wrap(bytes).asIntBuffer().get(data);
+		return data;
+	}
+
+	private static void writeInts(DataOutputStream stream, int[] data) throws IOException {
+		final byte[] bytes = new byte[data.length * 4];
+		ByteBuffer.wrap(bytes).asIntBuffer().put(data);
+		stream.writeInt(data.length);
+		stream.write(bytes);
+	}
+
+	/**
+	 * Paragraphs must be started in increasing order
+	 */
+	static final class Builder {
+		private final Boolean3 myLanguageType;
+		private final int myParagraphsNumber;
+
+		// (key << 32 | paragraph) pairs
+		private long[] myPairs = new long[65536];
+		private int myPairsCount;
+
+		private int[] myParagraphKeys = new int[1024];
+		private int myParagraphKeysCount;
+		private int myParagraph = -1;
+
+		Builder(Boolean3 languageType, int paragraphsNumber) {
+			myLanguageType = languageType;
+			myParagraphsNumber = paragraphsNumber;
+		}
+
+		void startParagraph(int index) {
+			flushParagraph();
+			myParagraph = index;
+		}
+
+		void addText(char[] text, int offset, int length) {
+			char previous = 0;
+			for (int i = offset; i < offset + length; ++i) {
+				final char ch = text[i];
+				if (ch == '\u200b') {
+					continue;
+				}
+				final char folded = fold(ch);
+				addKey(key((char)0, folded));
+				if (previous != 0) {
+					addKey(key(previous, folded));
+				}
+				previous = folded;
+			}
+		}
+
+		private void addKey(int key) {
+			if (myParagraphKeysCount == myParagraphKeys.length) {
+				myParagraphKeys = Arrays.copyOf(myParagraphKeys, myParagraphKeys.length * 2);
+			}
+			myParagraphKeys[myParagraphKeysCount++] = key;
+		}
+
+		private void flushParagraph() {
+			if (myParagraph < 0 || myParagraphKeysCount == 0) {
+				myParagraphKeysCount = 0;
+				return;
+			}
+			Arrays.sort(myParagraphKeys, 0, myParagraphKeysCount);
+			int last = myParagraphKeys[0];
+			addPair(last);
+			for (int i = 1; i < myParagraphKeysCount; ++i) {
+				final int k = myParagraphKeys[i];
+				if (k != last) {
+					addPair(k);
+					last = k;
+				}
+			}
+			myParagraphKeysCount = 0;
+		}
+
+		private void addPair(int key) {
+			if (myPairsCount == myPairs.length) {
+				myPairs = Arrays.copyOf(myPairs, myPairs.length * 2);
+			}
+			myPairs[myPairsCount++] = ((long)key << 32) | myParagraph;
+		}
+
+		ZLTextSearchIndex build() {
+			flushParagraph();
+			final long[] pairs = myPairs;
+			final int count = myPairsCount;
+			myPairs = null;
+			Arrays.sort(pairs, 0, count);
+
+			int keysCount = 0;
+			for (int i = 0; i < count; ++i) {
+				if (i == 0 || (pairs[i] >> 32) != (pairs[i - 1] >> 32)) {
+					++keysCount;
+				}
+			}
+			final int[] keys = new int[keysCount];
+			final int[] offsets = new int[keysCount + 1];
+			final int[] postings = new int[count];
+			int k = -1;
+			for (int i = 0; i < count; ++i) {
+				final int key = (int)(pairs[i] >> 32);
+				if (k == -1 || key != keys[k]) {
+					keys[++k] = key;
+					offsets[k] = i;
+				}
+				postings[i] = (int)pairs[i];
+			}
+			offsets[keysCount] = count;
+			return new ZLTextSearchIndex(myLanguageType, myParagraphsNumber, keys, offsets, postings);
+		}
+	}
+}
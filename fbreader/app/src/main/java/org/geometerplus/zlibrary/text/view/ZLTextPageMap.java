@@ -0,0 +1,246 @@
+/*
+ * Copyright (C) 2007-2015 FBReader.ORG Limited <contact@fbreader.org>
+ *
+ * This program is free software; you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation; either version 2 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program; if not, write to the Free Software
+ * Foundation, Inc., 51 Franklin Street, Fifth Floor, Boston, MA
+ * 02110-1301, USA.
+ */
+
+package org.geometerplus.zlibrary.text.view;
+
+import java.io.*;
+import java.util.Arrays;
+
+/**
+ * Start positions of all the pages of a text for one layout.
+ *
+ * The map is filled page by page by a background paginator, which
+ * lays out the text exactly as painting does with no overlapping between
+ * pages; an incomplete map keeps its pages, so pagination resumes from
+ * the last known page when the same layout becomes current again.
+ * Maps are stored in the cache directory of the model, one file per layout.
+ */
+final class ZLTextPageMap {
+	private static final int MAGIC = 0x50414745;
+	private static final int VERSION = 1;
+
+	// maps for other layouts (e.g. the other screen orientation) are kept until this number
+	private static final int MAX_STORED_MAPS = 4;
+
+	static File file(String directory, String signature) {
+		return new File(directory, "pages-" + Integer.toHexString(signature.hashCode()) + ".map");
+	}
+
+	private static File[] storedFiles(String directory) {
+		final File[] files = new File(directory).listFiles(new FilenameFilter() {
+			public boolean accept(File dir, String name) {
+				return name.startsWith("pages-") && name.endsWith(".map");
+			}
+		});
+		return files != null ? files : new File[0];
+	}
+
+	static void deleteAll(String directory) {
+		for (File f : storedFiles(directory)) {
+			f.delete();
+		}
+	}
+
+	/**
+	 * Deletes the least recently used maps beyond MAX_STORED_MAPS
+	 */
+	static void deleteOld(String directory) {
+		final File[] files = storedFiles(directory);
+		if (files.length <= MAX_STORED_MAPS) {
+			return;
+		}
+		final long[] times = new long[files.length];
+		for (int i = 0; i < files.length; ++i) {
+			times[i] = files[i].lastModified();
+		}
+		Arrays.sort(times);
+		final long threshold = times[files.length - MAX_STORED_MAPS];
+		for (File f : files) {
+			if (f.lastModified() < threshold) {
+				f.delete();
+			}
+		}
+	}
+
+	final String Signature;
+
+	private int[] myParagraphs = new int[256];
+	private int[] myElements = new int[256];
+	private int[] myChars = new int[256];
+	private int mySize;
+	private volatile boolean myIsComplete;
+
+	ZLTextPageMap(String signature) {
+		Signature = signature;
+	}
+
+	synchronized int size() {
+		return mySize;
+	}
+
+	boolean isComplete() {
+		return myIsComplete;
+	}
+
+	void setComplete() {
+		myIsComplete = true;
+	}
+
+	synchronized void addPage(ZLTextPosition start) {
+		if (mySize == myParagraphs.length) {
+			final int length = mySize * 2;
+			myParagraphs = Arrays.copyOf(myParagraphs, length);
+			myElements = Arrays.copyOf(myElements, length);
+			myChars = Arrays.copyOf(myChars, length);
+		}
+		myParagraphs[mySize] = start.getParagraphIndex();
+		myElements[mySize] = start.getElementIndex();
+		myChars[mySize] = start.getCharIndex();
+		++mySize;
+	}
+
+	/**
+	 * Replaces the pages of the map with the pages stored in the file
+	 * @return false if there is no map for the same layout in the file
+	 */
+	boolean read(File file) {
+		if (!file.exists()) {
+			return false;
+		}
+		DataInputStream stream = null;
+		try {
+			stream = new DataInputStream(new BufferedInputStream(new FileInputStream(file), 65536));
+			if (stream.readInt() != MAGIC ||
+				stream.readInt() != VERSION ||
+				!Signature.equals(stream.readUTF())) {
+				return false;
+			}
+			final boolean isComplete = stream.readBoolean();
+			final int size = stream.readInt();
+			final int[] paragraphs = new int[Math.max(size, 256)];
+			final int[] elements = new int[paragraphs.length];
+			final int[] chars = new int[paragraphs.length];
+			for (int i = 0; i < size; ++i) {
+				paragraphs[i] = stream.readInt();
+				elements[i] = stream.readInt();
+				chars[i] = stream.readInt();
+			}
+			synchronized (this) {
+				myParagraphs = paragraphs;
+				myElements = elements;
+				myChars = chars;
+				mySize = size;
+			}
+			myIsComplete = isComplete;
+			// for deleteOld()
+			file.setLastModified(System.currentTimeMillis());
+			return true;
+		} catch (IOException e) {
+			return false;
+		} finally {
+			if (stream != null) {
+				try {
+					stream.close();
+				} catch (IOException e) {
+				}
+			}
+		}
+	}
+
+	void write(File file) {
+		final int size;
+		final int[] paragraphs;
+		final int[] elements;
+		final int[] chars;
+		final boolean isComplete = myIsComplete;
+		synchronized (this) {
+			size = mySize;
+			paragraphs = Arrays.copyOf(myParagraphs, size);
+			elements = Arrays.copyOf(myElements, size);
+			chars = Arrays.copyOf(myChars, size);
+		}
+
+		final File tmp = new File(file.getPath() + ".tmp");
+		DataOutputStream stream = null;
+		try {
+			stream = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(tmp), 65536));
+			stream.writeInt(MAGIC);
+			stream.writeInt(VERSION);
+			stream.writeUTF(Signature);
+			stream.writeBoolean(isComplete);
+			stream.writeInt(size);
+			for (int i = 0; i < size; ++i) {
+				stream.writeInt(paragraphs[i]);
+				stream.writeInt(elements[i]);
+				stream.writeInt(chars[i]);
+			}
+			stream.close();
+			stream = null;
+			if (!tmp.renameTo(file)) {
+				tmp.delete();
+			}
+		} catch (IOException e) {
+			tmp.delete();
+		} finally {
+			if (stream != null) {
+				try {
+					stream.close();
+				} catch (IOException e) {
+				}
+				tmp.delete();
+			}
+		}
+	}
+
+	/**
+	 * @param pageIndex 0-based page index, 0 <= pageIndex < size()
+	 * @return start of the page
+	 */
+	synchronized ZLTextFixedPosition getPageStart(int pageIndex) {
+		return new ZLTextFixedPosition(myParagraphs[pageIndex], myElements[pageIndex], myChars[pageIndex]);
+	}
+
+	/**
+	 * @return 0-based index of the last page starting at or before the position,
+	 * or -1 if the map contains no such page
+	 */
+	synchronized int findPage(ZLTextPosition position) {
+		final int paragraph = position.getParagraphIndex();
+		final int element = position.getElementIndex();
+		final int ch = position.getCharIndex();
+		int low = 0;
+		int high = mySize - 1;
+		while (low <= high) {
+			final int middle = (low + high) >>> 1;
+			int diff = myParagraphs[middle] - paragraph;
+			if (diff == 0) {
+				diff = myElements[middle] - element;
+				if (diff == 0) {
+					diff = myChars[middle] - ch;
+				}
+			}
+			if (diff <= 0) {
+				low = middle + 1;
+			} else {
+				high = middle - 1;
+			}
+		}
+		return high;
+	}
+}
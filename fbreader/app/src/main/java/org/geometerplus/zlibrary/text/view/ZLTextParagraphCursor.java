@@ -40,6 +40,12 @@ public final class ZLTextParagraphCursor {
 		private int myLastMark;
 		private final List<ZLTextMark> myMarks;
 
+		// adjacent words not yet added to myElements, see ZLTextWordRun
+		private char[] myRunData;
+		private int[] myRunOffsets = new int[64];
+		private int myRunCount;
+		private int myRunParagraphOffset;
+
 		private Processor(ZLTextParagraph paragraph, ExtensionElementManager extManager, LineBreaker lineBreaker, List<ZLTextMark> marks, int paragraphIndex, ArrayList<ZLTextElement> elements) {
 			myExtManager = extManager;
 			myParagraph = paragraph;
@@ -67,6 +73,9 @@ public final class ZLTextParagraphCursor {
 	
 			for (ZLTextParagraph.EntryIterator it = myParagraph.iterator(); it.next(); ) {
 				//it.next();
+				if (it.getType() != ZLTextParagraph.Entry.TEXT) {
+					flushRun();
+				}
 				switch (it.getType()) {
 					case ZLTextParagraph.Entry.TEXT:
 						processTextEntry(it.getTextData(), it.getTextOffset(), it.getTextLength(), hyperlink);
@@ -130,18 +139,20 @@ public final class ZLTextParagraphCursor {
 						break;
 				}
 			}
+			flushRun();
 		}
 
-		private static byte[] ourBreaks = new byte[1024];
+		// not static: paragraphs are processed by the paginator thread too
+		private byte[] myBreaks = new byte[0];
 		private static final int NO_SPACE = 0;
 		private static final int SPACE = 1;
 		private static final int NON_BREAKABLE_SPACE = 2;
 		private void processTextEntry(final char[] data, final int offset, final int length, ZLTextHyperlink hyperlink) {
 			if (length != 0) {
-				if (ourBreaks.length < length) {
-					ourBreaks = new byte[length];
+				if (myBreaks.length < length) {
+					myBreaks = new byte[Math.max(length, 1024)];
 				}
-				final byte[] breaks = ourBreaks;
+				final byte[] breaks = myBreaks;
 				myLineBreaker.setLineBreaks(data, offset, length, breaks);
 
 				final ZLTextElement hSpace = ZLTextElement.HSpace;
@@ -163,6 +174,7 @@ public final class ZLTextParagraphCursor {
 						if (index > 0 && spaceState == NO_SPACE) {
 							addWord(data, offset + wordStart, index - wordStart, myOffset + wordStart, hyperlink);
 						}
+						flushRun();
 						elements.add(nbSpace);
 						if (spaceState != SPACE) {
 							spaceState = NON_BREAKABLE_SPACE;
@@ -172,6 +184,7 @@ public final class ZLTextParagraphCursor {
 							case SPACE:
 								//if (breaks[index - 1] == LineBreak.NOBREAK || previousChar == '-') {
 								//}
+								flushRun();
 								elements.add(hSpace);
 								wordStart = index;
 								break;
@@ -196,9 +209,11 @@ public final class ZLTextParagraphCursor {
 				}
 				switch (spaceState) {
 					case SPACE:
+						flushRun();
 						elements.add(hSpace);
 						break;
 					case NON_BREAKABLE_SPACE:
+						flushRun();
 						elements.add(nbSpace);
 						break;
 					case NO_SPACE:
@@ -210,6 +225,24 @@ public final class ZLTextParagraphCursor {
 		}
 
 		private final void addWord(char[] data, int offset, int len, int paragraphOffset, ZLTextHyperlink hyperlink) {
+			// words with marks or inside hyperlinks are referenced by element, so they are not packed
+			if (hyperlink == null && myFirstMark == myLastMark) {
+				if (myRunCount > 0 && (data != myRunData || offset != myRunOffsets[myRunCount])) {
+					flushRun();
+				}
+				if (myRunCount == 0) {
+					myRunData = data;
+					myRunOffsets[0] = offset;
+					myRunParagraphOffset = paragraphOffset;
+				}
+				if (myRunCount + 1 >= myRunOffsets.length) {
+					myRunOffsets = Arrays.copyOf(myRunOffsets, myRunOffsets.length * 2);
+				}
+				myRunOffsets[++myRunCount] = offset + len;
+				return;
+			}
+
+			flushRun();
 			ZLTextWord word = new ZLTextWord(data, offset, len, paragraphOffset);
 			for (int i = myFirstMark; i < myLastMark; ++i) {
 				final ZLTextMark mark = (ZLTextMark)myMarks.get(i);
@@ -222,6 +255,28 @@ public final class ZLTextParagraphCursor {
 			}
 			myElements.add(word);
 		}
+
+		private void flushRun() {
+			final int count = myRunCount;
+			if (count == 0) {
+				return;
+			}
+			myRunCount = 0;
+			if (count == 1) {
+				final int offset = myRunOffsets[0];
+				myElements.add(new ZLTextWord(myRunData, offset, myRunOffsets[1] - offset, myRunParagraphOffset));
+			} else {
+				final ZLTextWordRun run = new ZLTextWordRun(
+					myRunData, Arrays.copyOf(myRunOffsets, count + 1), count,
+					myRunParagraphOffset, myElements.size()
+				);
+				myElements.ensureCapacity(myElements.size() + count);
+				for (int i = 0; i < count; ++i) {
+					myElements.add(run);
+				}
+			}
+			myRunData = null;
+		}
 	}
 
 	public final int Index;
@@ -265,6 +320,43 @@ public final class ZLTextParagraphCursor {
 
 	void clear() {
 		myElements.clear();
+		myStyleCheckpoints = null;
+		myControlKindCheckpoints = null;
+	}
+
+	// layout states are stored for every CHECKPOINT_STEP-th element, so
+	// a page inside a long paragraph does not replay it from the start
+	static final int CHECKPOINT_STEP = 64;
+	static final byte UNKNOWN_KIND = Byte.MIN_VALUE;
+
+	private Object myStyleCheckpointsOwner;
+	private ZLTextStyle[] myStyleCheckpoints;
+	private byte[] myControlKindCheckpoints;
+
+	/**
+	 * @param owner identifies the set of styles the checkpoints are made of;
+	 * checkpoints made for another owner are dropped
+	 * @return array of styles, n-th item is the style after all the elements
+	 * before n * CHECKPOINT_STEP, or null if it is not known yet
+	 */
+	ZLTextStyle[] styleCheckpoints(Object owner) {
+		if (myStyleCheckpoints == null || myStyleCheckpointsOwner != owner) {
+			myStyleCheckpointsOwner = owner;
+			myStyleCheckpoints = new ZLTextStyle[myElements.size() / CHECKPOINT_STEP + 1];
+		}
+		return myStyleCheckpoints;
+	}
+
+	/**
+	 * @return array of control kinds, n-th item is the kind of the innermost
+	 * control open before n * CHECKPOINT_STEP, or UNKNOWN_KIND
+	 */
+	byte[] controlKindCheckpoints() {
+		if (myControlKindCheckpoints == null) {
+			myControlKindCheckpoints = new byte[myElements.size() / CHECKPOINT_STEP + 1];
+			Arrays.fill(myControlKindCheckpoints, UNKNOWN_KIND);
+		}
+		return myControlKindCheckpoints;
 	}
 
 	public boolean isFirst() {
@@ -308,11 +400,21 @@ public final class ZLTextParagraphCursor {
 	}
 
 	ZLTextElement getElement(int index) {
+		final ZLTextElement element;
 		try {
-			return myElements.get(index);
+			element = myElements.get(index);
 		} catch (IndexOutOfBoundsException e) {
 			return null;
 		}
+		return element instanceof ZLTextWordRun
+			? ((ZLTextWordRun)element).getWord(index) : element;
+	}
+
+	// true for words stored in a ZLTextWordRun; such elements never change style
+	boolean isPackedWord(int index) {
+		return
+			index >= 0 && index < myElements.size() &&
+			myElements.get(index) instanceof ZLTextWordRun;
 	}
 
 	ZLTextParagraph getParagraph() {
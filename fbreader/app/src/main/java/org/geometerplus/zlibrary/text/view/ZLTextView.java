@@ -46,9 +46,10 @@ import org.geometerplus.zlibrary.text.model.ZLTextAlignmentType;
 import org.geometerplus.zlibrary.text.model.ZLTextMark;
 import org.geometerplus.zlibrary.text.model.ZLTextModel;
 import org.geometerplus.zlibrary.text.model.ZLTextParagraph;
-import org.geometerplus.zlibrary.text.view.style.ZLTextNGStyle;
+import org.geometerplus.zlibrary.text.view.style.ZLTextBaseStyle;
 import org.geometerplus.zlibrary.text.view.style.ZLTextNGStyleDescription;
 
+import java.io.File;
 import java.util.ArrayList;
 import java.util.Collection;
 import java.util.Collections;
@@ -58,6 +59,9 @@ import java.util.LinkedList;
 import java.util.List;
 import java.util.Set;
 import java.util.TreeSet;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadFactory;
 
 public abstract class ZLTextView extends ZLTextViewBase {
 	public interface ScrollingMode {
@@ -82,8 +86,6 @@ public abstract class ZLTextView extends ZLTextViewBase {
 	private ZLTextPage myCurrentPage = new ZLTextPage();
 	private ZLTextPage myNextPage = new ZLTextPage();
 
-	private final HashMap<ZLTextLineInfo,ZLTextLineInfo> myLineInfoCache = new HashMap<ZLTextLineInfo,ZLTextLineInfo>();
-
 	private ZLTextRegion.Soul myOutlinedRegionSoul;
 	private boolean myShowOutline = true;
 
@@ -98,12 +100,17 @@ public abstract class ZLTextView extends ZLTextViewBase {
 	}
 
 	public synchronized void setModel(ZLTextModel model) {
+		if (model != null) {
+			model.setLanguageType(languageType(model));
+		}
 		myCursorManager = model != null ? new CursorManager(model, getExtensionManager()) : null;
 
 		mySelection.clear();
 		myHighlightings.clear();
 
 		myModel = model;
+		clearStyleCache();
+		resetPageMaps(false);
 		myCurrentPage.reset();
 		myPreviousPage.reset();
 		myNextPage.reset();
@@ -120,6 +127,24 @@ public abstract class ZLTextView extends ZLTextViewBase {
 		return myModel;
 	}
 
+	private Boolean3 languageType(ZLTextModel model) {
+		final String language = model.getLanguage();
+		return language != null && language.startsWith("zh")
+			? Application.ViewOptions.ShowTranditionalOption.getValue() : Boolean3.UNDEFINED;
+	}
+
+	// the model converts its text once, so layout and painting see the same characters
+	private void updateLanguageType() {
+		if (myModel == null) {
+			return;
+		}
+		final Boolean3 type = languageType(myModel);
+		if (myModel.getLanguageType() != type) {
+			myModel.setLanguageType(type);
+			rebuildPaintInfo();
+		}
+	}
+
 	public ZLTextWordCursor getStartCursor() {
 		if (myCurrentPage.StartCursor.isNull()) {
 			preparePaintInfo(myCurrentPage);
@@ -211,7 +236,12 @@ public abstract class ZLTextView extends ZLTextViewBase {
 		int startIndex = 0;
 		int endIndex = myModel.getParagraphsNumber();
 		if (thisSectionOnly) {
-			// TODO: implement
+			final TOCTree section = Application.Model != null && myModel == Application.Model.getTextModel()
+				? Application.getCurrentTOCElement(null) : null;
+			if (section != null && section.getReference() != null) {
+				startIndex = section.getReference().ParagraphIndex;
+				endIndex = sectionEnd(section, endIndex);
+			}
 		}
 		int count = myModel.search(text, startIndex, endIndex, ignoreCase);
 		myPreviousPage.reset();
@@ -230,6 +260,22 @@ public abstract class ZLTextView extends ZLTextViewBase {
 		return count;
 	}
 
+	// start of the next item that is not inside given section
+	private int sectionEnd(TOCTree section, int defaultEnd) {
+		boolean found = false;
+		for (TOCTree tree : Application.Model.TOCTree) {
+			if (tree == section) {
+				found = true;
+			} else if (found && tree.Level <= section.Level) {
+				final TOCTree.Reference reference = tree.getReference();
+				if (reference != null) {
+					return Math.min(reference.ParagraphIndex, defaultEnd);
+				}
+			}
+		}
+		return defaultEnd;
+	}
+
 	public boolean canFindNext() {
 		final ZLTextWordCursor end = isGuji()?myCurrentPage.StartCursor:myCurrentPage.EndCursor;
 		return !end.isNull() && (myModel != null) && (
@@ -525,7 +571,7 @@ public abstract class ZLTextView extends ZLTextViewBase {
 		final ZLTextNGStyleDescription description =
 				getTextStyleCollection().getDescription(FBTextKind.GUJI_TRANSLATION);
 		if (description != null) {
-			setTextStyle(new ZLTextNGStyle(getTextStyle(), description, null));
+			setTextStyle(decoratedStyle(getTextStyle(), description, null));
 		}
 		
 		String pageNum = convertNumToChineseNum(pageNo);
@@ -942,7 +988,7 @@ public abstract class ZLTextView extends ZLTextViewBase {
 		ZLTextNGStyleDescription description =
 				getTextStyleCollection().getDescription(FBTextKind.TITLE);
 		if (description != null) {
-			setTextStyle(new ZLTextNGStyle(getTextStyle(), description, null));
+			setTextStyle(decoratedStyle(getTextStyle(), description, null));
 		}
 		context.setTextColor(new ZLColor(0,0,0));
 		context.drawStringWithGujiRotatedCanvas(getContextWidth()*72/1920,
@@ -953,7 +999,7 @@ public abstract class ZLTextView extends ZLTextViewBase {
 		description =
 				getTextStyleCollection().getDescription(FBTextKind.GUJI_TRANSLATION);
 		if (description != null) {
-			setTextStyle(new ZLTextNGStyle(getTextStyle(), description, null));
+			setTextStyle(decoratedStyle(getTextStyle(), description, null));
 		}
 		
 		context.setTextColor(Application.ViewOptions.GujiBanxinColorOption.getValue());
@@ -1083,6 +1129,7 @@ public abstract class ZLTextView extends ZLTextViewBase {
 	@Override
 	public synchronized void paint(ZLPaintContext context, PageIndex pageIndex) {
 		setContext(context);
+		updateLanguageType();
 		
 		ZLTextPage page = getPage(pageIndex);
 		if(isGuji()) {
@@ -1109,6 +1156,7 @@ public abstract class ZLTextView extends ZLTextViewBase {
 		if (myModel == null || myModel.getParagraphsNumber() == 0) {
 			return;
 		}
+		updatePageMap();
 		
 		if(isGuji()) {
 			// keep the screen from translating or rotating afterwards.
@@ -1521,6 +1569,181 @@ public abstract class ZLTextView extends ZLTextViewBase {
 		return getContext().getStringWidth(pattern, 0, length) / ((float)length);
 	}
 
+	private static class MinPriorityThreadFactory implements ThreadFactory {
+		private final ThreadFactory myDefaultThreadFactory = Executors.defaultThreadFactory();
+
+		public Thread newThread(Runnable r) {
+			final Thread th = myDefaultThreadFactory.newThread(r);
+			th.setPriority(Thread.MIN_PRIORITY);
+			return th;
+		}
+	}
+
+	// page maps are computed in background, one at a time
+	private static final ExecutorService ourPaginator =
+		Executors.newSingleThreadExecutor(new MinPriorityThreadFactory());
+
+	private final HashMap<String,ZLTextPageMap> myPageMaps = new HashMap<String,ZLTextPageMap>();
+	private ZLTextPageMap myPageMap;
+	private volatile int myPageMapGeneration;
+	// hash of the style options, computed again after clearCaches()
+	private String myStyleSignature;
+
+	// everything buildInfos depends on
+	private String layoutSignature() {
+		if (myStyleSignature == null) {
+			myStyleSignature = Integer.toHexString(getTextStyleCollection().layoutHash());
+		}
+		final ZLTextBaseStyle baseStyle = getTextStyleCollection().getBaseStyle();
+		final StringBuilder signature = new StringBuilder()
+			.append(getTextColumnWidth()).append(':')
+			.append(getTextAreaHeight()).append(':')
+			.append(twoColumnView()).append(':')
+			.append(baseStyle.FontFamilyOption.getValue()).append(':')
+			.append(baseStyle.getFontSize()).append(':')
+			.append(baseStyle.getLineSpacePercent()).append(':')
+			.append(baseStyle.AlignmentOption.getValue()).append(':')
+			.append(baseStyle.AutoHyphenationOption.getValue()).append(':')
+			.append(myModel.getLanguageType()).append(':')
+			.append(myStyleSignature);
+		if (isGuji()) {
+			signature.append(':').append(getGujiStyle())
+				.append(':').append(Application.ViewOptions.ShowGujiPunctuationOption.getValue())
+				.append(':').append(Application.ViewOptions.ShowGujiAnnotationOption.getValue())
+				.append(':').append(Application.ViewOptions.ShowGujiTranslationOption.getValue())
+				.append(':').append(Application.ViewOptions.ShowGujiSuperscriptOption.getValue());
+		}
+		return signature.toString();
+	}
+
+	/**
+	 * @param deleteStored true if the stored maps of the model are to be deleted too:
+	 * after a change of options (e.g. hyphenation) that are not part of the signature
+	 */
+	private synchronized void resetPageMaps(boolean deleteStored) {
+		++myPageMapGeneration;
+		myPageMap = null;
+		myPageMaps.clear();
+		myStyleSignature = null;
+		final String directory = deleteStored && myModel != null ? myModel.getCacheDirectory() : null;
+		if (directory != null) {
+			// after the current paginator task, which can still write its map
+			ourPaginator.execute(new Runnable() {
+				public void run() {
+					ZLTextPageMap.deleteAll(directory);
+				}
+			});
+		}
+	}
+
+	// switches to the page map for current layout, and starts (or resumes) its computation;
+	// the map is read from the model cache directory if it has been computed before
+	private void updatePageMap() {
+		if (isDjvu()) {
+			return;
+		}
+		final String signature = layoutSignature();
+		if (myPageMap != null && myPageMap.Signature.equals(signature)) {
+			return;
+		}
+		final int generation = ++myPageMapGeneration;
+		ZLTextPageMap map = myPageMaps.get(signature);
+		if (map == null) {
+			map = new ZLTextPageMap(signature);
+			myPageMaps.put(signature, map);
+		}
+		myPageMap = map;
+		if (map.isComplete()) {
+			return;
+		}
+
+		final ZLTextPageMap pageMap = map;
+		final String directory = myModel.getCacheDirectory();
+		// the paginator never touches the cursors, the style state
+		// and the context used for painting
+		final CursorManager cursorManager = new CursorManager(myModel, getExtensionManager());
+		final ZLPaintContext context = getContext().measuringContext();
+		if (isGuji()) {
+			context.setIsShowGujiPunctuation(true, Application.ViewOptions.ShowGujiPunctuationOption.getValue());
+		} else {
+			context.setIsShowGujiPunctuation(false, GujiPunctuationEnum.show);
+		}
+		ourPaginator.execute(new Runnable() {
+			public void run() {
+				if (generation != myPageMapGeneration) {
+					return;
+				}
+				final File file = directory != null ? ZLTextPageMap.file(directory, signature) : null;
+				if (file != null && pageMap.size() == 0 && pageMap.read(file) && pageMap.isComplete()) {
+					return;
+				}
+				final int knownPages = pageMap.size();
+				setPaginatorState(new LayoutState(Thread.currentThread(), context));
+				try {
+					final ZLTextPage page = new ZLTextPage();
+					final ZLTextWordCursor start = new ZLTextWordCursor();
+					final ZLTextWordCursor end = new ZLTextWordCursor();
+					while (generation == myPageMapGeneration &&
+						   buildNextPage(cursorManager, pageMap, page, start, end)) {
+					}
+				} finally {
+					setPaginatorState(null);
+				}
+				if (file != null && (pageMap.size() != knownPages || pageMap.isComplete())) {
+					pageMap.write(file);
+					ZLTextPageMap.deleteOld(directory);
+				}
+			}
+		});
+	}
+
+	/**
+	 * Lays out the page following the last one in the map, as
+	 * preparePaintInfo() does when scrolling forward with no overlapping
+	 * @return false if there is nothing more to lay out
+	 */
+	private boolean buildNextPage(CursorManager cursorManager, ZLTextPageMap map, ZLTextPage page, ZLTextWordCursor start, ZLTextWordCursor end) {
+		// the lines of the paginator are never laid out again
+		final HashMap<ZLTextLineInfo,ZLTextLineInfo> lineInfoCache = state().LineInfoCache;
+		if (start.isNull()) {
+			final int size = map.size();
+			if (size == 0) {
+				start.setCursor(cursorManager.get(0));
+			} else {
+				// resume: the last known page is laid out once more to find its end
+				final ZLTextPosition last = map.getPageStart(size - 1);
+				start.setCursor(cursorManager.get(last.getParagraphIndex()));
+				start.moveTo(last.getElementIndex(), last.getCharIndex());
+				page.setSize(getTextColumnWidth(), getTextAreaHeight(), twoColumnView(), false);
+				page.PAGENO = size;
+				buildInfos(page, start, end);
+				lineInfoCache.clear();
+				if (end.isEndOfText()) {
+					map.setComplete();
+					return false;
+				}
+				start.setCursor(end);
+			}
+		}
+
+		final int pageNumber = map.size() + 1;
+		page.setSize(getTextColumnWidth(), getTextAreaHeight(), twoColumnView(), false);
+		page.PAGENO = pageNumber;
+		buildInfos(page, start, end);
+		lineInfoCache.clear();
+		map.addPage(start);
+		if (end.isEndOfText()) {
+			map.setComplete();
+			return false;
+		}
+		if (end.samePositionAs(start)) {
+			// an empty page is possible in guji layout, two in a row mean no progress
+			return pageNumber == 1 || !map.getPageStart(pageNumber - 2).samePositionAs(start);
+		}
+		start.setCursor(end);
+		return true;
+	}
+
 	public static class PagePosition {
 		public int Current;
 		public int Total;
@@ -1536,6 +1759,17 @@ public abstract class ZLTextView extends ZLTextViewBase {
 			PAGENO = new PagePosition(Application.DJVUDocument.currentPageIndex + 1, Application.DJVUDocument.getPageCount());
 			return PAGENO;
 		}
+		final ZLTextPageMap map = myPageMap;
+		if (map != null && map.isComplete()) {
+			preparePaintInfo(myCurrentPage);
+			if (!myCurrentPage.StartCursor.isNull()) {
+				final int total = map.size();
+				final int current = Math.max(1, Math.min(total, map.findPage(myCurrentPage.StartCursor) + 1));
+				PAGENO = new PagePosition(current, total);
+				return PAGENO;
+			}
+		}
+
 		int current = computeTextPageNumber(getCurrentCharNumber(PageIndex.current, false));
 		int total = computeTextPageNumber(sizeOfFullText());
 
@@ -1601,6 +1835,13 @@ public abstract class ZLTextView extends ZLTextViewBase {
 			return;
 		}
 
+		final ZLTextPageMap map = myPageMap;
+		if (map != null && map.isComplete()) {
+			final ZLTextFixedPosition start = map.getPageStart(Math.max(1, Math.min(map.size(), page)) - 1);
+			gotoPosition(start.ParagraphIndex, start.ElementIndex, start.CharIndex);
+			return;
+		}
+
 		final float factor = computeCharsPerPage();
 		final float textSize = page * factor;
 
@@ -1662,10 +1903,8 @@ public abstract class ZLTextView extends ZLTextViewBase {
 
 	private static final char[] SPACE = new char[] { ' ' };
 	private void drawTextLine(ZLTextPage page, List<ZLTextHighlighting> hilites, ZLTextLineInfo info, int from, int to) {
-		Boolean3 type = Boolean3.UNDEFINED;
-		if(myBook != null && myBook.getLanguage() != null && myBook.getLanguage().startsWith("zh")) {
-			type = Application.ViewOptions.ShowTranditionalOption.getValue();
-		}
+		// model text is already converted, see updateLanguageType()
+		final Boolean3 type = Boolean3.UNDEFINED;
 		boolean isDay = Application.ViewOptions.getColorProfile().Name.equals(ColorProfile.DAY);
 		
 		final ZLPaintContext context = getContext();
@@ -1802,11 +2041,10 @@ public abstract class ZLTextView extends ZLTextViewBase {
 		ZLTextLineInfo info = null;
 		do {
 			final ZLTextLineInfo previousInfo = info;// 表示这一段或者这一页之前的信息。如果表示这一页的信息，为null。
-			resetTextStyle();
 			final ZLTextParagraphCursor paragraphCursor = result.getParagraphCursor();
 			final int wordIndex = result.getElementIndex();
 			// 从这一段开始将style重新找回
-			applyStyleChanges(paragraphCursor, 0, wordIndex);
+			restoreTextStyle(paragraphCursor, wordIndex);
 			info = new ZLTextLineInfo(paragraphCursor, wordIndex, result.getCharIndex(), getTextStyle());
 			final int endIndex = info.ParagraphCursorLength;
 			boolean isGujiTitle = isGujiCoverParagraph(start) ? true: false;
@@ -1897,14 +2135,9 @@ public abstract class ZLTextView extends ZLTextViewBase {
 			&& getTextStyle().allowHyphenations();
 	}
 
-	private volatile ZLTextWord myCachedWord;
-	private volatile ZLTextHyphenationInfo myCachedInfo;
-	private final synchronized ZLTextHyphenationInfo getHyphenationInfo(ZLTextWord word) {
-		if (myCachedWord != word) {
-			myCachedWord = word;
-			myCachedInfo = ZLTextHyphenator.Instance().getInfo(word);
-		}
-		return myCachedInfo;
+	private ZLTextHyphenationInfo getHyphenationInfo(ZLTextWord word) {
+		// recently hyphenated words are cached by the hyphenator
+		return ZLTextHyphenator.Instance().getInfo(word);
 	}
 
 	private int getCommentWidth(ArrayList<Integer> lengthList) {
@@ -2003,7 +2236,7 @@ public abstract class ZLTextView extends ZLTextViewBase {
 		ZLTextLineInfo previousInfo
 	) {
 		final ZLTextLineInfo info = new ZLTextLineInfo(paragraphCursor, startIndex, startCharIndex, getTextStyle());
-		final ZLTextLineInfo cachedInfo = myLineInfoCache.get(info);
+		final ZLTextLineInfo cachedInfo = state().LineInfoCache.get(info);
 		if (cachedInfo != null) {
 			cachedInfo.adjust(previousInfo);
 			applyStyleChanges(paragraphCursor, startIndex, cachedInfo.EndElementIndex);
@@ -2175,7 +2408,7 @@ public abstract class ZLTextView extends ZLTextViewBase {
 				int width = 0;
  				while((commentElement instanceof ZLTextWord) && index < endIndex) {
  					if(((ZLTextWord)commentElement).getString().endsWith("|")) {
- 						supwidth = width+getContext().getStringHeight();
+ 						supwidth = width+context().getStringHeight();
  						width = 0;
  						//resetTextStyle();
  						setTextStyle(storedStyle);
@@ -2472,7 +2705,7 @@ public abstract class ZLTextView extends ZLTextViewBase {
 		}
 
 		if (info.EndElementIndex != endIndex || endIndex == info.ParagraphCursorLength) {
-			myLineInfoCache.put(info, info);
+			state().LineInfoCache.put(info, info);
 		}
 
 		return info;
@@ -2923,7 +3156,7 @@ public abstract class ZLTextView extends ZLTextViewBase {
 		
 		final int oldState = page.PaintState;
 
-		final HashMap<ZLTextLineInfo,ZLTextLineInfo> cache = myLineInfoCache;
+		final HashMap<ZLTextLineInfo,ZLTextLineInfo> cache = state().LineInfoCache;
 		for (ZLTextLineInfo info : page.LineInfos) {
 			cache.put(info, info);
 		}
@@ -3022,7 +3255,7 @@ public abstract class ZLTextView extends ZLTextViewBase {
 		}
 		page.PaintState = PaintStateEnum.READY;
 		// TODO: cache?
-		myLineInfoCache.clear();
+		state().LineInfoCache.clear();
 
 		if (page == myCurrentPage) {
 			if (oldState != PaintStateEnum.START_IS_KNOWN) {
@@ -3040,6 +3273,8 @@ public abstract class ZLTextView extends ZLTextViewBase {
 		Application.getViewWidget().reset();
 		myCharWidth = -1;
 		clearGujiTextCache();
+		clearStyleCache();
+		resetPageMaps(true);
 	}
 
 	protected synchronized void rebuildPaintInfo() {
@@ -3062,7 +3297,7 @@ public abstract class ZLTextView extends ZLTextViewBase {
 			}
 		}
 
-		myLineInfoCache.clear();
+		state().LineInfoCache.clear();
 	}
 
 	private int infoSize(ZLTextLineInfo info, int unit) {
@@ -3113,8 +3348,7 @@ public abstract class ZLTextView extends ZLTextViewBase {
 		}
 		final int endElementIndex = paragraphCursor.getParagraphLength();
 
-		resetTextStyle();
-		applyStyleChanges(paragraphCursor, 0, cursor.getElementIndex());
+		restoreTextStyle(paragraphCursor, cursor.getElementIndex());
 
 		ZLTextLineInfo info = null;
 		while (!cursor.isEndOfParagraph() && size > 0) {
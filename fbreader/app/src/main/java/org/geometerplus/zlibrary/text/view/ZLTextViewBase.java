@@ -19,6 +19,9 @@
 
 package org.geometerplus.zlibrary.text.view;
 
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.Map;
 import java.util.Stack;
 
 import org.fbreader.util.Boolean3;
@@ -33,6 +36,7 @@ import org.geometerplus.zlibrary.core.view.ZLView;
 import org.geometerplus.zlibrary.core.view.ZLPaintContext;
 import org.geometerplus.zlibrary.core.view.ZLPaintContext.Size;
 import org.geometerplus.zlibrary.text.model.ZLTextMetrics;
+import org.geometerplus.zlibrary.text.model.ZLTextStyleEntry;
 import org.geometerplus.zlibrary.text.view.style.*;
 import org.geometerplus.zlibrary.ui.android.R;
 
@@ -48,8 +52,27 @@ abstract class ZLTextViewBase extends ZLView {
 		none, covers, all
 	}
 
-	private ZLTextStyle myTextStyle;
-	private int myWordHeight = -1;
+	/**
+	 * The current text style and what is derived from it. Painting uses
+	 * the state of the view; the paginator (see ZLTextView.updatePageMap)
+	 * lays pages out in its own thread, with a state and a context of its own
+	 */
+	static final class LayoutState {
+		final Thread Owner;
+		final ZLPaintContext Context;
+		final HashMap<ZLTextLineInfo,ZLTextLineInfo> LineInfoCache = new HashMap<ZLTextLineInfo,ZLTextLineInfo>();
+		ZLTextStyle TextStyle;
+		int WordHeight = -1;
+		char[] WordPartArray = new char[20];
+
+		LayoutState(Thread owner, ZLPaintContext context) {
+			Owner = owner;
+			Context = context;
+		}
+	}
+
+	private final LayoutState myPaintState = new LayoutState(null, null);
+	private volatile LayoutState myPaginatorState;
 	private ZLTextMetrics myMetrics;
 
 	ZLTextViewBase(FBReaderApp application) {
@@ -86,12 +109,31 @@ abstract class ZLTextViewBase extends ZLView {
 		return m;
 	}
 
+	final LayoutState state() {
+		final LayoutState state = myPaginatorState;
+		return state != null && state.Owner == Thread.currentThread() ? state : myPaintState;
+	}
+
+	final void setPaginatorState(LayoutState state) {
+		myPaginatorState = state;
+	}
+
+	/**
+	 * @return context to measure text with: the view context,
+	 * or the measuring context of the paginator in its thread
+	 */
+	final ZLPaintContext context() {
+		final LayoutState state = myPaginatorState;
+		return state != null && state.Owner == Thread.currentThread() ? state.Context : getContext();
+	}
+
 	final int getWordHeight() {
-		if (myWordHeight == -1) {
-			final ZLTextStyle textStyle = myTextStyle;
-			myWordHeight = getContext().getStringHeight() * textStyle.getLineSpacePercent() / 100 + textStyle.getVerticalAlign(metrics());
+		final LayoutState state = state();
+		if (state.WordHeight == -1) {
+			final ZLTextStyle textStyle = state.TextStyle;
+			state.WordHeight = context().getStringHeight() * textStyle.getLineSpacePercent() / 100 + textStyle.getVerticalAlign(metrics());
 		}
-		return myWordHeight;
+		return state.WordHeight;
 	}
 
 	public abstract ZLTextStyleCollection getTextStyleCollection();
@@ -121,7 +163,7 @@ abstract class ZLTextViewBase extends ZLView {
 	}
 
 	int getFontSize() {
-		return (int)myTextStyle.getFontSize(metrics());
+		return (int)state().TextStyle.getFontSize(metrics());
 	}
 	
 	protected int getColumnIndex(int x) {
@@ -364,18 +406,96 @@ abstract class ZLTextViewBase extends ZLView {
 	}
 	
 	final ZLTextStyle getTextStyle() {
-		if (myTextStyle == null) {
+		final LayoutState state = state();
+		if (state.TextStyle == null) {
 			resetTextStyle();
 		}
-		return myTextStyle;
+		return state.TextStyle;
 	}
 
 	final void setTextStyle(ZLTextStyle style) {
-		if (myTextStyle != style) {
-			myTextStyle = style;
-			myWordHeight = -1;
+		final LayoutState state = state();
+		if (state.TextStyle != style) {
+			state.TextStyle = style;
+			state.WordHeight = -1;
+		}
+		context().setFont(style.getFontEntries(), style.getFontSize(metrics()), style.isBold(), style.isItalic(), style.isUnderline(), style.isStrikeThrough());
+	}
+
+	private static final class StyleKey {
+		final ZLTextStyle Parent;
+		final Object Decoration;
+		final ZLTextHyperlink Hyperlink;
+
+		StyleKey(ZLTextStyle parent, Object decoration, ZLTextHyperlink hyperlink) {
+			Parent = parent;
+			Decoration = decoration;
+			Hyperlink = hyperlink;
+		}
+
+		@Override
+		public boolean equals(Object other) {
+			if (!(other instanceof StyleKey)) {
+				return false;
+			}
+			final StyleKey key = (StyleKey)other;
+			return Parent == key.Parent && Decoration == key.Decoration && Hyperlink == key.Hyperlink;
+		}
+
+		@Override
+		public int hashCode() {
+			return (System.identityHashCode(Parent) * 31 + System.identityHashCode(Decoration)) * 31
+				+ System.identityHashCode(Hyperlink);
 		}
-		getContext().setFont(style.getFontEntries(), style.getFontSize(metrics()), style.isBold(), style.isItalic(), style.isUnderline(), style.isStrikeThrough());
+	}
+
+	// decorated styles never change and cache fonts and metrics inside,
+	// so the same style is shared by all the elements that produce it;
+	// parents are shared too, so they are compared by identity
+	private static final int STYLE_CACHE_SIZE = 1024;
+	// style checkpoints of paragraph cursors are valid for this owner only
+	private Object myStyleCacheOwner = new Object();
+	private final LinkedHashMap<StyleKey,ZLTextStyle> myStyleCache =
+		new LinkedHashMap<StyleKey,ZLTextStyle>(STYLE_CACHE_SIZE, .75f, true) {
+			@Override
+			protected boolean removeEldestEntry(Map.Entry<StyleKey,ZLTextStyle> eldest) {
+				return size() > STYLE_CACHE_SIZE;
+			}
+		};
+
+	final ZLTextStyle decoratedStyle(ZLTextStyle parent, ZLTextNGStyleDescription description, ZLTextHyperlink hyperlink) {
+		final StyleKey key = new StyleKey(parent, description, hyperlink);
+		synchronized (myStyleCache) {
+			ZLTextStyle style = myStyleCache.get(key);
+			if (style == null) {
+				style = new ZLTextNGStyle(parent, description, hyperlink);
+				myStyleCache.put(key, style);
+			}
+			return style;
+		}
+	}
+
+	final ZLTextStyle decoratedStyle(ZLTextStyle parent, ZLTextStyleEntry entry) {
+		final StyleKey key = new StyleKey(parent, entry, null);
+		synchronized (myStyleCache) {
+			ZLTextStyle style = myStyleCache.get(key);
+			if (style == null) {
+				style = new ZLTextExplicitlyDecoratedStyle(parent, entry);
+				myStyleCache.put(key, style);
+			}
+			return style;
+		}
+	}
+
+	/**
+	 * Must be called when style options change: decorated styles
+	 * keep the option values they have read
+	 */
+	final void clearStyleCache() {
+		synchronized (myStyleCache) {
+			myStyleCache.clear();
+		}
+		myStyleCacheOwner = new Object();
 	}
 
 	final void resetTextStyle() {
@@ -401,20 +521,43 @@ abstract class ZLTextViewBase extends ZLView {
 	
 	byte getLastOpenControlKind(ZLTextParagraphCursor cursor, int index) {
 		if(!isGuji()) return -1;
-		int i = index;
-		byte ret = -1;
+		if (!cursor.isPackedWord(index)) {
+			ZLTextElement element = cursor.getElement(index);
+			if(element == null) return -1;
+			if (element instanceof ZLTextControlElement) {
+				return ((ZLTextControlElement)element).Kind;
+			}
+		}
+		final byte[] checkpoints = cursor.controlKindCheckpoints();
+		for (int n = 1; n * ZLTextParagraphCursor.CHECKPOINT_STEP <= index; ++n) {
+			if (checkpoints[n] == ZLTextParagraphCursor.UNKNOWN_KIND) {
+				checkpoints[n] = getOpenControlKind(cursor, n * ZLTextParagraphCursor.CHECKPOINT_STEP, checkpoints);
+			}
+		}
+		return getOpenControlKind(cursor, index, checkpoints);
+	}
+
+	// scans the elements before end backwards; the scan stops at a known
+	// checkpoint if all the controls closed after it have been matched
+	private byte getOpenControlKind(ZLTextParagraphCursor cursor, int end, byte[] checkpoints) {
 		Stack<Byte> stack = new Stack<Byte>();
-		for (; i >= 0; i--) {
+		for (int i = end - 1; i >= 0; i--) {
+			if ((i + 1) % ZLTextParagraphCursor.CHECKPOINT_STEP == 0 && stack.isEmpty()) {
+				final byte kind = checkpoints[(i + 1) / ZLTextParagraphCursor.CHECKPOINT_STEP];
+				if (kind != ZLTextParagraphCursor.UNKNOWN_KIND) {
+					return kind;
+				}
+			}
+			if (cursor.isPackedWord(i)) {
+				continue;
+			}
 			ZLTextElement element = cursor.getElement(i);
-			if(element == null) return ret;
+			if(element == null) return -1;
 			if (element instanceof ZLTextControlElement) {
 				ZLTextControlElement control = ((ZLTextControlElement)element);
-				if(i == index) {
-					return control.Kind;
-				}
 				if(!control.IsStart) {
 					stack.push(control.Kind);
-				} else if(control.IsStart) {
+				} else {
 					if(!stack.isEmpty()) {
 						if(stack.peek().byteValue() == control.Kind) {
 							stack.pop();
@@ -427,12 +570,41 @@ abstract class ZLTextViewBase extends ZLView {
 				}
 			}
 		}
-		return ret;
+		return -1;
+	}
+
+	/**
+	 * Sets the style of the paragraph element, i.e. the base style
+	 * changed by all the elements before it; style changes are replayed
+	 * from the nearest stored checkpoint
+	 */
+	final void restoreTextStyle(ZLTextParagraphCursor cursor, int end) {
+		final int step = ZLTextParagraphCursor.CHECKPOINT_STEP;
+		final ZLTextStyle[] checkpoints = cursor.styleCheckpoints(myStyleCacheOwner);
+		int n = Math.min(end / step, checkpoints.length - 1);
+		while (n > 0 && checkpoints[n] == null) {
+			--n;
+		}
+		if (n > 0) {
+			setTextStyle(checkpoints[n]);
+		} else {
+			resetTextStyle();
+		}
+		for (int index = n * step; index < end; ++index) {
+			if (!cursor.isPackedWord(index)) {
+				applyStyleChangeElement(cursor.getElement(index));
+			}
+			if ((index + 1) % step == 0 && (index + 1) / step < checkpoints.length) {
+				checkpoints[(index + 1) / step] = state().TextStyle;
+			}
+		}
 	}
 
 	void applyStyleChanges(ZLTextParagraphCursor cursor, int index, int end) {
 		for (; index != end; ++index) {
-			applyStyleChangeElement(cursor.getElement(index));
+			if (!cursor.isPackedWord(index)) {
+				applyStyleChangeElement(cursor.getElement(index));
+			}
 		}
 	}
 
@@ -443,21 +615,21 @@ abstract class ZLTextViewBase extends ZLView {
 			final ZLTextNGStyleDescription description =
 				getTextStyleCollection().getDescription(control.Kind);
 			if (description != null) {
-				setTextStyle(new ZLTextNGStyle(myTextStyle, description, hyperlink));
+				setTextStyle(decoratedStyle(getTextStyle(), description, hyperlink));
 			}
 		} else {
 			if(control.Kind != FBTextKind.GUJI_SUPERSCRIPT) {
-				setTextStyle(myTextStyle.Parent);
+				setTextStyle(getTextStyle().Parent);
 			}
 		}
 	}
 
 	private void applyStyle(ZLTextStyleElement element) {
-		setTextStyle(new ZLTextExplicitlyDecoratedStyle(myTextStyle, element.Entry));
+		setTextStyle(decoratedStyle(getTextStyle(), element.Entry));
 	}
 
 	private void applyStyleClose() {
-		setTextStyle(myTextStyle.Parent);
+		setTextStyle(getTextStyle().Parent);
 	}
 
 	protected final ZLPaintContext.ScalingType getScalingType(ZLTextImageElement imageElement) {
@@ -475,15 +647,15 @@ abstract class ZLTextViewBase extends ZLView {
 	}
 
 	public int getSpaceWidth() {
-		if(isGuji()) return getContext().getStringHeight();
-		return getContext().getSpaceWidth();
+		if(isGuji()) return context().getStringHeight();
+		return context().getSpaceWidth();
 	}
 	final int getElementWidth(ZLTextElement element, int charIndex) {
 		if (element instanceof ZLTextWord) {
 			return getWordWidth((ZLTextWord)element, charIndex);
 		} else if (element instanceof ZLTextImageElement) {
 			final ZLTextImageElement imageElement = (ZLTextImageElement)element;
-			final ZLPaintContext.Size size = getContext().imageSize(
+			final ZLPaintContext.Size size = context().imageSize(
 				imageElement.ImageData,
 				getTextAreaSize(),
 				getScalingType(imageElement)
@@ -496,7 +668,7 @@ abstract class ZLTextViewBase extends ZLView {
 		} else if (element == ZLTextElement.NBSpace || element == ZLTextElement.HSpace) {
 			return getSpaceWidth();
 		} else if (element == ZLTextElement.Indent) {
-			return myTextStyle.getFirstLineIndent(metrics());
+			return getTextStyle().getFirstLineIndent(metrics());
 		} else if (element instanceof ZLTextFixedHSpaceElement) {
 			return getSpaceWidth() * ((ZLTextFixedHSpaceElement)element).Length;
 		}
@@ -510,13 +682,13 @@ abstract class ZLTextViewBase extends ZLView {
 			return getWordHeight();
 		} else if (element instanceof ZLTextImageElement) {
 			final ZLTextImageElement imageElement = (ZLTextImageElement)element;
-			final ZLPaintContext.Size size = getContext().imageSize(
+			final ZLPaintContext.Size size = context().imageSize(
 				imageElement.ImageData,
 				getTextAreaSize(),
 				getScalingType(imageElement)
 			);
 			return (size != null ? size.Height : 0) +
-				Math.max(getContext().getStringHeight() * (myTextStyle.getLineSpacePercent() - 100) / 100, 3);
+				Math.max(context().getStringHeight() * (getTextStyle().getLineSpacePercent() - 100) / 100, 3);
 		} else if (element instanceof ZLTextVideoElement) {
 			return Math.min(Math.min(200, getTextAreaHeight()), getTextColumnWidth() * 2 / 3);
 		} else if (element instanceof ExtensionElement) {
@@ -526,40 +698,39 @@ abstract class ZLTextViewBase extends ZLView {
 	}
 
 	final int getElementDescent(ZLTextElement element) {
-		return element instanceof ZLTextWord ? getContext().getDescent() : 0;
+		return element instanceof ZLTextWord ? context().getDescent() : 0;
 	}
 
 	final int getWordWidth(ZLTextWord word, int start) {
 		return
 			start == 0 ?
-				word.getWidth(getContext()) :
-				getContext().getStringWidth(word.Data, word.Offset + start, word.Length - start);
+				word.getWidth(context()) :
+				context().getStringWidth(word.Data, word.Offset + start, word.Length - start);
 	}
 
 	final int getWordWidth(ZLTextWord word, int start, int length) {
-		return getContext().getStringWidth(word.Data, word.Offset + start, length);
+		return context().getStringWidth(word.Data, word.Offset + start, length);
 	}
 
-	private char[] myWordPartArray = new char[20];
-
 	final int getWordWidth(ZLTextWord word, int start, int length, boolean addHyphenationSign) {
 		if (length == -1) {
 			if (start == 0) {
-				return word.getWidth(getContext());
+				return word.getWidth(context());
 			}
 			length = word.Length - start;
 		}
 		if (!addHyphenationSign) {
-			return getContext().getStringWidth(word.Data, word.Offset + start, length);
+			return context().getStringWidth(word.Data, word.Offset + start, length);
 		}
-		char[] part = myWordPartArray;
+		final LayoutState state = state();
+		char[] part = state.WordPartArray;
 		if (length + 1 > part.length) {
 			part = new char[length + 1];
-			myWordPartArray = part;
+			state.WordPartArray = part;
 		}
 		System.arraycopy(word.Data, word.Offset + start, part, 0, length);
 		part[length] = '-';
-		return getContext().getStringWidth(part, 0, length + 1);
+		return context().getStringWidth(part, 0, length + 1);
 	}
 
 	int getAreaLength(ZLTextParagraphCursor paragraph, ZLTextElementArea area, int toCharIndex) {
@@ -588,10 +759,11 @@ abstract class ZLTextViewBase extends ZLView {
 			if (!addHyphenationSign) {
 				drawString(context, x, y, word.Data, word.Offset + start, length, word.getMark(), color, start, languageType);
 			} else {
-				char[] part = myWordPartArray;
+				final LayoutState state = state();
+				char[] part = state.WordPartArray;
 				if (length + 1 > part.length) {
 					part = new char[length + 1];
-					myWordPartArray = part;
+					state.WordPartArray = part;
 				}
 				System.arraycopy(word.Data, word.Offset + start, part, 0, length);
 				part[length] = '-';
@@ -0,0 +1,71 @@
+/*
+ * Copyright (C) 2007-2015 FBReader.ORG Limited <contact@fbreader.org>
+ *
+ * This program is free software; you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation; either version 2 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program; if not, write to the Free Software
+ * Foundation, Inc., 51 Franklin Street, Fifth Floor, Boston, MA
+ * 02110-1301, USA.
+ */
+
+package org.geometerplus.zlibrary.text.view;
+
+/**
+ * Packed sequence of adjacent words with no spaces between them,
+ * as produced for CJK text, where every ideograph is a break opportunity.
+ *
+ * The run takes one slot per word in the paragraph cursor, so element
+ * indices are the same as with separate words; ZLTextWord objects are
+ * created only for the words layout actually reaches, and then kept,
+ * so the same index always gives the same element, also when the run is
+ * read from several threads (e.g. painting and background pagination).
+ * A run is never returned by ZLTextParagraphCursor.getElement().
+ */
+final class ZLTextWordRun extends ZLTextElement {
+	final char[] Data;
+	final int FirstIndex;
+
+	// word k is Data[myOffsets[k] .. myOffsets[k + 1])
+	private final int[] myOffsets;
+	private final int myCount;
+	private final int myParagraphOffset;
+	private ZLTextWord[] myWords;
+
+	ZLTextWordRun(char[] data, int[] offsets, int count, int paragraphOffset, int firstIndex) {
+		Data = data;
+		myOffsets = offsets;
+		myCount = count;
+		myParagraphOffset = paragraphOffset;
+		FirstIndex = firstIndex;
+	}
+
+	int size() {
+		return myCount;
+	}
+
+	synchronized ZLTextWord getWord(int index) {
+		final int k = index - FirstIndex;
+		if (myWords == null) {
+			myWords = new ZLTextWord[myCount];
+		}
+		ZLTextWord word = myWords[k];
+		if (word == null) {
+			final int start = myOffsets[k];
+			word = new ZLTextWord(
+				Data, start, myOffsets[k + 1] - start,
+				myParagraphOffset + start - myOffsets[0]
+			);
+			myWords[k] = word;
+		}
+		return word;
+	}
+}
@@ -31,26 +31,55 @@ public abstract class ZLTextDecoratedStyle extends ZLTextStyle {
 	// fields to be cached
 	protected final ZLTextBaseStyle BaseStyle;
 
-	private List<FontEntry> myFontEntries;
-	private boolean myIsItalic;
-	private boolean myIsBold;
-	private boolean myIsUnderline;
-	private boolean myIsStrikeThrough;
-	private int myLineSpacePercent;
-
-	private boolean myIsNotCached = true;
-
-	private int myFontSize;
-	private int mySpaceBefore;
-	private int mySpaceAfter;
-	private int myVerticalAlign;
-	private Boolean myIsVerticallyAligned;
-	private int myLeftMargin;
-	private int myRightMargin;
-	private int myLeftPadding;
-	private int myRightPadding;
-	private int myFirstLineIndent;
-	private ZLTextMetrics myMetrics;
+	// the styles are shared by the painting and the paginator threads,
+	// so cached values are computed into an immutable holder and published at once
+	private static final class Cache {
+		final List<FontEntry> FontEntries;
+		final boolean IsItalic;
+		final boolean IsBold;
+		final boolean IsUnderline;
+		final boolean IsStrikeThrough;
+		final int LineSpacePercent;
+
+		Cache(ZLTextDecoratedStyle style) {
+			FontEntries = style.getFontEntriesInternal();
+			IsItalic = style.isItalicInternal();
+			IsBold = style.isBoldInternal();
+			IsUnderline = style.isUnderlineInternal();
+			IsStrikeThrough = style.isStrikeThroughInternal();
+			LineSpacePercent = style.getLineSpacePercentInternal();
+		}
+	}
+
+	private static final class MetricsCache {
+		final ZLTextMetrics Metrics;
+		final int FontSize;
+		final int SpaceBefore;
+		final int SpaceAfter;
+		final int VerticalAlign;
+		final int LeftMargin;
+		final int RightMargin;
+		final int LeftPadding;
+		final int RightPadding;
+		final int FirstLineIndent;
+
+		MetricsCache(ZLTextDecoratedStyle style, ZLTextMetrics metrics) {
+			Metrics = metrics;
+			FontSize = style.getFontSizeInternal(metrics);
+			SpaceBefore = style.getSpaceBeforeInternal(metrics, FontSize);
+			SpaceAfter = style.getSpaceAfterInternal(metrics, FontSize);
+			VerticalAlign = style.getVerticalAlignInternal(metrics, FontSize);
+			LeftMargin = style.getLeftMarginInternal(metrics, FontSize);
+			RightMargin = style.getRightMarginInternal(metrics, FontSize);
+			LeftPadding = style.getLeftPaddingInternal(metrics, FontSize);
+			RightPadding = style.getRightPaddingInternal(metrics, FontSize);
+			FirstLineIndent = style.getFirstLineIndentInternal(metrics, FontSize);
+		}
+	}
+
+	private volatile Cache myCache;
+	private volatile MetricsCache myMetricsCache;
+	private volatile Boolean myIsVerticallyAligned;
 
 	protected ZLTextDecoratedStyle(ZLTextStyle base, ZLTextHyperlink hyperlink) {
 		super(base, (hyperlink != null) ? hyperlink : base.Hyperlink);
@@ -59,45 +88,33 @@ public abstract class ZLTextDecoratedStyle extends ZLTextStyle {
 			: ((ZLTextDecoratedStyle)base).BaseStyle;
 	}
 
-	private void initCache() {
-		myFontEntries = getFontEntriesInternal();
-		myIsItalic = isItalicInternal();
-		myIsBold = isBoldInternal();
-		myIsUnderline = isUnderlineInternal();
-		myIsStrikeThrough = isStrikeThroughInternal();
-		myLineSpacePercent = getLineSpacePercentInternal();
-
-		myIsNotCached = false;
+	private Cache cache() {
+		Cache cache = myCache;
+		if (cache == null) {
+			cache = new Cache(this);
+			myCache = cache;
+		}
+		return cache;
 	}
 
-	private void initMetricsCache(ZLTextMetrics metrics) {
-		myMetrics = metrics;
-		myFontSize = getFontSizeInternal(metrics);
-		mySpaceBefore = getSpaceBeforeInternal(metrics, myFontSize);
-		mySpaceAfter = getSpaceAfterInternal(metrics, myFontSize);
-		myVerticalAlign = getVerticalAlignInternal(metrics, myFontSize);
-		myLeftMargin = getLeftMarginInternal(metrics, myFontSize);
-		myRightMargin = getRightMarginInternal(metrics, myFontSize);
-		myLeftPadding = getLeftPaddingInternal(metrics, myFontSize);
-		myRightPadding = getRightPaddingInternal(metrics, myFontSize);
-		myFirstLineIndent = getFirstLineIndentInternal(metrics, myFontSize);
+	private MetricsCache metricsCache(ZLTextMetrics metrics) {
+		MetricsCache cache = myMetricsCache;
+		if (cache == null || !metrics.equals(cache.Metrics)) {
+			cache = new MetricsCache(this, metrics);
+			myMetricsCache = cache;
+		}
+		return cache;
 	}
 
 	@Override
 	public final List<FontEntry> getFontEntries() {
-		if (myIsNotCached) {
-			initCache();
-		}
-		return myFontEntries;
+		return cache().FontEntries;
 	}
 	protected abstract List<FontEntry> getFontEntriesInternal();
 
 	@Override
 	public final int getFontSize(ZLTextMetrics metrics) {
-		if (!metrics.equals(myMetrics)) {
-			initMetricsCache(metrics);
-		}
-		return myFontSize;
+		return metricsCache(metrics).FontSize;
 	}
 	protected abstract int getFontSizeInternal(ZLTextMetrics metrics);
 	
@@ -108,64 +125,43 @@ public abstract class ZLTextDecoratedStyle extends ZLTextStyle {
 
 	@Override
 	public final int getSpaceBefore(ZLTextMetrics metrics) {
-		if (!metrics.equals(myMetrics)) {
-			initMetricsCache(metrics);
-		}
-		return mySpaceBefore;
+		return metricsCache(metrics).SpaceBefore;
 	}
 	protected abstract int getSpaceBeforeInternal(ZLTextMetrics metrics, int fontSize);
 
 	@Override
 	public final int getSpaceAfter(ZLTextMetrics metrics) {
-		if (!metrics.equals(myMetrics)) {
-			initMetricsCache(metrics);
-		}
-		return mySpaceAfter;
+		return metricsCache(metrics).SpaceAfter;
 	}
 	protected abstract int getSpaceAfterInternal(ZLTextMetrics metrics, int fontSize);
 
 	@Override
 	public final boolean isItalic() {
-		if (myIsNotCached) {
-			initCache();
-		}
-		return myIsItalic;
+		return cache().IsItalic;
 	}
 	protected abstract boolean isItalicInternal();
 
 	@Override
 	public final boolean isBold() {
-		if (myIsNotCached) {
-			initCache();
-		}
-		return myIsBold;
+		return cache().IsBold;
 	}
 	protected abstract boolean isBoldInternal();
 
 	@Override
 	public final boolean isUnderline() {
-		if (myIsNotCached) {
-			initCache();
-		}
-		return myIsUnderline;
+		return cache().IsUnderline;
 	}
 	protected abstract boolean isUnderlineInternal();
 
 	@Override
 	public final boolean isStrikeThrough() {
-		if (myIsNotCached) {
-			initCache();
-		}
-		return myIsStrikeThrough;
+		return cache().IsStrikeThrough;
 	}
 	protected abstract boolean isStrikeThroughInternal();
 
 	@Override
 	public final int getVerticalAlign(ZLTextMetrics metrics) {
-		if (!metrics.equals(myMetrics)) {
-			initMetricsCache(metrics);
-		}
-		return myVerticalAlign;
+		return metricsCache(metrics).VerticalAlign;
 	}
 	protected abstract int getVerticalAlignInternal(ZLTextMetrics metrics, int fontSize);
 
@@ -180,55 +176,37 @@ public abstract class ZLTextDecoratedStyle extends ZLTextStyle {
 
 	@Override
 	public final int getLeftMargin(ZLTextMetrics metrics) {
-		if (!metrics.equals(myMetrics)) {
-			initMetricsCache(metrics);
-		}
-		return myLeftMargin;
+		return metricsCache(metrics).LeftMargin;
 	}
 	protected abstract int getLeftMarginInternal(ZLTextMetrics metrics, int fontSize);
 
 	@Override
 	public final int getRightMargin(ZLTextMetrics metrics) {
-		if (!metrics.equals(myMetrics)) {
-			initMetricsCache(metrics);
-		}
-		return myRightMargin;
+		return metricsCache(metrics).RightMargin;
 	}
 	protected abstract int getRightMarginInternal(ZLTextMetrics metrics, int fontSize);
 
 	@Override
 	public final int getLeftPadding(ZLTextMetrics metrics) {
-		if (!metrics.equals(myMetrics)) {
-			initMetricsCache(metrics);
-		}
-		return myLeftPadding;
+		return metricsCache(metrics).LeftPadding;
 	}
 	protected abstract int getLeftPaddingInternal(ZLTextMetrics metrics, int fontSize);
 
 	@Override
 	public final int getRightPadding(ZLTextMetrics metrics) {
-		if (!metrics.equals(myMetrics)) {
-			initMetricsCache(metrics);
-		}
-		return myRightPadding;
+		return metricsCache(metrics).RightPadding;
 	}
 	protected abstract int getRightPaddingInternal(ZLTextMetrics metrics, int fontSize);
 
 	@Override
 	public final int getFirstLineIndent(ZLTextMetrics metrics) {
-		if (!metrics.equals(myMetrics)) {
-			initMetricsCache(metrics);
-		}
-		return myFirstLineIndent;
+		return metricsCache(metrics).FirstLineIndent;
 	}
 	protected abstract int getFirstLineIndentInternal(ZLTextMetrics metrics, int fontSize);
 
 	@Override
 	public final int getLineSpacePercent() {
-		if (myIsNotCached) {
-			initCache();
-		}
-		return myLineSpacePercent;
+		return cache().LineSpacePercent;
 	}
 	protected abstract int getLineSpacePercentInternal();
 }
@@ -62,6 +62,42 @@ public class ZLTextStyleCollection {
 		return myDescriptionMap[kind & 0xFF];
 	}
 
+	/**
+	 * @return hash of the values of all the style options that change text layout
+	 */
+	public int layoutHash() {
+		final ZLTextBaseStyle base = myBaseStyle;
+		final StringBuilder builder = new StringBuilder()
+			.append(base.UseCSSTextAlignmentOption.getValue()).append(':')
+			.append(base.UseCSSMarginsOption.getValue()).append(':')
+			.append(base.UseCSSFontSizeOption.getValue()).append(':')
+			.append(base.UseCSSFontFamilyOption.getValue()).append(':')
+			.append(base.BoldOption.getValue()).append(':')
+			.append(base.ItalicOption.getValue()).append(':')
+			.append(base.MarginTopOption.getValue()).append(':')
+			.append(base.MarginBottomOption.getValue()).append(':')
+			.append(base.MarginLeftOption.getValue()).append(':')
+			.append(base.MarginRightOption.getValue()).append(':')
+			.append(base.TextIndentOption.getValue());
+		for (ZLTextNGStyleDescription d : myDescriptionList) {
+			builder.append('|').append(d.ID)
+				.append(':').append(d.FontFamilyOption.getValue())
+				.append(':').append(d.FontSizeOption.getValue())
+				.append(':').append(d.FontWeightOption.getValue())
+				.append(':').append(d.FontStyleOption.getValue())
+				.append(':').append(d.HyphenationOption.getValue())
+				.append(':').append(d.MarginTopOption.getValue())
+				.append(':').append(d.MarginBottomOption.getValue())
+				.append(':').append(d.MarginLeftOption.getValue())
+				.append(':').append(d.MarginRightOption.getValue())
+				.append(':').append(d.TextIndentOption.getValue())
+				.append(':').append(d.AlignmentOption.getValue())
+				.append(':').append(d.VerticalAlignOption.getValue())
+				.append(':').append(d.LineHeightOption.getValue());
+		}
+		return builder.toString().hashCode();
+	}
+
 	private class TextStyleReader extends DefaultHandler {
 		private int intValue(Attributes attributes, String name, int defaultValue) {
 			final String value = attributes.getValue(name);
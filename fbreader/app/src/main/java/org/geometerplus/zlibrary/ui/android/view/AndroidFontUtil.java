@@ -166,7 +166,8 @@ public final class AndroidFontUtil {
 		return null;
 	}
 
-	public static Typeface typeface(SystemInfo systemInfo, FontEntry entry, boolean bold, boolean italic) {
+	// the paginator sets fonts in background, the typeface caches are shared
+	public static synchronized Typeface typeface(SystemInfo systemInfo, FontEntry entry, boolean bold, boolean italic) {
 		if (entry.isSystem()) {
 			return systemTypeface(entry.Family, bold, italic);
 		} else {
@@ -174,7 +175,7 @@ public final class AndroidFontUtil {
 		}
 	}
 
-	public static Typeface systemTypeface(String family, boolean bold, boolean italic) {
+	public static synchronized Typeface systemTypeface(String family, boolean bold, boolean italic) {
 		family = realFontFamilyName(family);
 		final int style = (bold ? Typeface.BOLD : 0) | (italic ? Typeface.ITALIC : 0);
 		Typeface[] typefaces = ourTypefaces.get(family);
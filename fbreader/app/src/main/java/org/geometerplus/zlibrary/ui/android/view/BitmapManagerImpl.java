@@ -22,14 +22,33 @@ package org.geometerplus.zlibrary.ui.android.view;
 import android.graphics.*;
 
 import org.geometerplus.fbreader.fbreader.FBReaderApp;
+import org.geometerplus.fbreader.formats.djvu.DjvuDocument;
+import org.geometerplus.fbreader.formats.djvu.DjvuRenderer;
 import org.geometerplus.zlibrary.core.view.ZLView;
 import org.geometerplus.zlibrary.core.view.ZLViewEnums.PageIndex;
 import org.geometerplus.zlibrary.ui.android.view.animation.BitmapManager;
 
+/**
+ * Keeps rendered pages in a fixed set of screen-sized bitmaps.
+ *
+ * Bitmaps are reused for the pages that follow, so they are allocated
+ * only when the screen size changes. Neighbour pages are rendered in
+ * advance on a background thread (see prepare()); a page is always drawn
+ * into a bitmap that is not shown, and a thread that needs a page being
+ * rendered waits for it instead of laying out the same page once more.
+ */
 final class BitmapManagerImpl implements BitmapManager {
-	private final int SIZE = 3;
+	// three pages in use, and a spare one to render into
+	private final int SIZE = 4;
 	private final Bitmap[] myBitmaps = new Bitmap[SIZE];
+	// DjVu pages are owned by the renderer cache, and must not be recycled here
+	private final boolean[] myIsShared = new boolean[SIZE];
 	private final ZLView.PageIndex[] myIndexes = new ZLView.PageIndex[SIZE];
+	// pages being rendered into the bitmaps right now
+	private final ZLView.PageIndex[] myRenderingIndexes = new ZLView.PageIndex[SIZE];
+	// incremented when rendered pages are invalidated; a page rendered
+	// for an older generation is not kept
+	private int myGeneration;
 
 	private int myWidth;
 	private int myHeight;
@@ -40,72 +59,200 @@ final class BitmapManagerImpl implements BitmapManager {
 		myWidget = widget;
 	}
 
-	void setSize(int w, int h) {
+	synchronized void setSize(int w, int h) {
 		if (myWidth != w || myHeight != h) {
 			myWidth = w;
 			myHeight = h;
+			++myGeneration;
 			for (int i = 0; i < SIZE; ++i) {
-				myBitmaps[i] = null;
 				myIndexes[i] = null;
+				// bitmaps being rendered are replaced after rendering
+				if (myRenderingIndexes[i] == null) {
+					releaseBitmap(i);
+				}
 			}
-			System.gc();
-			System.gc();
-			System.gc();
 		}
 	}
 
 	public Bitmap getBitmap(ZLView.PageIndex index) {
-		for (int i = 0; i < SIZE; ++i) {
-			if (index == myIndexes[i] && myBitmaps[i] != null && !myBitmaps[i].isRecycled()) {
-				return myBitmaps[i];
+		return render(index, true);
+	}
+
+	/**
+	 * Renders the page in advance, unless it is ready or being rendered already
+	 */
+	void prepare(ZLView.PageIndex index) {
+		render(index, false);
+	}
+
+	private Bitmap render(ZLView.PageIndex index, boolean waitForResult) {
+		final int slot;
+		final int generation;
+		final int width;
+		final int height;
+		final Bitmap oldBitmap;
+		final boolean oldIsShared;
+		synchronized (this) {
+			while (true) {
+				final int ready = findSlot(myIndexes, index);
+				if (ready != -1) {
+					if (myBitmaps[ready] != null && !myBitmaps[ready].isRecycled()) {
+						return myBitmaps[ready];
+					}
+					myIndexes[ready] = null;
+				}
+				if (findSlot(myRenderingIndexes, index) == -1) {
+					break;
+				}
+				if (!waitForResult) {
+					return null;
+				}
+				try {
+					wait();
+				} catch (InterruptedException e) {
+					return null;
+				}
+			}
+			slot = getFreeSlot();
+			if (slot == -1 && !waitForResult) {
+				return null;
 			}
+			generation = myGeneration;
+			width = myWidth;
+			height = myHeight;
+			if (slot != -1) {
+				myIndexes[slot] = null;
+				myRenderingIndexes[slot] = index;
+				oldBitmap = myBitmaps[slot];
+				oldIsShared = myIsShared[slot];
+			} else {
+				oldBitmap = null;
+				oldIsShared = false;
+			}
+		}
+
+		if (slot == -1) {
+			// all the slots are busy (pages shifted while being rendered):
+			// the page is drawn into a bitmap of its own, that is not kept
+			return isDjvu() ? drawDjvu(index, width, height, true) : draw(null, index, width, height);
 		}
+
+		Bitmap bitmap = null;
+		final boolean isDjvu = isDjvu();
+		try {
+			if (isDjvu) {
+				bitmap = drawDjvu(index, width, height, !waitForResult);
+			} else {
+				bitmap = draw(oldIsShared ? null : oldBitmap, index, width, height);
+			}
+		} finally {
+			synchronized (this) {
+				myRenderingIndexes[slot] = null;
+				if (!oldIsShared && oldBitmap != null && oldBitmap != bitmap) {
+					oldBitmap.recycle();
+				}
+				myBitmaps[slot] = bitmap;
+				// DjVu pages, previews and placeholders belong to the renderer cache
+				myIsShared[slot] = isDjvu && bitmap != null;
+				if (bitmap != null && generation == myGeneration) {
+					myIndexes[slot] = index;
+				}
+				notifyAll();
+			}
+		}
+		return bitmap;
+	}
+
+	private static boolean isDjvu() {
 		final FBReaderApp fbReader = (FBReaderApp)FBReaderApp.Instance();
-		
-		boolean isDjvu = fbReader.Model == null?false:fbReader.BookTextView.isDjvu();
-		final int iIndex = getInternalIndex(index);
-		myIndexes[iIndex] = index;
-		if(myBitmaps[iIndex] != null && (isDjvu)) {
-			myBitmaps[iIndex].recycle();
-			myBitmaps[iIndex] = null;
-		}
-		if(myBitmaps[iIndex] != null && !myBitmaps[iIndex].isMutable()) {
-			myBitmaps[iIndex].recycle();
-			myBitmaps[iIndex] = null;
-		}
-		if (myBitmaps[iIndex] == null) {
-			try {
-				if(isDjvu) {
-					if(fbReader.DJVUDocument == null) return null;
-					int pageIndex = fbReader.DJVUDocument.currentPageIndex;
-					if(index == ZLView.PageIndex.next) pageIndex++;
-					else if(index == ZLView.PageIndex.previous) pageIndex--;
-					if(pageIndex < 0) pageIndex = 0;
-					else if(pageIndex > fbReader.DJVUDocument.getPageCount()-1) pageIndex = fbReader.DJVUDocument.getPageCount() -1;
-					
-					Bitmap bitmap = fbReader.DJVUDocument.getPage(pageIndex).renderBitmap(myWidth, myHeight, new RectF(0, 0, 1, 1));
-					if(bitmap == null) {
-						bitmap = fbReader.DJVUDocument.getPage(pageIndex).renderBitmap(myWidth, myHeight, new RectF(0, 0, 1, 1));
+		return fbReader.Model != null && fbReader.BookTextView.isDjvu();
+	}
+
+	private DjvuRenderer myDjvuRenderer;
+
+	private synchronized DjvuRenderer djvuRenderer(final DjvuDocument document) {
+		if (myDjvuRenderer == null || myDjvuRenderer.Document != document) {
+			if (myDjvuRenderer != null) {
+				myDjvuRenderer.shutdown();
+			}
+			myDjvuRenderer = new DjvuRenderer(document, new DjvuRenderer.Listener() {
+				public void onPageRendered(int pageIndex) {
+					// shown pages might be previews, they are replaced by the rendered ones
+					if (Math.abs(pageIndex - document.currentPageIndex) <= 1) {
+						myWidget.reset();
+						myWidget.repaint();
 					}
-					myBitmaps[iIndex] = bitmap;
-				} else {
-					myBitmaps[iIndex] = Bitmap.createBitmap(myWidth, myHeight, Bitmap.Config.ARGB_8888);
-				}
-			} catch (OutOfMemoryError e) {
-				System.gc();
-				System.gc();
-				try {
-					myBitmaps[iIndex] = Bitmap.createBitmap(myWidth, myHeight, Bitmap.Config.RGB_565);
-				} catch (OutOfMemoryError ex) {
-					System.gc();
-					System.gc();
 				}
+			});
+		}
+		return myDjvuRenderer;
+	}
+
+	/**
+	 * Pages that are not rendered yet are shown as previews, unless
+	 * the call is made to prepare the page in background
+	 */
+	private Bitmap drawDjvu(ZLView.PageIndex index, int width, int height, boolean block) {
+		final DjvuDocument document = ((FBReaderApp)FBReaderApp.Instance()).DJVUDocument;
+		if (document == null) {
+			return null;
+		}
+		final DjvuRenderer renderer = djvuRenderer(document);
+		final int currentPage = document.currentPageIndex;
+		int pageIndex = currentPage;
+		if (index == ZLView.PageIndex.next) pageIndex++;
+		else if (index == ZLView.PageIndex.previous) pageIndex--;
+		if (pageIndex < 0) pageIndex = 0;
+		else if (pageIndex > document.getPageCount() - 1) pageIndex = document.getPageCount() - 1;
+
+		final Bitmap page = renderer.getPage(pageIndex, width, height, block);
+		renderer.setCurrentPage(currentPage, width, height);
+		return page;
+	}
+
+	private Bitmap draw(Bitmap bitmap, ZLView.PageIndex index, int width, int height) {
+		if (bitmap != null && (bitmap.isRecycled() || !bitmap.isMutable() ||
+				bitmap.getWidth() != width || bitmap.getHeight() != height)) {
+			bitmap = null;
+		}
+		if (bitmap == null) {
+			bitmap = createBitmap(width, height);
+		}
+		// the page is painted entirely, wallpaper included, so the bitmap is not cleared
+		myWidget.drawOnBitmap(bitmap, index);
+		return bitmap;
+	}
+
+	private Bitmap createBitmap(int width, int height) {
+		if (width <= 0 || height <= 0) {
+			return null;
+		}
+		try {
+			return Bitmap.createBitmap(width, height, Bitmap.Config.ARGB_8888);
+		} catch (OutOfMemoryError e) {
+			releaseUnusedBitmaps();
+			try {
+				return Bitmap.createBitmap(width, height, Bitmap.Config.RGB_565);
+			} catch (OutOfMemoryError ex) {
+				return null;
+			}
+		}
+	}
+
+	private synchronized void releaseUnusedBitmaps() {
+		for (int i = 0; i < SIZE; ++i) {
+			if (myIndexes[i] == null && myRenderingIndexes[i] == null) {
+				releaseBitmap(i);
 			}
 		}
-		if(!isDjvu) {
-			myWidget.drawOnBitmap(myBitmaps[iIndex], index);
+	}
+
+	private void releaseBitmap(int slot) {
+		if (myBitmaps[slot] != null && !myIsShared[slot]) {
+			myBitmaps[slot].recycle();
 		}
-		return myBitmaps[iIndex];
+		myBitmaps[slot] = null;
+		myIsShared[slot] = false;
 	}
 
 	public void drawBitmap(Canvas canvas, int x, int y, ZLView.PageIndex index, Paint paint) {
@@ -115,28 +262,39 @@ final class BitmapManagerImpl implements BitmapManager {
 		}
 	}
 
-	private int getInternalIndex(ZLView.PageIndex index) {
+	private int findSlot(ZLView.PageIndex[] indexes, ZLView.PageIndex index) {
 		for (int i = 0; i < SIZE; ++i) {
-			if (myIndexes[i] == null) {
+			if (indexes[i] == index) {
+				return i;
+			}
+		}
+		return -1;
+	}
+
+	// a slot that is neither being rendered nor shown as current page, or -1
+	private int getFreeSlot() {
+		for (int i = 0; i < SIZE; ++i) {
+			if (myIndexes[i] == null && myRenderingIndexes[i] == null) {
 				return i;
 			}
 		}
 		for (int i = 0; i < SIZE; ++i) {
-			if (myIndexes[i] != ZLView.PageIndex.current) {
+			if (myRenderingIndexes[i] == null && myIndexes[i] != ZLView.PageIndex.current) {
 				return i;
 			}
 		}
-		return 0;
-		//throw new RuntimeException("That's impossible");
+		return -1;
 	}
 
-	void reset() {
+	synchronized void reset() {
+		++myGeneration;
 		for (int i = 0; i < SIZE; ++i) {
 			myIndexes[i] = null;
 		}
 	}
 
-	void shift(boolean forward) {
+	synchronized void shift(boolean forward) {
+		++myGeneration;
 		for (int i = 0; i < SIZE; ++i) {
 			if (myIndexes[i] == null) {
 				continue;
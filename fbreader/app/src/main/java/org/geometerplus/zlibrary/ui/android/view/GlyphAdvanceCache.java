@@ -0,0 +1,171 @@
+/*
+ * Copyright (C) 2007-2015 FBReader.ORG Limited <contact@fbreader.org>
+ *
+ * This program is free software; you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation; either version 2 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program; if not, write to the Free Software
+ * Foundation, Inc., 51 Franklin Street, Fifth Floor, Boston, MA
+ * 02110-1301, USA.
+ */
+
+package org.geometerplus.zlibrary.ui.android.view;
+
+import java.util.Arrays;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+import android.graphics.Paint;
+import android.graphics.Typeface;
+
+/**
+ * Advance widths of characters for one typeface and text size.
+ *
+ * CJK characters are stored in a dense array, other code points (Ext-B
+ * characters first of all) in an open addressing hash table. Widths
+ * are measured by the paint on the first request only.
+ *
+ * Only characters that have no kerning with their neighbours may be
+ * measured one by one, see isDense().
+ */
+final class GlyphAdvanceCache {
+	// CJK symbols and punctuation, kana, CJK extension A, unified ideographs
+	private static final int DENSE_START = 0x3000;
+	private static final int DENSE_END = 0xA000;
+	private static final int MAX_CACHES = 8;
+
+	private static final class Key {
+		final Typeface Typeface;
+		final float Size;
+
+		Key(Typeface typeface, float size) {
+			Typeface = typeface;
+			Size = size;
+		}
+
+		@Override
+		public boolean equals(Object other) {
+			if (!(other instanceof Key)) {
+				return false;
+			}
+			final Key key = (Key)other;
+			return Typeface == key.Typeface && Size == key.Size;
+		}
+
+		@Override
+		public int hashCode() {
+			return System.identityHashCode(Typeface) * 31 + Float.floatToIntBits(Size);
+		}
+	}
+
+	private static final LinkedHashMap<Key,GlyphAdvanceCache> ourCaches =
+		new LinkedHashMap<Key,GlyphAdvanceCache>(MAX_CACHES, .75f, true) {
+			@Override
+			protected boolean removeEldestEntry(Map.Entry<Key,GlyphAdvanceCache> eldest) {
+				return size() > MAX_CACHES;
+			}
+		};
+
+	static GlyphAdvanceCache get(Typeface typeface, float size) {
+		final Key key = new Key(typeface, size);
+		synchronized (ourCaches) {
+			GlyphAdvanceCache cache = ourCaches.get(key);
+			if (cache == null) {
+				cache = new GlyphAdvanceCache();
+				ourCaches.put(key, cache);
+			}
+			return cache;
+		}
+	}
+
+	static boolean isDense(char ch) {
+		return ch >= DENSE_START && ch < DENSE_END;
+	}
+
+	private final char[] myOne = new char[1];
+	private float[] myDense;
+
+	private int[] myKeys = new int[64];
+	private float[] myValues = new float[64];
+	private int mySize;
+
+	private GlyphAdvanceCache() {
+	}
+
+	/**
+	 * @return sum of the advances of the characters,
+	 * all the characters must be dense ones
+	 */
+	synchronized float measureDense(Paint paint, char[] text, int offset, int length) {
+		float[] dense = myDense;
+		if (dense == null) {
+			dense = new float[DENSE_END - DENSE_START];
+			Arrays.fill(dense, -1);
+			myDense = dense;
+		}
+		float width = 0;
+		for (int i = offset; i < offset + length; ++i) {
+			final int index = text[i] - DENSE_START;
+			float advance = dense[index];
+			if (advance < 0) {
+				myOne[0] = text[i];
+				advance = paint.measureText(myOne, 0, 1);
+				dense[index] = advance;
+			}
+			width += advance;
+		}
+		return width;
+	}
+
+	/**
+	 * @return cached advance of the code point, or -1 if it is not known yet
+	 */
+	synchronized float advance(int codePoint) {
+		final int mask = myKeys.length - 1;
+		for (int i = codePoint * 0x9E3779B9 >>> 16 & mask; ; i = (i + 1) & mask) {
+			final int key = myKeys[i];
+			if (key == codePoint) {
+				return myValues[i];
+			} else if (key == 0) {
+				return -1;
+			}
+		}
+	}
+
+	synchronized void setAdvance(int codePoint, float advance) {
+		if (2 * (mySize + 1) > myKeys.length) {
+			final int[] keys = myKeys;
+			final float[] values = myValues;
+			myKeys = new int[keys.length * 2];
+			myValues = new float[keys.length * 2];
+			mySize = 0;
+			for (int i = 0; i < keys.length; ++i) {
+				if (keys[i] != 0) {
+					put(keys[i], values[i]);
+				}
+			}
+		}
+		put(codePoint, advance);
+	}
+
+	private void put(int codePoint, float advance) {
+		final int mask = myKeys.length - 1;
+		int i = codePoint * 0x9E3779B9 >>> 16 & mask;
+		while (myKeys[i] != 0 && myKeys[i] != codePoint) {
+			i = (i + 1) & mask;
+		}
+		if (myKeys[i] == 0) {
+			myKeys[i] = codePoint;
+			++mySize;
+		}
+		myValues[i] = advance;
+	}
+}
@@ -21,9 +21,9 @@ package org.geometerplus.zlibrary.ui.android.view;
 
 import java.util.ArrayList;
 import java.util.Arrays;
+import java.util.BitSet;
 import java.util.HashMap;
 import java.util.HashSet;
-import java.util.LinkedHashSet;
 import java.util.List;
 import java.util.Random;
 import java.util.Set;
@@ -730,65 +730,72 @@ public final class ZLAndroidPaintContext extends ZLPaintContext {
 		return ret.toString();
 	}
 	
+	private GlyphAdvanceCache myAdvanceCache;
+	private Typeface myAdvanceTypeface;
+	private float myAdvanceTextSize;
+
+	private GlyphAdvanceCache advanceCache() {
+		final Typeface typeface = myTextPaint.getTypeface();
+		final float size = myTextPaint.getTextSize();
+		if (myAdvanceCache == null || typeface != myAdvanceTypeface || size != myAdvanceTextSize) {
+			myAdvanceCache = GlyphAdvanceCache.get(typeface, size);
+			myAdvanceTypeface = typeface;
+			myAdvanceTextSize = size;
+		}
+		return myAdvanceCache;
+	}
+
+	// soft hyphens are skipped; surrogate pairs are measured with the Ext-B font
 	public int measureText(char[] string, int offset, int length) {
+		final GlyphAdvanceCache cache = advanceCache();
+		final int end = offset + length;
 		int start = offset;
 		float stringWidth = 0;
-		for(int i = offset;i < offset + length; i++) {
-			if(Character.isHighSurrogate(string[i])) {
-				if(i != start) {
-					stringWidth += mIsGuji? (i-start)*getStringHeight():myTextPaint.measureText(new String(string, start, i-start));
+		for(int i = offset;i < end; i++) {
+			final char ch = string[i];
+			if(Character.isHighSurrogate(ch) && i + 1 < string.length) {
+				stringWidth += measureSegment(cache, string, start, i);
+				final int codePoint = Character.toCodePoint(ch, string[i + 1]);
+				float advance = cache.advance(codePoint);
+				if(advance < 0) {
+					Typeface previosType = myTextPaint.getTypeface();
+					myTextPaint.setTypeface(AndroidFontUtil.systemTypeface("TW-Kai-Ext-B", previosType.isBold(), previosType.isItalic()));
+					advance = myTextPaint.measureText(string, i, 2);
+					myTextPaint.setTypeface(previosType);
+					cache.setAdvance(codePoint, advance);
 				}
-				Typeface previosType = myTextPaint.getTypeface();
-				myTextPaint.setTypeface(AndroidFontUtil.systemTypeface("TW-Kai-Ext-B", previosType.isBold(), previosType.isItalic()));
-				stringWidth += myTextPaint.measureText(new String(string, i, 2));
-				myTextPaint.setTypeface(previosType);
+				stringWidth += advance;
 				i++;
 				start = i+1;
-			} else if(mIsGuji && myIsShowGujiPunctuation!=GujiPunctuationEnum.show && isCharPunctuation(string[i]) ) {
-				if(i != start) {
-					stringWidth += (i-start)*getStringHeight();//myTextPaint.measureText(new String(string, start, i-start));
-				}
-				start = i + 1;
-			} else if(mIsGuji && isDigit(string[i]) ) {
-				if(i != start) {
-					stringWidth += (i-start)*getStringHeight();//myTextPaint.measureText(new String(string, start, i-start));
-				}
-				stringWidth += getStringHeight();
+			} else if(ch == (char)0xAD
+					|| (mIsGuji && myIsShowGujiPunctuation!=GujiPunctuationEnum.show && isCharPunctuation(ch))) {
+				stringWidth += measureSegment(cache, string, start, i);
 				start = i + 1;
 			}
 		}
-		if(start < offset+length) {
-			stringWidth += mIsGuji?(offset+length - start)*getStringHeight() : 
-				myTextPaint.measureText(new String(string, start, offset+length - start));
-		}
+		stringWidth += measureSegment(cache, string, start, end);
 		return (int)(stringWidth + 0.5f);
 	}
-	
-	@Override
-	public int getStringWidth(char[] string, int offset, int length) {
-		boolean containsSoftHyphen = false;
-		for (int i = offset; i < offset + length; ++i) {
-			if (string[i] == (char)0xAD) {
-				containsSoftHyphen = true;
-				break;
-			}
+
+	private float measureSegment(GlyphAdvanceCache cache, char[] string, int start, int end) {
+		if(start >= end) {
+			return 0;
 		}
-		if (!containsSoftHyphen) {
-			
-			return measureText(string, offset, length);
-			//return (int)(myTextPaint.measureText(new String(string, offset, length)) + 0.5f);
-		} else {
-			final char[] corrected = new char[length];
-			int len = 0;
-			for (int o = offset; o < offset + length; ++o) {
-				final char chr = string[o];
-				if (chr != (char)0xAD) {
-					corrected[len++] = chr;
-				}
+		if(mIsGuji) {
+			// every guji character (digits included) takes one square
+			return (end - start) * getStringHeight();
+		}
+		for(int i = start; i < end; i++) {
+			if(!GlyphAdvanceCache.isDense(string[i])) {
+				return myTextPaint.measureText(string, start, end - start);
 			}
-			return measureText(corrected, 0, len);
-			//return (int)(myTextPaint.measureText(corrected, 0, len) + 0.5f);
 		}
+		return cache.measureDense(myTextPaint, string, start, end - start);
+	}
+	
+	@Override
+	public int getStringWidth(char[] string, int offset, int length) {
+		return measureText(string, offset, length);
 	}
 
 	@Override
@@ -814,35 +821,35 @@ public final class ZLAndroidPaintContext extends ZLPaintContext {
 		return (int)(myTextPaint.descent() + 0.5f);
 	}
 	
-	static LinkedHashSet<Character> PUNCTUATION_CHARS = new LinkedHashSet<Character>();
 	static char[] PUNCTUATION_CHARS_ARRAY = new char[] {',', '.', ';', ':', '!', '?', '，', '。', '；', '？', '：', '！', '「', '」', '、', '『', '』', '\'', '"',
 			'“', '”', '‘', '’', '(', ')', '[', ']', '（', '）', '【', '】','《','》','─','…'};
+	private static final BitSet PUNCTUATION_CHARS = charSet(PUNCTUATION_CHARS_ARRAY);
 	public static boolean isCharPunctuation(char ch) {
-		if(PUNCTUATION_CHARS.size() == 0) {
-			for(int i = 0; i < PUNCTUATION_CHARS_ARRAY.length; i++) {
-				PUNCTUATION_CHARS.add(PUNCTUATION_CHARS_ARRAY[i]);
-			}
-		}
-
-		if(PUNCTUATION_CHARS.contains(ch)) return true;
-		return false;
+		return PUNCTUATION_CHARS.get(ch);
 	}
 	
-	LinkedHashSet<Character> HORIZONTAL_CHARS = new LinkedHashSet<Character>();
-	char[] HORIZONTAL_CHARS_ARRAY = new char[]{'(', ')', '[', ']', '（', '）', '【', '】','《','》','…','─'};
+	static char[] HORIZONTAL_CHARS_ARRAY = new char[]{'(', ')', '[', ']', '（', '）', '【', '】','《','》','…','─'};
+	private static final BitSet HORIZONTAL_CHARS = charSet(HORIZONTAL_CHARS_ARRAY);
 	private boolean isCharShouldHorizontal(char ch) {
-		if(HORIZONTAL_CHARS.size() == 0) {
-			for(int i = 0; i < HORIZONTAL_CHARS_ARRAY.length; i++) {
-				HORIZONTAL_CHARS.add(HORIZONTAL_CHARS_ARRAY[i]);
-			}
+		return HORIZONTAL_CHARS.get(ch);
+	}
+
+	private static BitSet charSet(char[] chars) {
+		final BitSet set = new BitSet(0x10000);
+		for (char ch : chars) {
+			set.set(ch);
 		}
-		if(HORIZONTAL_CHARS.contains(ch)) return true;
-		return false;
+		return set;
 	}
 	
 	public Canvas getCanvas() {
 		return myCanvas;
 	}
+
+	@Override
+	protected ZLPaintContext createMeasuringContext() {
+		return new ZLAndroidPaintContext(getSystemInfo(), new Canvas(), myGeometry, myScrollbarWidth, mIsGuji);
+	}
 	
 	public static boolean isPUA(char ch) {
         return ('\uE000' <= ch && '\uF8FF' >= ch);
@@ -914,13 +921,13 @@ public final class ZLAndroidPaintContext extends ZLPaintContext {
 	@Override
 	public void drawString(int x, int y, char[] string, int offset, int length, boolean isGujiString, Boolean3 languageType) {
 		if(languageType == Boolean3.TRUE) {
-			String zhString = new String(string, offset, length);
-			string = ChineseConvertor.convertToZht(zhString).toCharArray();
+			string = ChineseConvertor.convertToZht(string, offset, length);
 			offset = 0;
+			length = string.length;
 		} else if(languageType == Boolean3.FALSE) {
-			String zhString = new String(string, offset, length);
-			string = ChineseConvertor.convertToZhs(zhString).toCharArray();
+			string = ChineseConvertor.convertToZhs(string, offset, length);
 			offset = 0;
+			length = string.length;
 		}
 		
 		boolean containsSoftHyphen = false;
@@ -309,8 +309,8 @@ public class ZLAndroidWidget extends MainView implements ZLViewWidget, View.OnLo
 			public void run() {
 				PrepareService.execute(new Runnable() {
 					public void run() {
-						myBitmapManager.getBitmap(ZLView.PageIndex.next);
-						myBitmapManager.getBitmap(ZLView.PageIndex.previous);
+						myBitmapManager.prepare(ZLView.PageIndex.next);
+						myBitmapManager.prepare(ZLView.PageIndex.previous);
 					}
 				});
 			}
@@ -19,13 +19,19 @@
 
 #include <cctype>
 #include <android/log.h>
+
+#include <ZLFile.h>
+#include <ZLOutputStream.h>
+
 #include "GujiBookReader.h"
 #include "../../library/Book.h"
 #include "../../bookmodel/BookModel.h"
 
 GujiBookReader::GujiBookReader(BookModel &model, const GujiTextFormat &format, const std::string &encoding) :
 	GujiReader(encoding), BookReader(model), myFormat(format), myModel(model),myLastString(""),
-	myIsNeedLineHandler(true), myIsInSectionTitle(false), myIsAfterBookTitle(false) {
+	myIsNeedLineHandler(true), myIsInSectionTitle(false), myIsAfterBookTitle(false),
+	myIsUtf8(encoding == ZLEncodingConverter::UTF8), myParagraphStart(0), myParagraphIsLine(false),
+	myParagraphStartsAtNextLine(false) {
 }
 
 void GujiBookReader::internalEndParagraph() {
@@ -56,6 +62,7 @@ bool GujiBookReader::titleHandler(std::string &str) {
 	const shared_ptr<Book> myBook = myModel.book();
 	myBook->setTitle(str.substr(7, str.length()-9));
 	myIsNeedLineHandler = true;
+	myParagraphIsLine = false;
 	if(!myIsAfterBookTitle) {
 		myIsAfterBookTitle = true;
 	}
@@ -76,6 +83,7 @@ bool GujiBookReader::titleHandler(std::string &str) {
 }
 
 bool GujiBookReader::sectionHandler(std::string &str) {
+	myParagraphIsLine = false;
 	if(str.find("}") != std::string::npos) {
 		if(str.find("\\section{") == 0 ) {
 			if(myIsAfterBookTitle) {
@@ -101,6 +109,7 @@ bool GujiBookReader::sectionHandler(std::string &str) {
 			this->beginParagraph();
 			myIsNeedLineHandler = false;
 			myIsInSectionTitle = false;
+			myParagraphStartsAtNextLine = true;
 		} else {
 			addData(str.substr(0, str.find("}")));
 			addContentsData(str.substr(0, str.find("}")));
@@ -113,6 +122,7 @@ bool GujiBookReader::sectionHandler(std::string &str) {
 			this->beginParagraph();
 			myIsNeedLineHandler = false;
 			myIsInSectionTitle = false;
+			myParagraphStartsAtNextLine = true;
 		}
 	} else {
 		if(str.find("\\section{") == 0 ) {
@@ -165,6 +175,7 @@ bool GujiBookReader::characterDataHandler(std::string &str) {
 		endContentsParagraph();//表示一个目录的结束。用于实现目录的嵌套
 		model().bookTextModel()->popParagraph();
 		insertEndOfSectionParagraph();
+		myParagraphIsLine = false;
 		//pushKind(CONTENTS_TABLE_ENTRY);
 		//beginParagraph();
 
@@ -175,6 +186,7 @@ bool GujiBookReader::characterDataHandler(std::string &str) {
 		myLastString.erase();
 		myLastString = str;
 		myIsNeedLineHandler = false;
+		myParagraphIsLine = false;
 	} else {
 		const char *end = ptr + str.length();
 		myIsNeedLineHandler = true;
@@ -491,6 +503,7 @@ bool GujiBookReader::characterDataHandler(std::string &str) {
 					myLastString.erase();
 					myLastString = str.substr(start +str.length() -end, ptr-start);
 					myIsNeedLineHandler = false;
+					myParagraphIsLine = false;
 				} else {
 					//__android_log_print(ANDROID_LOG_INFO, "love", "!!!!!666!!!!!!%s",str.substr(start +str.length() -end, ptr-start).c_str());
 					addData(str.substr(start +str.length() -end, ptr-start));
@@ -508,6 +521,15 @@ bool GujiBookReader::characterDataHandler(std::string &str) {
 
 bool GujiBookReader::newLineHandler() {
 	if(!myIsNeedLineHandler) {
+		if (myParagraphStartsAtNextLine) {
+			// the paragraph opened after a section title starts with the next line
+			myParagraphStartsAtNextLine = false;
+			myParagraphStart = myLineEnd;
+			myParagraphIsLine = myLineOffsetsAreKnown && isKindStackEmpty();
+		} else {
+			// the line is continued by the next one
+			myParagraphIsLine = false;
+		}
 		return true;
 	}
 	if (!myLastLineIsEmpty) {
@@ -522,9 +544,17 @@ bool GujiBookReader::newLineHandler() {
 		((myFormat.breakType() & GujiTextFormat::BREAK_PARAGRAPH_AT_EMPTY_LINE) && (myLineFeedCounter > 0));
 
 	if (true) {
+		if (myParagraphIsLine && isKindStackEmpty()) {
+			mySourceRanges.push_back(model().bookTextModel()->paragraphsNumber() - 1);
+			mySourceRanges.push_back(myParagraphStart);
+			mySourceRanges.push_back(myLineEnd);
+		}
 		internalEndParagraph();
 		reset();
 		beginParagraph();
+		myParagraphStart = myLineEnd;
+		// a paragraph that inherits open kinds does not start with its own line
+		myParagraphIsLine = myLineOffsetsAreKnown && isKindStackEmpty();
 	}
 	return true;
 }
@@ -540,4 +570,38 @@ void GujiBookReader::startDocumentHandler() {
 
 void GujiBookReader::endDocumentHandler() {
 	internalEndParagraph();
+	writeSourceRanges();
+}
+
+static void writeInt(ZLOutputStream &stream, int value) {
+	char bytes[4];
+	bytes[0] = (char)(value >> 24);
+	bytes[1] = (char)(value >> 16);
+	bytes[2] = (char)(value >> 8);
+	bytes[3] = (char)value;
+	stream.write(bytes, 4);
+}
+
+static void writeLong(ZLOutputStream &stream, unsigned long long value) {
+	writeInt(stream, (int)(value >> 32));
+	writeInt(stream, (int)value);
+}
+
+// the format is read by ZLTextPlainModel.gujiSourceRange (java)
+void GujiBookReader::writeSourceRanges() {
+	if (!myIsUtf8 || !myLineOffsetsAreKnown || myModel.CacheDir.empty()) {
+		return;
+	}
+	shared_ptr<ZLOutputStream> stream = ZLFile(myModel.CacheDir + "/guji.ranges").outputStream();
+	if (stream.isNull() || !stream->open()) {
+		return;
+	}
+	writeInt(*stream, 0x47524E47); // "GRNG"
+	writeInt(*stream, 2);
+	writeLong(*stream, myStreamLength);
+	writeInt(*stream, mySourceRanges.size() / 3);
+	for (std::vector<int>::const_iterator it = mySourceRanges.begin(); it != mySourceRanges.end(); ++it) {
+		writeInt(*stream, *it);
+	}
+	stream->close();
 }
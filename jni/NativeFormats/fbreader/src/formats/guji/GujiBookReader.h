@@ -21,6 +21,7 @@
 #define __GUJIBOOKREADER_H__
 
 #include <stack>
+#include <vector>
 
 #include "GujiReader.h"
 #include "GujiTextFormat.h"
@@ -46,6 +47,7 @@ protected:
 
 private:
 	void internalEndParagraph();
+	void writeSourceRanges();
 
 private:
 	const GujiTextFormat &myFormat;
@@ -61,6 +63,15 @@ private:
 	bool myIsInSectionTitle;
 	bool myIsAfterBookTitle;
 	FBTextKind myKind;
+
+	// source byte ranges of paragraphs made of exactly one line
+	// (paragraph index, start, end triples), used by the guji editor
+	// to rewrite one paragraph in place of the whole file
+	const bool myIsUtf8;
+	std::vector<int> mySourceRanges;
+	std::size_t myParagraphStart;
+	bool myParagraphIsLine;
+	bool myParagraphStartsAtNextLine;
 };
 
 inline GujiBookReader::~GujiBookReader() {}
@@ -72,13 +72,15 @@ protected:
 	void setAscii(char *ptr, char ascii);
 };
 
-GujiReader::GujiReader(const std::string &encoding) : EncodedTextReader(encoding) {
+GujiReader::GujiReader(const std::string &encoding) : EncodedTextReader(encoding),
+	myLineOffsetsAreKnown(false), myLineEnd(0), myStreamLength(0) {
 	if (ZLEncodingConverter::UTF16 == encoding) {
 		myCore = new GujiReaderCoreUtf16LE(*this);
 	} else if (ZLEncodingConverter::UTF16BE == encoding) {
 		myCore = new GujiReaderCoreUtf16BE(*this);
 	} else {
 		myCore = new GujiReaderCore(*this);
+		myLineOffsetsAreKnown = true;
 	}
 }
 
@@ -265,6 +267,8 @@ void GujiReaderCore::readDocument(ZLInputStream &stream) {
 	std::string str;
 	size_t length;
 	size_t stored = 0;
+	// offset in the stream of the first byte of the buffer
+	size_t bufferOffset = 0;
 	do {
 		length = stream.read(buffer+stored, BUFSIZE-stored)+stored;
 		char *start = buffer;
@@ -291,6 +295,7 @@ void GujiReaderCore::readDocument(ZLInputStream &stream) {
 					++ptr;
 				}
 				start = ptr + 1;
+				myReader.myLineEnd = bufferOffset + (start - buffer);
 				myReader.newLineHandler();
 			} else if (isspace((unsigned char)*ptr)) {
 				if (*ptr != '\t') {
@@ -324,7 +329,9 @@ void GujiReaderCore::readDocument(ZLInputStream &stream) {
 				memcpy(buffer, end - stored, stored);
 			}
 		}
+		bufferOffset += length - stored;
 	} while (length == BUFSIZE);
+	myReader.myStreamLength = bufferOffset;
 	delete[] buffer;
 }
 
@@ -46,6 +46,13 @@ protected:
 	virtual bool characterDataHandler(std::string &str) = 0;
 	virtual bool newLineHandler() = 0;
 
+	// byte offsets in the stream, known for one-byte encodings only:
+	// the end of the line handled by newLineHandler() (i.e. the start
+	// of the next line), and the length of the stream
+	bool myLineOffsetsAreKnown;
+	std::size_t myLineEnd;
+	std::size_t myStreamLength;
+
 private:
 	shared_ptr<GujiReaderCore> myCore;
 